@@ -49,6 +49,7 @@ public class Address implements ParaObject {
 	@Stored private List<String> tags;
 	@Stored private Integer votes;
 	@Stored private Long version;
+	@Stored private Long expiresAt;
 	@Stored private Boolean stored;
 	@Stored private Boolean indexed;
 	@Stored private Boolean cached;
@@ -349,6 +350,16 @@ public class Address implements ParaObject {
 		this.version = version;
 	}
 
+	@Override
+	public Long getExpiresAt() {
+		return expiresAt;
+	}
+
+	@Override
+	public void setExpiresAt(Long expiresAt) {
+		this.expiresAt = expiresAt;
+	}
+
 	@Override
 	public Long countLinks(String type2) {
 		return CoreUtils.getInstance().countLinks(this, type2);
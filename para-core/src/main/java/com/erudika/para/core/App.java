@@ -106,6 +106,7 @@ public class App implements ParaObject, Serializable {
 	@Stored private List<String> tags;
 	@Stored private Integer votes;
 	@Stored private Long version;
+	@Stored private Long expiresAt;
 	@Stored private Boolean stored;
 	@Stored private Boolean indexed;
 	@Stored private Boolean cached;
@@ -1242,6 +1243,16 @@ public class App implements ParaObject, Serializable {
 		this.version = version;
 	}
 
+	@Override
+	public Long getExpiresAt() {
+		return expiresAt;
+	}
+
+	@Override
+	public void setExpiresAt(Long expiresAt) {
+		this.expiresAt = expiresAt;
+	}
+
 	@Override
 	public Long countLinks(String type2) {
 		return CoreUtils.getInstance().countLinks(this, type2);
@@ -49,6 +49,7 @@ public final class Linker implements ParaObject, Serializable {
 	@Stored private List<String> tags;
 	@Stored private Integer votes;
 	@Stored private Long version;
+	@Stored private Long expiresAt;
 	@Stored private Boolean stored;
 	@Stored private Boolean indexed;
 	@Stored private Boolean cached;
@@ -429,6 +430,16 @@ public final class Linker implements ParaObject, Serializable {
 		this.version = version;
 	}
 
+	@Override
+	public Long getExpiresAt() {
+		return expiresAt;
+	}
+
+	@Override
+	public void setExpiresAt(Long expiresAt) {
+		this.expiresAt = expiresAt;
+	}
+
 	@Override
 	public Long countLinks(String type2) {
 		return CoreUtils.getInstance().countLinks(this, type2);
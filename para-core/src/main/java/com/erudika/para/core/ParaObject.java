@@ -203,6 +203,22 @@ public interface ParaObject extends Serializable, Linkable, Votable {
 	 */
 	void setVersion(Long version);
 
+	/**
+	 * Returns the time when this object expires. Expired objects are not returned by the DAO and are
+	 * deleted automatically by the data store, if it supports it.
+	 * @return a timestamp in milliseconds or null if the object never expires
+	 */
+	default Long getExpiresAt() {
+		return null;
+	}
+
+	/**
+	 * Sets the time when this object expires.
+	 * @param expiresAt a timestamp in milliseconds or null if the object never expires
+	 */
+	default void setExpiresAt(Long expiresAt) {
+	}
+
 	/**
 	 * Stores this object in the data store.
 	 * @return the id of the object (a new id if object is new)
@@ -52,6 +52,7 @@ public class Sysprop implements ParaObject, Serializable {
 	@Stored private List<String> tags;
 	@Stored private Integer votes;
 	@Stored private Long version;
+	@Stored private Long expiresAt;
 	@Stored private Boolean stored;
 	@Stored private Boolean indexed;
 	@Stored private Boolean cached;
@@ -337,6 +338,16 @@ public class Sysprop implements ParaObject, Serializable {
 		this.version = version;
 	}
 
+	@Override
+	public Long getExpiresAt() {
+		return expiresAt;
+	}
+
+	@Override
+	public void setExpiresAt(Long expiresAt) {
+		this.expiresAt = expiresAt;
+	}
+
 	@Override
 	public Long countLinks(String type2) {
 		return CoreUtils.getInstance().countLinks(this, type2);
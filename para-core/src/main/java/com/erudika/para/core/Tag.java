@@ -47,6 +47,7 @@ public class Tag implements ParaObject {
 	@Stored private List<String> tags;
 	@Stored private Integer votes;
 	@Stored private Long version;
+	@Stored private Long expiresAt;
 	@Stored private Boolean stored;
 	@Stored private Boolean indexed;
 	@Stored private Boolean cached;
@@ -342,6 +343,16 @@ public class Tag implements ParaObject {
 		this.version = version;
 	}
 
+	@Override
+	public Long getExpiresAt() {
+		return expiresAt;
+	}
+
+	@Override
+	public void setExpiresAt(Long expiresAt) {
+		this.expiresAt = expiresAt;
+	}
+
 	@Override
 	public Long countLinks(String type2) {
 		return CoreUtils.getInstance().countLinks(this, type2);
@@ -63,6 +63,7 @@ public class User implements ParaObject {
 	@Stored private List<String> tags;
 	@Stored private Integer votes;
 	@Stored private Long version;
+	@Stored private Long expiresAt;
 	@Stored private Boolean stored;
 	@Stored private Boolean indexed;
 	@Stored private Boolean cached;
@@ -672,11 +673,18 @@ public class User implements ParaObject {
 		// This prevents users with identical emails to have separate accounts by signing in through
 		// different identity providers.
 		if (user == null && !StringUtils.isBlank(u.getEmail())) {
-			HashMap<String, Object> terms = new HashMap<>(2);
-			terms.put(Config._EMAIL, u.getEmail());
-			terms.put(Config._APPID, u.getAppid());
-			Pager p = new Pager(1);
-			List<User> users = CoreUtils.getInstance().getSearch().findTerms(u.getAppid(), u.getType(), terms, true, p);
+			// a secondary index lookup is consistent and doesn't depend on the search index, but objects
+			// created before the index was declared are only found with search
+			Pager p = new Pager(2);
+			List<User> users = CoreUtils.getInstance().getDao().
+					readByIndex(u.getAppid(), u.getType(), Config._EMAIL, u.getEmail(), p);
+			if (users == null || users.isEmpty()) {
+				HashMap<String, Object> terms = new HashMap<>(2);
+				terms.put(Config._EMAIL, u.getEmail());
+				terms.put(Config._APPID, u.getAppid());
+				p = new Pager(1);
+				users = CoreUtils.getInstance().getSearch().findTerms(u.getAppid(), u.getType(), terms, true, p);
+			}
 			if (!users.isEmpty()) {
 				user = users.get(0);
 				// keep this random! dangerous to set it to user.getPassword()
@@ -727,9 +735,12 @@ public class User implements ParaObject {
 				String storedHash = (String) ((Sysprop) s).getProperty(Config._PASSWORD);
 				boolean matches = Utils.bcryptMatches(password, storedHash);
 				if (matches) {
-					((Sysprop) s).setVotes(0);
-					((Sysprop) s).removeProperty("lockedUntil");
-					CoreUtils.getInstance().getDao().update(u.getAppid(), s);
+					// only reset the failed attempts counter if there were any, a successful login shouldn't cost a write
+					if (((Sysprop) s).getVotes() != 0 || ((Sysprop) s).hasProperty("lockedUntil")) {
+						((Sysprop) s).setVotes(0);
+						((Sysprop) s).removeProperty("lockedUntil");
+						CoreUtils.getInstance().getDao().update(u.getAppid(), s);
+					}
 				} else {
 					if (((Sysprop) s).hasProperty("lockedUntil") &&
 							(long) ((Sysprop) s).getProperty("lockedUntil") > System.currentTimeMillis()) {
@@ -737,13 +748,19 @@ public class User implements ParaObject {
 								u.getId(), u.getAppid(), identifier);
 						throw new LimitExceededException("Too many login attempts!");
 					}
-					((Sysprop) s).setVotes(((Sysprop) s).getVotes() + 1);
-					if (((Sysprop) s).getVotes() >= Para.getConfig().maxPasswordMatchingAttempts()) {
-						((Sysprop) s).addProperty("lockedUntil", System.currentTimeMillis() +
+					// failed attempts are counted atomically, concurrent login attempts can't reset the counter
+					Sysprop attempts = CoreUtils.getInstance().getDao().increment(u.getAppid(), identifier, "votes", 1);
+					boolean counted = attempts != null;
+					if (!counted) {
+						attempts = (Sysprop) s;
+						attempts.setVotes(attempts.getVotes() + 1);
+					}
+					if (attempts.getVotes() >= Para.getConfig().maxPasswordMatchingAttempts()) {
+						attempts.addProperty("lockedUntil", System.currentTimeMillis() +
 								TimeUnit.HOURS.toNanos(Para.getConfig().passwordMatchingLockPeriodHours()));
-						CoreUtils.getInstance().getDao().update(u.getAppid(), s);
-					} else {
-						CoreUtils.getInstance().getDao().update(u.getAppid(), s);
+						CoreUtils.getInstance().getDao().update(u.getAppid(), attempts);
+					} else if (!counted) {
+						CoreUtils.getInstance().getDao().update(u.getAppid(), attempts);
 					}
 				}
 				return matches;
@@ -1143,6 +1160,16 @@ public class User implements ParaObject {
 		this.version = version;
 	}
 
+	@Override
+	public Long getExpiresAt() {
+		return expiresAt;
+	}
+
+	@Override
+	public void setExpiresAt(Long expiresAt) {
+		this.expiresAt = expiresAt;
+	}
+
 	@Override
 	public Long countLinks(String type2) {
 		return CoreUtils.getInstance().countLinks(this, type2);
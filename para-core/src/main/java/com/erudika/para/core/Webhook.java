@@ -19,10 +19,11 @@ package com.erudika.para.core;
 
 import com.erudika.para.core.annotations.Stored;
 import com.erudika.para.core.utils.Config;
-import com.erudika.para.core.utils.Pager;
 import com.erudika.para.core.utils.Para;
 import com.erudika.para.core.utils.ParaObjectUtils;
 import com.erudika.para.core.utils.Utils;
+import com.erudika.para.core.utils.WebhookBatcher;
+import com.erudika.para.core.utils.WebhookRegistry;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -40,6 +41,11 @@ import org.slf4j.LoggerFactory;
 public class Webhook extends Sysprop {
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * The event name of batched deliveries.
+	 */
+	public static final String BATCH_EVENT = "batch";
+
 	@Stored @NotBlank @URL private String targetUrl;
 	@Stored private String secret;
 	@Stored private String typeFilter;
@@ -57,6 +63,7 @@ public class Webhook extends Sysprop {
 	@Stored private String triggeredEvent;
 	@Stored private Object customPayload;
 	@Stored private Integer repeatedDeliveryAttempts; // send the same payload X times
+	@Stored private Boolean batchDelivery;
 
 	/**
 	 * No-args constructor.
@@ -81,6 +88,7 @@ public class Webhook extends Sysprop {
 		this.active = false;
 		this.tooManyFailures = false;
 		this.repeatedDeliveryAttempts = 1;
+		this.batchDelivery = false;
 	}
 
 	/**
@@ -317,6 +325,22 @@ public class Webhook extends Sysprop {
 		this.repeatedDeliveryAttempts = repeatedDeliveryAttempts;
 	}
 
+	/**
+	 * @return true if events are delivered in batches
+	 */
+	public Boolean getBatchDelivery() {
+		return batchDelivery != null && batchDelivery;
+	}
+
+	/**
+	 * @param batchDelivery if true, events are buffered and delivered together, as a JSON array of payloads,
+	 * once {@code para.webhooks_batch_size} events have been buffered or {@code para.webhooks_batch_window_ms}
+	 * have passed since the first one
+	 */
+	public void setBatchDelivery(Boolean batchDelivery) {
+		this.batchDelivery = batchDelivery;
+	}
+
 	/**
 	 * Resets the secret key by generating a new one.
 	 */
@@ -369,15 +393,27 @@ public class Webhook extends Sysprop {
 	 * @return the payload + metadata object as JSON string
 	 */
 	public String buildPayloadAsJSON(String event, Object payload) {
-		Map<String, Object> data = new HashMap<>();
-		data.put(Config._ID, getId());
-		data.put(Config._APPID, getAppid());
-		data.put(Config._TYPE, "webhookpayload");
-		data.put("targetUrl", getTargetUrl());
-		data.put("urlEncoded", getUrlEncoded());
-		data.put("repeatedDeliveryAttempts", getRepeatedDeliveryAttempts());
-		data.put("event", event);
+		String payloadString = buildEventAsJSON(event, payload);
+		return payloadString.isEmpty() ? "" : buildMessageAsJSON(event, payloadString);
+	}
 
+	/**
+	 * Builds the JSON payload object for a batch of events. The payload is a JSON array of the objects returned
+	 * by {@link #buildEventAsJSON(java.lang.String, java.lang.Object)}, signed as a whole.
+	 * @param events the payload objects of the events, as JSON strings
+	 * @return the payload + metadata object as JSON string
+	 */
+	public String buildBatchPayloadAsJSON(List<String> events) {
+		return buildMessageAsJSON(BATCH_EVENT, "[" + String.join(",", events) + "]");
+	}
+
+	/**
+	 * Builds the JSON object for a single event, without the delivery metadata and signature.
+	 * @param event Para.DAO method name or custom event name
+	 * @param payload payload object to convert to JSON
+	 * @return the payload object as JSON string
+	 */
+	public String buildEventAsJSON(String event, Object payload) {
 		Map<String, Object> payloadObject = new HashMap<>();
 		payloadObject.put(Config._TIMESTAMP, System.currentTimeMillis());
 		payloadObject.put(Config._APPID, getAppid());
@@ -388,7 +424,23 @@ public class Webhook extends Sysprop {
 			payloadObject.put("items", Collections.singletonList(payload));
 		}
 		try {
-			String payloadString = ParaObjectUtils.getJsonWriterNoIdent().writeValueAsString(payloadObject);
+			return ParaObjectUtils.getJsonWriterNoIdent().writeValueAsString(payloadObject);
+		} catch (Exception e) {
+			LoggerFactory.getLogger(Webhook.class).error(null, e);
+		}
+		return "";
+	}
+
+	private String buildMessageAsJSON(String event, String payloadString) {
+		Map<String, Object> data = new HashMap<>();
+		data.put(Config._ID, getId());
+		data.put(Config._APPID, getAppid());
+		data.put(Config._TYPE, "webhookpayload");
+		data.put("targetUrl", getTargetUrl());
+		data.put("urlEncoded", getUrlEncoded());
+		data.put("repeatedDeliveryAttempts", getRepeatedDeliveryAttempts());
+		data.put("event", event);
+		try {
 			data.put("payload", payloadString);
 			data.put("signature", Utils.hmacSHA256(payloadString, secret()));
 			return ParaObjectUtils.getJsonWriterNoIdent().writeValueAsString(data);
@@ -409,34 +461,14 @@ public class Webhook extends Sysprop {
 		if (StringUtils.isBlank(appid)) {
 			return;
 		}
-		Pager p = new Pager(10);
-		p.setSortby("_docid");
-		List<Webhook> webhooks;
-		do {
-			Map<String, Object> terms = new HashMap<>();
-			terms.put(eventName, eventValue);
-			terms.put(Config._APPID, appid);
-			terms.put("active", true);
-			webhooks = Para.getSearch().findTerms(appid, Utils.type(Webhook.class), terms, true, p);
-			webhooks.stream().filter(webhook -> typeFilterMatches(webhook, payload)).
-					forEach(webhook -> Para.getQueue().push(webhook.buildPayloadAsJSON(
-					(eventValue instanceof String) ? (String) eventValue : eventName, payload)));
-		} while (!webhooks.isEmpty());
-	}
-
-	private static boolean typeFilterMatches(Webhook webhook, Object paraObjects) {
-		if (StringUtils.isBlank(webhook.getTypeFilter()) || App.ALLOW_ALL.equals(webhook.getTypeFilter())) {
-			return true;
-		}
-		if (paraObjects instanceof ParaObject) {
-			return webhook.getTypeFilter().equalsIgnoreCase(((ParaObject) paraObjects).getType());
-		} else if (paraObjects instanceof List) {
-			List<?> list = (List) paraObjects;
-			if (!list.isEmpty() && list.get(0) instanceof ParaObject) {
-				return webhook.getTypeFilter().equalsIgnoreCase(((ParaObject) list.get(0)).getType());
+		String event = (eventValue instanceof String) ? (String) eventValue : eventName;
+		for (Webhook webhook : WebhookRegistry.getInstance().getSubscribers(appid, eventName, eventValue, payload)) {
+			if (webhook.getBatchDelivery()) {
+				WebhookBatcher.getInstance().add(webhook, event, payload);
+			} else {
+				Para.getQueue().push(webhook.buildPayloadAsJSON(event, payload));
 			}
 		}
-		return false;
 	}
 
 	private String secret() {
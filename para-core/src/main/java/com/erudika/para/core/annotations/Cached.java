@@ -63,7 +63,11 @@ public @interface Cached {
 		/**
 		 * Delete all objects from cache.
 		 */
-		DELETE_ALL;
+		DELETE_ALL,
+		/**
+		 * Put the object returned by a partial update in cache.
+		 */
+		PATCH;
 	}
 
 	/**
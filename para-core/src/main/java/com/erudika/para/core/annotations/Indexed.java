@@ -53,7 +53,11 @@ public @interface Indexed {
 		/**
 		 * Removes many objects from index.
 		 */
-		REMOVE_ALL;
+		REMOVE_ALL,
+		/**
+		 * Indexes the object returned by a partial update.
+		 */
+		PATCH;
 	}
 
 	/**
@@ -17,8 +17,12 @@
  */
 package com.erudika.para.core.cache;
 
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.apache.commons.lang3.StringUtils;
 
 /**
  * This class manages object caching. An object is cached mainly for read performance and database offloading. The cache
@@ -125,6 +129,62 @@ public interface Cache {
 	 */
 	<T> Map<String, T> getAll(String appid, List<String> ids);
 
+	/**
+	 * Read an object from cache or load it with the given function and cache it, if it's missing.
+	 * Implementations should make sure that concurrent calls for the same missing object share a single load.
+	 * The default implementation is not atomic - it reads the object and then puts the loaded value in the cache.
+	 * Implementations may also call the loader later, from another thread, to refresh a cached object.
+	 * @param <T> the type of object to be cached
+	 * @param appid the name of the application
+	 * @param id the object's id, not null or empty
+	 * @param loader a function which loads the object for a given id, if it returns null nothing is cached
+	 * @return the object from cache, the loaded object or null if not found
+	 */
+	default <T> T get(String appid, String id, Function<String, T> loader) {
+		T object = get(appid, id);
+		if (object == null && loader != null && !StringUtils.isBlank(id) && !StringUtils.isBlank(appid)) {
+			object = loader.apply(id);
+			put(appid, id, object);
+		}
+		return object;
+	}
+
+	/**
+	 * Read a number of objects from cache and load the missing ones, all at once, with the given function.
+	 * The default implementation is not atomic - it reads the objects and then puts the loaded values in the cache.
+	 * @param <T> the type of object to be cached
+	 * @param appid the name of the application
+	 * @param ids the ids, not null or empty
+	 * @param bulkLoader a function which loads a list of missing objects and returns a map of id - object,
+	 * null values are not cached
+	 * @return a map of the objects that are contained in cache or were loaded (may be empty)
+	 */
+	default <T> Map<String, T> getAll(String appid, List<String> ids,
+			Function<List<String>, Map<String, T>> bulkLoader) {
+		Map<String, T> cached = getAll(appid, ids);
+		if (ids == null || bulkLoader == null || StringUtils.isBlank(appid)) {
+			return cached;
+		}
+		List<String> missing = ids.stream().filter(id -> !StringUtils.isBlank(id) && !cached.containsKey(id)).
+				distinct().collect(Collectors.toList());
+		if (missing.isEmpty()) {
+			return cached;
+		}
+		Map<String, T> loaded = bulkLoader.apply(missing);
+		if (loaded == null || loaded.isEmpty()) {
+			return cached;
+		}
+		putAll(appid, loaded);
+		Map<String, T> all = new LinkedHashMap<>(ids.size());
+		for (String id : ids) {
+			T object = (id == null) ? null : (cached.containsKey(id) ? cached.get(id) : loaded.get(id));
+			if (object != null) {
+				all.put(id, object);
+			}
+		}
+		return all;
+	}
+
 	/**
 	 * Remove an object from cache.
 	 * @param id the object's id, not null or empty
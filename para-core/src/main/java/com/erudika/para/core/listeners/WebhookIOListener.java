@@ -22,6 +22,7 @@ import com.erudika.para.core.ParaObject;
 import com.erudika.para.core.Sysprop;
 import com.erudika.para.core.Webhook;
 import com.erudika.para.core.utils.Utils;
+import com.erudika.para.core.utils.WebhookRegistry;
 import java.lang.reflect.Method;
 import java.util.List;
 import javax.inject.Singleton;
@@ -42,20 +43,43 @@ public class WebhookIOListener implements IOListener {
 	@Override
 	public void onPostInvoke(Method method, Object[] args, Object result) {
 		if (method != null && !method.getName().startsWith("read")) {
-			Object paraObjects = getObjectsFromArguments(args);
-			// don't process webhooks for operations on webhook objects.
-			if (paraObjects == null || paraObjects instanceof Webhook || (paraObjects instanceof Sysprop &&
-					Utils.type(Webhook.class).equals(((Sysprop) paraObjects).getType()))) {
+			boolean isPatch = "patch".equals(method.getName()) || "increment".equals(method.getName());
+			// partial updates and counters carry no object in the arguments, the updated object is the result
+			Object paraObjects = isPatch ? getPatchedObject(args, result) : getObjectsFromArguments(args);
+			String appid = args.length > 0 && args[0] instanceof String ? (String) args[0] :
+					Para.getConfig().getRootAppIdentifier();
+			// don't process webhooks for operations on webhook objects, reload the webhooks of the app instead
+			if (isWebhook(paraObjects)) {
+				WebhookRegistry.getInstance().invalidate(appid);
+				return;
+			}
+			if (paraObjects == null) {
 				return;
 			}
 			Para.asyncExecute(() -> {
-				String appid = args.length > 0 && args[0] instanceof String ? (String) args[0] :
-						Para.getConfig().getRootAppIdentifier();
-				Webhook.sendEventPayloadToQueue(appid, method.getName(), true, paraObjects);
+				Webhook.sendEventPayloadToQueue(appid, isPatch ? "update" : method.getName(), true, paraObjects);
 			});
 		}
 	}
 
+	private boolean isWebhook(Object paraObjects) {
+		Object first = paraObjects;
+		if (paraObjects instanceof List) {
+			List<?> list = (List) paraObjects;
+			first = list.isEmpty() ? null : list.get(0);
+		}
+		return first instanceof Webhook || (first instanceof Sysprop &&
+				Utils.type(Webhook.class).equals(((Sysprop) first).getType()));
+	}
+
+	private Object getPatchedObject(Object[] args, Object result) {
+		// the overloads without appid delegate to the ones with appid, which are handled separately
+		if (args != null && args.length == 4 && result instanceof ParaObject) {
+			return result;
+		}
+		return null;
+	}
+
 	private Object getObjectsFromArguments(Object[] args) {
 		for (Object arg : args) {
 			if (arg != null && arg instanceof ParaObject) {
@@ -18,6 +18,7 @@
 package com.erudika.para.core.metrics;
 
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
@@ -88,6 +89,21 @@ public final class Metrics {
 		return getCounter(App.isRoot(appid) ? SYSTEM_METRICS_NAME : appid, className, names);
 	}
 
+	/**
+	 * Creates a new meter for a particular class and operation for a specific application.
+	 * Meters measure the rate of events, e.g. items processed per second.
+	 *
+	 * @param appid the application that invoked the request
+	 * @param clazz the Class to be measured
+	 * @param names one or more unique names to identify the meter - usually a method name
+	 * @return a meter
+	 */
+	public static Meter meter(String appid, Class<?> clazz, String... names) {
+		String className = getClassName(clazz);
+		return SharedMetricRegistries.getOrCreate(App.isRoot(appid) ? SYSTEM_METRICS_NAME : appid).
+				meter(MetricRegistry.name(className, names));
+	}
+
 	private static Timer getTimer(String registryName, String className, String... names) {
 		return SharedMetricRegistries.getOrCreate(registryName).timer(MetricRegistry.name(className, names));
 	}
@@ -20,7 +20,13 @@ package com.erudika.para.core.persistence;
 import com.erudika.para.core.annotations.Cached;
 import com.erudika.para.core.annotations.Indexed;
 import com.erudika.para.core.ParaObject;
+import com.erudika.para.core.annotations.Locked;
+import com.erudika.para.core.utils.Config;
 import com.erudika.para.core.utils.Pager;
+import com.erudika.para.core.utils.Para;
+import com.erudika.para.core.utils.ParaObjectUtils;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -88,6 +94,88 @@ public interface DAO {
 	 */
 	<P extends ParaObject> void update(P object);
 
+	/**
+	 * Updates only the given fields of an object, without reading it first. Fields annotated with
+	 * {@link com.erudika.para.core.annotations.Locked} are not changed. The default implementation falls back
+	 * to a {@link #read(java.lang.String, java.lang.String)} followed by a full update and DAO implementations
+	 * should override it with a native partial update, if the data store supports it. The nested update
+	 * is not indexed, cached or reported to listeners on its own - only the patch is.
+	 * @param <P> the type of object
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param id the object id
+	 * @param changes a map of field names and their new values - null values are ignored and blank values
+	 * clear a field
+	 * @param expectedVersion the version of the object which the changes are based on, if positive
+	 * the update will only succeed if the stored version matches it
+	 * @return the updated object or null if the object was not found or the versions don't match
+	 */
+	@Indexed(action = Indexed.Action.PATCH)
+	@Cached(action = Cached.Action.PATCH)
+	default <P extends ParaObject> P patch(String appid, String id, Map<String, Object> changes, Long expectedVersion) {
+		if (changes == null || changes.isEmpty()) {
+			return null;
+		}
+		P object = read(appid, id);
+		if (object == null || (expectedVersion != null && expectedVersion > 0 &&
+				!expectedVersion.equals(object.getVersion()))) {
+			return null;
+		}
+		Map<String, Object> delta = new HashMap<>(changes);
+		delta.remove(Config._VERSION);
+		ParaObjectUtils.setAnnotatedFields(object, delta, Locked.class);
+		update(appid, object);
+		return (object.getVersion() != null && object.getVersion() == -1) ? null : object;
+	}
+
+	/**
+	 * Updates only the given fields of an object, without reading it first.
+	 * @param <P> the type of object
+	 * @param id the object id
+	 * @param changes a map of field names and their new values
+	 * @param expectedVersion the version of the object which the changes are based on
+	 * @return the updated object or null if the object was not found or the versions don't match
+	 */
+	default <P extends ParaObject> P patch(String id, Map<String, Object> changes, Long expectedVersion) {
+		return patch(Para.getConfig().getRootAppIdentifier(), id, changes, expectedVersion);
+	}
+
+	/**
+	 * Atomically adds a number to a counter field of an object, e.g. votes or the count of a tag, without reading
+	 * and writing back the whole object. Only unlocked, stored integer fields can be incremented. The default
+	 * implementation is not atomic and DAO implementations should override it, if the data store supports it.
+	 * Like with {@link #patch(java.lang.String, java.lang.String, java.util.Map, java.lang.Long)}, the nested
+	 * calls are not indexed, cached or reported to listeners on their own.
+	 * @param <P> the type of object
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param id the object id
+	 * @param field the name of the counter field
+	 * @param delta the amount to add, can be negative
+	 * @return the updated object or null if the object was not found or the field is not a counter
+	 */
+	@Indexed(action = Indexed.Action.PATCH)
+	@Cached(action = Cached.Action.PATCH)
+	default <P extends ParaObject> P increment(String appid, String id, String field, long delta) {
+		P object = read(appid, id);
+		if (object == null || !ParaObjectUtils.isCounterField(object.getClass(), field)) {
+			return null;
+		}
+		Object value = ParaObjectUtils.getAnnotatedFields(object).get(field);
+		long current = (value instanceof Number) ? ((Number) value).longValue() : 0L;
+		return patch(appid, id, Collections.singletonMap(field, current + delta), null);
+	}
+
+	/**
+	 * Atomically adds a number to a counter field of an object.
+	 * @param <P> the type of object
+	 * @param id the object id
+	 * @param field the name of the counter field
+	 * @param delta the amount to add, can be negative
+	 * @return the updated object or null if the object was not found or the field is not a counter
+	 */
+	default <P extends ParaObject> P increment(String id, String field, long delta) {
+		return increment(Para.getConfig().getRootAppIdentifier(), id, field, delta);
+	}
+
 	/**
 	 * Deletes an object permanently.
 	 * @param <P> the type of object
@@ -165,6 +253,40 @@ public interface DAO {
 	 */
 	<P extends ParaObject> List<P> readPage(Pager pager);
 
+	/**
+	 * Finds all objects of a given type which have a field equal to the given value, using a secondary index
+	 * maintained by the data store. Indexes are declared per type and field with
+	 * {@code para.dao.secondary_indexes}. Results are sorted by id, in the order set by {@link Pager#isDesc()},
+	 * and pages are continued from {@link Pager#getLastKey()}. Like {@link #readPage(java.lang.String, Pager)},
+	 * the pager count is increased by the number of objects read. Calling this method bypasses the search index
+	 * and the read cache. The default implementation returns null, meaning that the lookup should be done
+	 * with {@link com.erudika.para.core.search.Search} instead.
+	 * @param <P> the type of object
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param type the type of objects to look for
+	 * @param field the name of an indexed field
+	 * @param value the value of the field, compared as a string
+	 * @param pager a {@link com.erudika.para.core.utils.Pager}
+	 * @return a list of objects or null if the field is not indexed or the data store has no secondary indexes
+	 */
+	default <P extends ParaObject> List<P> readByIndex(String appid, String type, String field, Object value,
+			Pager pager) {
+		return null;
+	}
+
+	/**
+	 * Finds all objects of a given type which have a field equal to the given value, using a secondary index.
+	 * @param <P> the type of object
+	 * @param type the type of objects to look for
+	 * @param field the name of an indexed field
+	 * @param value the value of the field, compared as a string
+	 * @param pager a {@link com.erudika.para.core.utils.Pager}
+	 * @return a list of objects or null if the field is not indexed or the data store has no secondary indexes
+	 */
+	default <P extends ParaObject> List<P> readByIndex(String type, String field, Object value, Pager pager) {
+		return readByIndex(Para.getConfig().getRootAppIdentifier(), type, field, value, pager);
+	}
+
 	/**
 	 * Updates multiple objects.
 	 * @param <P> the type of object
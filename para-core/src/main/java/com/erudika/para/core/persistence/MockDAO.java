@@ -19,19 +19,28 @@ package com.erudika.para.core.persistence;
 
 import com.erudika.para.core.annotations.Locked;
 import com.erudika.para.core.ParaObject;
+import com.erudika.para.core.utils.Config;
 import com.erudika.para.core.utils.ParaObjectUtils;
 import com.erudika.para.core.utils.Pager;
 import com.erudika.para.core.utils.Para;
 import com.erudika.para.core.utils.Utils;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.NavigableSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.inject.Singleton;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,8 +53,9 @@ import org.slf4j.LoggerFactory;
 public class MockDAO implements DAO {
 
 	private static final Logger logger = LoggerFactory.getLogger(MockDAO.class);
-	private static final Map<String, Map<String, ParaObject>> MAPS =
-			new ConcurrentHashMap<String, Map<String, ParaObject>>();
+	private static final Map<String, ObjectStore> MAPS = new ConcurrentHashMap<String, ObjectStore>();
+	private static final long SWEEP_INTERVAL_SEC = 10;
+	private static final AtomicBoolean SWEEPER_STARTED = new AtomicBoolean();
 
 	public MockDAO() {
 	}
@@ -68,7 +78,8 @@ public class MockDAO implements DAO {
 		}
 		P so = (P) getMap(appid).get(key);
 		logger.debug("DAO.read() {} -> {}", key, so);
-		return so;
+		// expired objects which haven't been swept yet are treated as deleted
+		return ParaObjectUtils.isExpired(so) ? null : so;
 	}
 
 	@Override
@@ -76,6 +87,68 @@ public class MockDAO implements DAO {
 		updateObject(appid, so);
 	}
 
+	@Override
+	@SuppressWarnings("unchecked")
+	public <P extends ParaObject> P patch(String appid, String id, Map<String, Object> changes, Long expectedVersion) {
+		if (StringUtils.isBlank(appid) || StringUtils.isBlank(id) || changes == null || changes.isEmpty()) {
+			return null;
+		}
+		Map<String, Object> delta = new HashMap<>(changes);
+		delta.remove(Config._VERSION);
+		AtomicReference<ParaObject> original = new AtomicReference<>();
+		AtomicReference<ParaObject> patched = new AtomicReference<>();
+		// the changes are applied to a copy of the stored object, atomically
+		getMap(appid).computeIfPresent(id, (k, so) -> {
+			if (expectedVersion != null && expectedVersion > 0 && !expectedVersion.equals(so.getVersion())) {
+				logger.warn("Object not patched - versions don't match. appid={}, id={}.", appid, id);
+				return so;
+			}
+			ParaObject copy = copyObject(so);
+			ParaObjectUtils.setAnnotatedFields(copy, delta, Locked.class);
+			copy.setUpdated(Utils.timestamp());
+			// versioned objects get a new version, so that updates based on the old one fail
+			if (so.getVersion() != null && so.getVersion() > 0) {
+				copy.setVersion(so.getVersion() + 1);
+			}
+			original.set(so);
+			patched.set(copy);
+			return copy;
+		});
+		getStore(appid).reindex(original.get(), patched.get());
+		logger.debug("DAO.patch() {}", id);
+		return (P) patched.get();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <P extends ParaObject> P increment(String appid, String id, String field, long delta) {
+		if (StringUtils.isBlank(appid) || StringUtils.isBlank(id)) {
+			return null;
+		}
+		AtomicReference<ParaObject> original = new AtomicReference<>();
+		AtomicReference<ParaObject> incremented = new AtomicReference<>();
+		// computeIfPresent() locks the entry, so concurrent increments are never lost
+		getMap(appid).computeIfPresent(id, (k, so) -> {
+			if (!ParaObjectUtils.isCounterField(so.getClass(), field)) {
+				return so;
+			}
+			ParaObject copy = copyObject(so);
+			Object value = ParaObjectUtils.getAnnotatedFields(so).get(field);
+			long current = (value instanceof Number) ? ((Number) value).longValue() : 0L;
+			ParaObjectUtils.setAnnotatedFields(copy, Collections.singletonMap(field, current + delta), Locked.class);
+			if (so.getVersion() != null && so.getVersion() > 0) {
+				copy.setVersion(so.getVersion() + 1);
+			}
+			copy.setUpdated(Utils.timestamp());
+			original.set(so);
+			incremented.set(copy);
+			return copy;
+		});
+		getStore(appid).reindex(original.get(), incremented.get());
+		logger.debug("DAO.increment() {} {} {}", id, field, delta);
+		return (P) incremented.get();
+	}
+
 	@Override
 	public <P extends ParaObject> void delete(String appid, P so) {
 		deleteObject(appid, so);
@@ -100,8 +173,9 @@ public class MockDAO implements DAO {
 		}
 		Map<String, P> results = new LinkedHashMap<>(keys.size());
 		for (String key : keys) {
-			if (getMap(appid).containsKey(key)) {
-				results.put(key, (P) read(appid, key));
+			P so = read(appid, key);
+			if (so != null) {
+				results.put(key, so);
 			}
 		}
 		logger.debug("DAO.readAll() {}", results.size());
@@ -118,30 +192,100 @@ public class MockDAO implements DAO {
 		if (pager == null) {
 			pager = new Pager();
 		}
-		if (pager.getCount() >= getMap(appid).size()) {
+		ObjectStore store = getStore(appid);
+		if (pager.getCount() >= store.objects.size()) {
 			return results;
 		}
-
 		String lastKey = pager.getLastKey();
-		boolean found = false;
+		String sortby = pager.getSortby();
 		int	i = 0;
-		Map<String, ParaObject> orderedMAPS = new TreeMap<String, ParaObject>(getMap(appid));
-		for (String key : orderedMAPS.keySet()) {
-			if (lastKey != null && !found) {
-				found = key.equals(lastKey);
-			} else {
-				results.add((P) getMap(appid).get(key));
-				i++;
+		if (Config._TIMESTAMP.equals(sortby) || Config._UPDATED.equals(sortby)) {
+			NavigableSet<SortKey> index = Config._TIMESTAMP.equals(sortby) ? store.byTimestamp : store.byUpdated;
+			if (pager.isDesc()) {
+				// the tail of the descending view holds the keys below the last key
+				index = index.descendingSet();
 			}
-			if (i >= pager.getLimit()) {
-				pager.setLastKey(key);
-				break;
+			SortKey last = SortKey.parse(lastKey, store.objects, sortby);
+			if (last == null && !StringUtils.isBlank(lastKey)) {
+				// restarting from the beginning could loop forever, so the scan ends here
+				logger.warn("Can't continue reading from last key '{}' - the object was deleted.", lastKey);
+				return results;
+			}
+			for (SortKey key : (last == null) ? index : index.tailSet(last, false)) {
+				ParaObject so = store.objects.get(key.id);
+				if (so == null || key.value != SortKey.valueOf(so, sortby)) {
+					index.remove(key); // stale entry left behind by a concurrent write
+					continue;
+				}
+				if (ParaObjectUtils.isExpired(so)) {
+					continue;
+				}
+				results.add((P) so);
+				if (++i >= pager.getLimit()) {
+					pager.setLastKey(key.toString());
+					break;
+				}
+			}
+		} else {
+			Map<String, ParaObject> page = (lastKey == null) ? store.objects : store.objects.tailMap(lastKey, false);
+			for (Map.Entry<String, ParaObject> entry : page.entrySet()) {
+				if (ParaObjectUtils.isExpired(entry.getValue())) {
+					continue;
+				}
+				results.add((P) entry.getValue());
+				if (++i >= pager.getLimit()) {
+					pager.setLastKey(entry.getKey());
+					break;
+				}
 			}
 		}
 		pager.setCount(pager.getCount() + i);
 		return results;
 	}
 
+	@Override
+	@SuppressWarnings("unchecked")
+	public <P extends ParaObject> List<P> readByIndex(String appid, String type, String field, Object value,
+			Pager pager) {
+		if (StringUtils.isBlank(appid) || !ParaObjectUtils.isSecondaryIndex(type, field)) {
+			return null;
+		}
+		List<P> results = new LinkedList<>();
+		if (value == null || StringUtils.isBlank(value.toString())) {
+			return results;
+		}
+		if (pager == null) {
+			pager = new Pager();
+		}
+		ObjectStore store = getStore(appid);
+		NavigableSet<String> ids = store.secondary.get(ObjectStore.indexKey(type, field, value.toString()));
+		if (ids == null) {
+			return results;
+		}
+		if (pager.isDesc()) {
+			ids = ids.descendingSet();
+		}
+		String lastKey = pager.getLastKey();
+		for (String id : (lastKey == null) ? ids : ids.tailSet(lastKey, false)) {
+			ParaObject so = store.objects.get(id);
+			if (so == null || !type.equals(so.getType()) ||
+					!value.toString().equals(ParaObjectUtils.getSecondaryIndexValues(so).get(field))) {
+				continue; // stale entry left behind by a concurrent write
+			}
+			if (ParaObjectUtils.isExpired(so)) {
+				continue;
+			}
+			results.add((P) so);
+			pager.setLastKey(id);
+			if (results.size() >= pager.getLimit()) {
+				break;
+			}
+		}
+		pager.setCount(pager.getCount() + results.size());
+		logger.debug("DAO.readByIndex() {}.{}={} -> {}", type, field, value, results.size());
+		return results;
+	}
+
 	@Override
 	public <P extends ParaObject> void updateAll(String appid, List<P> objects) {
 		if (!StringUtils.isBlank(appid) && objects != null) {
@@ -177,32 +321,192 @@ public class MockDAO implements DAO {
 			so.setTimestamp(Utils.timestamp());
 		}
 		so.setAppid(appid);
-		getMap(appid).put(so.getId(), ParaObjectUtils.setAnnotatedFields(ParaObjectUtils.toObject(null, so.getType()),
-				ParaObjectUtils.getAnnotatedFields(so), null));
+		ParaObject copy = copyObject(so);
+		getStore(appid).reindex(getMap(appid).put(so.getId(), copy), copy);
+	}
+
+	private ParaObject copyObject(ParaObject so) {
+		return ParaObjectUtils.setAnnotatedFields(ParaObjectUtils.toObject(null, so.getType()),
+				ParaObjectUtils.getAnnotatedFields(so), null);
 	}
 
 	private <P extends ParaObject> void updateObject(String appid, P so) {
 		if (so != null && !StringUtils.isBlank(appid)) {
 			so.setUpdated(Utils.timestamp());
-			ParaObject soUpdated = getMap(appid).get(so.getId());
-			getMap(appid).put(so.getId(), ParaObjectUtils.setAnnotatedFields(soUpdated,
-					ParaObjectUtils.getAnnotatedFields(so), Locked.class));
+			ObjectStore store = getStore(appid);
+			ParaObject soUpdated = store.objects.get(so.getId());
+			// the stored object is changed in place, so its sort keys must be removed before that
+			store.reindex(soUpdated, null);
+			soUpdated = ParaObjectUtils.setAnnotatedFields(soUpdated, ParaObjectUtils.getAnnotatedFields(so), Locked.class);
+			if (soUpdated != null) {
+				store.objects.put(so.getId(), soUpdated);
+				store.reindex(null, soUpdated);
+			}
 			logger.debug("DAO.update() {}", so.getId());
 		}
 	}
 
 	private <P extends ParaObject> void deleteObject(String appid, P so) {
 		if (so != null && !StringUtils.isBlank(appid)) {
-			getMap(appid).remove(so.getId());
+			getStore(appid).reindex(getMap(appid).remove(so.getId()), null);
 			logger.debug("DAO.delete() {}", so.getId());
 		}
 	}
 
 	private Map<String, ParaObject> getMap(String appid) {
-		if (!MAPS.containsKey(appid)) {
-			MAPS.put(appid, new ConcurrentHashMap<>());
+		return getStore(appid).objects;
+	}
+
+	private ObjectStore getStore(String appid) {
+		return MAPS.computeIfAbsent(appid, k -> {
+			startSweeper();
+			return new ObjectStore();
+		});
+	}
+
+	private static void startSweeper() {
+		if (SWEEPER_STARTED.compareAndSet(false, true)) {
+			Para.asyncExecutePeriodically(MockDAO::sweepExpired, SWEEP_INTERVAL_SEC, SWEEP_INTERVAL_SEC, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Deletes all expired objects.
+	 * @return the number of objects deleted
+	 */
+	static int sweepExpired() {
+		int swept = 0;
+		long now = Utils.timestamp();
+		for (ObjectStore store : MAPS.values()) {
+			swept += store.sweep(now);
+		}
+		if (swept > 0) {
+			logger.debug("Deleted {} expired objects.", swept);
+		}
+		return swept;
+	}
+
+	/**
+	 * The objects of an app, ordered by id, and the indexes used for sorting them by timestamp and updated,
+	 * for finding expired objects and for looking up objects by the value of a field.
+	 */
+	private static final class ObjectStore {
+		private final ConcurrentNavigableMap<String, ParaObject> objects = new ConcurrentSkipListMap<>();
+		private final NavigableSet<SortKey> byTimestamp = new ConcurrentSkipListSet<>();
+		private final NavigableSet<SortKey> byUpdated = new ConcurrentSkipListSet<>();
+		private final NavigableSet<SortKey> byExpiry = new ConcurrentSkipListSet<>();
+		// secondary indexes - "type/field/value" -> ids of matching objects
+		private final Map<String, NavigableSet<String>> secondary = new ConcurrentHashMap<>();
+
+		void reindex(ParaObject oldObject, ParaObject newObject) {
+			if (oldObject != null) {
+				byTimestamp.remove(new SortKey(oldObject, Config._TIMESTAMP));
+				byUpdated.remove(new SortKey(oldObject, Config._UPDATED));
+				byExpiry.remove(new SortKey(oldObject, Config._EXPIRES_AT));
+				ParaObjectUtils.getSecondaryIndexValues(oldObject).forEach((field, value) -> {
+					NavigableSet<String> ids = secondary.get(indexKey(oldObject.getType(), field, value));
+					if (ids != null) {
+						ids.remove(oldObject.getId());
+					}
+				});
+			}
+			if (newObject != null) {
+				byTimestamp.add(new SortKey(newObject, Config._TIMESTAMP));
+				byUpdated.add(new SortKey(newObject, Config._UPDATED));
+				if (SortKey.valueOf(newObject, Config._EXPIRES_AT) > 0) {
+					byExpiry.add(new SortKey(newObject, Config._EXPIRES_AT));
+				}
+				ParaObjectUtils.getSecondaryIndexValues(newObject).forEach((field, value) ->
+						secondary.computeIfAbsent(indexKey(newObject.getType(), field, value),
+								k -> new ConcurrentSkipListSet<>()).add(newObject.getId()));
+			}
+		}
+
+		static String indexKey(String type, String field, String value) {
+			return type + "/" + field + "/" + value;
+		}
+
+		int sweep(long now) {
+			int swept = 0;
+			SortKey first;
+			// the index is ordered by expiry time, so only the expired entries at its head are visited
+			while ((first = byExpiry.pollFirst()) != null) {
+				if (first.value > now) {
+					byExpiry.add(first);
+					break;
+				}
+				ParaObject so = objects.get(first.id);
+				if (so != null && SortKey.valueOf(so, Config._EXPIRES_AT) == first.value && objects.remove(first.id, so)) {
+					reindex(so, null);
+					swept++;
+				}
+			}
+			return swept;
+		}
+	}
+
+	/**
+	 * A sort key made of a timestamp and the object id, which breaks ties.
+	 */
+	private static final class SortKey implements Comparable<SortKey> {
+		private final long value;
+		private final String id;
+
+		SortKey(long value, String id) {
+			this.value = value;
+			this.id = id;
+		}
+
+		SortKey(ParaObject so, String sortby) {
+			this(valueOf(so, sortby), so.getId());
+		}
+
+		static long valueOf(ParaObject so, String sortby) {
+			Long value;
+			if (Config._EXPIRES_AT.equals(sortby)) {
+				value = so.getExpiresAt();
+			} else {
+				value = Config._UPDATED.equals(sortby) ? so.getUpdated() : so.getTimestamp();
+			}
+			return (value == null) ? 0L : value;
+		}
+
+		/**
+		 * Parses a last key in the format "value:id". Plain object ids are also accepted,
+		 * but are resolved to null if the object is no longer there.
+		 */
+		static SortKey parse(String lastKey, Map<String, ParaObject> objects, String sortby) {
+			if (StringUtils.isBlank(lastKey)) {
+				return null;
+			}
+			int separator = lastKey.indexOf(':');
+			if (separator > 0 && NumberUtils.isParsable(lastKey.substring(0, separator))) {
+				return new SortKey(NumberUtils.toLong(lastKey.substring(0, separator)), lastKey.substring(separator + 1));
+			}
+			ParaObject so = objects.get(lastKey);
+			return (so == null) ? null : new SortKey(so, sortby);
+		}
+
+		@Override
+		public int compareTo(SortKey o) {
+			int c = Long.compare(value, o.value);
+			return (c != 0) ? c : id.compareTo(o.id);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return (obj instanceof SortKey) && compareTo((SortKey) obj) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(value) * 31 + id.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return value + ":" + id;
 		}
-		return MAPS.get(appid);
 	}
 
 	////////////////////////////////////////////////////////////////////
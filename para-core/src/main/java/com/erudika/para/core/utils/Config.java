@@ -93,6 +93,8 @@ public abstract class Config {
 	public static final String _GROUPS = "groups";
 	/** {@value #_VERSION}. */
 	public static final String _VERSION = "version";
+	/** {@value #_EXPIRES_AT}. */
+	public static final String _EXPIRES_AT = "expiresAt";
 	/** {@value #_PROPERTIES}. */
 	public static final String _PROPERTIES = "properties";
 
@@ -314,11 +314,31 @@ public enum CoreUtils implements InitializeListener {
 			Map<String, Object> terms = new HashMap<>();
 			if (!StringUtils.isBlank(field) && !StringUtils.isBlank(term)) {
 				terms.put(field, term);
+			} else {
+				List<P> children = readChildrenByIndex(obj, type2, pager);
+				if (children != null) {
+					return children;
+				}
 			}
 			terms.put(Config._PARENTID, obj.getId());
 			return getSearch().findTerms(obj.getAppid(), type2, terms, true, pager);
 		}
 
+		/**
+		 * Reads child objects from the DAO's secondary index on parentid. Index lookups are sorted by id and
+		 * paginated by last key, so requests for other sort orders or numbered pages still go to search.
+		 * Sorting by timestamp, the default, is served by the index too because ids are generated in time order.
+		 * @return a list of child objects or null if they must be found with search instead
+		 */
+		private <P extends ParaObject> List<P> readChildrenByIndex(ParaObject obj, String type2, Pager... pager) {
+			Pager p = (pager != null && pager.length > 0) ? pager[0] : null;
+			if (p != null && ((p.getPage() > 1 && StringUtils.isBlank(p.getLastKey())) ||
+					!(Config._ID.equals(p.getSortby()) || Config._TIMESTAMP.equals(p.getSortby())))) {
+				return null;
+			}
+			return getDao().readByIndex(obj.getAppid(), type2, Config._PARENTID, obj.getId(), p);
+		}
+
 		@Override
 		public <P extends ParaObject> List<P> findChildren(ParaObject obj, String type2, String query, Pager... pager) {
 			if (StringUtils.isBlank(query)) {
@@ -332,7 +352,8 @@ public enum CoreUtils implements InitializeListener {
 		@Override
 		public void deleteChildren(ParaObject obj, String type2) {
 			if (!StringUtils.isBlank(obj.getId())) {
-				getDao().deleteAll(obj.getAppid(), getSearch().findTerms(obj.getAppid(),
+				List<ParaObject> children = readChildrenByIndex(obj, type2);
+				getDao().deleteAll(obj.getAppid(), (children != null) ? children : getSearch().findTerms(obj.getAppid(),
 						type2, Collections.singletonMap(Config._PARENTID, obj.getId()), true));
 			}
 		}
@@ -405,6 +426,10 @@ public enum CoreUtils implements InitializeListener {
 			if (lockedAfter != null) {
 				v.setLockedAfter(lockedAfter);
 			}
+			if (v.getExpiresAfter() > 0) {
+				// expired votes are deleted by the data store
+				v.setExpiresAt(v.getTimestamp() + v.getExpiresAfter() * 1000L);
+			}
 			Vote saved = getDao().read(votable.getAppid(), v.getId());
 			boolean done = false;
 
@@ -424,7 +449,13 @@ public enum CoreUtils implements InitializeListener {
 			}
 
 			if (done) {
-				votable.setVotes(votable.getVotes() + upDown.getValue());
+				// the counter is updated atomically in the DB, the in-memory value is only used for unsaved objects
+				ParaObject voted = getDao().increment(votable.getAppid(), votable.getId(), "votes", upDown.getValue());
+				if (voted != null) {
+					votable.setVotes(voted.getVotes());
+				} else {
+					votable.setVotes(votable.getVotes() + upDown.getValue());
+				}
 			}
 			return done;
 		}
@@ -99,6 +99,62 @@ public class ParaConfig extends Config {
 		return getConfigParam("dao", "H2DAO");
 	}
 
+	@Documented(position = 51,
+			identifier = "dao.batch_writes_enabled",
+			value = "false",
+			type = Boolean.class,
+			category = "Core",
+			tags = {"requires restart"},
+			description = "Enable/disable coalescing of single `create()` and `update()` calls, which arrive within a "
+					+ "few milliseconds of each other, into `createAll()` and `updateAll()` batches.")
+	public boolean daoBatchWritesEnabled() {
+		return getConfigBoolean("dao.batch_writes_enabled", false);
+	}
+
+	@Documented(position = 52,
+			identifier = "dao.batch_max_delay_ms",
+			value = "5",
+			type = Integer.class,
+			category = "Core",
+			description = "The maximum latency, in milliseconds, added to a write while it waits for a batch to fill up.")
+	public int daoBatchMaxDelayMs() {
+		return getConfigInt("dao.batch_max_delay_ms", 5);
+	}
+
+	@Documented(position = 53,
+			identifier = "dao.batch_max_size",
+			value = "25",
+			type = Integer.class,
+			category = "Core",
+			description = "The maximum number of objects in a write batch. A full batch is written immediately.")
+	public int daoBatchMaxSize() {
+		return getConfigInt("dao.batch_max_size", 25);
+	}
+
+	@Documented(position = 54,
+			identifier = "dao.batch_ordered_writes",
+			value = "true",
+			type = Boolean.class,
+			category = "Core",
+			description = "Enable/disable strict ordering of batched writes to the same object. When disabled, "
+					+ "a later write replaces an earlier one which is still waiting in the same batch.")
+	public boolean daoBatchOrderedWrites() {
+		return getConfigBoolean("dao.batch_ordered_writes", true);
+	}
+
+	@Documented(position = 55,
+			identifier = "dao.secondary_indexes",
+			value = "",
+			category = "Core",
+			tags = {"requires restart"},
+			description = "A comma-separated list of `type:field` pairs which the `DAO` maintains secondary indexes for. "
+					+ "The type `*` matches all types. Equality lookups on these fields are served by `DAO.readByIndex()` "
+					+ "instead of the search index. Each index adds to the cost of every write, so none are declared "
+					+ "by default. Suggested value: `user:email,*:parentid,webhook:active`.")
+	public String daoSecondaryIndexes() {
+		return getConfigParam("dao.secondary_indexes", "");
+	}
+
 	@Documented(position = 60,
 			identifier = "search",
 			value = "LuceneSearch",
@@ -169,6 +225,90 @@ public class ParaConfig extends Config {
 		return getConfigBoolean("cache_enabled", environment().equals("production"));
 	}
 
+	@Documented(position = 121,
+			identifier = "skip_unchanged_updates",
+			value = "false",
+			type = Boolean.class,
+			category = "Core",
+			description = "Enable/disable skipping of updates which don't change an object. A fingerprint of the "
+					+ "object's content is kept in memory and unchanged objects are not written, indexed or sent to "
+					+ "webhooks. When an update matches the fingerprint, the stored object is read from the database "
+					+ "and the update is only skipped if it matches that too, so changes made on other nodes are not "
+					+ "lost. Requires caching.")
+	public boolean skipUnchangedUpdatesEnabled() {
+		return getConfigBoolean("skip_unchanged_updates", false);
+	}
+
+	@Documented(position = 126,
+			identifier = "skip_unchanged_updates_ttl_sec",
+			value = "60",
+			type = Integer.class,
+			category = "Core",
+			tags = {"requires restart"},
+			description = "The time in seconds for which the fingerprint of an object is kept, when "
+					+ "`skip_unchanged_updates` is enabled.")
+	public int skipUnchangedUpdatesTTLSec() {
+		return getConfigInt("skip_unchanged_updates_ttl_sec", 60);
+	}
+
+	@Documented(position = 127,
+			identifier = "skip_unchanged_updates_cache_size",
+			value = "10000",
+			type = Integer.class,
+			category = "Core",
+			tags = {"requires restart"},
+			description = "The maximum number of object fingerprints kept in memory, when `skip_unchanged_updates` "
+					+ "is enabled.")
+	public int skipUnchangedUpdatesCacheSize() {
+		return getConfigInt("skip_unchanged_updates_cache_size", 10000);
+	}
+
+	@Documented(position = 122,
+			identifier = "negative_cache_ttl_sec",
+			value = "0",
+			type = Integer.class,
+			category = "Core",
+			description = "The time in seconds for which reads of missing objects are remembered, so that repeated reads "
+					+ "of the same id don't reach the database. Writes to that id clear it on the node which made "
+					+ "them, but not on the other nodes of a cluster, which may not see a new object for this long. "
+					+ "A value of 0 disables negative caching. Requires caching.")
+	public int negativeCacheTTLSec() {
+		return getConfigInt("negative_cache_ttl_sec", 0);
+	}
+
+	@Documented(position = 123,
+			identifier = "negative_cache_size",
+			value = "10000",
+			type = Integer.class,
+			category = "Core",
+			description = "The maximum number of missing object ids remembered by the negative cache on each node.")
+	public int negativeCacheSize() {
+		return getConfigInt("negative_cache_size", 10000);
+	}
+
+	@Documented(position = 124,
+			identifier = "query_cache_ttl_sec",
+			value = "0",
+			type = Integer.class,
+			category = "Core",
+			description = "The time in seconds for which the results of search queries are kept on each node. Only "
+					+ "the ids of the objects found are kept and the objects are read from the object cache. Indexing "
+					+ "or unindexing objects of a type clears the results of queries for that type. Changes indexed "
+					+ "on other nodes are seen after this time. A value of 0 disables the query cache.")
+	public int queryCacheTTLSec() {
+		return getConfigInt("query_cache_ttl_sec", 0);
+	}
+
+	@Documented(position = 125,
+			identifier = "query_cache_size",
+			value = "10000",
+			type = Integer.class,
+			category = "Core",
+			description = "The maximum number of search query results kept by the query cache on each node.")
+	public int queryCacheSize() {
+		return getConfigInt("query_cache_size", 10000);
+	}
+
 	@Documented(position = 130,
 			identifier = "webhooks_enabled",
 			value = "false",
@@ -179,6 +319,93 @@ public class ParaConfig extends Config {
 		return Boolean.parseBoolean(getConfigParam("webhooks_enabled", "false"));
 	}
 
+	@Documented(position = 131,
+			identifier = "webhooks_registry_ttl_sec",
+			value = "60",
+			type = Integer.class,
+			category = "Core",
+			description = "The time in seconds for which the active webhooks of an app are kept in memory. Changes to "
+					+ "webhooks made on the same node are seen right away, changes made on other nodes after this time.")
+	public int webhooksRegistryTTLSec() {
+		return getConfigInt("webhooks_registry_ttl_sec", 60);
+	}
+
+	@Documented(position = 132,
+			identifier = "webhooks_max_connections_per_host",
+			value = "4",
+			type = Integer.class,
+			category = "Core",
+			tags = {"requires restart"},
+			description = "The maximum number of concurrent webhook deliveries to the same host. Further deliveries "
+					+ "wait for a free connection, without holding up deliveries to other hosts.")
+	public int webhooksMaxConnectionsPerHost() {
+		return getConfigInt("webhooks_max_connections_per_host", 4);
+	}
+
+	@Documented(position = 133,
+			identifier = "webhooks_timeout_sec",
+			value = "10",
+			type = Integer.class,
+			category = "Core",
+			tags = {"requires restart"},
+			description = "The time in seconds after which a webhook delivery which got no response fails.")
+	public int webhooksTimeoutSec() {
+		return getConfigInt("webhooks_timeout_sec", 10);
+	}
+
+	@Documented(position = 134,
+			identifier = "webhooks_max_retries",
+			value = "5",
+			type = Integer.class,
+			category = "Core",
+			description = "The number of times a failed webhook delivery is retried, with exponential backoff, "
+					+ "before it's moved to the dead letter file.")
+	public int webhooksMaxRetries() {
+		return getConfigInt("webhooks_max_retries", 5);
+	}
+
+	@Documented(position = 135,
+			identifier = "webhooks_retry_delay_ms",
+			value = "1000",
+			type = Integer.class,
+			category = "Core",
+			description = "The delay in milliseconds before the first retry of a failed webhook delivery. The delay "
+					+ "doubles with each retry.")
+	public int webhooksRetryDelayMs() {
+		return getConfigInt("webhooks_retry_delay_ms", 1000);
+	}
+
+	@Documented(position = 136,
+			identifier = "webhooks_circuit_breaker_threshold",
+			value = "5",
+			type = Integer.class,
+			category = "Core",
+			description = "The number of consecutive failed deliveries after which deliveries to a webhook are paused "
+					+ "for `webhooks_circuit_breaker_cooldown_sec`. After the pause, a single delivery is tried first.")
+	public int webhooksCircuitBreakerThreshold() {
+		return getConfigInt("webhooks_circuit_breaker_threshold", 5);
+	}
+
+	@Documented(position = 137,
+			identifier = "webhooks_circuit_breaker_cooldown_sec",
+			value = "60",
+			type = Integer.class,
+			category = "Core",
+			description = "The time in seconds for which deliveries to a failing webhook are paused.")
+	public int webhooksCircuitBreakerCooldownSec() {
+		return getConfigInt("webhooks_circuit_breaker_cooldown_sec", 60);
+	}
+
+	@Documented(position = 138,
+			identifier = "webhooks_dead_letter_file",
+			value = "./data/webhook-dead-letters.json",
+			category = "Core",
+			description = "The file where webhook deliveries which failed all retries are saved, one JSON object "
+					+ "per line, including the signed payload, so that they can be inspected or sent again.")
+	public String webhooksDeadLetterFile() {
+		return getConfigParam("webhooks_dead_letter_file", "./data/webhook-dead-letters.json");
+	}
+
 	@Documented(position = 140,
 			identifier = "api_enabled",
 			value = "false",
@@ -246,6 +473,27 @@ public class ParaConfig extends Config {
 		return getConfigInt("max_failed_webhook_attempts", 10);
 	}
 
+	@Documented(position = 201,
+			identifier = "webhooks_batch_size",
+			value = "100",
+			type = Integer.class,
+			category = "Core",
+			description = "The maximum number of events delivered together to webhooks with `batchDelivery` enabled.")
+	public int webhooksBatchSize() {
+		return getConfigInt("webhooks_batch_size", 100);
+	}
+
+	@Documented(position = 202,
+			identifier = "webhooks_batch_window_ms",
+			value = "1000",
+			type = Integer.class,
+			category = "Core",
+			description = "The maximum time in milliseconds for which events are buffered before they are delivered "
+					+ "to webhooks with `batchDelivery` enabled.")
+	public int webhooksBatchWindowMs() {
+		return getConfigInt("webhooks_batch_window_ms", 1000);
+	}
+
 	@Documented(position = 210,
 			identifier = "reindex_batch_size",
 			value = "100",
@@ -830,6 +1078,64 @@ public class ParaConfig extends Config {
 		return getConfigInt("river.max_indexing_retries", 5);
 	}
 
+	@Documented(position = 751,
+			identifier = "river.workers",
+			value = "1",
+			type = Integer.class,
+			category = "River & Queue",
+			tags = {"requires restart"},
+			description = "The number of threads which process the messages pulled from the queue. Messages are "
+					+ "divided between them by app, so messages for the same app are still processed in order. "
+					+ "With 1, messages are processed on the thread which polls the queue.")
+	public int riverWorkers() {
+		return getConfigInt("river.workers", 1);
+	}
+
+	@Documented(position = 752,
+			identifier = "queue.local_dir",
+			category = "River & Queue",
+			tags = {"requires restart"},
+			description = "The directory where `LocalQueue` stores its messages, in memory-mapped files, so that "
+					+ "they survive a restart or a crash. If blank, messages are kept in memory only.")
+	public String localQueueDir() {
+		return getConfigParam("queue.local_dir", "");
+	}
+
+	@Documented(position = 753,
+			identifier = "queue.local_capacity",
+			value = "0",
+			type = Integer.class,
+			category = "River & Queue",
+			tags = {"requires restart"},
+			description = "The maximum number of messages waiting in `LocalQueue`, 0 for no limit. When the queue is "
+					+ "full, new messages wait for `queue.local_push_timeout_ms` and are dropped after that.")
+	public int localQueueCapacity() {
+		return getConfigInt("queue.local_capacity", 0);
+	}
+
+	@Documented(position = 754,
+			identifier = "queue.local_push_timeout_ms",
+			value = "10000",
+			type = Integer.class,
+			category = "River & Queue",
+			description = "The time in milliseconds for which a message waits for space in a full `LocalQueue`. "
+					+ "If 0, messages are dropped as soon as the queue is full.")
+	public int localQueuePushTimeoutMs() {
+		return getConfigInt("queue.local_push_timeout_ms", 10000);
+	}
+
+	@Documented(position = 755,
+			identifier = "queue.local_segment_size_mb",
+			value = "16",
+			type = Integer.class,
+			category = "River & Queue",
+			tags = {"requires restart"},
+			description = "The size of the files in which `LocalQueue` stores messages, in megabytes. Files are "
+					+ "deleted once all of their messages have been processed.")
+	public int localQueueSegmentSizeMb() {
+		return getConfigInt("queue.local_segment_size_mb", 16);
+	}
+
 	@Documented(position = 760,
 			identifier = "indexing_sync_interval_sec",
 			value = "10",
@@ -1696,6 +2002,46 @@ public class ParaConfig extends Config {
 		return getConfigInt("dynamodb.max_read_capacity", 10);
 	}
 
+	@Documented(position = 1591,
+			identifier = "dynamodb.purge_workers",
+			value = "4",
+			type = Integer.class,
+			category = "AWS DynamoDB DAO",
+			description = "The number of parallel workers which delete the objects of a deleted app from a shared table.")
+	public int awsDynamoPurgeWorkers() {
+		return getConfigInt("dynamodb.purge_workers", 4);
+	}
+
+	@Documented(position = 1592,
+			identifier = "dynamodb.purge_rate_limit",
+			value = "500",
+			type = Integer.class,
+			category = "AWS DynamoDB DAO",
+			description = "The maximum number of items per second deleted from a table while purging deleted apps. "
+					+ "The limit is shared by all purge jobs on the same table. Set to 0 to disable throttling.")
+	public int awsDynamoPurgeRateLimit() {
+		return getConfigInt("dynamodb.purge_rate_limit", 500);
+	}
+
+	@Documented(position = 1593,
+			identifier = "dynamodb.purge_rate_limits_per_table",
+			category = "AWS DynamoDB DAO",
+			description = "Overrides the purge rate limit for specific tables, e.g. `table1:100,table2:1000`.")
+	public String awsDynamoPurgeRateLimitsPerTable() {
+		return getConfigParam("dynamodb.purge_rate_limits_per_table", "");
+	}
+
+	@Documented(position = 1594,
+			identifier = "dynamodb.purge_checkpoint_interval_sec",
+			value = "30",
+			type = Integer.class,
+			category = "AWS DynamoDB DAO",
+			description = "The interval between saving the progress of a purge job, in seconds. "
+					+ "Unfinished purge jobs are resumed from their last checkpoint on startup.")
+	public int awsDynamoPurgeCheckpointIntervalSec() {
+		return getConfigInt("dynamodb.purge_checkpoint_interval_sec", 30);
+	}
+
 	@Documented(position = 1600,
 			identifier = "dynamodb.max_write_capacity",
 			value = "",
@@ -1706,6 +2052,52 @@ public class ParaConfig extends Config {
 		return getConfigInt("dynamodb.max_write_capacity", 5);
 	}
 
+	/* **************************************************************************************************************
+	 * Local DAO                                                                                          Local DAO *
+	 ****************************************************************************************************************/
+
+	@Documented(position = 1601,
+			identifier = "localdao.dir",
+			value = "./data/localdao",
+			category = "Local DAO",
+			description = "The data directory for the write-ahead log and snapshots of `LocalDAO`.")
+	public String localDaoFolder() {
+		return getConfigParam("localdao.dir", "./data/localdao");
+	}
+
+	@Documented(position = 1602,
+			identifier = "localdao.sync_writes",
+			value = "true",
+			type = Boolean.class,
+			category = "Local DAO",
+			description = "Enable/disable flushing the write-ahead log to disk before a write is acknowledged. "
+					+ "Concurrent writes are flushed together, in a single group commit.")
+	public boolean localDaoSyncWritesEnabled() {
+		return getConfigBoolean("localdao.sync_writes", true);
+	}
+
+	@Documented(position = 1603,
+			identifier = "localdao.snapshot_interval_sec",
+			value = "600",
+			type = Integer.class,
+			category = "Local DAO",
+			description = "The interval between snapshots of the data, in seconds. After each snapshot, "
+					+ "the write-ahead log segments which it covers are deleted.")
+	public int localDaoSnapshotIntervalSec() {
+		return getConfigInt("localdao.snapshot_interval_sec", 600);
+	}
+
+	@Documented(position = 1604,
+			identifier = "localdao.max_log_size_mb",
+			value = "64",
+			type = Integer.class,
+			category = "Local DAO",
+			description = "The size of the write-ahead log, in megabytes, which triggers a snapshot and compaction "
+					+ "regardless of the snapshot interval.")
+	public int localDaoMaxLogSizeMb() {
+		return getConfigInt("localdao.max_log_size_mb", 64);
+	}
+
 	/* **************************************************************************************************************
 	 * Caffeine Cache                                                                                Caffeine Cache *
 	 ****************************************************************************************************************/
@@ -1720,6 +2112,63 @@ public class ParaConfig extends Config {
 		return getConfigInt("caffeine.evict_after_minutes", 10);
 	}
 
+	@Documented(position = 1611,
+			identifier = "caffeine.refresh_ahead",
+			value = "app:80,user:80,sysprop:80",
+			category = "Caffeine Cache",
+			description = "A comma-separated list of `type:percent` pairs for refreshing cached objects ahead of time. "
+					+ "An object read after this percentage of its lifetime has passed is reloaded from the `DAO` in "
+					+ "the background, while the cached copy is still returned. The type `*` matches all types.")
+	public String caffeineRefreshAhead() {
+		return getConfigParam("caffeine.refresh_ahead", "app:80,user:80,sysprop:80");
+	}
+
+	@Documented(position = 1612,
+			identifier = "caffeine.snapshot_size",
+			value = "0",
+			type = Integer.class,
+			category = "Caffeine Cache",
+			tags = {"requires restart"},
+			description = "The number of most used objects which are saved periodically to a snapshot file and loaded "
+					+ "back into the cache on startup, so that restarted nodes don't begin with an empty cache. "
+					+ "A value of 0 disables snapshots.")
+	public int caffeineSnapshotSize() {
+		return getConfigInt("caffeine.snapshot_size", 0);
+	}
+
+	@Documented(position = 1613,
+			identifier = "caffeine.snapshot_file",
+			value = "./data/cache-snapshot.json",
+			category = "Caffeine Cache",
+			tags = {"requires restart"},
+			description = "The path to the cache snapshot file.")
+	public String caffeineSnapshotFile() {
+		return getConfigParam("caffeine.snapshot_file", "./data/cache-snapshot.json");
+	}
+
+	@Documented(position = 1614,
+			identifier = "caffeine.snapshot_interval_min",
+			value = "5",
+			type = Integer.class,
+			category = "Caffeine Cache",
+			tags = {"requires restart"},
+			description = "The time in minutes between cache snapshots. A snapshot is also saved on shutdown.")
+	public int caffeineSnapshotIntervalMin() {
+		return getConfigInt("caffeine.snapshot_interval_min", 5);
+	}
+
+	@Documented(position = 1615,
+			identifier = "caffeine.snapshot_values",
+			value = "false",
+			type = Boolean.class,
+			category = "Caffeine Cache",
+			description = "Enable/disable saving the objects themselves in cache snapshots. If enabled, objects from "
+					+ "a recent snapshot are put back in the cache directly, for the rest of their lifetime, instead of "
+					+ "being read from the `DAO`. Changes made while the node was down are not seen until they expire.")
+	public boolean caffeineSnapshotValues() {
+		return getConfigBoolean("caffeine.snapshot_values", false);
+	}
+
 	@Documented(position = 1620,
 			identifier = "caffeine.cache_size",
 			value = "10000",
@@ -1730,6 +2179,72 @@ public class ParaConfig extends Config {
 		return getConfigInt("caffeine.cache_size", 10000);
 	}
 
+	@Documented(position = 1621,
+			identifier = "caffeine.max_size_mb",
+			value = "0",
+			type = Integer.class,
+			category = "Caffeine Cache",
+			description = "Maximum size of the Caffeine cache in megabytes, based on the estimated serialized size of the "
+					+ "cached objects. If set, it replaces the limit on the number of objects in `caffeine.cache_size`.")
+	public int caffeineMaxSizeMb() {
+		return getConfigInt("caffeine.max_size_mb", 0);
+	}
+
+	@Documented(position = 1622,
+			identifier = "caffeine.app_quota_mb",
+			value = "0",
+			type = Integer.class,
+			category = "Caffeine Cache",
+			description = "Maximum size of the cached objects of a single app, in megabytes. Apps over their quota lose "
+					+ "their least used objects first. Can be set for each app with the `cache_quota_mb` app setting. "
+					+ "A value of 0 means no quota.")
+	public int caffeineAppQuotaMb() {
+		return getConfigInt("caffeine.app_quota_mb", 0);
+	}
+
+	@Documented(position = 1623,
+			identifier = "caffeine.offheap_size_mb",
+			value = "0",
+			type = Integer.class,
+			category = "Caffeine Cache",
+			description = "Size of the off-heap store behind the Caffeine cache, in megabytes. Objects evicted from "
+					+ "the cache for lack of space are kept there in serialized form and moved back on the next read. "
+					+ "Limited by the JVM option `-XX:MaxDirectMemorySize`. A value of 0 disables the off-heap store.")
+	public int caffeineOffHeapSizeMb() {
+		return getConfigInt("caffeine.offheap_size_mb", 0);
+	}
+
+	@Documented(position = 1624,
+			identifier = "caffeine.invalidation_transport",
+			category = "Caffeine Cache",
+			description = "Selects the transport for sending cache invalidations between the nodes of a cluster. "
+					+ "Writes and removals on one node remove the stale copies from the caches of all other nodes. "
+					+ "Can be `local` for nodes running in the same JVM or the simple class name of an "
+					+ "`InvalidationTransport` plugin. Disabled by default.")
+	public String caffeineInvalidationTransport() {
+		return getConfigParam("caffeine.invalidation_transport", "");
+	}
+
+	@Documented(position = 1625,
+			identifier = "caffeine.invalidation_batch_size",
+			value = "500",
+			type = Integer.class,
+			category = "Caffeine Cache",
+			description = "The number of cache invalidations after which a batch is sent to the other nodes.")
+	public int caffeineInvalidationBatchSize() {
+		return getConfigInt("caffeine.invalidation_batch_size", 500);
+	}
+
+	@Documented(position = 1626,
+			identifier = "caffeine.invalidation_delay_ms",
+			value = "20",
+			type = Integer.class,
+			category = "Caffeine Cache",
+			description = "The maximum time in milliseconds for which cache invalidations are held back and batched.")
+	public int caffeineInvalidationDelayMs() {
+		return getConfigInt("caffeine.invalidation_delay_ms", 20);
+	}
+
 	/* **************************************************************************************************************
 	 * Hazelcast Cache                                                                              Hazelcast Cache *
 	 ****************************************************************************************************************/
@@ -17,6 +17,7 @@
  */
 package com.erudika.para.core.utils;
 
+import com.erudika.para.core.annotations.Locked;
 import com.erudika.para.core.annotations.Stored;
 import com.erudika.para.core.App;
 import com.erudika.para.core.ParaObject;
@@ -37,11 +38,14 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.beanutils.BeanUtils;
 import org.apache.commons.beanutils.PropertyUtils;
 import org.apache.commons.collections.bidimap.DualHashBidiMap;
@@ -64,6 +68,8 @@ public final class ParaObjectUtils {
 	private static final Map<String, Class<? extends ParaObject>> CORE_CLASSES = new DualHashBidiMap();
 	private static final Map<String, Class<? extends ParaObject>> CORE_PARA_CLASSES = new DualHashBidiMap();
 	private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+	// parsed secondary index declarations, keyed by the raw configuration value
+	private static final Map<String, Map<String, Set<String>>> SECONDARY_INDEXES = new ConcurrentHashMap<>();
 
 	static {
 		JSON_MAPPER.disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
@@ -212,6 +218,146 @@ public final class ParaObjectUtils {
 		return (so == null) ? false : so.getClass().equals(toClass(so.getType()));
 	}
 
+	/**
+	 * Checks if a field can be used as a counter, i.e. it is a stored, unlocked integer field.
+	 *
+	 * @param clazz the class of an object
+	 * @param field the field name
+	 * @return true if the field is declared in the class and holds an integer value
+	 */
+	public static boolean isCounterField(Class<? extends ParaObject> clazz, String field) {
+		if (clazz == null || StringUtils.isBlank(field)) {
+			return false;
+		}
+		for (Field f : getAllDeclaredFields(clazz)) {
+			if (f.getName().equals(field)) {
+				Class<?> type = f.getType();
+				return f.isAnnotationPresent(Stored.class) && !f.isAnnotationPresent(Locked.class) &&
+						(type.equals(Integer.class) || type.equals(Long.class) ||
+						type.equals(int.class) || type.equals(long.class));
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if an object has expired.
+	 *
+	 * @param so an object
+	 * @return true if the object has an expiry time in the past
+	 */
+	public static boolean isExpired(ParaObject so) {
+		return so != null && so.getExpiresAt() != null && so.getExpiresAt() > 0 && so.getExpiresAt() <= Utils.timestamp();
+	}
+
+	/**
+	 * Computes a fingerprint of the content of an object, i.e. a hash of all stored fields which can be changed
+	 * by an update. Locked fields, {@code updated} and {@code version} are ignored. Two objects with the same
+	 * fingerprint would leave the data store in the same state if one is written after the other.
+	 *
+	 * @param so an object
+	 * @return an MD5 hash or null if the object can't be serialized
+	 */
+	public static String getFingerprint(ParaObject so) {
+		if (so == null) {
+			return null;
+		}
+		try {
+			Map<String, Object> fields = new TreeMap<>(getAnnotatedFields(so, Locked.class, false));
+			fields.remove(Config._UPDATED);
+			fields.remove(Config._VERSION);
+			// map entries are sorted, so the user-defined properties of equal objects are always written in the same order
+			return Utils.md5(getJsonMapper().writer().with(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS).
+					writeValueAsString(fields));
+		} catch (Exception e) {
+			logger.warn("Failed to compute the fingerprint of object {}: {}", so.getId(), e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the fields of a given type which the DAO maintains secondary indexes for.
+	 * These are declared with the {@code para.dao.secondary_indexes} configuration property.
+	 *
+	 * @param type an object type
+	 * @return a set of field names, possibly empty
+	 */
+	public static Set<String> getSecondaryIndexes(String type) {
+		if (StringUtils.isBlank(type)) {
+			return Collections.emptySet();
+		}
+		Map<String, Set<String>> indexes = getSecondaryIndexDeclarations();
+		Set<String> fields = new HashSet<>(indexes.getOrDefault("*", Collections.emptySet()));
+		fields.addAll(indexes.getOrDefault(type, Collections.emptySet()));
+		return fields;
+	}
+
+	/**
+	 * Returns all fields which the DAO maintains secondary indexes for, regardless of type.
+	 *
+	 * @return a set of field names, possibly empty
+	 */
+	public static Set<String> getSecondaryIndexes() {
+		Set<String> fields = new HashSet<>();
+		getSecondaryIndexDeclarations().values().forEach(fields::addAll);
+		return fields;
+	}
+
+	private static Map<String, Set<String>> getSecondaryIndexDeclarations() {
+		String declared = Para.getConfig().daoSecondaryIndexes();
+		if (StringUtils.isBlank(declared)) {
+			return Collections.emptyMap();
+		}
+		return SECONDARY_INDEXES.computeIfAbsent(declared, (d) -> {
+			Map<String, Set<String>> parsed = new HashMap<>();
+			for (String index : d.split("\\s*,\\s*")) {
+				String[] typeAndField = StringUtils.split(index.trim(), ":", 2);
+				if (typeAndField.length == 2 && !StringUtils.isAnyBlank(typeAndField)) {
+					parsed.computeIfAbsent(typeAndField[0].trim(), (t) -> new HashSet<>()).add(typeAndField[1].trim());
+				}
+			}
+			return parsed;
+		});
+	}
+
+	/**
+	 * Checks if there's a secondary index for a field of a given type.
+	 *
+	 * @param type an object type
+	 * @param field a field name
+	 * @return true if the field is declared as a secondary index
+	 * @see #getSecondaryIndexes(java.lang.String)
+	 */
+	public static boolean isSecondaryIndex(String type, String field) {
+		return !StringUtils.isBlank(field) && getSecondaryIndexes(type).contains(field);
+	}
+
+	/**
+	 * Returns the values of all secondary index fields of an object. Values are converted to strings,
+	 * the same way they are compared by {@code DAO.readByIndex()}.
+	 *
+	 * @param so an object
+	 * @return a map of field names and values, empty values are skipped
+	 */
+	public static Map<String, String> getSecondaryIndexValues(ParaObject so) {
+		if (so == null) {
+			return Collections.emptyMap();
+		}
+		Map<String, String> values = new HashMap<>();
+		for (String field : getSecondaryIndexes(so.getType())) {
+			try {
+				Object value = PropertyUtils.getProperty(so, field);
+				if (value != null && !StringUtils.isBlank(value.toString())) {
+					values.put(field, value.toString());
+				}
+			} catch (Exception e) {
+				// the field is declared for all types but this type doesn't have it
+				logger.trace("No indexed field '{}' in type '{}'.", field, so.getType());
+			}
+		}
+		return values;
+	}
+
 	/**
 	 * @see #getAnnotatedFields(com.erudika.para.core.ParaObject, java.lang.Class, boolean)
 	 * @param <P> the object type
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.core.utils;
+
+import com.erudika.para.core.Webhook;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Buffers the events of webhooks with {@link Webhook#getBatchDelivery()} enabled and sends them to the queue
+ * together, as a single signed payload, when enough events have been buffered or the batch window has passed.
+ * Events are buffered in memory, on the node where they happened, so buffered events are lost if the node
+ * crashes. They are sent on a normal shutdown.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public final class WebhookBatcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(WebhookBatcher.class);
+	private static WebhookBatcher instance;
+
+	private final int maxSize;
+	private final long windowMillis;
+	private final Consumer<String> sink;
+	private final Map<String, Batch> batches = new ConcurrentHashMap<>();
+
+	/**
+	 * @param maxSize the maximum number of events in a batch
+	 * @param windowMillis the maximum time for which an event is buffered
+	 * @param sink receives the batched payloads
+	 */
+	public WebhookBatcher(int maxSize, long windowMillis, Consumer<String> sink) {
+		this.maxSize = Math.max(1, maxSize);
+		this.windowMillis = Math.max(0L, windowMillis);
+		this.sink = sink;
+	}
+
+	/**
+	 * @return the batcher used by {@link Webhook#sendEventPayloadToQueue}, which sends batches to the queue
+	 */
+	public static synchronized WebhookBatcher getInstance() {
+		if (instance == null) {
+			instance = new WebhookBatcher(Para.getConfig().webhooksBatchSize(),
+					Para.getConfig().webhooksBatchWindowMs(), msg -> Para.getQueue().push(msg));
+			Para.addDestroyListener(instance::flushAll);
+		}
+		return instance;
+	}
+
+	/**
+	 * Adds an event to the batch of a webhook.
+	 * @param webhook the webhook
+	 * @param event Para.DAO method name or custom event name
+	 * @param payload the payload of the event
+	 */
+	public void add(Webhook webhook, String event, Object payload) {
+		if (webhook == null) {
+			return;
+		}
+		// the event is serialized now, so that later changes to the payload objects are not sent
+		String json = webhook.buildEventAsJSON(event, payload);
+		if (json.isEmpty()) {
+			return;
+		}
+		String key = webhook.getAppid() + Para.getConfig().separator() + webhook.getId();
+		List<Batch> full = new ArrayList<>(1);
+		batches.compute(key, (k, batch) -> {
+			Batch b = (batch == null) ? newBatch(k) : batch;
+			b.webhook = webhook;
+			b.events.add(json);
+			if (b.events.size() >= maxSize) {
+				full.add(b);
+				return null;
+			}
+			return b;
+		});
+		for (Batch batch : full) {
+			batch.cancelTimer();
+			send(batch);
+		}
+	}
+
+	/**
+	 * Sends all buffered events.
+	 */
+	public void flushAll() {
+		for (String key : new ArrayList<>(batches.keySet())) {
+			flush(key, batches.get(key));
+		}
+	}
+
+	/**
+	 * @return the number of buffered events
+	 */
+	public int size() {
+		return batches.values().stream().mapToInt(b -> b.events.size()).sum();
+	}
+
+	private Batch newBatch(String key) {
+		Batch batch = new Batch();
+		if (windowMillis > 0) {
+			try {
+				batch.timer = Para.getScheduledExecutorService().
+						schedule(() -> flush(key, batch), windowMillis, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				logger.warn("Webhook batch can't be scheduled and will be sent when full: {}", e.getMessage());
+			}
+		}
+		return batch;
+	}
+
+	private void flush(String key, Batch batch) {
+		if (batch != null && batches.remove(key, batch)) {
+			batch.cancelTimer();
+			send(batch);
+		}
+	}
+
+	private void send(Batch batch) {
+		try {
+			String msg = batch.webhook.buildBatchPayloadAsJSON(batch.events);
+			if (!msg.isEmpty()) {
+				sink.accept(msg);
+			}
+		} catch (Exception e) {
+			logger.error("Failed to send a batch of " + batch.events.size() + " events of webhook " +
+					batch.webhook.getId() + ":", e);
+		}
+	}
+
+	private static final class Batch {
+		private final List<String> events = new ArrayList<>();
+		private Webhook webhook;
+		private ScheduledFuture<?> timer;
+
+		void cancelTimer() {
+			if (timer != null) {
+				timer.cancel(false);
+			}
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.core.utils;
+
+import com.erudika.para.core.App;
+import com.erudika.para.core.ParaObject;
+import com.erudika.para.core.Webhook;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * An in-memory index of the active webhooks of each app, by event and type filter. The webhooks of an app are loaded
+ * the first time an event happens in it and kept until a webhook of that app changes, or for a short time, since
+ * webhooks changed on other nodes are not seen here. Apps without webhooks are remembered too, so writes to them
+ * don't cost a query.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public final class WebhookRegistry {
+
+	private static final String ALL_TYPES = "*";
+	private static final String[] EVENTS = {"create", "update", "delete", "createAll", "updateAll", "deleteAll"};
+	private static final String CUSTOM_EVENTS = "customEvents";
+	private static final WebhookRegistry INSTANCE = new WebhookRegistry(WebhookRegistry::readActiveWebhooks,
+			TimeUnit.SECONDS.toMillis(Para.getConfig().webhooksRegistryTTLSec()));
+
+	private final Function<String, List<Webhook>> loader;
+	private final long ttlMillis;
+	private final Map<String, Subscriptions> apps = new ConcurrentHashMap<>();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * @param loader reads all active webhooks of an app
+	 * @param ttlMillis the time for which the webhooks of an app are kept
+	 */
+	public WebhookRegistry(Function<String, List<Webhook>> loader, long ttlMillis) {
+		this.loader = loader;
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * @return the registry used by {@link Webhook#sendEventPayloadToQueue}
+	 */
+	public static WebhookRegistry getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Finds the active webhooks which are subscribed to an event.
+	 * @param appid the name of the application
+	 * @param eventName event name like "create", "delete" or "customEvents"
+	 * @param eventValue event value - true for DAO events and the name of the event for custom events
+	 * @param payload the object or list of objects of the event
+	 * @return a list of webhooks, possibly empty
+	 */
+	public List<Webhook> getSubscribers(String appid, String eventName, Object eventValue, Object payload) {
+		if (StringUtils.isBlank(appid) || StringUtils.isBlank(eventName) || eventValue == null) {
+			return Collections.emptyList();
+		}
+		Map<String, List<Webhook>> byType = getSubscriptions(appid).get(eventKey(eventName, eventValue));
+		if (byType == null) {
+			return Collections.emptyList();
+		}
+		String type = getType(payload);
+		List<Webhook> allTypes = byType.getOrDefault(ALL_TYPES, Collections.emptyList());
+		List<Webhook> ofType = (type == null) ? Collections.emptyList() :
+				byType.getOrDefault(type, Collections.emptyList());
+		if (ofType.isEmpty()) {
+			return allTypes;
+		}
+		List<Webhook> webhooks = new ArrayList<>(allTypes.size() + ofType.size());
+		webhooks.addAll(allTypes);
+		webhooks.addAll(ofType);
+		return webhooks;
+	}
+
+	/**
+	 * Forgets the webhooks of an app, so that they are loaded again on the next event.
+	 * @param appid the name of the application
+	 */
+	public void invalidate(String appid) {
+		if (!StringUtils.isBlank(appid)) {
+			invalidations.incrementAndGet();
+			apps.remove(appid);
+		}
+	}
+
+	private Map<String, Map<String, List<Webhook>>> getSubscriptions(String appid) {
+		Subscriptions subscriptions = apps.get(appid);
+		if (subscriptions != null && subscriptions.expiresAt > Utils.timestamp()) {
+			return subscriptions.byEvent;
+		}
+		long stamp = invalidations.get();
+		subscriptions = new Subscriptions(index(loader.apply(appid)), Utils.timestamp() + ttlMillis);
+		// webhooks loaded before a change to them are used once, but not kept
+		if (invalidations.get() == stamp) {
+			apps.put(appid, subscriptions);
+		}
+		return subscriptions.byEvent;
+	}
+
+	private static Map<String, Map<String, List<Webhook>>> index(List<Webhook> webhooks) {
+		if (webhooks == null || webhooks.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		Map<String, Map<String, List<Webhook>>> byEvent = new HashMap<>();
+		for (Webhook webhook : webhooks) {
+			if (webhook == null || !Boolean.TRUE.equals(webhook.getActive())) {
+				continue;
+			}
+			Map<String, Object> fields = ParaObjectUtils.getAnnotatedFields(webhook, false);
+			for (String event : EVENTS) {
+				if (Boolean.TRUE.equals(fields.get(event))) {
+					add(byEvent, eventKey(event, true), webhook);
+				}
+			}
+			for (String customEvent : webhook.getCustomEvents()) {
+				add(byEvent, eventKey(CUSTOM_EVENTS, customEvent), webhook);
+			}
+		}
+		return byEvent;
+	}
+
+	private static void add(Map<String, Map<String, List<Webhook>>> byEvent, String eventKey, Webhook webhook) {
+		String typeFilter = webhook.getTypeFilter();
+		String type = (StringUtils.isBlank(typeFilter) || App.ALLOW_ALL.equals(typeFilter)) ?
+				ALL_TYPES : typeFilter.toLowerCase();
+		byEvent.computeIfAbsent(eventKey, k -> new HashMap<>()).computeIfAbsent(type, k -> new ArrayList<>()).
+				add(webhook);
+	}
+
+	private static String eventKey(String eventName, Object eventValue) {
+		return eventName + ":" + eventValue;
+	}
+
+	/**
+	 * @return the type of the object, or of the first object in a list, lowercased, or null
+	 */
+	private static String getType(Object payload) {
+		Object first = payload;
+		if (payload instanceof List) {
+			List<?> list = (List) payload;
+			first = list.isEmpty() ? null : list.get(0);
+		}
+		if (first instanceof ParaObject && ((ParaObject) first).getType() != null) {
+			return ((ParaObject) first).getType().toLowerCase();
+		}
+		return null;
+	}
+
+	/**
+	 * Reads all active webhooks of an app from the secondary index of the DAO, or the search index.
+	 */
+	private static List<Webhook> readActiveWebhooks(String appid) {
+		String type = Utils.type(Webhook.class);
+		List<Webhook> webhooks = new ArrayList<>();
+		Pager p = new Pager(100);
+		List<Webhook> page = Para.getDAO().readByIndex(appid, type, "active", true, p);
+		if (page != null) {
+			while (!page.isEmpty()) {
+				webhooks.addAll(page);
+				page = Para.getDAO().readByIndex(appid, type, "active", true, p);
+			}
+			return webhooks;
+		}
+		p.setSortby("_docid");
+		Map<String, Object> terms = new LinkedHashMap<>();
+		terms.put(Config._APPID, appid);
+		terms.put("active", true);
+		do {
+			page = Para.getSearch().findTerms(appid, type, terms, true, p);
+			webhooks.addAll(page);
+		} while (!page.isEmpty());
+		return webhooks;
+	}
+
+	/**
+	 * The active webhooks of an app, by event and type filter.
+	 */
+	private static final class Subscriptions {
+		private final Map<String, Map<String, List<Webhook>>> byEvent;
+		private final long expiresAt;
+
+		Subscriptions(Map<String, Map<String, List<Webhook>>> byEvent, long expiresAt) {
+			this.byEvent = byEvent;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -19,6 +19,7 @@ package com.erudika.para.server.aop;
 
 import com.erudika.para.core.listeners.IOListener;
 import com.erudika.para.core.utils.Para;
+import com.erudika.para.core.utils.ParaObjectUtils;
 import com.erudika.para.core.annotations.Cached;
 import com.erudika.para.core.annotations.Indexed;
 import com.erudika.para.core.cache.Cache;
@@ -26,17 +27,23 @@ import com.erudika.para.core.ParaObject;
 import com.erudika.para.core.metrics.Metrics;
 import com.erudika.para.core.persistence.DAO;
 import com.erudika.para.core.search.Search;
+import com.erudika.para.server.cache.FingerprintCache;
+import com.erudika.para.server.cache.NegativeCache;
 import com.erudika.para.core.utils.Utils;
 import com.erudika.para.core.validation.ValidationUtils;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import javax.inject.Inject;
 import org.aopalliance.intercept.MethodInterceptor;
@@ -57,9 +64,16 @@ import org.slf4j.LoggerFactory;
 public class IndexAndCacheAspect implements MethodInterceptor {
 
 	private static final Logger logger = LoggerFactory.getLogger(IndexAndCacheAspect.class);
+	private static final ThreadLocal<Boolean> REFRESHING = new ThreadLocal<>();
+	private static final ThreadLocal<Boolean> INTERCEPTING = new ThreadLocal<>();
 
 	private Search search;
 	private Cache cache;
+	private final NegativeCache misses = Para.getConfig().negativeCacheTTLSec() > 0 ?
+			new NegativeCache(Para.getConfig().negativeCacheSize(), Para.getConfig().negativeCacheTTLSec()) : null;
+	private final FingerprintCache fingerprints = Para.getConfig().skipUnchangedUpdatesEnabled() ?
+			new FingerprintCache(Para.getConfig().skipUnchangedUpdatesCacheSize(),
+					Para.getConfig().skipUnchangedUpdatesTTLSec()) : null;
 
 	/**
 	 * @return {@link Search}
@@ -109,33 +123,60 @@ public class IndexAndCacheAspect implements MethodInterceptor {
 		Method superMethod = null;
 		Indexed indexedAnno = null;
 		Cached cachedAnno = null;
+		boolean annotated = false;
 
 		try {
 			superMethod = DAO.class.getMethod(daoMethod.getName(), daoMethod.getParameterTypes());
+			annotated = superMethod.isAnnotationPresent(Indexed.class) || superMethod.isAnnotationPresent(Cached.class);
 			indexedAnno = Para.getConfig().isSearchEnabled() ? superMethod.getAnnotation(Indexed.class) : null;
 			cachedAnno = Para.getConfig().isCacheEnabled() ? superMethod.getAnnotation(Cached.class) : null;
 			detectNestedInvocations(daoMethod);
+		} catch (NoSuchMethodException e) {
+			// not a DAO method, e.g. BatchingDAO.flush()
+			return mi.proceed();
 		} catch (Exception e) {
 			logger.error("Error in AOP layer!", e);
 		}
 
+		// a DAO method called by an annotated one on the enhanced DAO, like update() from the default patch(),
+		// is handled by the outer call - otherwise objects are indexed and cached twice and listeners fire twice.
+		// Unannotated overloads, like create(object), don't set the flag, so the calls they delegate to are handled.
+		if (INTERCEPTING.get() != null) {
+			return mi.proceed();
+		}
+
+		// unchanged objects are not written, indexed and cached again and no events are fired for them
+		if (removeUnchangedObjects(cachedAnno, appid, daoMethod, args, mi)) {
+			return null;
+		}
+
 		Set<IOListener> ioListeners = Para.getIOListeners();
 		for (IOListener ioListener : ioListeners) {
 			ioListener.onPreInvoke(superMethod, args);
 			logger.debug("Executed {}.onPreInvoke().", ioListener.getClass().getName());
 		}
 
-		Object result = handleIndexing(indexedAnno, appid, daoMethod, args, mi);
-		Object cachingResult = handleCaching(cachedAnno, appid, daoMethod, args, mi);
-
-		// we have a read operation without any result but we get back objects from cache
-		if (result == null && cachingResult != null) {
-			result = cachingResult;
+		Object result;
+		if (annotated) {
+			INTERCEPTING.set(Boolean.TRUE);
 		}
+		try {
+			result = handleIndexing(indexedAnno, appid, daoMethod, args, mi);
+			Object cachingResult = handleCaching(cachedAnno, appid, daoMethod, args, mi, result);
+
+			// we have a read operation without any result but we get back objects from cache
+			if (result == null && cachingResult != null) {
+				result = cachingResult;
+			}
 
-		// both searching and caching are disabled - pass it through
-		if (indexedAnno == null && cachedAnno == null) {
-			result = invokeDAO(appid, daoMethod, mi);
+			// both searching and caching are disabled - pass it through
+			if (indexedAnno == null && cachedAnno == null) {
+				result = invokeDAO(appid, daoMethod, mi);
+			}
+		} finally {
+			if (annotated) {
+				INTERCEPTING.remove();
+			}
 		}
 
 		for (IOListener ioListener : ioListeners) {
@@ -169,6 +210,9 @@ public class IndexAndCacheAspect implements MethodInterceptor {
 				case REMOVE_ALL:
 					result = removeFromIndexBatchOperation(appid, daoMethod, args, mi);
 					break;
+				case PATCH:
+					result = patchIndexOperation(appid, daoMethod, mi);
+					break;
 				default:
 					break;
 			}
@@ -176,8 +220,8 @@ public class IndexAndCacheAspect implements MethodInterceptor {
 		return result;
 	}
 
-	private Object handleCaching(Cached cachedAnno, String appid, Method daoMethod, Object[] args, MethodInvocation mi)
-			throws Throwable {
+	private Object handleCaching(Cached cachedAnno, String appid, Method daoMethod, Object[] args, MethodInvocation mi,
+			Object indexingResult) throws Throwable {
 		Object result = null;
 		if (cachedAnno != null) {
 			switch (cachedAnno.action()) {
@@ -199,6 +243,9 @@ public class IndexAndCacheAspect implements MethodInterceptor {
 				case DELETE_ALL:
 					removeFromCacheBatchOperation(appid, args);
 					break;
+				case PATCH:
+					result = patchCacheOperation(appid, daoMethod, args, mi, indexingResult);
+					break;
 				default:
 					break;
 			}
@@ -278,32 +325,80 @@ public class IndexAndCacheAspect implements MethodInterceptor {
 		return result;
 	}
 
+	private Object patchIndexOperation(String appid, Method daoMethod, MethodInvocation mi) throws Throwable {
+		// the DAO returns the patched object so there's no need to read it again before indexing
+		ParaObject patched = (ParaObject) invokeDAO(appid, daoMethod, mi);
+		if (patched != null && patched.getIndexed()) {
+			AOPUtils.checkAndFixType(patched);
+			try (Metrics.Context context = Metrics.time(appid, search.getClass(), "index")) {
+				search.index(appid, patched);
+				logger.debug("{}: Indexed patched {}->{}", getClass().getSimpleName(), appid, patched.getId());
+			}
+		}
+		return patched;
+	}
+
 	private Object readFromCacheOperation(String appid, Method daoMethod, Object[] args, MethodInvocation mi) throws Throwable {
-		Object result = null;
+		ParaObject result = null;
 		String getMeId = (args != null && args.length > 1) ? (String) args[1] : null;
-		try (Metrics.Context context = Metrics.time(appid, cache.getClass(), "get")) {
-			result = cache.get(appid, getMeId);
+		if (REFRESHING.get() != null) {
+			// a background refresh of a cached object goes straight to the DB
+			REFRESHING.remove();
+			return invokeDAO(appid, daoMethod, mi);
 		}
-		if (result != null) {
-			logger.debug("{}: Cache hit: {}->{}", getClass().getSimpleName(), appid, getMeId);
-		} else if (getMeId != null) {
-			result = invokeDAO(appid, daoMethod, mi);
-			if (result != null && ((ParaObject) result).getCached()) {
-				try (Metrics.Context context = Metrics.time(appid, cache.getClass(), "put")) {
-					cache.put(appid, getMeId, result);
+		// concurrent misses for the same object share a single read from the DB
+		Map<String, ParaObject> loaded = new HashMap<>(1);
+		Thread caller = Thread.currentThread();
+		AtomicBoolean inCall = new AtomicBoolean(true);
+		try (Metrics.Context context = Metrics.time(appid, cache.getClass(), "get")) {
+			result = cache.get(appid, getMeId, id -> {
+				if (!inCall.get() || Thread.currentThread() != caller) {
+					// the cache is refreshing the object, this invocation may be over by now
+					return refreshFromDB(appid, id, (DAO) mi.getThis());
+				}
+				if (misses != null && misses.contains(appid, id)) {
+					Metrics.counter(appid, getClass(), "negative_cache_hits").inc();
+					return null;
+				}
+				long stamp = (misses == null) ? 0L : misses.stamp(appid, id);
+				ParaObject obj = (ParaObject) invokeLoader(appid, daoMethod, mi);
+				loaded.put(id, obj);
+				if (obj == null) {
+					rememberMisses(appid, Collections.singletonMap(id, stamp));
 				}
+				return (obj != null && obj.getCached()) ? obj : null;
+			});
+		} catch (LoaderException e) {
+			throw e.getCause();
+		} finally {
+			inCall.set(false);
+		}
+		if (loaded.containsKey(getMeId)) {
+			result = loaded.get(getMeId);
+			if (result != null && result.getCached()) {
+				putFingerprints(appid, Collections.singletonList(result));
 				logger.debug("{}: Cache miss: {}->{}", getClass().getSimpleName(), appid, getMeId);
 			}
+		} else if (ParaObjectUtils.isExpired(result)) {
+			// expired objects are gone, there's no need to look them up in the DB
+			evictExpired(appid, Collections.singletonList(result));
+			result = null;
+		} else if (result != null) {
+			logger.debug("{}: Cache hit: {}->{}", getClass().getSimpleName(), appid, getMeId);
 		}
 		return result;
 	}
 
 	private void addToCacheOperation(String appid, Object[] args) {
 		ParaObject putMe = AOPUtils.getArgOfParaObject(args);
+		if (putMe != null) {
+			forgetMisses(appid, Collections.singletonList(putMe.getId()));
+		}
 		if (putMe != null && putMe.getCached() && putMe.getVersion() >= 0) {
 			try (Metrics.Context context = Metrics.time(appid, cache.getClass(), "put")) {
 				cache.put(appid, putMe.getId(), putMe);
 			}
+			putFingerprints(appid, Collections.singletonList(putMe));
 			logger.debug("{}: Cache put: {}->{}", getClass().getSimpleName(), appid, putMe.getId());
 		}
 	}
@@ -311,52 +406,175 @@ public class IndexAndCacheAspect implements MethodInterceptor {
 	private void removeFromCacheOperation(String appid, Object[] args) {
 		ParaObject deleteMe = AOPUtils.getArgOfParaObject(args);
 		if (deleteMe != null) { // clear from cache even if "isCached = false"
+			forgetMisses(appid, Collections.singletonList(deleteMe.getId()));
 			try (Metrics.Context context = Metrics.time(appid, cache.getClass(), "remove")) {
 				cache.remove(appid, deleteMe.getId());
 			}
+			forgetFingerprints(appid, Collections.singletonList(deleteMe.getId()));
 			logger.debug("{}: Cache delete: {}->{}", getClass().getSimpleName(), appid, deleteMe.getId());
 		}
 	}
 
+	private Object patchCacheOperation(String appid, Method daoMethod, Object[] args, MethodInvocation mi,
+			Object indexingResult) throws Throwable {
+		// the DAO was already invoked by the indexing operation, unless search is disabled
+		Object result = Para.getConfig().isSearchEnabled() ? indexingResult : invokeDAO(appid, daoMethod, mi);
+		String patchedId = (args != null && args.length > 1) ? (String) args[1] : null;
+		ParaObject patched = (ParaObject) result;
+		if (patched != null) {
+			forgetMisses(appid, Collections.singletonList(patched.getId()));
+		}
+		if (patched != null && patched.getCached()) {
+			try (Metrics.Context context = Metrics.time(appid, cache.getClass(), "put")) {
+				cache.put(appid, patched.getId(), patched);
+			}
+			putFingerprints(appid, Collections.singletonList(patched));
+			logger.debug("{}: Cache put patched: {}->{}", getClass().getSimpleName(), appid, patched.getId());
+		} else if (patchedId != null) {
+			// failed or uncached patches must not leave stale copies behind
+			try (Metrics.Context context = Metrics.time(appid, cache.getClass(), "remove")) {
+				cache.remove(appid, patchedId);
+			}
+			forgetFingerprints(appid, Collections.singletonList(patchedId));
+		}
+		return result;
+	}
+
 	private Object readFromCacheBatchOperation(String appid, Method daoMethod, Object[] args, MethodInvocation mi) throws Throwable {
 		Object result = Collections.emptyMap();
 		List<String> getUs = AOPUtils.getArgOfListOfType(args, String.class);
 		if (getUs != null) {
+			int listIndex = Arrays.asList(args).indexOf(getUs);
+			// only the objects missing from cache are read from the DB, concurrent misses share a single read
+			Map<String, ParaObject> loaded = new LinkedHashMap<>();
 			Map<String, ParaObject> cached;
 			try (Metrics.Context context = Metrics.time(appid, cache.getClass(), "getAll")) {
-				cached = cache.getAll(appid, getUs);
-			}
-			logger.debug("{}: Cache getAll(): {}->{}", getClass().getSimpleName(), appid, getUs);
-			// hit the database if even a single object is missing from cache, then cache it
-			if (cached.size() < getUs.size()) {
-				logger.debug("{}: Cache getAll() will read from DB: {}", getClass().getSimpleName(), appid);
-				result = invokeDAO(appid, daoMethod, mi);
-				if (result != null) {
-					for (String id : getUs) {
-						logger.debug("{}: Cache getAll() got from DB: {}", getClass().getSimpleName(), id);
-						if (!cached.containsKey(id)) {
-							ParaObject obj = ((Map<String, ParaObject>) result).get(id);
-							if (obj != null && obj.getCached()) {
-								try (Metrics.Context context = Metrics.time(appid, cache.getClass(), "put")) {
-									cache.put(appid, obj.getId(), obj);
-								}
-								logger.debug("{}: Cache miss on readAll: {}->{}", getClass().getSimpleName(), appid, id);
-							}
+				cached = cache.getAll(appid, getUs, missingIds -> {
+					Map<String, Long> stamps = new LinkedHashMap<>(missingIds.size());
+					for (String id : missingIds) {
+						if (misses == null || !misses.contains(appid, id)) {
+							stamps.put(id, (misses == null) ? 0L : misses.stamp(appid, id));
 						}
 					}
+					if (stamps.size() < missingIds.size()) {
+						Metrics.counter(appid, getClass(), "negative_cache_hits").inc(missingIds.size() - stamps.size());
+					}
+					if (stamps.isEmpty()) {
+						return Collections.emptyMap();
+					}
+					logger.debug("{}: Cache getAll() will read from DB: {} {}", getClass().getSimpleName(), appid,
+							stamps.keySet());
+					args[listIndex] = new ArrayList<>(stamps.keySet());
+					Map<String, ParaObject> fromDB = (Map<String, ParaObject>) invokeLoader(appid, daoMethod, mi);
+					Map<String, Long> notFound = (fromDB == null) ? stamps : stamps.entrySet().stream().
+							filter(e -> fromDB.get(e.getKey()) == null).
+							collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+					rememberMisses(appid, notFound);
+					if (fromDB == null) {
+						return Collections.emptyMap();
+					}
+					loaded.putAll(fromDB);
+					return fromDB.entrySet().stream().filter(e -> e.getValue() != null && e.getValue().getCached()).
+							collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+				});
+			} catch (LoaderException e) {
+				throw e.getCause();
+			} finally {
+				args[listIndex] = getUs;
+			}
+			logger.debug("{}: Cache getAll(): {}->{}", getClass().getSimpleName(), appid, getUs);
+			List<ParaObject> expired = cached.entrySet().stream().filter(e -> !loaded.containsKey(e.getKey())).
+					map(Map.Entry::getValue).filter(ParaObjectUtils::isExpired).collect(Collectors.toList());
+			if (!expired.isEmpty()) {
+				evictExpired(appid, expired);
+			}
+			Map<String, ParaObject> results = new LinkedHashMap<>(getUs.size());
+			for (String id : getUs) {
+				if (loaded.containsKey(id)) {
+					results.put(id, loaded.get(id));
+				} else if (cached.containsKey(id) && !expired.contains(cached.get(id))) {
+					results.put(id, cached.get(id));
 				}
 			}
-			if (result == null || ((Map) result).isEmpty()) {
-				result = cached;
+			List<ParaObject> cachedFromDB = loaded.values().stream().filter(obj -> obj != null && obj.getCached()).
+					collect(Collectors.toList());
+			if (!cachedFromDB.isEmpty()) {
+				putFingerprints(appid, cachedFromDB);
+				logger.debug("{}: Cache miss on readAll: {}->{}", getClass().getSimpleName(), appid, loaded.keySet());
 			}
+			result = results;
 		}
 		return result;
 	}
 
+	private void rememberMisses(String appid, Map<String, Long> stamps) {
+		if (!stamps.isEmpty()) {
+			Metrics.counter(appid, getClass(), "read_misses").inc(stamps.size());
+			if (misses != null) {
+				stamps.forEach((id, stamp) -> misses.put(appid, id, stamp));
+			}
+		}
+	}
+
+	private void forgetMisses(String appid, List<String> ids) {
+		if (misses != null) {
+			misses.invalidate(appid, ids);
+		}
+	}
+
+	/**
+	 * Reads an object again through the DAO, bypassing the cache, so that the cache can replace its copy.
+	 */
+	private ParaObject refreshFromDB(String appid, String id, DAO dao) {
+		REFRESHING.set(Boolean.TRUE);
+		try {
+			ParaObject obj = dao.read(appid, id);
+			if (obj == null || !obj.getCached() || ParaObjectUtils.isExpired(obj)) {
+				return null;
+			}
+			putFingerprints(appid, Collections.singletonList(obj));
+			return obj;
+		} finally {
+			REFRESHING.remove();
+		}
+	}
+
+	/**
+	 * Invokes the DAO from inside a cache loader, which can't throw checked exceptions.
+	 */
+	private Object invokeLoader(String appid, Method daoMethod, MethodInvocation mi) {
+		try {
+			return invokeDAO(appid, daoMethod, mi);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new LoaderException(e);
+		}
+	}
+
+	private void evictExpired(String appid, List<ParaObject> expired) {
+		List<String> ids = expired.stream().map(ParaObject::getId).collect(Collectors.toList());
+		try (Metrics.Context context = Metrics.time(appid, cache.getClass(), "removeAll")) {
+			cache.removeAll(appid, ids);
+		}
+		forgetFingerprints(appid, ids);
+		if (Para.getConfig().isSearchEnabled()) {
+			// the data store deletes expired objects on its own, without going through this aspect
+			Para.asyncExecute(() -> {
+				try (Metrics.Context context = Metrics.time(appid, search.getClass(), "unindexAll")) {
+					search.unindexAll(appid, expired);
+				}
+			});
+		}
+		logger.debug("{}: Evicted expired objects {}->{}", getClass().getSimpleName(), appid, ids);
+	}
+
 	private void addToCacheBatchOperation(String appid, Object[] args) {
 		List<ParaObject> putUs = AOPUtils.getArgOfListOfType(args, ParaObject.class);
 		if (putUs != null && !putUs.isEmpty()) {
 			Map<String, ParaObject> map1 = new LinkedHashMap<>(putUs.size());
+			forgetMisses(appid, putUs.stream().filter(obj -> obj != null).map(ParaObject::getId).
+					collect(Collectors.toList()));
 			for (ParaObject obj : putUs) {
 				if (obj != null && obj.getCached() && obj.getVersion() >= 0) {
 					map1.put(obj.getId(), obj);
@@ -366,6 +584,7 @@ public class IndexAndCacheAspect implements MethodInterceptor {
 				try (Metrics.Context context = Metrics.time(appid, cache.getClass(), "putAll")) {
 					cache.putAll(appid, map1);
 				}
+				putFingerprints(appid, map1.values());
 			}
 			logger.debug("{}: Cache put page: {}->{}", getClass().getSimpleName(), appid, map1.keySet());
 		}
@@ -379,13 +598,90 @@ public class IndexAndCacheAspect implements MethodInterceptor {
 				list.add(paraObject.getId());
 			}
 			// clear from cache even if "isCached = false"
+			forgetMisses(appid, list);
 			try (Metrics.Context context = Metrics.time(appid, cache.getClass(), "removeAll")) {
 				cache.removeAll(appid, list);
 			}
+			forgetFingerprints(appid, list);
 			logger.debug("{}: Cache delete page: {}->{}", getClass().getSimpleName(), appid, list);
 		}
 	}
 
+	/**
+	 * Removes the objects which haven't changed since they were last written or read from the arguments
+	 * of {@code update()} and {@code updateAll()}. An object is unchanged if its fingerprint matches the one
+	 * remembered by this node and the one of its stored copy, since it may have been changed on another node.
+	 * Objects with optimistic locking are always written, because their version changes.
+	 * @return true if there's nothing left to update and the DAO method should not be invoked
+	 */
+	private boolean removeUnchangedObjects(Cached cachedAnno, String appid, Method daoMethod, Object[] args,
+			MethodInvocation mi) {
+		if (cachedAnno == null || args == null || fingerprints == null || !daoMethod.getName().startsWith("update")) {
+			return false;
+		}
+		List<ParaObject> updateUs;
+		int listIndex = -1;
+		if (cachedAnno.action() == Cached.Action.PUT) {
+			ParaObject updateMe = AOPUtils.getArgOfParaObject(args);
+			updateUs = (updateMe == null) ? Collections.emptyList() : Collections.singletonList(updateMe);
+		} else if (cachedAnno.action() == Cached.Action.PUT_ALL) {
+			updateUs = AOPUtils.getArgOfListOfType(args, ParaObject.class);
+			for (int i = 0; i < args.length && updateUs != null; i++) {
+				if (args[i] == updateUs) {
+					listIndex = i;
+				}
+			}
+		} else {
+			return false;
+		}
+		if (updateUs == null || updateUs.isEmpty()) {
+			return false;
+		}
+		List<ParaObject> changed = updateUs.stream().filter(obj -> obj == null || !obj.getStored() ||
+				(obj.getVersion() != null && obj.getVersion() > 0) || !fingerprints.isUnchanged(appid, obj) ||
+				!isStoredUnchanged(appid, obj, (DAO) mi.getThis())).collect(Collectors.toList());
+		int skipped = updateUs.size() - changed.size();
+		if (skipped == 0) {
+			return false;
+		}
+		Metrics.counter(appid, getClass(), "unchanged_updates_skipped").inc(skipped);
+		logger.debug("{}: Skipped {} unchanged objects on {}()", getClass().getSimpleName(), skipped, daoMethod.getName());
+		if (changed.isEmpty()) {
+			return true;
+		}
+		if (listIndex >= 0) {
+			// the caller's list is left untouched
+			args[listIndex] = new ArrayList<>(changed);
+		}
+		return false;
+	}
+
+	/**
+	 * Compares an object to its stored copy, read from the DB and not from the cache. Only objects which
+	 * match the fingerprint remembered by this node are read, the others are written without a read.
+	 */
+	private boolean isStoredUnchanged(String appid, ParaObject obj, DAO dao) {
+		REFRESHING.set(Boolean.TRUE);
+		try {
+			ParaObject stored = dao.read(appid, obj.getId());
+			return stored != null && ParaObjectUtils.getFingerprint(obj).equals(ParaObjectUtils.getFingerprint(stored));
+		} finally {
+			REFRESHING.remove();
+		}
+	}
+
+	private void putFingerprints(String appid, Collection<ParaObject> objects) {
+		if (fingerprints != null) {
+			fingerprints.put(appid, objects);
+		}
+	}
+
+	private void forgetFingerprints(String appid, List<String> ids) {
+		if (fingerprints != null) {
+			fingerprints.invalidate(appid, ids);
+		}
+	}
+
 	/**
 	 * Try and detect if a DAO method is called from another public DAO method, annotated with {@link Indexed} or
 	 * {@link Cached}. It causes that method to be intercepted twice and objects will be indexed/cached twice.
@@ -407,4 +703,15 @@ public class IndexAndCacheAspect implements MethodInterceptor {
 			}
 		}
 	}
+
+	/**
+	 * Carries checked exceptions thrown by the DAO out of a cache loader.
+	 */
+	private static final class LoaderException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		LoaderException(Throwable cause) {
+			super(cause);
+		}
+	}
 }
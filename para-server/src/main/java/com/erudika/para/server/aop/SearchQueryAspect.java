@@ -17,15 +17,30 @@
  */
 package com.erudika.para.server.aop;
 
+import com.erudika.para.core.App;
+import com.erudika.para.core.ParaObject;
+import com.erudika.para.core.Tag;
 import com.erudika.para.core.listeners.IOListener;
 import com.erudika.para.core.utils.Para;
 import com.erudika.para.core.annotations.Measured;
 import com.erudika.para.core.metrics.Metrics;
 import static com.erudika.para.core.metrics.Metrics.time;
 import com.erudika.para.core.search.Search;
+import com.erudika.para.core.utils.Pager;
+import com.erudika.para.core.utils.ParaObjectUtils;
+import com.erudika.para.core.utils.Utils;
+import com.erudika.para.server.cache.QueryCache;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
 import org.slf4j.Logger;
@@ -33,7 +48,9 @@ import org.slf4j.LoggerFactory;
 
 /**
  * This method interceptor watches search queries fora all {@link Search} implementations and gathers metrics.
- * It listens for calls to {@link Search} methods, annotated with {@link Measured}.
+ * It listens for calls to {@link Search} methods, annotated with {@link Measured}. If enabled, the results of
+ * search queries are kept in a {@link QueryCache} and the queries for a type of objects are invalidated each time
+ * objects of that type are indexed or unindexed, including by {@link IndexAndCacheAspect}.
  * @author Alex Bogdanovski [alex@erudika.com]
  * @see Search
  */
@@ -41,6 +58,18 @@ import org.slf4j.LoggerFactory;
 public class SearchQueryAspect implements MethodInterceptor {
 
 	private static final Logger logger = LoggerFactory.getLogger(SearchQueryAspect.class);
+	private static final Set<String> CACHED_QUERIES = new HashSet<>(Arrays.asList("findNearby", "findPrefix",
+			"findQuery", "findNestedQuery", "findSimilar", "findTagged", "findTags", "findTermInList", "findTerms",
+			"findWildcard", "getCount"));
+	private static final Set<String> INDEX_CHANGES = new HashSet<>(Arrays.asList("index", "unindex", "indexAll",
+			"unindexAll"));
+	private static final Set<String> INDEX_REBUILDS = new HashSet<>(Arrays.asList("rebuildIndex", "createIndex",
+			"deleteIndex"));
+
+	// results are read back from the DB, which doesn't work when objects are only read from the index
+	private final QueryCache queries = Para.getConfig().queryCacheTTLSec() > 0 &&
+			!Para.getConfig().readFromIndexEnabled() ?
+			new QueryCache(Para.getConfig().queryCacheSize(), Para.getConfig().queryCacheTTLSec()) : null;
 
 	/**
 	 * Executes code when a method is invoked.
@@ -74,10 +103,16 @@ public class SearchQueryAspect implements MethodInterceptor {
 		}
 
 		Object result = null;
-		if (measuredAnno != null) {
+		if (measuredAnno != null && queries != null && CACHED_QUERIES.contains(searchMethod.getName())) {
+			result = invokeCachedSearch(appid, searchMethod, args, mi);
+		} else if (measuredAnno != null) {
 			result = invokeTimedSearch(appid, searchMethod, mi);
 		} else {
-			result = mi.proceed();
+			try {
+				result = mi.proceed();
+			} finally {
+				invalidateQueries(searchMethod, args);
+			}
 		}
 
 		for (IOListener ioListener : ioListeners) {
@@ -93,4 +128,147 @@ public class SearchQueryAspect implements MethodInterceptor {
 			return mi.proceed();
 		}
 	}
+
+	private Object invokeCachedSearch(String appid, Method searchMethod, Object[] args, MethodInvocation mi)
+			throws Throwable {
+		Pager pager = getPager(args);
+		String query = getQuery(searchMethod, args, pager);
+		if (query == null) {
+			return invokeTimedSearch(appid, searchMethod, mi);
+		}
+		String key = queries.key(appid, getQueryType(searchMethod, args), query);
+		QueryCache.Result cached = queries.get(key);
+		Object result = (cached == null) ? null : fromCache(appid, cached, pager);
+		if (result != null) {
+			Metrics.counter(appid, getClass(), "query_cache_hits").inc();
+			return result;
+		}
+		Metrics.counter(appid, getClass(), "query_cache_misses").inc();
+		result = invokeTimedSearch(appid, searchMethod, mi);
+		queries.put(key, toCache(result, pager));
+		return result;
+	}
+
+	/**
+	 * Reads the objects found by a cached query from the object cache, or the DB.
+	 * @return the result or null if some of the objects are gone
+	 */
+	private Object fromCache(String appid, QueryCache.Result cached, Pager pager) {
+		if (pager != null) {
+			pager.setCount(cached.getCount());
+			pager.setLastKey(cached.getLastKey());
+		}
+		if (cached.getIds() == null) {
+			return cached.getCount();
+		} else if (cached.getIds().isEmpty()) {
+			return new ArrayList<>();
+		}
+		Map<String, ParaObject> objects = Para.getDAO().readAll(appid, cached.getIds(), true);
+		List<ParaObject> results = new ArrayList<>(cached.getIds().size());
+		for (String id : cached.getIds()) {
+			ParaObject obj = objects.get(id);
+			if (obj == null) {
+				return null;
+			}
+			results.add(obj);
+		}
+		return results;
+	}
+
+	private QueryCache.Result toCache(Object result, Pager pager) {
+		if (result instanceof Long) {
+			return new QueryCache.Result(null, (Long) result, null);
+		} else if (result instanceof List) {
+			List<String> ids = new ArrayList<>(((List<?>) result).size());
+			for (Object obj : (List<?>) result) {
+				if (!(obj instanceof ParaObject) || ((ParaObject) obj).getId() == null) {
+					return null;
+				}
+				ids.add(((ParaObject) obj).getId());
+			}
+			return new QueryCache.Result(ids, (pager == null) ? ids.size() : pager.getCount(),
+					(pager == null) ? null : pager.getLastKey());
+		}
+		return null;
+	}
+
+	/**
+	 * Forgets the cached queries affected by a change to the index.
+	 */
+	private void invalidateQueries(Method searchMethod, Object[] args) {
+		String method = searchMethod.getName();
+		if (queries == null || !(INDEX_CHANGES.contains(method) || INDEX_REBUILDS.contains(method))) {
+			return;
+		}
+		if (INDEX_REBUILDS.contains(method)) {
+			ParaObject app = AOPUtils.getArgOfParaObject(args);
+			if (app instanceof App) {
+				queries.invalidate(((App) app).getAppIdentifier(), null);
+			}
+			return;
+		}
+		String appid = AOPUtils.getFirstArgOfString(args);
+		if (appid == null) {
+			appid = Para.getConfig().getRootAppIdentifier();
+		}
+		ParaObject obj = AOPUtils.getArgOfParaObject(args);
+		List<ParaObject> objects = AOPUtils.getArgOfListOfType(args, ParaObject.class);
+		if (obj != null) {
+			queries.invalidate(appid, Collections.singleton(obj.getType()));
+		} else if (objects != null) {
+			Set<String> types = new HashSet<>();
+			objects.forEach(o -> types.add((o == null) ? null : o.getType()));
+			queries.invalidate(appid, types);
+		} else if (args != null && Arrays.stream(args).anyMatch(arg -> arg instanceof Map)) {
+			// objects removed by terms could be of any type
+			queries.invalidate(appid, null);
+		}
+	}
+
+	private static Pager getPager(Object[] args) {
+		if (args != null && args.length > 0 && args[args.length - 1] instanceof Pager[]) {
+			Pager[] pagers = (Pager[]) args[args.length - 1];
+			return (pagers.length > 0) ? pagers[0] : null;
+		}
+		return null;
+	}
+
+	private static String getQueryType(Method searchMethod, Object[] args) {
+		if ("findTags".equals(searchMethod.getName())) {
+			return Utils.type(Tag.class);
+		}
+		return (args != null && args.length > 1 && args[1] instanceof String) ? (String) args[1] : null;
+	}
+
+	/**
+	 * @return the method name and its arguments, except the appid, with maps sorted by key, or null
+	 */
+	private static String getQuery(Method searchMethod, Object[] args, Pager pager) {
+		List<Object> query = new ArrayList<>();
+		query.add(searchMethod.getName());
+		for (int i = 1; args != null && i < args.length; i++) {
+			Object arg = args[i];
+			if (arg instanceof Pager[]) {
+				continue;
+			}
+			query.add((arg instanceof Map && !((Map<?, ?>) arg).containsKey(null)) ?
+					new TreeMap<>((Map<?, ?>) arg) : arg);
+		}
+		if (pager != null) {
+			Map<String, Object> page = new LinkedHashMap<>();
+			page.put("page", pager.getPage());
+			page.put("limit", pager.getLimit());
+			page.put("sortby", pager.getSortby());
+			page.put("desc", pager.isDesc());
+			page.put("lastKey", pager.getLastKey());
+			page.put("select", pager.getSelect());
+			query.add(page);
+		}
+		try {
+			return ParaObjectUtils.getJsonWriterNoIdent().writeValueAsString(query);
+		} catch (Exception e) {
+			logger.debug("Search query {} can't be cached: {}", searchMethod.getName(), e.getMessage());
+			return null;
+		}
+	}
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.cache;
+
+import com.erudika.para.core.ParaObject;
+import com.erudika.para.core.metrics.Metrics;
+import com.erudika.para.core.persistence.DAO;
+import com.erudika.para.core.utils.Para;
+import com.erudika.para.core.utils.ParaObjectUtils;
+import com.erudika.para.core.utils.Utils;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Saves the ids and versions of the most used objects in the cache to a local file and loads them back on startup,
+ * so that a restarted node doesn't begin with an empty cache. The objects are read again with
+ * {@link DAO#readAll(java.lang.String, java.util.List, boolean)} in parallel batches, which puts them in the cache.
+ * Optionally, the objects themselves are saved too and put back in the cache directly, if the snapshot is recent.
+ * The file has one JSON object per line - a header followed by one line for each object.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class CacheSnapshot {
+
+	private static final Logger logger = LoggerFactory.getLogger(CacheSnapshot.class);
+	private static final int BATCH_SIZE = 100;
+
+	private final CaffeineCache cache;
+	private final Path file;
+	private final int size;
+	private final boolean withValues;
+	private final long maxAgeMillis;
+
+	/**
+	 * @param cache the cache
+	 * @param file the snapshot file
+	 * @param size the maximum number of objects in a snapshot
+	 * @param withValues if true, the objects are saved too and not only their ids
+	 * @param maxAgeMillis the lifetime of cached objects, saved objects older than that are not restored
+	 */
+	public CacheSnapshot(CaffeineCache cache, Path file, int size, boolean withValues, long maxAgeMillis) {
+		this.cache = cache;
+		this.file = file;
+		this.size = size;
+		this.withValues = withValues;
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+	/**
+	 * Loads the last snapshot on startup and saves a new one periodically and on shutdown.
+	 * @param cache the cache
+	 */
+	static void schedule(CaffeineCache cache) {
+		CacheSnapshot snapshot = new CacheSnapshot(cache, Paths.get(Para.getConfig().caffeineSnapshotFile()),
+				Para.getConfig().caffeineSnapshotSize(), Para.getConfig().caffeineSnapshotValues(),
+				TimeUnit.MINUTES.toMillis(Para.getConfig().caffeineEvictAfterMin()));
+		long interval = Math.max(1, Para.getConfig().caffeineSnapshotIntervalMin());
+		Para.addInitListener(() -> {
+			snapshot.restore(Para.getDAO());
+			Para.asyncExecutePeriodically(snapshot::saveQuietly, interval, interval, TimeUnit.MINUTES);
+		});
+		Para.addDestroyListener(snapshot::saveQuietly);
+	}
+
+	/**
+	 * Writes the most used objects in the cache to the snapshot file, replacing the previous snapshot.
+	 * @return the number of objects saved
+	 * @throws IOException if the file can't be written
+	 */
+	public synchronized int save() throws IOException {
+		Map<String, Map<String, ParaObject>> hottest = cache.getHottest(size);
+		ObjectWriter writer = ParaObjectUtils.getJsonWriterNoIdent();
+		Path dir = file.toAbsolutePath().getParent();
+		if (dir != null) {
+			Files.createDirectories(dir);
+		}
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		int count = 0;
+		try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+			Map<String, Object> header = new LinkedHashMap<>(2);
+			header.put("timestamp", Utils.timestamp());
+			header.put("values", withValues);
+			out.write(writer.writeValueAsString(header));
+			out.newLine();
+			for (Map.Entry<String, Map<String, ParaObject>> app : hottest.entrySet()) {
+				for (Map.Entry<String, ParaObject> object : app.getValue().entrySet()) {
+					Map<String, Object> line = new LinkedHashMap<>(4);
+					line.put("appid", app.getKey());
+					line.put("id", object.getKey());
+					line.put("version", object.getValue().getVersion());
+					if (withValues) {
+						line.put("value", ParaObjectUtils.getAnnotatedFields(object.getValue()));
+					}
+					out.write(writer.writeValueAsString(line));
+					out.newLine();
+					count++;
+				}
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		logger.debug("Saved a snapshot of {} cached objects to {}.", count, file);
+		return count;
+	}
+
+	/**
+	 * Loads the objects from the last snapshot back into the cache. Saved objects are put back directly,
+	 * the rest are read with the DAO in parallel batches, without waiting for them.
+	 * @param dao the DAO
+	 * @return a future which completes when all objects are loaded, with the number of objects loaded
+	 */
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<Integer> restore(DAO dao) {
+		if (!Files.isReadable(file)) {
+			return CompletableFuture.completedFuture(0);
+		}
+		long start = Utils.timestamp();
+		Map<String, Map<String, Long>> versionsByApp = new LinkedHashMap<>();
+		int restored = 0;
+		ObjectReader reader = ParaObjectUtils.getJsonReader(Map.class);
+		try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			Map<String, Object> header = reader.readValue(StringUtils.trimToEmpty(in.readLine()));
+			long age = start - ((Number) header.getOrDefault("timestamp", 0L)).longValue();
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (StringUtils.isBlank(line)) {
+					continue;
+				}
+				Map<String, Object> object = reader.readValue(line);
+				String appid = (String) object.get("appid");
+				String id = (String) object.get("id");
+				if (StringUtils.isAnyBlank(appid, id)) {
+					continue;
+				}
+				ParaObject value = (age < maxAgeMillis && object.get("value") instanceof Map) ?
+						ParaObjectUtils.setAnnotatedFields((Map<String, Object>) object.get("value")) : null;
+				if (value != null) {
+					cache.restore(appid, id, value, TimeUnit.MILLISECONDS.toSeconds(maxAgeMillis - age));
+					restored++;
+				} else {
+					Long version = (object.get("version") instanceof Number) ?
+							((Number) object.get("version")).longValue() : null;
+					versionsByApp.computeIfAbsent(appid, k -> new LinkedHashMap<>()).put(id, version);
+				}
+			}
+		} catch (Exception e) {
+			// a broken snapshot only means a cold cache
+			logger.warn("Failed to load the cache snapshot {}: {}", file, e.getMessage());
+		}
+		AtomicInteger loaded = new AtomicInteger(restored);
+		AtomicInteger changed = new AtomicInteger();
+		List<CompletableFuture<Void>> batches = new ArrayList<>();
+		for (Map.Entry<String, Map<String, Long>> app : versionsByApp.entrySet()) {
+			Map<String, Long> versions = app.getValue();
+			List<String> ids = new ArrayList<>(versions.keySet());
+			for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+				List<String> batch = ids.subList(i, Math.min(i + BATCH_SIZE, ids.size()));
+				try {
+					batches.add(CompletableFuture.runAsync(() -> {
+						Map<String, ParaObject> found = dao.readAll(app.getKey(), batch, true);
+						loaded.addAndGet(found.size());
+						found.forEach((id, obj) -> {
+							if (obj != null && versions.get(id) != null && !versions.get(id).equals(obj.getVersion())) {
+								changed.incrementAndGet();
+							}
+						});
+					}, Para.getExecutorService()));
+				} catch (RejectedExecutionException e) {
+					logger.warn("Skipped loading {} objects from the cache snapshot: {}", batch.size(), e.getMessage());
+				}
+			}
+		}
+		return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0])).handle((v, e) -> {
+			if (e != null) {
+				logger.warn("Failed to load some objects from the cache snapshot: {}", e.getMessage());
+			}
+			Metrics.counter(Para.getConfig().getRootAppIdentifier(), CacheSnapshot.class, "restored").inc(loaded.get());
+			logger.info("Loaded {} objects from the cache snapshot {} in {} ms, {} of them changed since the snapshot.",
+					loaded.get(), file, Utils.timestamp() - start, changed.get());
+			return loaded.get();
+		});
+	}
+
+	/**
+	 * Saves a snapshot and logs any errors.
+	 */
+	void saveQuietly() {
+		try {
+			save();
+		} catch (Exception e) {
+			logger.error("Failed to save the cache snapshot to {}: {}", file, e.getMessage());
+		}
+	}
+}
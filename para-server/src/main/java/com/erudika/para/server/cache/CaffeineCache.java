@@ -17,24 +17,54 @@
  */
 package com.erudika.para.server.cache;
 
+import com.erudika.para.core.App;
+import com.erudika.para.core.ParaObject;
 import com.erudika.para.core.cache.Cache;
+import com.erudika.para.core.metrics.Metrics;
 import com.erudika.para.core.utils.Para;
+import com.erudika.para.core.utils.ParaObjectUtils;
 import com.erudika.para.core.utils.Utils;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Policy;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import javax.inject.Singleton;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Default implementation of the {@link Cache} interface using Caffeine.
  * Multitenancy is achieved by caching objects from each app using composite keys: {@code prefix_objectId}.
+ * The prefix is the app's namespace, which is kept outside of the cache and replaced when the app is purged.
+ * Every entry is weighed by the estimated serialized size of the object. The cache can be bounded by that size instead
+ * of the number of objects and each app can have a quota, set with the {@code cache_quota_mb} app setting.
+ * Writes and removals can be sent to the other nodes of a cluster through an {@link InvalidationBus}.
+ * Objects of the types listed in {@code para.caffeine.refresh_ahead} are reloaded in the background when they are
+ * read after a part of their lifetime has passed, while the old copy is still being served.
+ * The most used objects can be saved to a {@link CacheSnapshot} and loaded back on startup.
  * @author Alex Bogdanovski [alex@erudika.com]
  */
 @Singleton
@@ -42,33 +72,168 @@ public class CaffeineCache implements Cache {
 
 	private static final Logger logger = LoggerFactory.getLogger(CaffeineCache.class);
 	private static final int DEFAULT_EXPIRATION_MIN = Para.getConfig().caffeineEvictAfterMin();
+	private static final long MB = 1024L * 1024L;
+	private static final int ENTRY_OVERHEAD = 64;
+	private static final String QUOTA_SETTING = "cache_quota_mb";
+	private static final Map<String, Map<String, Integer>> REFRESH_POLICIES = new ConcurrentHashMap<>();
+
 	private final com.github.benmanes.caffeine.cache.Cache<String, Object> cache;
+	private final Map<String, CompletableFuture<Object>> bulkLoads = new ConcurrentHashMap<>();
+	private final Map<String, String> namespaces = new ConcurrentHashMap<>();
+	private final Map<String, AtomicLong> appSizes = new ConcurrentHashMap<>();
+	private final Map<String, Long> appQuotas = new ConcurrentHashMap<>();
+	private final Set<String> appsOverQuota = ConcurrentHashMap.newKeySet();
+	private final Set<String> refreshes = ConcurrentHashMap.newKeySet();
+	private final Map<String, Integer> refreshPolicies;
+	private final long defaultAppQuota;
+	private final OffHeapStore offHeap;
+	private final InvalidationBus bus;
 
 	/**
 	 * Default constructor.
 	 */
 	public CaffeineCache() {
-		cache = Caffeine.newBuilder()
-			.maximumSize(Para.getConfig().caffeineCacheSize())
-			.expireAfter(new Expiry<String, Object>() {
-				public long expireAfterCreate(String key, Object value, long currentTime) {
-					return TimeUnit.MINUTES.toNanos(DEFAULT_EXPIRATION_MIN);
-				}
-				public long expireAfterUpdate(String key, Object value, long currentTime, long currentDuration) {
-					return currentDuration;
-				}
-				public long expireAfterRead(String key, Object value, long currentTime, long currentDuration) {
-					return currentDuration;
-				}
-			})
-			.build();
+		this(newBuilder(), Para.getConfig().caffeineAppQuotaMb() * MB, Para.getConfig().caffeineOffHeapSizeMb() > 0 ?
+				new OffHeapStore(Para.getConfig().caffeineOffHeapSizeMb() * MB) : null, newTransport());
+		if (Para.getConfig().caffeineSnapshotSize() > 0) {
+			CacheSnapshot.schedule(this);
+		}
 	}
 
 	/**
 	 * @param cache cache
 	 */
 	CaffeineCache(com.github.benmanes.caffeine.cache.Cache<String, Object> cache) {
+		this(cache, 0L);
+	}
+
+	/**
+	 * @param cache cache
+	 * @param defaultAppQuota the maximum size of the objects of each app in bytes
+	 */
+	CaffeineCache(com.github.benmanes.caffeine.cache.Cache<String, Object> cache, long defaultAppQuota) {
 		this.cache = cache;
+		this.defaultAppQuota = defaultAppQuota;
+		this.offHeap = null;
+		this.bus = null;
+		this.refreshPolicies = Collections.emptyMap();
+	}
+
+	/**
+	 * @param builder a cache builder without an eviction listener
+	 * @param defaultAppQuota the maximum size of the objects of each app in bytes
+	 * @param offHeap the off-heap store for evicted objects, or null
+	 * @param transport the channel for invalidations between nodes, or null
+	 */
+	CaffeineCache(Caffeine<Object, Object> builder, long defaultAppQuota, OffHeapStore offHeap,
+			InvalidationTransport transport) {
+		this(builder, defaultAppQuota, offHeap, transport, getRefreshPolicies(Para.getConfig().caffeineRefreshAhead()));
+	}
+
+	/**
+	 * @param builder a cache builder without an eviction listener
+	 * @param defaultAppQuota the maximum size of the objects of each app in bytes
+	 * @param offHeap the off-heap store for evicted objects, or null
+	 * @param transport the channel for invalidations between nodes, or null
+	 * @param refreshPolicies a map of object types to the percentage of their lifetime after which they are refreshed
+	 */
+	CaffeineCache(Caffeine<Object, Object> builder, long defaultAppQuota, OffHeapStore offHeap,
+			InvalidationTransport transport, Map<String, Integer> refreshPolicies) {
+		this.defaultAppQuota = defaultAppQuota;
+		this.offHeap = offHeap;
+		this.refreshPolicies = refreshPolicies;
+		this.cache = builder.evictionListener((Object key, Object value, RemovalCause cause) ->
+				onEviction((String) key, value, cause)).build();
+		if (transport != null) {
+			this.bus = new InvalidationBus(transport, Para.getConfig().caffeineInvalidationBatchSize(),
+					Para.getConfig().caffeineInvalidationDelayMs(), this::invalidate);
+			Para.addDestroyListener(bus::close);
+		} else {
+			this.bus = null;
+		}
+	}
+
+	/**
+	 * @return the transport selected with {@code para.caffeine.invalidation_transport} or null
+	 */
+	private static InvalidationTransport newTransport() {
+		String selected = Para.getConfig().caffeineInvalidationTransport();
+		if (StringUtils.isBlank(selected)) {
+			return null;
+		} else if ("local".equalsIgnoreCase(selected) ||
+				LocalInvalidationTransport.class.getSimpleName().equalsIgnoreCase(selected)) {
+			return new LocalInvalidationTransport();
+		}
+		for (InvalidationTransport transport : ServiceLoader.load(InvalidationTransport.class,
+				Para.getParaClassLoader())) {
+			if (transport != null && selected.equalsIgnoreCase(transport.getClass().getSimpleName())) {
+				return transport;
+			}
+		}
+		logger.warn("Cache invalidation transport '{}' not found, invalidations won't be sent to other nodes.",
+				selected);
+		return null;
+	}
+
+	/**
+	 * Parses the refresh-ahead policies, a comma-separated list of {@code type:percent} pairs.
+	 * The type {@code *} matches all types.
+	 * @param declared the policies
+	 * @return a map of object types to the percentage of their lifetime after which they are refreshed
+	 */
+	static Map<String, Integer> getRefreshPolicies(String declared) {
+		if (StringUtils.isBlank(declared)) {
+			return Collections.emptyMap();
+		}
+		return REFRESH_POLICIES.computeIfAbsent(declared, (d) -> {
+			Map<String, Integer> parsed = new HashMap<>();
+			for (String policy : d.split("\\s*,\\s*")) {
+				String[] typeAndPercent = StringUtils.split(policy.trim(), ":", 2);
+				if (typeAndPercent.length == 2 && !StringUtils.isAnyBlank(typeAndPercent)) {
+					int percent = NumberUtils.toInt(typeAndPercent[1].trim(), 0);
+					if (percent > 0 && percent < 100) {
+						parsed.put(typeAndPercent[0].trim(), percent);
+					}
+				}
+			}
+			return Collections.unmodifiableMap(parsed);
+		});
+	}
+
+	/**
+	 * Expires entries at the time stored in them, which is reset on every write.
+	 * @return an expiry policy
+	 */
+	static Expiry<Object, Object> entryExpiry() {
+		return new Expiry<Object, Object>() {
+			public long expireAfterCreate(Object key, Object value, long currentTime) {
+				return expiresIn(value);
+			}
+			public long expireAfterUpdate(Object key, Object value, long currentTime, long currentDuration) {
+				return expiresIn(value);
+			}
+			public long expireAfterRead(Object key, Object value, long currentTime, long currentDuration) {
+				return currentDuration;
+			}
+		};
+	}
+
+	private static long expiresIn(Object value) {
+		if (value instanceof Entry) {
+			return TimeUnit.MILLISECONDS.toNanos(Math.max(0L, ((Entry) value).expiresAt - Utils.timestamp()));
+		}
+		return TimeUnit.MINUTES.toNanos(DEFAULT_EXPIRATION_MIN);
+	}
+
+	private static Caffeine<Object, Object> newBuilder() {
+		long maxSize = Para.getConfig().caffeineMaxSizeMb() * MB;
+		Caffeine<Object, Object> builder = Caffeine.newBuilder().expireAfter(entryExpiry());
+		if (maxSize > 0) {
+			builder.maximumWeight(maxSize).weigher((Object key, Object value) -> weightOf(value));
+		} else {
+			builder.maximumSize(Para.getConfig().caffeineCacheSize());
+		}
+		return builder;
 	}
 
 	@Override
@@ -84,7 +249,9 @@ public class CaffeineCache implements Cache {
 	@Override
 	public <T> void put(String appid, String id, T object) {
 		if (!StringUtils.isBlank(id) && object != null && !StringUtils.isBlank(appid)) {
-			cache.put(key(appid, id), object);
+			store(appid, key(appid, id), object, null);
+			enforceQuota(appid);
+			publish(appid, Collections.singletonList(id));
 			logger.debug("Cache.put() {} {}", appid, id);
 		}
 	}
@@ -96,10 +263,9 @@ public class CaffeineCache implements Cache {
 			return;
 		}
 		if (!StringUtils.isBlank(id) && object != null && !StringUtils.isBlank(appid)) {
-			String key = key(appid, id);
-			cache.policy().expireVariably().ifPresent((t) -> {
-				t.put(key, object, ttlSeconds, TimeUnit.SECONDS);
-			});
+			store(appid, key(appid, id), object, ttlSeconds);
+			enforceQuota(appid);
+			publish(appid, Collections.singletonList(id));
 			logger.debug("Cache.put() {} {} ttl {}", appid, id, ttlSeconds);
 		}
 	}
@@ -107,13 +273,13 @@ public class CaffeineCache implements Cache {
 	@Override
 	public <T> void putAll(String appid, Map<String, T> objects) {
 		if (objects != null && !objects.isEmpty() && !StringUtils.isBlank(appid)) {
-			Map<String, T> cleanMap = new LinkedHashMap<>(objects.size());
 			for (Map.Entry<String, T> entry : objects.entrySet()) {
 				if (!StringUtils.isBlank(entry.getKey()) && entry.getValue() != null) {
-					cleanMap.put(key(appid, entry.getKey()), entry.getValue());
+					store(appid, key(appid, entry.getKey()), entry.getValue(), null);
 				}
 			}
-			cache.putAll(cleanMap);
+			enforceQuota(appid);
+			publish(appid, objects.keySet());
 			logger.debug("Cache.putAll() {} {}", appid, objects.size());
 		}
 	}
@@ -126,7 +292,8 @@ public class CaffeineCache implements Cache {
 		}
 		String key = key(appid, id);
 		logger.debug("Cache.get() {} {}", appid, id);
-		return (T) cache.getIfPresent(key);
+		Object object = unwrap(cache.getIfPresent(key));
+		return (T) ((object == null) ? promote(appid, key) : object);
 	}
 
 	@Override
@@ -135,23 +302,231 @@ public class CaffeineCache implements Cache {
 		if (ids == null || StringUtils.isBlank(appid)) {
 			return Collections.emptyMap();
 		}
-		Map<String, T> map1 = new LinkedHashMap<>(ids.size());
-		ids.remove(null);
+		Map<String, String> keys = new LinkedHashMap<>(ids.size());
 		for (String id : ids) {
-			T t = get(appid, id);
-			if (t != null) {
-				map1.put(id, t);
+			if (!StringUtils.isBlank(id)) {
+				keys.put(key(appid, id), id);
+			}
+		}
+		Map<String, Object> found = getAllPresent(appid, keys.keySet());
+		Map<String, T> map1 = new LinkedHashMap<>(found.size());
+		for (Map.Entry<String, String> entry : keys.entrySet()) {
+			Object value = found.get(entry.getKey());
+			if (value != null) {
+				map1.put(entry.getValue(), (T) value);
 			}
 		}
 		logger.debug("Cache.getAll() {} {}", appid, ids.size());
 		return map1;
 	}
 
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> T get(String appid, String id, Function<String, T> loader) {
+		if (loader == null) {
+			return get(appid, id);
+		}
+		if (StringUtils.isBlank(id) || StringUtils.isBlank(appid)) {
+			return null;
+		}
+		logger.debug("Cache.get() {} {} with loader", appid, id);
+		String key = key(appid, id);
+		// concurrent misses for the same key block until the first one is loaded - the loader must not use the cache
+		Object value = cache.get(key, k -> {
+			Map.Entry<ParaObject, Long> offHeapEntry = (offHeap == null) ? null : offHeap.take(k);
+			if (offHeapEntry != null) {
+				Metrics.counter(appid, CaffeineCache.class, "offheap_hits").inc();
+				long ttl = TimeUnit.MILLISECONDS.toSeconds(offHeapEntry.getValue() - Utils.timestamp());
+				return newEntry(appid, offHeapEntry.getKey(), Math.max(1L, ttl));
+			}
+			T loaded = loader.apply(id);
+			return (loaded == null) ? null : newEntry(appid, loaded, null);
+		});
+		refreshAhead(appid, id, key, value, loader);
+		enforceQuota(appid);
+		return (T) unwrap(value);
+	}
+
+	/**
+	 * Reloads an object in the background if it's past its refresh time. Only one refresh per key runs at a time
+	 * and the old object is served until it's done. Refreshes are skipped when the executor is busy.
+	 */
+	private <T> void refreshAhead(String appid, String id, String key, Object value, Function<String, T> loader) {
+		if (!(value instanceof Entry)) {
+			return;
+		}
+		Entry entry = (Entry) value;
+		if (entry.refreshAt <= 0 || Utils.timestamp() < entry.refreshAt) {
+			return;
+		}
+		Metrics.counter(appid, CaffeineCache.class, "stale_hits").inc();
+		if (!refreshes.add(key)) {
+			return;
+		}
+		try {
+			Para.getExecutorService().execute(() -> refresh(appid, id, key, entry, loader));
+		} catch (RejectedExecutionException e) {
+			refreshes.remove(key);
+			logger.debug("Skipped refreshing {} {}: {}", appid, id, e.getMessage());
+		}
+	}
+
+	private <T> void refresh(String appid, String id, String key, Entry entry, Function<String, T> loader) {
+		try {
+			T loaded = loader.apply(id);
+			if (loaded == null) {
+				if (cache.asMap().remove(key, entry)) {
+					release(entry);
+				}
+				return;
+			}
+			// a write which happened in the meantime wins over the refreshed object
+			Entry refreshed = newEntry(appid, loaded, null);
+			if (cache.asMap().replace(key, entry, refreshed)) {
+				release(entry);
+				enforceQuota(appid);
+				Metrics.counter(appid, CaffeineCache.class, "refreshes").inc();
+			} else {
+				release(refreshed);
+			}
+		} catch (RuntimeException e) {
+			Metrics.counter(appid, CaffeineCache.class, "refresh_failures").inc();
+			logger.warn("Failed to refresh cached object {} {}: {}", appid, id, e.getMessage());
+		} finally {
+			refreshes.remove(key);
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> Map<String, T> getAll(String appid, List<String> ids,
+			Function<List<String>, Map<String, T>> bulkLoader) {
+		if (bulkLoader == null) {
+			return getAll(appid, ids);
+		}
+		if (ids == null || StringUtils.isBlank(appid)) {
+			return Collections.emptyMap();
+		}
+		Map<String, String> keys = new LinkedHashMap<>(ids.size());
+		for (String id : ids) {
+			if (!StringUtils.isBlank(id)) {
+				keys.put(key(appid, id), id);
+			}
+		}
+		Map<String, Object> found = getAllPresent(appid, keys.keySet());
+		// Caffeine's bulk loads don't block each other, so the loads in flight are tracked here instead
+		Map<String, CompletableFuture<Object>> ownLoads = new LinkedHashMap<>();
+		Map<String, CompletableFuture<Object>> otherLoads = new LinkedHashMap<>();
+		for (String key : keys.keySet()) {
+			if (!found.containsKey(key)) {
+				CompletableFuture<Object> load = new CompletableFuture<>();
+				CompletableFuture<Object> existing = bulkLoads.putIfAbsent(key, load);
+				if (existing == null) {
+					ownLoads.put(key, load);
+				} else {
+					otherLoads.put(key, existing);
+				}
+			}
+		}
+		// a load may have finished between the first lookup and the claim
+		getAllPresent(appid, new ArrayList<>(ownLoads.keySet())).forEach((key, value) -> {
+			found.put(key, value);
+			CompletableFuture<Object> load = ownLoads.remove(key);
+			bulkLoads.remove(key, load);
+			load.complete(value);
+		});
+		if (!ownLoads.isEmpty()) {
+			try {
+				found.putAll(bulkLoad(appid, keys, ownLoads.keySet(), bulkLoader));
+				ownLoads.forEach((key, load) -> load.complete(found.get(key)));
+			} catch (RuntimeException e) {
+				ownLoads.values().forEach(load -> load.completeExceptionally(e));
+				throw e;
+			} finally {
+				ownLoads.forEach(bulkLoads::remove);
+			}
+		}
+		List<String> failedLoads = new ArrayList<>();
+		otherLoads.forEach((key, load) -> {
+			try {
+				Object value = load.join();
+				if (value != null) {
+					found.put(key, value);
+				}
+			} catch (CompletionException e) {
+				failedLoads.add(key);
+			}
+		});
+		if (!failedLoads.isEmpty()) {
+			found.putAll(bulkLoad(appid, keys, failedLoads, bulkLoader));
+		}
+		enforceQuota(appid);
+		Map<String, T> map1 = new LinkedHashMap<>(found.size());
+		for (Map.Entry<String, String> entry : keys.entrySet()) {
+			Object value = found.get(entry.getKey());
+			if (value != null) {
+				map1.put(entry.getValue(), (T) value);
+			}
+		}
+		logger.debug("Cache.getAll() {} {} loaded {}", appid, ids.size(), ownLoads.size() + failedLoads.size());
+		return map1;
+	}
+
+	private Map<String, Object> getAllPresent(String appid, Iterable<String> keys) {
+		Map<String, Object> found = new LinkedHashMap<>();
+		cache.getAllPresent(keys).forEach((key, value) -> found.put(key, unwrap(value)));
+		if (offHeap != null) {
+			for (String key : keys) {
+				Object promoted = found.containsKey(key) ? null : promote(appid, key);
+				if (promoted != null) {
+					found.put(key, promoted);
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Moves an object from the off-heap store back to the cache.
+	 * @return the object or null if it's not in the off-heap store
+	 */
+	private Object promote(String appid, String key) {
+		Map.Entry<ParaObject, Long> offHeapEntry = (offHeap == null) ? null : offHeap.take(key);
+		if (offHeapEntry == null) {
+			return null;
+		}
+		long ttl = TimeUnit.MILLISECONDS.toSeconds(offHeapEntry.getValue() - Utils.timestamp());
+		if (ttl > 0) {
+			store(appid, key, offHeapEntry.getKey(), cache.policy().expireVariably().isPresent() ? ttl : null);
+			Metrics.counter(appid, CaffeineCache.class, "offheap_hits").inc();
+		}
+		return offHeapEntry.getKey();
+	}
+
+	private <T> Map<String, Object> bulkLoad(String appid, Map<String, String> keys, Iterable<String> missingKeys,
+			Function<List<String>, Map<String, T>> bulkLoader) {
+		List<String> missingIds = new ArrayList<>();
+		missingKeys.forEach(key -> missingIds.add(keys.get(key)));
+		Map<String, T> loaded = bulkLoader.apply(missingIds);
+		Map<String, Object> loadedByKey = new LinkedHashMap<>(missingIds.size());
+		if (loaded != null) {
+			for (String key : missingKeys) {
+				T value = loaded.get(keys.get(key));
+				if (value != null) {
+					loadedByKey.put(key, value);
+					store(appid, key, value, null);
+				}
+			}
+		}
+		return loadedByKey;
+	}
+
 	@Override
 	public void remove(String appid, String id) {
 		if (!StringUtils.isBlank(id) && !StringUtils.isBlank(appid)) {
 			logger.debug("Cache.remove() {} {}", appid, id);
-			cache.invalidate(key(appid, id));
+			removeLocally(appid, id);
+			publish(appid, Collections.singletonList(id));
 		}
 	}
 
@@ -159,7 +534,10 @@ public class CaffeineCache implements Cache {
 	public void removeAll(String appid) {
 		if (!StringUtils.isBlank(appid)) {
 			logger.debug("Cache.removeAll() {}", appid);
-			cache.asMap().remove("key_prefix_" + appid);
+			removeAllLocally(appid);
+			if (bus != null) {
+				bus.publishAll(appid);
+			}
 		}
 	}
 
@@ -168,15 +546,263 @@ public class CaffeineCache implements Cache {
 		if (ids != null && !StringUtils.isBlank(appid)) {
 			for (String id : ids) {
 				if (!StringUtils.isBlank(id)) {
-					remove(appid, id);
+					removeLocally(appid, id);
 				}
 			}
+			publish(appid, ids);
 			logger.debug("Cache.removeAll() {} {}", appid, ids.size());
 		}
 	}
 
+	private void removeLocally(String appid, String id) {
+		String key = key(appid, id);
+		release(cache.asMap().remove(key));
+		if (offHeap != null) {
+			offHeap.remove(key);
+		}
+	}
+
+	private void removeAllLocally(String appid) {
+		// the app gets a new namespace right away and the entries in the old one are then dropped
+		String namespace = namespaces.remove(appid);
+		if (namespace != null) {
+			String prefix = namespace + "_";
+			for (Map.Entry<String, Object> entry : cache.asMap().entrySet()) {
+				if (entry.getKey().startsWith(prefix) && cache.asMap().remove(entry.getKey(), entry.getValue())) {
+					release(entry.getValue());
+				}
+			}
+			if (offHeap != null) {
+				offHeap.removeIf(key -> key.startsWith(prefix));
+			}
+		}
+	}
+
+	/**
+	 * Tells the other nodes to drop their copies of objects which were written or removed on this node.
+	 */
+	private void publish(String appid, Collection<String> ids) {
+		if (bus != null) {
+			bus.publish(appid, ids);
+		}
+	}
+
+	/**
+	 * Applies the invalidations sent by other nodes.
+	 */
+	private void invalidate(String appid, Set<String> ids) {
+		if (ids == null) {
+			removeAllLocally(appid);
+		} else {
+			ids.forEach(id -> removeLocally(appid, id));
+		}
+	}
+
 	private String key(String appid, String id) {
-		return cache.asMap().computeIfAbsent("key_prefix_" + appid, k -> Utils.getNewId()) + "_" + id;
+		return namespaces.computeIfAbsent(appid, k -> Utils.getNewId()) + "_" + id;
+	}
+
+	private void store(String appid, String key, Object object, Long ttlSeconds) {
+		Entry entry = newEntry(appid, object, ttlSeconds);
+		if (offHeap != null) {
+			offHeap.remove(key);
+		}
+		Object previous;
+		if (ttlSeconds == null || ttlSeconds <= 0L) {
+			previous = cache.asMap().put(key, entry);
+		} else {
+			Optional<Policy.VarExpiration<String, Object>> expiration = cache.policy().expireVariably();
+			if (!expiration.isPresent()) {
+				release(entry);
+				return;
+			}
+			previous = expiration.get().put(key, entry, ttlSeconds, TimeUnit.SECONDS);
+		}
+		release(previous);
+	}
+
+	private Entry newEntry(String appid, Object object, Long ttlSeconds) {
+		if (object instanceof App) {
+			// apps are read on every request, which keeps their quotas up to date
+			App app = (App) object;
+			long quota = NumberUtils.toLong(String.valueOf(app.getSetting(QUOTA_SETTING)), 0L) * MB;
+			if (quota > 0) {
+				appQuotas.put(app.getAppIdentifier(), quota);
+			} else {
+				appQuotas.remove(app.getAppIdentifier());
+			}
+		}
+		long ttl = (ttlSeconds == null || ttlSeconds <= 0L) ?
+				TimeUnit.MINUTES.toSeconds(DEFAULT_EXPIRATION_MIN) : ttlSeconds;
+		long now = Utils.timestamp();
+		Entry entry = new Entry(appid, object, estimateSize(object), now + ttl * 1000,
+				refreshTime(object, now, ttl * 1000));
+		resize(appid, entry.weight);
+		return entry;
+	}
+
+	/**
+	 * @return the time after which an object is refreshed on read, or 0 if it's never refreshed
+	 */
+	private long refreshTime(Object object, long now, long ttlMillis) {
+		if (refreshPolicies.isEmpty() || !(object instanceof ParaObject)) {
+			return 0L;
+		}
+		Integer percent = refreshPolicies.getOrDefault(((ParaObject) object).getType(), refreshPolicies.get("*"));
+		return (percent == null) ? 0L : now + ttlMillis * percent / 100;
+	}
+
+	private void release(Object value) {
+		if (value instanceof Entry) {
+			Entry entry = (Entry) value;
+			resize(entry.appid, -entry.weight);
+		}
+	}
+
+	private void onEviction(String key, Object value, RemovalCause cause) {
+		if (value instanceof Entry) {
+			Entry entry = (Entry) value;
+			release(entry);
+			Metrics.counter(entry.appid, CaffeineCache.class, "evictions").inc();
+			// objects pushed out for lack of space are moved off-heap, expired objects are dropped
+			if (offHeap != null && cause == RemovalCause.SIZE && entry.value instanceof ParaObject) {
+				offHeap.put(key, (ParaObject) entry.value, entry.expiresAt);
+			}
+		}
+	}
+
+	private void resize(String appid, long delta) {
+		appSizes.computeIfAbsent(appid, k -> new AtomicLong()).addAndGet(delta);
+		Metrics.counter(appid, CaffeineCache.class, "size_bytes").inc(delta);
+	}
+
+	/**
+	 * Evicts the least used objects of an app until it fits in its quota again.
+	 * @param appid the name of the application
+	 */
+	private void enforceQuota(String appid) {
+		long quota = appQuotas.getOrDefault(appid, defaultAppQuota);
+		AtomicLong size = appSizes.get(appid);
+		if (quota <= 0 || size == null || size.get() <= quota || !appsOverQuota.add(appid)) {
+			return;
+		}
+		try {
+			long excess = size.get() - quota;
+			List<String> keys = cache.policy().eviction().map(eviction -> eviction.coldest(entries -> {
+				List<String> coldest = new ArrayList<>();
+				long freed = 0L;
+				Iterator<Policy.CacheEntry<String, Object>> iterator = entries.iterator();
+				while (freed < excess && iterator.hasNext()) {
+					Policy.CacheEntry<String, Object> cacheEntry = iterator.next();
+					if (cacheEntry.getValue() instanceof Entry && appid.equals(((Entry) cacheEntry.getValue()).appid)) {
+						coldest.add(cacheEntry.getKey());
+						freed += ((Entry) cacheEntry.getValue()).weight;
+					}
+				}
+				return coldest;
+			})).orElse(Collections.emptyList());
+			for (String key : keys) {
+				Object value = cache.asMap().remove(key);
+				if (value != null) {
+					onEviction(key, value, RemovalCause.SIZE);
+				}
+			}
+			logger.debug("Cache quota of app {} exceeded by {} bytes, evicted {} objects", appid, excess, keys.size());
+		} finally {
+			appsOverQuota.remove(appid);
+		}
+	}
+
+	/**
+	 * @param limit the maximum number of objects
+	 * @return the most used objects in the cache, grouped by app, in descending order of use
+	 */
+	Map<String, Map<String, ParaObject>> getHottest(int limit) {
+		Map<String, Map<String, ParaObject>> hottest = new LinkedHashMap<>();
+		cache.policy().eviction().ifPresent(eviction -> eviction.hottest(limit).forEach((key, value) -> {
+			if (value instanceof Entry && ((Entry) value).value instanceof ParaObject) {
+				Entry entry = (Entry) value;
+				// entries of purged apps are still in the old namespace
+				String namespace = namespaces.get(entry.appid);
+				if (namespace != null && key.startsWith(namespace + "_")) {
+					hottest.computeIfAbsent(entry.appid, k -> new LinkedHashMap<>()).
+							put(key.substring(namespace.length() + 1), (ParaObject) entry.value);
+				}
+			}
+		}));
+		return hottest;
+	}
+
+	/**
+	 * Puts an object back in the cache, e.g. from a snapshot. Unlike a write, this is not sent to the other nodes.
+	 * @param appid the name of the application
+	 * @param id the object id
+	 * @param object the object
+	 * @param ttlSeconds the remaining lifetime of the object
+	 */
+	void restore(String appid, String id, Object object, long ttlSeconds) {
+		if (!StringUtils.isBlank(id) && object != null && !StringUtils.isBlank(appid) && ttlSeconds > 0) {
+			store(appid, key(appid, id), object, cache.policy().expireVariably().isPresent() ? ttlSeconds : null);
+			enforceQuota(appid);
+		}
+	}
+
+	/**
+	 * @param appid the name of the application
+	 * @return the estimated size of the cached objects of an app in bytes
+	 */
+	long getSize(String appid) {
+		AtomicLong size = appSizes.get(appid);
+		return (size == null) ? 0L : size.get();
+	}
+
+	private static Object unwrap(Object value) {
+		return (value instanceof Entry) ? ((Entry) value).value : value;
+	}
+
+	private static int weightOf(Object value) {
+		return (value instanceof Entry) ? ((Entry) value).weight : ENTRY_OVERHEAD;
+	}
+
+	/**
+	 * @param object an object
+	 * @return the estimated size of the object when serialized to JSON, in bytes
+	 */
+	static int estimateSize(Object object) {
+		if (object instanceof CharSequence) {
+			return ENTRY_OVERHEAD + ((CharSequence) object).length() * 2;
+		} else if (object instanceof byte[]) {
+			return ENTRY_OVERHEAD + ((byte[]) object).length;
+		} else if (object instanceof Number || object instanceof Boolean) {
+			return ENTRY_OVERHEAD;
+		}
+		try (CountingOutputStream out = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM)) {
+			ParaObjectUtils.getJsonWriterNoIdent().writeValue(out, object);
+			return (int) Math.min(Integer.MAX_VALUE - ENTRY_OVERHEAD, out.getByteCount()) + ENTRY_OVERHEAD;
+		} catch (IOException | RuntimeException e) {
+			logger.debug("Failed to estimate the size of {}: {}", object.getClass().getSimpleName(), e.getMessage());
+			return ENTRY_OVERHEAD * 16;
+		}
+	}
+
+	/**
+	 * A cached object, the app it belongs to, its estimated size, the time when it expires
+	 * and the time after which it's refreshed.
+	 */
+	private static final class Entry {
+		private final String appid;
+		private final Object value;
+		private final int weight;
+		private final long expiresAt;
+		private final long refreshAt;
+
+		Entry(String appid, Object value, int weight, long expiresAt, long refreshAt) {
+			this.appid = appid;
+			this.value = value;
+			this.weight = weight;
+			this.expiresAt = expiresAt;
+			this.refreshAt = refreshAt;
+		}
 	}
 
 	////////////////////////////////////////////////////
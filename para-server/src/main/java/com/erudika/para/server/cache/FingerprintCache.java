@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.cache;
+
+import com.erudika.para.core.ParaObject;
+import com.erudika.para.core.utils.ParaObjectUtils;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * A bounded, node-local cache of the fingerprints of objects, as they were last written or read through this node.
+ * Used to find updates which may not change an object, before they are compared to the stored copy. It is kept
+ * apart from the object cache, so fingerprints don't count against cache quotas and are not sent to other nodes.
+ * Writes made on other nodes are not seen here, so entries expire after a short time.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class FingerprintCache {
+
+	private final com.github.benmanes.caffeine.cache.Cache<String, String> fingerprints;
+
+	/**
+	 * @param maxSize the maximum number of fingerprints to keep
+	 * @param ttlSeconds the time for which a fingerprint is kept
+	 */
+	public FingerprintCache(int maxSize, int ttlSeconds) {
+		fingerprints = Caffeine.newBuilder().maximumSize(maxSize).
+				expireAfterWrite(Math.max(1, ttlSeconds), TimeUnit.SECONDS).build();
+	}
+
+	/**
+	 * @param appid the name of the application
+	 * @param obj an object
+	 * @return true if the object has the same content as when it was last written or read
+	 */
+	public boolean isUnchanged(String appid, ParaObject obj) {
+		if (obj == null || StringUtils.isBlank(obj.getId())) {
+			return false;
+		}
+		String fingerprint = ParaObjectUtils.getFingerprint(obj);
+		return fingerprint != null && fingerprint.equals(fingerprints.getIfPresent(key(appid, obj.getId())));
+	}
+
+	/**
+	 * Remembers the fingerprints of objects which were written or read.
+	 * @param appid the name of the application
+	 * @param objects the objects
+	 */
+	public void put(String appid, Collection<? extends ParaObject> objects) {
+		if (objects != null) {
+			for (ParaObject obj : objects) {
+				String fingerprint = (obj == null || StringUtils.isBlank(obj.getId())) ? null :
+						ParaObjectUtils.getFingerprint(obj);
+				if (fingerprint != null) {
+					fingerprints.put(key(appid, obj.getId()), fingerprint);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forgets the fingerprints of objects.
+	 * @param appid the name of the application
+	 * @param ids the object ids
+	 */
+	public void invalidate(String appid, Collection<String> ids) {
+		if (ids != null) {
+			for (String id : ids) {
+				if (!StringUtils.isBlank(id)) {
+					fingerprints.invalidate(key(appid, id));
+				}
+			}
+		}
+	}
+
+	private static String key(String appid, String id) {
+		return appid + "/" + id;
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.cache;
+
+import com.erudika.para.core.metrics.Metrics;
+import com.erudika.para.core.utils.Para;
+import com.erudika.para.core.utils.ParaObjectUtils;
+import com.erudika.para.core.utils.Utils;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends cache invalidations to the other nodes of a cluster and applies the invalidations sent by them.
+ * Invalidations are collected for a short time, deduplicated and sent in batches, as a single JSON message.
+ * Messages sent by this node are ignored when they come back.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class InvalidationBus {
+
+	private static final Logger logger = LoggerFactory.getLogger(InvalidationBus.class);
+	private static final String ALL = "*";
+
+	private final String nodeId = Utils.getNewId();
+	private final InvalidationTransport transport;
+	private final BiConsumer<String, Set<String>> invalidator;
+	private final int maxBatchSize;
+	private final long maxDelayMs;
+	private Map<String, Set<String>> pending = new LinkedHashMap<>();
+	private int pendingSize;
+	private ScheduledFuture<?> timer;
+
+	/**
+	 * @param transport the channel between nodes
+	 * @param maxBatchSize the number of ids after which a batch is sent right away
+	 * @param maxDelayMs the maximum time for which an invalidation is held back
+	 * @param invalidator removes the objects of an app from the local cache, all of them if the set of ids is null
+	 */
+	public InvalidationBus(InvalidationTransport transport, int maxBatchSize, long maxDelayMs,
+			BiConsumer<String, Set<String>> invalidator) {
+		this.transport = transport;
+		this.invalidator = invalidator;
+		this.maxBatchSize = Math.max(1, maxBatchSize);
+		this.maxDelayMs = Math.max(0L, maxDelayMs);
+		transport.subscribe(this::receive);
+	}
+
+	/**
+	 * Tells the other nodes to remove objects from their caches.
+	 * @param appid the name of the application
+	 * @param ids the object ids
+	 */
+	public void publish(String appid, Collection<String> ids) {
+		if (StringUtils.isBlank(appid) || ids == null || ids.isEmpty()) {
+			return;
+		}
+		boolean flushNow;
+		synchronized (this) {
+			Set<String> appIds = pending.computeIfAbsent(appid, k -> new LinkedHashSet<>());
+			if (!appIds.contains(ALL)) {
+				for (String id : ids) {
+					if (!StringUtils.isBlank(id) && appIds.add(id)) {
+						pendingSize++;
+					}
+				}
+			}
+			flushNow = scheduleFlush();
+		}
+		if (flushNow) {
+			flush();
+		}
+	}
+
+	/**
+	 * Tells the other nodes to remove all objects of an app from their caches.
+	 * @param appid the name of the application
+	 */
+	public void publishAll(String appid) {
+		if (StringUtils.isBlank(appid)) {
+			return;
+		}
+		boolean flushNow;
+		synchronized (this) {
+			Set<String> appIds = pending.computeIfAbsent(appid, k -> new LinkedHashSet<>());
+			pendingSize -= appIds.size();
+			appIds.clear();
+			appIds.add(ALL);
+			pendingSize++;
+			flushNow = scheduleFlush();
+		}
+		if (flushNow) {
+			flush();
+		}
+	}
+
+	/**
+	 * Sends all pending invalidations.
+	 */
+	public void flush() {
+		Map<String, Set<String>> batch;
+		int size;
+		synchronized (this) {
+			if (timer != null) {
+				timer.cancel(false);
+				timer = null;
+			}
+			if (pending.isEmpty()) {
+				return;
+			}
+			batch = pending;
+			size = pendingSize;
+			pending = new LinkedHashMap<>();
+			pendingSize = 0;
+		}
+		Map<String, Object> message = new LinkedHashMap<>(2);
+		message.put("node", nodeId);
+		message.put("apps", batch);
+		try {
+			transport.publish(ParaObjectUtils.getJsonWriterNoIdent().writeValueAsString(message));
+			Metrics.counter(rootAppid(), InvalidationBus.class, "invalidations_sent").inc(size);
+		} catch (Exception e) {
+			logger.error("Failed to send {} cache invalidations: {}", size, e.getMessage());
+		}
+	}
+
+	/**
+	 * Sends the pending invalidations and disconnects from the other nodes.
+	 */
+	public void close() {
+		flush();
+		transport.close();
+	}
+
+	/**
+	 * @return true if the batch is full and must be sent right away
+	 */
+	private boolean scheduleFlush() {
+		if (pendingSize >= maxBatchSize || maxDelayMs == 0) {
+			return true;
+		}
+		if (timer == null) {
+			timer = Para.getScheduledExecutorService().schedule(this::flush, maxDelayMs, TimeUnit.MILLISECONDS);
+		}
+		return false;
+	}
+
+	private static String rootAppid() {
+		return Para.getConfig().getRootAppIdentifier();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void receive(String message) {
+		Map<String, Object> batch;
+		try {
+			batch = ParaObjectUtils.getJsonReader(Map.class).readValue(message);
+		} catch (Exception e) {
+			logger.warn("Invalid cache invalidation message: {}", e.getMessage());
+			return;
+		}
+		if (batch == null || nodeId.equals(batch.get("node")) || !(batch.get("apps") instanceof Map)) {
+			return;
+		}
+		int received = 0;
+		for (Map.Entry<String, Object> app : ((Map<String, Object>) batch.get("apps")).entrySet()) {
+			List<String> ids = (app.getValue() instanceof List) ? (List<String>) app.getValue() : Collections.emptyList();
+			if (ids.contains(ALL)) {
+				invalidator.accept(app.getKey(), null);
+			} else if (!ids.isEmpty()) {
+				invalidator.accept(app.getKey(), new LinkedHashSet<>(ids));
+			}
+			received += ids.size();
+		}
+		Metrics.counter(rootAppid(), InvalidationBus.class, "invalidations_received").inc(received);
+		logger.debug("Applied {} cache invalidations from node {}", received, batch.get("node"));
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.cache;
+
+import java.util.function.Consumer;
+
+/**
+ * A broadcast channel between the nodes of a cluster, used for sending cache invalidation messages.
+ * Every message published by a node must be delivered to all subscribed nodes, including the sender.
+ * Implementations can be loaded as plugins through the {@link java.util.ServiceLoader} mechanism.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public interface InvalidationTransport {
+
+	/**
+	 * Sends a message to all nodes.
+	 * @param message the message
+	 */
+	void publish(String message);
+
+	/**
+	 * Registers a listener for the messages sent by all nodes.
+	 * @param listener a message listener
+	 */
+	void subscribe(Consumer<String> listener);
+
+	/**
+	 * Stops the delivery of messages to the listeners of this node.
+	 */
+	default void close() { }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.cache;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-JVM {@link InvalidationTransport}. Messages are delivered to all instances of this class in the same JVM.
+ * Useful for tests and for running several caches in one process.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class LocalInvalidationTransport implements InvalidationTransport {
+
+	private static final Logger logger = LoggerFactory.getLogger(LocalInvalidationTransport.class);
+	private static final List<Consumer<String>> LISTENERS = new CopyOnWriteArrayList<>();
+
+	private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Default constructor.
+	 */
+	public LocalInvalidationTransport() {
+	}
+
+	@Override
+	public void publish(String message) {
+		for (Consumer<String> listener : LISTENERS) {
+			try {
+				listener.accept(message);
+			} catch (Exception e) {
+				logger.warn("Failed to deliver cache invalidation message: {}", e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public void subscribe(Consumer<String> listener) {
+		if (listener != null) {
+			listeners.add(listener);
+			LISTENERS.add(listener);
+		}
+	}
+
+	@Override
+	public void close() {
+		LISTENERS.removeAll(listeners);
+		listeners.clear();
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.cache;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * A bounded, node-local cache of object ids which were not found in the data store. Entries expire after a short time
+ * and writes to an id remove it. A read which raced with a write is not remembered - each read takes a stamp before
+ * it hits the data store and the miss is only kept if no write to the same stripe of ids happened in the meantime.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class NegativeCache {
+
+	private static final int STRIPES = 64;
+
+	private final com.github.benmanes.caffeine.cache.Cache<String, Boolean> misses;
+	private final AtomicLongArray writes = new AtomicLongArray(STRIPES);
+
+	/**
+	 * @param maxSize the maximum number of ids to remember
+	 * @param ttlSeconds the time for which a miss is remembered
+	 */
+	public NegativeCache(int maxSize, int ttlSeconds) {
+		misses = Caffeine.newBuilder().maximumSize(maxSize).expireAfterWrite(ttlSeconds, TimeUnit.SECONDS).build();
+	}
+
+	/**
+	 * @param appid the name of the application
+	 * @param id the object id
+	 * @return true if the object was recently not found
+	 */
+	public boolean contains(String appid, String id) {
+		return !StringUtils.isBlank(id) && misses.getIfPresent(key(appid, id)) != null;
+	}
+
+	/**
+	 * Takes a stamp before reading an object from the data store.
+	 * @param appid the name of the application
+	 * @param id the object id
+	 * @return a stamp for {@link #put(java.lang.String, java.lang.String, long)}
+	 */
+	public long stamp(String appid, String id) {
+		return writes.get(stripe(key(appid, id)));
+	}
+
+	/**
+	 * Remembers that an object was not found, unless it was written after the stamp was taken.
+	 * @param appid the name of the application
+	 * @param id the object id
+	 * @param stamp the stamp taken before the read
+	 */
+	public void put(String appid, String id, long stamp) {
+		if (StringUtils.isBlank(id)) {
+			return;
+		}
+		String key = key(appid, id);
+		int stripe = stripe(key);
+		if (writes.get(stripe) == stamp) {
+			misses.put(key, Boolean.TRUE);
+			// a write could have slipped in between the check and the put
+			if (writes.get(stripe) != stamp) {
+				misses.invalidate(key);
+			}
+		}
+	}
+
+	/**
+	 * Forgets the misses of objects which were written.
+	 * @param appid the name of the application
+	 * @param ids the object ids
+	 */
+	public void invalidate(String appid, Collection<String> ids) {
+		if (ids != null) {
+			for (String id : ids) {
+				if (!StringUtils.isBlank(id)) {
+					String key = key(appid, id);
+					writes.incrementAndGet(stripe(key));
+					misses.invalidate(key);
+				}
+			}
+		}
+	}
+
+	private static String key(String appid, String id) {
+		return appid + "/" + id;
+	}
+
+	private static int stripe(String key) {
+		return (key.hashCode() & Integer.MAX_VALUE) % STRIPES;
+	}
+}
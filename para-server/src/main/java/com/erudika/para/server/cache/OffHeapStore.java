@@ -0,0 +1,196 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.cache;
+
+import com.erudika.para.core.ParaObject;
+import com.erudika.para.core.utils.ParaObjectUtils;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An off-heap store for objects which don't fit in the on-heap {@link CaffeineCache}. Objects are serialized to Smile
+ * and appended to a ring of direct {@link ByteBuffer} slabs. When the ring is full, the oldest slab is reused and all
+ * objects in it are dropped. Only the index of keys stays on the heap.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class OffHeapStore {
+
+	private static final Logger logger = LoggerFactory.getLogger(OffHeapStore.class);
+	private static final int MAX_SLAB_SIZE = 16 * 1024 * 1024;
+	private static final ObjectMapper SMILE_MAPPER = new ObjectMapper(new SmileFactory());
+
+	private final Slab[] slabs;
+	private final int slabSize;
+	private final Map<String, Location> index = new ConcurrentHashMap<>();
+	private int current;
+	private int position;
+
+	/**
+	 * @param capacity the total size of the slabs in bytes
+	 */
+	OffHeapStore(long capacity) {
+		int count = (int) Math.max(2L, Math.min(Integer.MAX_VALUE, (capacity + MAX_SLAB_SIZE - 1) / MAX_SLAB_SIZE));
+		slabSize = (int) Math.max(1024L, Math.min(MAX_SLAB_SIZE, capacity / count));
+		slabs = new Slab[count];
+		for (int i = 0; i < count; i++) {
+			slabs[i] = new Slab();
+		}
+	}
+
+	/**
+	 * Serializes an object and stores it under the given key.
+	 * @param key the key
+	 * @param object the object
+	 * @param expiresAt the time after which the object is not returned, in milliseconds
+	 * @return true if the object was stored
+	 */
+	boolean put(String key, ParaObject object, long expiresAt) {
+		byte[] bytes;
+		try {
+			bytes = SMILE_MAPPER.writeValueAsBytes(ParaObjectUtils.getAnnotatedFields(object));
+		} catch (IOException e) {
+			logger.debug("Failed to serialize object {}: {}", key, e.getMessage());
+			return false;
+		}
+		if (bytes.length > slabSize) {
+			return false;
+		}
+		synchronized (this) {
+			if (position + bytes.length > slabSize) {
+				recycle((current + 1) % slabs.length);
+			}
+			Slab slab = slabs[current];
+			if (slab.buffer == null) {
+				slab.buffer = ByteBuffer.allocateDirect(slabSize);
+			}
+			ByteBuffer target = slab.buffer.duplicate();
+			target.position(position);
+			target.put(bytes);
+			slab.keys.add(key);
+			index.put(key, new Location(current, slab.generation, position, bytes.length, expiresAt));
+			position += bytes.length;
+		}
+		return true;
+	}
+
+	/**
+	 * Removes an object from the store and returns it.
+	 * @param key the key
+	 * @return the object and the time when it expires or null if it's missing, expired or was overwritten
+	 */
+	@SuppressWarnings("unchecked")
+	Map.Entry<ParaObject, Long> take(String key) {
+		Location location = (key == null) ? null : index.remove(key);
+		if (location == null || location.expiresAt <= System.currentTimeMillis()) {
+			return null;
+		}
+		Slab slab = slabs[location.slab];
+		if (slab.generation != location.generation) {
+			return null;
+		}
+		byte[] bytes = new byte[location.length];
+		ByteBuffer source = slab.buffer.duplicate();
+		source.position(location.offset);
+		source.get(bytes);
+		// the slab could have been reused while the bytes were copied
+		VarHandle.acquireFence();
+		if (slab.generation != location.generation) {
+			return null;
+		}
+		try {
+			Map<String, Object> data = SMILE_MAPPER.readValue(bytes, Map.class);
+			ParaObject object = ParaObjectUtils.setAnnotatedFields(data);
+			return (object == null) ? null : new AbstractMap.SimpleImmutableEntry<>(object, location.expiresAt);
+		} catch (IOException e) {
+			logger.debug("Failed to deserialize object {}: {}", key, e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Removes an object from the store. Its space is reclaimed when the slab is reused.
+	 * @param key the key
+	 */
+	void remove(String key) {
+		if (key != null) {
+			index.remove(key);
+		}
+	}
+
+	/**
+	 * Removes all objects with matching keys.
+	 * @param filter a key filter
+	 */
+	void removeIf(Predicate<String> filter) {
+		index.keySet().removeIf(filter);
+	}
+
+	/**
+	 * @return the number of objects in the store
+	 */
+	int size() {
+		return index.size();
+	}
+
+	private void recycle(int next) {
+		Slab slab = slabs[next];
+		long generation = slab.generation;
+		slab.generation = generation + 1;
+		// readers must see the new generation before the old bytes are overwritten
+		VarHandle.storeStoreFence();
+		for (String key : slab.keys) {
+			index.computeIfPresent(key, (k, l) -> (l.slab == next && l.generation == generation) ? null : l);
+		}
+		slab.keys.clear();
+		current = next;
+		position = 0;
+	}
+
+	private static final class Slab {
+		private volatile long generation;
+		private volatile ByteBuffer buffer;
+		private final List<String> keys = new ArrayList<>();
+	}
+
+	private static final class Location {
+		private final int slab;
+		private final long generation;
+		private final int offset;
+		private final int length;
+		private final long expiresAt;
+
+		Location(int slab, long generation, int offset, int length, long expiresAt) {
+			this.slab = slab;
+			this.generation = generation;
+			this.offset = offset;
+			this.length = length;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
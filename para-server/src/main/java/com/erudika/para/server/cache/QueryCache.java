@@ -0,0 +1,146 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.cache;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * A bounded, node-local cache of search results. Only the ids of the objects found and the total number of hits
+ * are kept, the objects themselves are read from the object cache. Each query key includes a generation number
+ * for the type of objects it searches, so invalidating a type only increments a counter and the old entries are
+ * never found again. Queries for all types are invalidated by changes to objects of any type.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class QueryCache {
+
+	private static final String ALL_TYPES = "*";
+
+	private final com.github.benmanes.caffeine.cache.Cache<String, Result> results;
+	private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+
+	/**
+	 * @param maxSize the maximum number of queries to remember
+	 * @param ttlSeconds the time for which a result is kept
+	 */
+	public QueryCache(int maxSize, int ttlSeconds) {
+		results = Caffeine.newBuilder().maximumSize(maxSize).expireAfterWrite(ttlSeconds, TimeUnit.SECONDS).build();
+	}
+
+	/**
+	 * Builds the key of a query. The key must be taken before the query runs, so that a result which raced with
+	 * an invalidation is stored under the old generation.
+	 * @param appid the name of the application
+	 * @param type the type of objects searched, or blank for all types
+	 * @param query the normalized query, including the method and its arguments
+	 * @return a key
+	 */
+	public String key(String appid, String type, String query) {
+		String scope = StringUtils.isBlank(type) ? ALL_TYPES : type;
+		return appid + "/" + scope + "/" + generation(appid, scope).get() + "/" + query;
+	}
+
+	/**
+	 * @param key a query key
+	 * @return the result of the query or null
+	 */
+	public Result get(String key) {
+		return results.getIfPresent(key);
+	}
+
+	/**
+	 * @param key a query key
+	 * @param result the result of the query
+	 */
+	public void put(String key, Result result) {
+		if (key != null && result != null) {
+			results.put(key, result);
+		}
+	}
+
+	/**
+	 * Forgets the results of queries for the given types of objects and for all types.
+	 * @param appid the name of the application
+	 * @param types the types of objects which changed, or null if they are not known
+	 */
+	public void invalidate(String appid, Collection<String> types) {
+		if (types == null) {
+			generations.keySet().removeIf(k -> k.startsWith(appid + "/"));
+			return;
+		}
+		for (String type : types) {
+			if (!StringUtils.isBlank(type)) {
+				generation(appid, type).incrementAndGet();
+			}
+		}
+		generation(appid, ALL_TYPES).incrementAndGet();
+	}
+
+	private AtomicLong generation(String appid, String type) {
+		// a dropped counter starts over from the current time, which is past any value it had before
+		return generations.computeIfAbsent(appid + "/" + type, k -> new AtomicLong(System.nanoTime()));
+	}
+
+	/**
+	 * The result of a query - a list of ids or a count, the total number of hits and the key of the last hit.
+	 */
+	public static final class Result {
+		private final List<String> ids;
+		private final long count;
+		private final String lastKey;
+
+		/**
+		 * @param ids the ids of the objects found, or null for counts
+		 * @param count the total number of hits
+		 * @param lastKey the key of the last hit, for the next page
+		 */
+		public Result(List<String> ids, long count, String lastKey) {
+			this.ids = (ids == null) ? null : Collections.unmodifiableList(ids);
+			this.count = count;
+			this.lastKey = lastKey;
+		}
+
+		/**
+		 * @return the ids of the objects found, or null for counts
+		 */
+		public List<String> getIds() {
+			return ids;
+		}
+
+		/**
+		 * @return the total number of hits
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return the key of the last hit
+		 */
+		public String getLastKey() {
+			return lastKey;
+		}
+	}
+}
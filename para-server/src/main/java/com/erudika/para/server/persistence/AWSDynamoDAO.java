@@ -24,6 +24,7 @@ import com.erudika.para.core.persistence.DAO;
 import com.erudika.para.core.utils.Config;
 import com.erudika.para.core.utils.Pager;
 import com.erudika.para.core.utils.Para;
+import com.erudika.para.core.utils.ParaObjectUtils;
 import com.erudika.para.core.utils.Utils;
 import static com.erudika.para.server.persistence.AWSDynamoUtils.batchGet;
 import static com.erudika.para.server.persistence.AWSDynamoUtils.batchWrite;
@@ -31,10 +32,14 @@ import static com.erudika.para.server.persistence.AWSDynamoUtils.fromRow;
 import static com.erudika.para.server.persistence.AWSDynamoUtils.getKeyForAppid;
 import static com.erudika.para.server.persistence.AWSDynamoUtils.getTableNameForAppid;
 import static com.erudika.para.server.persistence.AWSDynamoUtils.isSharedAppid;
+import static com.erudika.para.server.persistence.AWSDynamoUtils.readIdsFromIndex;
 import static com.erudika.para.server.persistence.AWSDynamoUtils.readPageFromSharedTable;
 import static com.erudika.para.server.persistence.AWSDynamoUtils.readPageFromTable;
 import static com.erudika.para.server.persistence.AWSDynamoUtils.throwIfNecessary;
+import static com.erudika.para.server.persistence.AWSDynamoUtils.toIndexAttributes;
+import static com.erudika.para.server.persistence.AWSDynamoUtils.toPartialRow;
 import static com.erudika.para.server.persistence.AWSDynamoUtils.toRow;
+import java.lang.annotation.Annotation;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -50,6 +55,7 @@ import java.util.TreeSet;
 import java.util.stream.Collectors;
 import javax.inject.Singleton;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
@@ -57,7 +63,10 @@ import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
 import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
 import software.amazon.awssdk.services.dynamodb.model.KeysAndAttributes;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValuesOnConditionCheckFailure;
 import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
 import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
 
 /**
@@ -70,6 +79,7 @@ public class AWSDynamoDAO implements DAO {
 	private static final Logger logger = LoggerFactory.getLogger(AWSDynamoDAO.class);
 	private static final int MAX_ITEMS_PER_WRITE = 25;
 	private static final int MAX_KEYS_PER_READ = 100;
+	private static final int MAX_INCREMENT_ATTEMPTS = 10;
 
 	static {
 		// set up automatic table creation and deletion
@@ -81,19 +91,14 @@ public class AWSDynamoDAO implements DAO {
 		App.addAppDeletedListener((App app) -> {
 			if (app != null) {
 				if (app.isSharingTable()) {
-					final String appid = app.getAppIdentifier();
-					Para.asyncExecute(new Runnable() {
-						public void run() {
-							logger.info("Async deleteAllFromSharedTable({}) started.", appid);
-							AWSDynamoUtils.deleteAllFromSharedTable(appid);
-							logger.info("Finished deleteAllFromSharedTable({}).", appid);
-						}
-					});
+					AWSDynamoPurgeJob.start(app.getAppIdentifier());
 				} else {
 					AWSDynamoUtils.deleteTable(app.getAppIdentifier());
 				}
 			}
 		});
+		// resume purging the objects of deleted apps from shared tables
+		Para.addInitListener(AWSDynamoPurgeJob::resumeAll);
 	}
 
 	/**
@@ -125,7 +130,7 @@ public class AWSDynamoDAO implements DAO {
 			so.setTimestamp(Utils.timestamp());
 		}
 		so.setAppid(appid);
-		createRow(so.getId(), appid, toRow(so, null));
+		createRow(so.getId(), appid, toIndexedRow(appid, so, null));
 		logger.debug("DAO.create() {}->{}", appid, so.getId());
 		return so.getId();
 	}
@@ -144,7 +149,7 @@ public class AWSDynamoDAO implements DAO {
 	public <P extends ParaObject> void update(String appid, P so) {
 		if (so != null && so.getId() != null) {
 			so.setUpdated(Utils.timestamp());
-			boolean updated = updateRow(so.getId(), appid, toRow(so, Locked.class));
+			boolean updated = updateRow(so.getId(), appid, toIndexedRow(appid, so, Locked.class));
 			if (so.getVersion() != null && so.getVersion() > 0) {
 				so.setVersion(updated ? so.getVersion() + 1 : -1);
 			} else {
@@ -154,6 +159,59 @@ public class AWSDynamoDAO implements DAO {
 		}
 	}
 
+	@Override
+	public <P extends ParaObject> P patch(String appid, String id, Map<String, Object> changes, Long expectedVersion) {
+		if (StringUtils.isBlank(id) || StringUtils.isBlank(appid) || changes == null || changes.isEmpty()) {
+			return null;
+		}
+		Map<String, AttributeValue> row = toPartialRow(changes);
+		P so;
+		if (row == null) {
+			// user-defined properties are stored as a single JSON attribute and have to be merged on our side
+			so = readAndUpdateRow(id, appid, changes, expectedVersion);
+		} else {
+			row.put(Config._UPDATED, AttributeValue.builder().s(Utils.timestamp().toString()).build());
+			// indexed fields are written in the same update, so the index attributes can't go stale
+			String type = getTypeOfIndexedRow(id, appid, changes, row);
+			if (type != null) {
+				row.putAll(toIndexAttributes(appid, type, row));
+			}
+			so = fromRow(patchRow(id, appid, row, expectedVersion));
+		}
+		logger.debug("DAO.patch() {}->{}", appid, id);
+		return so;
+	}
+
+	@Override
+	public <P extends ParaObject> P increment(String appid, String id, String field, long delta) {
+		if (StringUtils.isBlank(id) || StringUtils.isBlank(appid) || StringUtils.isBlank(field)) {
+			return null;
+		}
+		// counters are stored as strings, like all other fields, so they can't be changed with ADD.
+		// the new value is written only if the counter hasn't changed since it was read (compare-and-set)
+		// and if it has, the condition check failure returns the current item so we can try again right away.
+		Map<String, AttributeValue> row = readRow(id, appid);
+		for (int attempt = 0; attempt < MAX_INCREMENT_ATTEMPTS && row != null; attempt++) {
+			P so = fromRow(row);
+			if (so == null || !ParaObjectUtils.isCounterField(so.getClass(), field)) {
+				return null;
+			}
+			AttributeValue current = row.get(field);
+			try {
+				P incremented = fromRow(incrementRow(id, appid, field, current, getVersion(row), delta));
+				logger.debug("DAO.increment() {}->{} {} {}", appid, id, field, delta);
+				return incremented;
+			} catch (ConditionalCheckFailedException ex) {
+				row = (ex.hasItem() && !ex.item().isEmpty()) ? ex.item() : null;
+			}
+		}
+		if (row != null) {
+			logger.warn("Counter not incremented after {} attempts - too much contention. appid={}, key={}, field={}.",
+					MAX_INCREMENT_ATTEMPTS, appid, id, field);
+		}
+		return null;
+	}
+
 	@Override
 	public <P extends ParaObject> void delete(String appid, P so) {
 		if (so != null && so.getId() != null) {
@@ -233,6 +291,177 @@ public class AWSDynamoDAO implements DAO {
 		return false;
 	}
 
+	private Map<String, AttributeValue> patchRow(String key, String appid, Map<String, AttributeValue> row,
+			Long expectedVersion) {
+		if (StringUtils.isBlank(key) || StringUtils.isBlank(appid) || row == null || row.isEmpty()) {
+			return null;
+		}
+		String table = getTableNameForAppid(appid);
+		boolean isVersionExpected = expectedVersion != null && expectedVersion > 0;
+		long version = isVersionExpected ? expectedVersion : 0L;
+		// a patch must bump the version of a versioned item, like update() does, even if no version is expected.
+		// the stored version is returned when the condition check fails, so the patch is retried right away.
+		for (int attempt = 0; attempt < MAX_INCREMENT_ATTEMPTS; attempt++) {
+			try {
+				UpdateItemResponse res = client().updateItem(patchRequest(table, key, appid, row, version));
+				return (res == null || !res.hasAttributes()) ? null : res.attributes();
+			} catch (ConditionalCheckFailedException ex) {
+				if (isVersionExpected || !ex.hasItem() || ex.item().isEmpty()) {
+					logger.warn("Item not patched - item is missing or versions don't match. table={}, appid={}, key={}.",
+							table, appid, key);
+					return null;
+				}
+				version = getVersion(ex.item());
+			} catch (Exception e) {
+				logger.error("Could not patch row in DB - table={}, appid={}, key={}:", table, appid, key, e);
+				throwIfNecessary(e);
+				return null;
+			}
+		}
+		logger.warn("Item not patched after {} attempts - too much contention. table={}, appid={}, key={}.",
+				MAX_INCREMENT_ATTEMPTS, table, appid, key);
+		return null;
+	}
+
+	private UpdateItemRequest patchRequest(String table, String key, String appid, Map<String, AttributeValue> row,
+			long version) {
+		UpdateItemRequest.Builder updateRequest = UpdateItemRequest.builder();
+		StringBuilder setExpression = new StringBuilder();
+		StringBuilder removeExpression = new StringBuilder();
+		Map<String, String> names = new HashMap<>(row.size() + 2);
+		Map<String, AttributeValue> values = new HashMap<>(row.size() + 2);
+		for (Entry<String, AttributeValue> attr : row.entrySet()) {
+			String name = "#" + attr.getKey();
+			names.put(name, attr.getKey());
+			if (AWSDynamoUtils.REMOVED_ATTRIBUTE.equals(attr.getValue())) {
+				removeExpression.append(removeExpression.length() == 0 ? "REMOVE " : ",").append(name);
+			} else {
+				String value = ":" + attr.getKey();
+				setExpression.append(setExpression.length() == 0 ? "SET " : ",").
+						append(name).append("=").append(value);
+				values.put(value, attr.getValue());
+			}
+		}
+		StringBuilder updateExpression = new StringBuilder(setExpression);
+		if (removeExpression.length() > 0) {
+			updateExpression.append(updateExpression.length() == 0 ? "" : " ").append(removeExpression);
+		}
+		// UpdateItem creates missing items - patching should only change existing ones
+		names.put("#" + Config._KEY, Config._KEY);
+		names.put("#" + Config._VERSION, Config._VERSION);
+		String condition = "attribute_exists(#" + Config._KEY + ")";
+		if (version > 0) {
+			values.put(":" + Config._VERSION, AttributeValue.builder().n(Long.toString(version)).build());
+			values.put(":plusOne", AttributeValue.builder().n("1").build());
+			condition += " AND #" + Config._VERSION + " = :" + Config._VERSION;
+			updateExpression.append(" ADD #").append(Config._VERSION).append(" :plusOne");
+		} else {
+			values.put(":zero", AttributeValue.builder().n("0").build());
+			condition += " AND (attribute_not_exists(#" + Config._VERSION + ") OR #" + Config._VERSION + " <= :zero)";
+		}
+
+		updateRequest.tableName(table);
+		updateRequest.key(rowKey(key, appid));
+		updateRequest.conditionExpression(condition);
+		updateRequest.expressionAttributeNames(names);
+		updateRequest.expressionAttributeValues(values);
+		updateRequest.updateExpression(updateExpression.toString());
+		updateRequest.returnValues(ReturnValue.ALL_NEW);
+		updateRequest.returnValuesOnConditionCheckFailure(ReturnValuesOnConditionCheckFailure.ALL_OLD);
+		return updateRequest.build();
+	}
+
+	private static long getVersion(Map<String, AttributeValue> row) {
+		AttributeValue version = (row == null) ? null : row.get(Config._VERSION);
+		return (version == null || version.n() == null) ? 0L : NumberUtils.toLong(version.n(), 0L);
+	}
+
+	private Map<String, AttributeValue> incrementRow(String key, String appid, String field, AttributeValue current,
+			long version, long delta) {
+		String table = getTableNameForAppid(appid);
+		try {
+			long value = (current == null) ? 0L : NumberUtils.toLong(current.s(), 0L);
+			Map<String, String> names = new HashMap<>(4);
+			Map<String, AttributeValue> values = new HashMap<>(5);
+			names.put("#" + Config._KEY, Config._KEY);
+			names.put("#" + Config._UPDATED, Config._UPDATED);
+			names.put("#counter", field);
+			values.put(":" + Config._UPDATED, AttributeValue.builder().s(Utils.timestamp().toString()).build());
+			values.put(":newValue", AttributeValue.builder().s(Long.toString(value + delta)).build());
+			if (current != null) {
+				values.put(":oldValue", current);
+			}
+			// versioned items get a new version, so that updates based on the old one fail
+			names.put("#" + Config._VERSION, Config._VERSION);
+			if (version > 0) {
+				values.put(":" + Config._VERSION, AttributeValue.builder().n(Long.toString(version)).build());
+				values.put(":plusOne", AttributeValue.builder().n("1").build());
+			} else {
+				values.put(":zero", AttributeValue.builder().n("0").build());
+			}
+			String condition = "attribute_exists(#" + Config._KEY + ") AND " +
+					((current == null) ? "attribute_not_exists(#counter)" : "#counter = :oldValue") + " AND " +
+					((version > 0) ? "#" + Config._VERSION + " = :" + Config._VERSION :
+							"(attribute_not_exists(#" + Config._VERSION + ") OR #" + Config._VERSION + " <= :zero)");
+			String update = "SET #counter = :newValue, #" + Config._UPDATED + " = :" + Config._UPDATED +
+					((version > 0) ? " ADD #" + Config._VERSION + " :plusOne" : "");
+			UpdateItemResponse res = client().updateItem(b -> b.tableName(table).key(rowKey(key, appid)).
+					conditionExpression(condition).
+					updateExpression(update).
+					expressionAttributeNames(names).
+					expressionAttributeValues(values).
+					returnValues(ReturnValue.ALL_NEW).
+					returnValuesOnConditionCheckFailure(ReturnValuesOnConditionCheckFailure.ALL_OLD));
+			return (res == null || !res.hasAttributes()) ? null : res.attributes();
+		} catch (ConditionalCheckFailedException ex) {
+			throw ex;
+		} catch (Exception e) {
+			logger.error("Could not increment counter in DB - table={}, appid={}, key={}, field={}:",
+					table, appid, key, field, e);
+			throwIfNecessary(e);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the type of an object if a patch changes a field which is indexed for some type.
+	 * The index attributes depend on the type, so it's read from the DB if the changes don't include it.
+	 */
+	private String getTypeOfIndexedRow(String key, String appid, Map<String, Object> changes,
+			Map<String, AttributeValue> row) {
+		Set<String> indexedFields = ParaObjectUtils.getSecondaryIndexes();
+		if (row.keySet().stream().noneMatch(indexedFields::contains)) {
+			return null;
+		}
+		if (changes.get(Config._TYPE) instanceof String) {
+			return (String) changes.get(Config._TYPE);
+		}
+		Map<String, AttributeValue> stored = readRow(key, appid);
+		AttributeValue type = (stored == null) ? null : stored.get(Config._TYPE);
+		return (type == null) ? null : type.s();
+	}
+
+	private <P extends ParaObject> P readAndUpdateRow(String key, String appid, Map<String, Object> changes,
+			Long expectedVersion) {
+		P so = fromRow(readRow(key, appid));
+		if (so == null) {
+			return null;
+		}
+		if (expectedVersion != null && expectedVersion > 0 && !expectedVersion.equals(so.getVersion())) {
+			logger.warn("Item not patched - versions don't match. appid={}, key={}.", appid, key);
+			return null;
+		}
+		Map<String, Object> delta = new HashMap<>(changes);
+		delta.remove(Config._VERSION);
+		ParaObjectUtils.setAnnotatedFields(so, delta, Locked.class);
+		so.setUpdated(Utils.timestamp());
+		boolean updated = updateRow(key, appid, toIndexedRow(appid, so, Locked.class));
+		if (so.getVersion() != null && so.getVersion() > 0) {
+			so.setVersion(updated ? so.getVersion() + 1 : -1);
+		}
+		return updated ? so : null;
+	}
+
 	private Map<String, AttributeValue> readRow(String key, String appid) {
 		if (StringUtils.isBlank(key) || StringUtils.isBlank(appid)) {
 			return null;
@@ -295,7 +524,7 @@ public class AWSDynamoDAO implements DAO {
 				}
 				//if (updateOp) object.setUpdated(Utils.timestamp());
 				object.setAppid(appid);
-				Map<String, AttributeValue> row = toRow(object, null);
+				Map<String, AttributeValue> row = toIndexedRow(appid, object, null);
 				setRowKey(getKeyForAppid(object.getId(), appid), row);
 				reqs.put(object.getId(), WriteRequest.builder().putRequest(b -> b.item(row)).build());
 				j++;
@@ -309,6 +538,11 @@ public class AWSDynamoDAO implements DAO {
 
 	@Override
 	public <P extends ParaObject> Map<String, P> readAll(String appid, List<String> keys, boolean getAllColumns) {
+		return readAllFromTable(appid, keys, getAllColumns);
+	}
+
+	private <P extends ParaObject> Map<String, P> readAllFromTable(String appid, List<String> keys,
+			boolean getAllColumns) {
 		if (keys == null || keys.isEmpty() || StringUtils.isBlank(appid)) {
 			return new LinkedHashMap<>();
 		}
@@ -381,6 +615,36 @@ public class AWSDynamoDAO implements DAO {
 		return results;
 	}
 
+	@Override
+	public <P extends ParaObject> List<P> readByIndex(String appid, String type, String field, Object value,
+			Pager pager) {
+		if (StringUtils.isBlank(appid) || !ParaObjectUtils.isSecondaryIndex(type, field) ||
+				!AWSDynamoUtils.hasSecondaryIndex(appid, field)) {
+			return null;
+		}
+		if (value == null || StringUtils.isBlank(value.toString())) {
+			return Collections.emptyList();
+		}
+		if (pager == null) {
+			pager = new Pager();
+		}
+		try {
+			List<String> ids = readIdsFromIndex(appid, type, field, value.toString(), pager);
+			Map<String, P> objects = readAllFromTable(appid, ids, true);
+			// a full update() can leave a stale index attribute behind, so the current value is checked
+			String indexValue = value.toString();
+			List<P> results = ids.stream().map(objects::get).filter(so -> so != null && type.equals(so.getType()) &&
+					indexValue.equals(ParaObjectUtils.getSecondaryIndexValues(so).get(field))).
+					collect(Collectors.toList());
+			pager.setCount(pager.getCount() + results.size());
+			logger.debug("DAO.readByIndex() {}->{}.{}={} -> {}", appid, type, field, value, results.size());
+			return results;
+		} catch (Exception e) {
+			logger.error("Failed to readByIndex({}, {}, {}):", appid, type, field, e);
+		}
+		return null;
+	}
+
 	@Override
 	public <P extends ParaObject> void updateAll(String appid, List<P> objects) {
 		// DynamoDB doesn't have a BatchUpdate API yet so we have to do one of the following:
@@ -390,7 +654,7 @@ public class AWSDynamoDAO implements DAO {
 			for (P object : objects) {
 				if (object != null && object.getId() != null) {
 					object.setUpdated(Utils.timestamp());
-					boolean updated = updateRow(object.getId(), appid, toRow(object, Locked.class));
+					boolean updated = updateRow(object.getId(), appid, toIndexedRow(appid, object, Locked.class));
 					if (object.getVersion() != null && object.getVersion() > 0) {
 						object.setVersion(updated ? object.getVersion() + 1 : -1);
 					} else {
@@ -439,6 +703,13 @@ public class AWSDynamoDAO implements DAO {
 	//				MISC FUNCTIONS
 	/////////////////////////////////////////////
 
+	private <P extends ParaObject> Map<String, AttributeValue> toIndexedRow(String appid, P so,
+			Class<? extends Annotation> filter) {
+		Map<String, AttributeValue> row = toRow(so, filter);
+		row.putAll(toIndexAttributes(appid, so.getType(), row));
+		return row;
+	}
+
 	private void setRowKey(String key, Map<String, AttributeValue> row) {
 		if (row.containsKey(Config._KEY)) {
 			logger.warn("Attribute name conflict:  "
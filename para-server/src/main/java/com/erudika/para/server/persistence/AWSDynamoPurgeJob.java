@@ -0,0 +1,539 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.erudika.para.core.ParaObject;
+import com.erudika.para.core.Sysprop;
+import com.erudika.para.core.metrics.Metrics;
+import com.erudika.para.core.persistence.DAO;
+import com.erudika.para.core.utils.Config;
+import com.erudika.para.core.utils.CoreUtils;
+import com.erudika.para.core.utils.Pager;
+import com.erudika.para.core.utils.Para;
+import com.erudika.para.core.utils.RegistryUtils;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.ProvisionedThroughputExceededException;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+/**
+ * Deletes all objects of an app from a shared DynamoDB table. The keys are read from the shared GSI, page by page,
+ * and deleted by a pool of workers, in batches of 25. Deletes are throttled per table, so that a purge doesn't
+ * compete with live traffic. The id of the last object, up to which everything has been deleted, is saved
+ * periodically as a checkpoint and unfinished jobs are resumed from it when Para starts again. A job is claimed by
+ * one node at a time, with a conditional write on its claim object, so that a resumed job isn't run by every node.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public final class AWSDynamoPurgeJob implements Runnable {
+
+	/**
+	 * The name of the registry holding the checkpoints of unfinished purge jobs.
+	 */
+	public static final String CHECKPOINT_REGISTRY = "DynamoDBPurgeJobs";
+
+	private static final Logger logger = LoggerFactory.getLogger(AWSDynamoPurgeJob.class);
+	private static final int MAX_ITEMS_PER_WRITE = 25;
+	private static final int PAGE_SIZE = 100;
+	private static final int MAX_RETRIES = 10;
+	private static final String CLAIM_PREFIX = "PurgeJobClaim:";
+	private static final SharedTable DYNAMODB = new DynamoDBTable();
+	private static final Map<String, AWSDynamoPurgeJob> JOBS = new ConcurrentHashMap<>();
+	private static final Map<String, Throttle> THROTTLES = new ConcurrentHashMap<>();
+
+	private final String appid;
+	private final String table;
+	private final SharedTable sharedTable;
+	private final int workers;
+	private final AtomicLong deleted = new AtomicLong();
+	private final Meter throughput;
+	private final Counter failures;
+	private final long checkpointIntervalMillis;
+	private volatile String checkpoint;
+	private volatile boolean finished;
+	private Long claimVersion;
+	private boolean claimLost;
+	private long startTime;
+	private long lastCheckpointTime;
+
+	private AWSDynamoPurgeJob(String appid, String checkpoint) {
+		this(appid, checkpoint, DYNAMODB);
+	}
+
+	AWSDynamoPurgeJob(String appid, String checkpoint, SharedTable sharedTable) {
+		this.appid = appid;
+		this.table = AWSDynamoUtils.getTableNameForAppid(appid);
+		this.sharedTable = sharedTable;
+		this.workers = Math.max(1, Para.getConfig().awsDynamoPurgeWorkers());
+		this.checkpoint = checkpoint;
+		this.checkpointIntervalMillis = TimeUnit.SECONDS.toMillis(Para.getConfig().awsDynamoPurgeCheckpointIntervalSec());
+		this.throughput = Metrics.meter(Para.getConfig().getRootAppIdentifier(), AWSDynamoPurgeJob.class, "deleted");
+		this.failures = Metrics.counter(Para.getConfig().getRootAppIdentifier(), AWSDynamoPurgeJob.class, "failures");
+	}
+
+	/**
+	 * Starts a purge job for an app in the background, unless one is already running.
+	 * @param appid the identifier of an app sharing a table
+	 * @return the running job or null if the app isn't sharing a table or the job is claimed by another node
+	 */
+	public static AWSDynamoPurgeJob start(String appid) {
+		return start(appid, null);
+	}
+
+	/**
+	 * Resumes the unfinished purge jobs from their checkpoints, except for those claimed by other running nodes.
+	 */
+	public static void resumeAll() {
+		Map<String, Object> checkpoints = RegistryUtils.getRegistry(CHECKPOINT_REGISTRY);
+		if (checkpoints != null) {
+			for (Map.Entry<String, Object> entry : checkpoints.entrySet()) {
+				if (JOBS.containsKey(entry.getKey())) {
+					continue;
+				}
+				AWSDynamoPurgeJob job = new AWSDynamoPurgeJob(entry.getKey(), toCheckpoint(entry.getValue()));
+				if (job.claim()) {
+					logger.info("Resuming purge of app '{}' from shared table, checkpoint '{}'.",
+							entry.getKey(), entry.getValue());
+					start(job);
+				} else {
+					logger.info("Purge of app '{}' from shared table is claimed by another node.", entry.getKey());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the purge jobs currently running
+	 */
+	public static Collection<AWSDynamoPurgeJob> getJobs() {
+		return Collections.unmodifiableCollection(JOBS.values());
+	}
+
+	/**
+	 * Deletes all objects of an app from a shared table and waits for the purge to finish.
+	 * @param appid the identifier of an app sharing a table
+	 */
+	static void purge(String appid) {
+		if (!StringUtils.isBlank(appid) && AWSDynamoUtils.isSharedAppid(appid)) {
+			AWSDynamoPurgeJob job = new AWSDynamoPurgeJob(appid, getCheckpoint(appid));
+			if (JOBS.putIfAbsent(appid, job) == null) {
+				if (job.claim()) {
+					job.run();
+				} else {
+					JOBS.remove(appid);
+					logger.warn("Purge of app '{}' from shared table is claimed by another node.", appid);
+				}
+			}
+		}
+	}
+
+	private static AWSDynamoPurgeJob start(String appid, String checkpoint) {
+		if (StringUtils.isBlank(appid) || !AWSDynamoUtils.isSharedAppid(appid)) {
+			return null;
+		}
+		AWSDynamoPurgeJob running = JOBS.get(appid);
+		if (running != null) {
+			return running;
+		}
+		AWSDynamoPurgeJob job = new AWSDynamoPurgeJob(appid, checkpoint);
+		if (!job.claim()) {
+			logger.warn("Purge of app '{}' from shared table is claimed by another node.", appid);
+			return null;
+		}
+		return start(job);
+	}
+
+	private static AWSDynamoPurgeJob start(AWSDynamoPurgeJob job) {
+		AWSDynamoPurgeJob running = JOBS.putIfAbsent(job.appid, job);
+		if (running != null) {
+			return running;
+		}
+		Thread t = new Thread(job, "para-purge-" + StringUtils.trim(job.appid));
+		t.setDaemon(true);
+		t.start();
+		return job;
+	}
+
+	private static String getCheckpoint(String appid) {
+		return toCheckpoint(RegistryUtils.getValue(CHECKPOINT_REGISTRY, appid));
+	}
+
+	private static String toCheckpoint(Object value) {
+		// an empty checkpoint means that the job was started but nothing was deleted yet
+		return value instanceof String ? StringUtils.trimToNull((String) value) : null;
+	}
+
+	/**
+	 * @return the identifier of the app being purged
+	 */
+	public String getAppid() {
+		return appid;
+	}
+
+	/**
+	 * @return the name of the shared table
+	 */
+	public String getTable() {
+		return table;
+	}
+
+	/**
+	 * @return the number of objects deleted so far by this job
+	 */
+	public long getDeleted() {
+		return deleted.get();
+	}
+
+	/**
+	 * @return the id of the last object up to which all objects have been deleted, or null
+	 */
+	public String getCheckpoint() {
+		return checkpoint;
+	}
+
+	/**
+	 * @return the average number of objects deleted per second by this job
+	 */
+	public double getItemsPerSecond() {
+		long elapsed = System.currentTimeMillis() - startTime;
+		return elapsed > 0 ? deleted.get() * 1000.0 / elapsed : 0;
+	}
+
+	/**
+	 * @return true if all objects have been deleted
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	@Override
+	public void run() {
+		startTime = System.currentTimeMillis();
+		lastCheckpointTime = startTime;
+		AtomicInteger threads = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+			Thread t = new Thread(r, "para-purge-worker-" + threads.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		Deque<Page> inFlight = new ArrayDeque<>();
+		try {
+			logger.info("Purging app '{}' from shared table '{}' with {} workers{}.", appid, table, workers,
+					checkpoint == null ? "" : ", starting after '" + checkpoint + "'");
+			saveCheckpoint();
+			Pager pager = new Pager(PAGE_SIZE);
+			pager.setLastKey(checkpoint);
+			QueryResponse response;
+			do {
+				// read phase - a single reader, because all keys of an app are in one partition of the GSI
+				response = sharedTable.queryKeys(appid, pager);
+				if (response == null) {
+					break;
+				}
+				List<String> keys = new ArrayList<>(response.items().size());
+				for (Map<String, AttributeValue> item : response.items()) {
+					String key = item.get(Config._KEY).s();
+					pager.setLastKey(item.get(Config._ID).s());
+					// only delete rows which belong to the given appid
+					if (StringUtils.startsWith(key, AWSDynamoUtils.keyPrefix(appid))) {
+						keys.add(key);
+					}
+				}
+				// delete phase - batches are deleted in parallel, pages are checkpointed in order
+				Page page = new Page(pager.getLastKey());
+				for (int i = 0; i < keys.size(); i += MAX_ITEMS_PER_WRITE) {
+					List<String> batch = keys.subList(i, Math.min(keys.size(), i + MAX_ITEMS_PER_WRITE));
+					page.batches.add(pool.submit(() -> deleteBatch(batch)));
+				}
+				inFlight.add(page);
+				while (!inFlight.isEmpty() && (inFlight.size() > workers * 2 || inFlight.peek().isDone())) {
+					complete(inFlight.poll());
+				}
+			} while (response.lastEvaluatedKey() != null && !response.lastEvaluatedKey().isEmpty());
+			while (!inFlight.isEmpty()) {
+				complete(inFlight.poll());
+			}
+			finished = true;
+			RegistryUtils.removeValue(CHECKPOINT_REGISTRY, appid);
+			releaseClaim();
+			logger.info("Finished purging app '{}' from shared table - {} items deleted in {} seconds.", appid,
+					deleted.get(), TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTime));
+		} catch (InterruptedException e) {
+			logger.warn("Purge of app '{}' was interrupted at checkpoint '{}'.", appid, checkpoint);
+			saveCheckpoint();
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			logger.error("Purge of app '{}' failed at checkpoint '{}' and will be resumed on restart.", appid, checkpoint, e);
+			saveCheckpoint();
+		} finally {
+			pool.shutdownNow();
+			JOBS.remove(appid);
+		}
+	}
+
+	private void complete(Page page) throws Exception {
+		for (Future<?> batch : page.batches) {
+			batch.get();
+		}
+		checkpoint = page.lastId;
+		long now = System.currentTimeMillis();
+		if (now - lastCheckpointTime >= checkpointIntervalMillis) {
+			lastCheckpointTime = now;
+			saveCheckpoint();
+			if (claimLost) {
+				throw new IllegalStateException("The job was claimed by another node.");
+			}
+			logger.info("Purging app '{}' from shared table - {} items deleted ({} items/s), checkpoint '{}'.",
+					appid, deleted.get(), Math.round(getItemsPerSecond()), checkpoint);
+		}
+	}
+
+	private void saveCheckpoint() {
+		// the checkpoint of a job taken over by another node belongs to that node
+		if (claimLost || !renewClaim()) {
+			return;
+		}
+		try {
+			RegistryUtils.putValue(CHECKPOINT_REGISTRY, appid, StringUtils.trimToEmpty(checkpoint));
+		} catch (Exception e) {
+			logger.warn("Failed to save the checkpoint of purge job '{}': {}", appid, e.getMessage());
+		}
+	}
+
+	private Void deleteBatch(List<String> keys) throws InterruptedException {
+		throttle(table).acquire(keys.size());
+		List<WriteRequest> requests = new ArrayList<>(keys.size());
+		for (String key : keys) {
+			requests.add(WriteRequest.builder().deleteRequest(b -> b.key(Collections.singletonMap(Config._KEY,
+					AttributeValue.builder().s(key).build()))).build());
+		}
+		Map<String, List<WriteRequest>> items = Collections.singletonMap(table, requests);
+		int remaining = keys.size();
+		for (int attempt = 0; attempt <= MAX_RETRIES; attempt++) {
+			if (attempt > 0) {
+				Thread.sleep(Math.min(30000L, 100L << attempt));
+			}
+			try {
+				final Map<String, List<WriteRequest>> request = items;
+				BatchWriteItemResponse result = sharedTable.deleteItems(request);
+				List<WriteRequest> unprocessed = result.hasUnprocessedItems() ?
+						result.unprocessedItems().getOrDefault(table, Collections.emptyList()) : Collections.emptyList();
+				int done = remaining - unprocessed.size();
+				deleted.addAndGet(done);
+				throughput.mark(done);
+				if (unprocessed.isEmpty()) {
+					return null;
+				}
+				remaining = unprocessed.size();
+				items = Collections.singletonMap(table, unprocessed);
+			} catch (ProvisionedThroughputExceededException e) {
+				logger.debug("Write capacity exceeded for table '{}' while purging app '{}'.", table, appid);
+			}
+		}
+		failures.inc();
+		throw new IllegalStateException("Failed to delete " + remaining + " items from table '" + table + "'.");
+	}
+
+	/**
+	 * Claims the job for this node. A claim is renewed with every checkpoint and one which hasn't been renewed
+	 * for a while, e.g. after a crash, can be taken over by another node. Each claim is a conditional write on
+	 * the version of the claim object, so only one of the nodes trying to claim a job at the same time succeeds.
+	 * @return true if the job was claimed
+	 */
+	boolean claim() {
+		try {
+			DAO dao = CoreUtils.getInstance().getDao();
+			String rootAppid = Para.getConfig().getRootAppIdentifier();
+			Sysprop claim = dao.read(rootAppid, getClaimId());
+			if (claim == null) {
+				claim = new Sysprop(getClaimId());
+				claim.setName(Para.getConfig().workerId());
+				claim.setUpdated(System.currentTimeMillis());
+				claim.setVersion(1L);
+				claim.setIndexed(false);
+				claim.setCached(false);
+				if (dao.create(rootAppid, claim) == null) {
+					return false;
+				}
+				claimVersion = 1L;
+				return true;
+			}
+			if (!Para.getConfig().workerId().equals(claim.getName()) && claim.getUpdated() != null &&
+					System.currentTimeMillis() - claim.getUpdated() < getClaimTimeoutMillis()) {
+				return false;
+			}
+			claimVersion = claim.getVersion();
+			return renewClaim();
+		} catch (Exception e) {
+			logger.warn("Failed to claim the purge job of app '{}': {}", appid, e.getMessage());
+			return false;
+		}
+	}
+
+	private boolean renewClaim() {
+		if (claimVersion == null) {
+			return true; // the job was never claimed
+		}
+		try {
+			Map<String, Object> changes = new HashMap<>(2);
+			changes.put("name", Para.getConfig().workerId());
+			changes.put(Config._UPDATED, System.currentTimeMillis());
+			ParaObject renewed = CoreUtils.getInstance().getDao().
+					patch(Para.getConfig().getRootAppIdentifier(), getClaimId(), changes, claimVersion);
+			if (renewed == null) {
+				claimLost = true;
+				logger.warn("Purge of app '{}' was claimed by another node.", appid);
+				return false;
+			}
+			claimVersion = renewed.getVersion();
+			return true;
+		} catch (Exception e) {
+			logger.warn("Failed to renew the claim on the purge job of app '{}': {}", appid, e.getMessage());
+			return true;
+		}
+	}
+
+	private void releaseClaim() {
+		try {
+			CoreUtils.getInstance().getDao().delete(Para.getConfig().getRootAppIdentifier(), new Sysprop(getClaimId()));
+		} catch (Exception e) {
+			logger.warn("Failed to release the claim on the purge job of app '{}': {}", appid, e.getMessage());
+		}
+	}
+
+	private String getClaimId() {
+		return CLAIM_PREFIX + StringUtils.trim(appid);
+	}
+
+	private long getClaimTimeoutMillis() {
+		// a few missed checkpoints, in case a node is just slow
+		return Math.max(TimeUnit.MINUTES.toMillis(1), 4 * checkpointIntervalMillis);
+	}
+
+	private static Throttle throttle(String table) {
+		return THROTTLES.computeIfAbsent(table, t -> {
+			int limit = Para.getConfig().awsDynamoPurgeRateLimit();
+			for (String tableLimit : StringUtils.split(Para.getConfig().awsDynamoPurgeRateLimitsPerTable(), ',')) {
+				String[] parts = StringUtils.split(StringUtils.trim(tableLimit), ':');
+				if (parts.length == 2 && StringUtils.equals(t, StringUtils.trim(parts[0]))) {
+					limit = NumberUtils.toInt(StringUtils.trim(parts[1]), limit);
+				}
+			}
+			return new Throttle(limit);
+		});
+	}
+
+	/**
+	 * The batches deleted from one page of keys.
+	 */
+	private static final class Page {
+		private final String lastId;
+		private final List<Future<?>> batches = new ArrayList<>();
+
+		Page(String lastId) {
+			this.lastId = lastId;
+		}
+
+		boolean isDone() {
+			return batches.stream().allMatch(Future::isDone);
+		}
+	}
+
+	/**
+	 * The reads and writes of a purge job on the shared table.
+	 */
+	interface SharedTable {
+		/**
+		 * Reads a page of keys from the shared GSI.
+		 * @param appid the identifier of the app being purged
+		 * @param pager a pager with the id of the last object read, if any
+		 * @return a page of items with their {@code _key} and {@code _id} attributes, or null
+		 */
+		QueryResponse queryKeys(String appid, Pager pager);
+
+		/**
+		 * Deletes a batch of items.
+		 * @param items a map of table names and delete requests
+		 * @return the response, with any unprocessed items
+		 */
+		BatchWriteItemResponse deleteItems(Map<String, List<WriteRequest>> items);
+	}
+
+	private static final class DynamoDBTable implements SharedTable {
+		public QueryResponse queryKeys(String appid, Pager pager) {
+			return AWSDynamoUtils.queryGSI(appid, pager);
+		}
+
+		public BatchWriteItemResponse deleteItems(Map<String, List<WriteRequest>> items) {
+			return AWSDynamoUtils.getClient().batchWriteItem(b -> b.requestItems(items));
+		}
+	}
+
+	/**
+	 * A token bucket which limits the number of items deleted per second from a table, by all jobs together.
+	 */
+	static final class Throttle {
+		private final double rate;
+		private double available;
+		private long lastRefill = System.nanoTime();
+
+		Throttle(int itemsPerSecond) {
+			this.rate = itemsPerSecond;
+			this.available = itemsPerSecond;
+		}
+
+		synchronized void acquire(int permits) throws InterruptedException {
+			if (rate <= 0) {
+				return;
+			}
+			refill(permits);
+			while (available < permits) {
+				TimeUnit.NANOSECONDS.sleep((long) ((permits - available) / rate * TimeUnit.SECONDS.toNanos(1)));
+				refill(permits);
+			}
+			available -= permits;
+		}
+
+		private void refill(int permits) {
+			long now = System.nanoTime();
+			available = Math.min(Math.max(rate, permits), available + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+			lastRefill = now;
+		}
+	}
+}
@@ -19,18 +19,27 @@ package com.erudika.para.server.persistence;
 
 import com.erudika.para.core.App;
 import com.erudika.para.core.ParaObject;
+import com.erudika.para.core.annotations.Locked;
+import com.erudika.para.core.annotations.Stored;
 import com.erudika.para.core.utils.Config;
 import com.erudika.para.core.utils.Pager;
 import com.erudika.para.core.utils.Para;
 import com.erudika.para.core.utils.ParaObjectUtils;
+import com.erudika.para.core.utils.Utils;
 import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
 import java.net.URI;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -57,6 +66,7 @@ import software.amazon.awssdk.services.dynamodb.model.CreateTableResponse;
 import software.amazon.awssdk.services.dynamodb.model.DescribeTableResponse;
 import software.amazon.awssdk.services.dynamodb.model.GlobalSecondaryIndex;
 import software.amazon.awssdk.services.dynamodb.model.GlobalSecondaryIndexDescription;
+import software.amazon.awssdk.services.dynamodb.model.IndexStatus;
 import software.amazon.awssdk.services.dynamodb.model.KeySchemaElement;
 import software.amazon.awssdk.services.dynamodb.model.KeyType;
 import software.amazon.awssdk.services.dynamodb.model.KeysAndAttributes;
@@ -84,6 +94,22 @@ public final class AWSDynamoUtils {
 
 	private static final String LOCAL_ENDPOINT = "http://localhost:8000";
 	private static final String AWS_REGION = new DefaultAwsRegionProviderChain().getRegion().id();
+	/**
+	 * The numeric attribute holding the expiry time of an item, in seconds, used by DynamoDB's TTL feature.
+	 */
+	static final String TTL_ATTRIBUTE = "_ttl";
+	/**
+	 * The prefix of the attributes which the secondary indexes are built on. These hold "appid_type/value" keys.
+	 */
+	static final String INDEX_ATTRIBUTE_PREFIX = "_idx_";
+	/**
+	 * Marks the attributes of a partial row which should be removed from the stored row.
+	 */
+	static final AttributeValue REMOVED_ATTRIBUTE = AttributeValue.builder().nul(true).build();
+	private static final int MAX_INDEXES_PER_TABLE = 20;
+	private static final long PENDING_INDEX_RECHECK_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	private static final Map<String, Set<String>> TABLE_INDEXES = new ConcurrentHashMap<>();
+	private static final Map<String, Long> PENDING_INDEX_CHECKS = new ConcurrentHashMap<>();
 	private static Map<String, DynamoDbClient> ddbClients;
 	private static Map<String, ApplicationAutoScalingClient> aasClients;
 	private static List<String> replicaRegions;
@@ -227,17 +253,23 @@ public final class AWSDynamoUtils {
 		boolean replicate = !getReplicaRegions().isEmpty() && !App.isRoot(appid);
 		try {
 			String table = getTableNameForAppid(appid);
+			boolean provisioned = Para.getConfig().awsDynamoProvisionedBillingEnabled();
+			List<GlobalSecondaryIndex> indexes = getSecondaryIndexes(MAX_INDEXES_PER_TABLE, provisioned);
+			Set<AttributeDefinition> attributes = getSecondaryIndexAttributes(indexes);
+			attributes.add(AttributeDefinition.builder().attributeName(Config._KEY).attributeType(ScalarAttributeType.S).build());
 			CreateTableRequest.Builder ctr = CreateTableRequest.builder().tableName(table).
 					sseSpecification(b2 -> b2.enabled(Para.getConfig().awsDynamoEncryptionEnabled())).
 					keySchema(KeySchemaElement.builder().attributeName(Config._KEY).keyType(KeyType.HASH).build()).
-					attributeDefinitions(AttributeDefinition.builder().
-							attributeName(Config._KEY).attributeType(ScalarAttributeType.S).build());
+					attributeDefinitions(attributes);
+			if (!indexes.isEmpty()) {
+				ctr.globalSecondaryIndexes(indexes);
+			}
 
 			if (replicate) {
 				ctr.streamSpecification(s -> s.streamEnabled(replicate).streamViewType(StreamViewType.NEW_AND_OLD_IMAGES));
 			}
 
-			if (Para.getConfig().awsDynamoProvisionedBillingEnabled()) {
+			if (provisioned) {
 				ctr.billingMode(BillingMode.PROVISIONED);
 				ctr.provisionedThroughput(b4 -> b4.readCapacityUnits(1L).writeCapacityUnits(1L));
 			} else {
@@ -247,6 +279,7 @@ public final class AWSDynamoUtils {
 			CreateTableResponse tbl = getClient(region).createTable(ctr.build());
 			waitForActive(table, region);
 			logger.info("Created DynamoDB table '{}', status {}.", table, tbl.tableDescription().tableStatus());
+			enableTimeToLive(table, region);
 
 			if (replicate && Para.getConfig().awsDynamoProvisionedBillingEnabled()) {
 				logger.info("Enabling autoscaling for DynamoDB table '{}'...", table);
@@ -321,6 +354,8 @@ public final class AWSDynamoUtils {
 		}
 		try {
 			String table = getTableNameForAppid(appid);
+			TABLE_INDEXES.remove(table);
+			PENDING_INDEX_CHECKS.remove(table);
 			if (!getReplicaRegions().isEmpty() && !App.isRoot(appid)) {
 				List<ReplicaUpdate> replicaUpdates = new LinkedList<>();
 				getReplicaRegions().stream().forEach(region -> {
@@ -371,21 +406,23 @@ public final class AWSDynamoUtils {
 					keySchema(KeySchemaElement.builder().attributeName(Config._APPID).keyType(KeyType.HASH).build(),
 							KeySchemaElement.builder().attributeName(Config._ID).keyType(KeyType.RANGE).build()).build();
 
-			AttributeDefinition[] attributes = new AttributeDefinition[] {
-				AttributeDefinition.builder().attributeName(Config._KEY).attributeType(ScalarAttributeType.S).build(),
-				AttributeDefinition.builder().attributeName(Config._APPID).attributeType(ScalarAttributeType.S).build(),
-				AttributeDefinition.builder().attributeName(Config._ID).attributeType(ScalarAttributeType.S).build()
-			};
+			List<GlobalSecondaryIndex> indexes = new LinkedList<>();
+			indexes.add(secIndex);
+			indexes.addAll(getSecondaryIndexes(MAX_INDEXES_PER_TABLE - 1, true));
+			Set<AttributeDefinition> attributes = getSecondaryIndexAttributes(indexes);
+			attributes.add(AttributeDefinition.builder().attributeName(Config._KEY).attributeType(ScalarAttributeType.S).build());
+			attributes.add(AttributeDefinition.builder().attributeName(Config._APPID).attributeType(ScalarAttributeType.S).build());
 
 			CreateTableResponse tbl = getClient().createTable(b -> b.tableName(table).
 					keySchema(KeySchemaElement.builder().attributeName(Config._KEY).keyType(KeyType.HASH).build()).
 					sseSpecification(b2 -> b2.enabled(Para.getConfig().awsDynamoEncryptionEnabled())).
 					attributeDefinitions(attributes).
-					globalSecondaryIndexes(secIndex).
+					globalSecondaryIndexes(indexes).
 					provisionedThroughput(b6 -> b6.readCapacityUnits(readCapacity).writeCapacityUnits(writeCapacity)));
 			logger.info("Waiting for DynamoDB table to become ACTIVE...");
 			waitForActive(table, AWS_REGION);
 			logger.info("Created shared table '{}', status {}.", table, tbl.tableDescription().tableStatus());
+			enableTimeToLive(table, AWS_REGION);
 			if (Para.getConfig().awsDynamoBackupsEnabled()) {
 				logger.info("Enabling backups for shared table '{}'...", table);
 				getClient().updateContinuousBackups((t) -> t.tableName(table).
@@ -503,9 +540,103 @@ public final class AWSDynamoUtils {
 		} else {
 			row.remove(Config._VERSION);
 		}
+		if (so.getExpiresAt() != null) {
+			row.put(TTL_ATTRIBUTE, toTTL(so.getExpiresAt()));
+		}
+		return row;
+	}
+
+	/**
+	 * Converts a map of changed fields to a partial DynamoDB row, which can be written without reading the
+	 * whole row first. Locked fields, the version field and null values are skipped, like in
+	 * {@link ParaObjectUtils#setAnnotatedFields(java.util.Map)}. Fields set to a blank value are mapped to
+	 * {@link #REMOVED_ATTRIBUTE}, i.e. they are removed from the row.
+	 * @param changes a map of field names and their new values
+	 * @return a partial row or null if the changes contain user-defined properties which have to be merged
+	 * with the existing properties of the object
+	 */
+	protected static Map<String, AttributeValue> toPartialRow(Map<String, Object> changes) {
+		if (changes == null || changes.isEmpty()) {
+			return null;
+		}
+		String type = (String) changes.get(Config._TYPE);
+		Set<String> lockedFields = new HashSet<>();
+		Set<String> storedFields = new HashSet<>();
+		for (Field field : Utils.getAllDeclaredFields(ParaObjectUtils.toClass(type))) {
+			if (field.isAnnotationPresent(Stored.class)) {
+				storedFields.add(field.getName());
+				if (field.isAnnotationPresent(Locked.class)) {
+					lockedFields.add(field.getName());
+				}
+			}
+		}
+		Map<String, Object> delta = new HashMap<>(changes.size());
+		for (Map.Entry<String, Object> entry : changes.entrySet()) {
+			if (!storedFields.contains(entry.getKey())) {
+				return null;
+			}
+			if (!lockedFields.contains(entry.getKey()) && !Config._VERSION.equals(entry.getKey()) &&
+					entry.getValue() != null) {
+				delta.put(entry.getKey(), entry.getValue());
+			}
+		}
+		HashMap<String, AttributeValue> row = new HashMap<>(delta.size());
+		if (!delta.isEmpty()) {
+			// use the same conversion as toRow() for nested objects and JSON-annotated fields
+			ParaObject so = ParaObjectUtils.setAnnotatedFields(ParaObjectUtils.toObject(null, type), delta, Locked.class);
+			Map<String, Object> fields = ParaObjectUtils.getAnnotatedFields(so, Locked.class);
+			for (String field : delta.keySet()) {
+				Object value = fields.get(field);
+				if (value != null && !StringUtils.isBlank(value.toString())) {
+					row.put(field, AttributeValue.builder().s(value.toString()).build());
+				} else {
+					row.put(field, REMOVED_ATTRIBUTE);
+				}
+			}
+			if (delta.containsKey(Config._EXPIRES_AT)) {
+				// an object which no longer expires must not be deleted by DynamoDB
+				row.put(TTL_ATTRIBUTE, (so.getExpiresAt() == null) ? REMOVED_ATTRIBUTE : toTTL(so.getExpiresAt()));
+			}
+		}
 		return row;
 	}
 
+	private static AttributeValue toTTL(long expiresAt) {
+		// DynamoDB ignores expiry times older than 5 years, so 0 means "never expires"
+		return AttributeValue.builder().n(Long.toString(Math.max(0L, expiresAt) / 1000L)).build();
+	}
+
+	/**
+	 * Returns the attributes which the secondary indexes are built on, for all indexed fields of a type
+	 * which are present in a row and have an index in the table of the app. Items without these attributes
+	 * are not included in the indexes.
+	 * @param appid the app identifier (name)
+	 * @param type the type of the object stored in the row
+	 * @param row a DynamoDB row
+	 * @return a map of index attributes, possibly empty
+	 */
+	protected static Map<String, AttributeValue> toIndexAttributes(String appid, String type,
+			Map<String, AttributeValue> row) {
+		if (row == null || row.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		Map<String, AttributeValue> attributes = new HashMap<>();
+		for (String field : ParaObjectUtils.getSecondaryIndexes(type)) {
+			AttributeValue value = row.get(field);
+			if (value == null || !hasSecondaryIndex(appid, field)) {
+				continue;
+			}
+			if (REMOVED_ATTRIBUTE.equals(value)) {
+				// a field cleared by a patch leaves the index too
+				attributes.put(INDEX_ATTRIBUTE_PREFIX + field, REMOVED_ATTRIBUTE);
+			} else if (!StringUtils.isBlank(value.s())) {
+				attributes.put(INDEX_ATTRIBUTE_PREFIX + field,
+						AttributeValue.builder().s(getIndexKey(appid, type, value.s())).build());
+			}
+		}
+		return attributes;
+	}
+
 	/**
 	 * Converts a DynamoDB row to a {@link ParaObject}.
 	 * @param <P> type of object
@@ -518,10 +649,14 @@ public final class AWSDynamoUtils {
 		}
 		Map<String, Object> props = new HashMap<>();
 		for (Map.Entry<String, AttributeValue> col : row.entrySet()) {
-			props.put(col.getKey(), col.getValue().s());
+			if (!TTL_ATTRIBUTE.equals(col.getKey()) && !col.getKey().startsWith(INDEX_ATTRIBUTE_PREFIX)) {
+				props.put(col.getKey(), col.getValue().s());
+			}
 		}
 		props.put(Config._VERSION, row.getOrDefault(Config._VERSION, AttributeValue.builder().n("0").build()).n());
-		return ParaObjectUtils.setAnnotatedFields(props);
+		P so = ParaObjectUtils.setAnnotatedFields(props);
+		// DynamoDB deletes expired items in the background, which can take a while
+		return ParaObjectUtils.isExpired(so) ? null : so;
 	}
 
 	/**
@@ -695,7 +830,7 @@ public final class AWSDynamoUtils {
 		return results;
 	}
 
-	private static QueryResponse queryGSI(String appid, Pager p) {
+	static QueryResponse queryGSI(String appid, Pager p) {
 		Pager pager = (p != null) ? p : new Pager();
 		GlobalSecondaryIndexDescription index = getSharedGlobalIndex();
 
@@ -721,41 +856,93 @@ public final class AWSDynamoUtils {
 	}
 
 	/**
-	 * Deletes all objects in a shared table, which belong to a given appid, by scanning the GSI.
-	 * @param appid app id
+	 * Reads a page of object ids with a given field value from a secondary index. The indexes only project
+	 * the keys of the items, so the objects themselves must be read from the table.
+	 * Note that queries on global secondary indexes are eventually consistent.
+	 * @param appid the app identifier (name)
+	 * @param type the object type
+	 * @param field an indexed field
+	 * @param value the value of the field
+	 * @param pager a {@link Pager}
+	 * @return a list of object ids, in index order
 	 */
-	public static void deleteAllFromSharedTable(String appid) {
-		if (StringUtils.isBlank(appid) || !isSharedAppid(appid)) {
-			return;
+	public static List<String> readIdsFromIndex(String appid, String type, String field, String value, Pager pager) {
+		LinkedList<String> results = new LinkedList<>();
+		String attribute = INDEX_ATTRIBUTE_PREFIX + field;
+		String indexKey = getIndexKey(appid, type, value);
+		QueryRequest.Builder query = QueryRequest.builder().
+				tableName(getTableNameForAppid(appid)).
+				indexName(getSecondaryIndexName(field)).
+				limit(pager.getLimit()).
+				scanIndexForward(!pager.isDesc()).
+				keyConditionExpression("#idx = :idx").
+				expressionAttributeNames(Collections.singletonMap("#idx", attribute)).
+				expressionAttributeValues(Collections.singletonMap(":idx", AttributeValue.builder().s(indexKey).build()));
+
+		if (!StringUtils.isBlank(pager.getLastKey())) {
+			Map<String, AttributeValue> startKey = new HashMap<>(3);
+			startKey.put(attribute, AttributeValue.builder().s(indexKey).build());
+			startKey.put(Config._ID, AttributeValue.builder().s(pager.getLastKey()).build());
+			startKey.put(Config._KEY, AttributeValue.builder().s(getKeyForAppid(pager.getLastKey(), appid)).build());
+			query.exclusiveStartKey(startKey);
 		}
-		Pager pager = new Pager(25);
-		QueryResponse pages;
-		Map<String, AttributeValue> lastKey = null;
-		do {
-			// read all phase
-			pages = queryGSI(appid, pager);
-			if (pages == null) {
-				break;
+
+		QueryResponse page = getClient().query(query.build());
+		for (Map<String, AttributeValue> item : page.items()) {
+			AttributeValue id = item.get(Config._ID);
+			if (id != null && !StringUtils.isBlank(id.s())) {
+				results.add(id.s());
 			}
-			List<WriteRequest> deletePage = new LinkedList<>();
-			for (Map<String, AttributeValue> item : pages.items()) {
-				String key = item.get(Config._KEY).s();
-				// only delete rows which belong to the given appid
-				if (StringUtils.startsWith(key, keyPrefix(appid))) {
-					logger.debug("Preparing to delete '{}' from shared table, appid: '{}'.", key, appid);
-					pager.setLastKey(item.get(Config._ID).s());
-					deletePage.add(WriteRequest.builder().deleteRequest(b -> b.
-							key(Collections.singletonMap(Config._KEY, AttributeValue.builder().s(key).
-									build()))).build());
+		}
+		if (page.lastEvaluatedKey() != null && page.lastEvaluatedKey().containsKey(Config._ID)) {
+			pager.setLastKey(page.lastEvaluatedKey().get(Config._ID).s());
+		} else if (!results.isEmpty()) {
+			pager.setLastKey(results.peekLast());
+		}
+		return results;
+	}
+
+	/**
+	 * Checks if the table of an app has an active secondary index for a field. Only tables created
+	 * after the index was declared have it, because existing items are not backfilled. Indexes which
+	 * are not active yet are checked again every minute.
+	 * @param appid the app identifier (name)
+	 * @param field a field name
+	 * @return true if the index exists
+	 */
+	public static boolean hasSecondaryIndex(String appid, String field) {
+		String table = getTableNameForAppid(appid);
+		Set<String> indexes = TABLE_INDEXES.get(table);
+		Long recheckAt = PENDING_INDEX_CHECKS.get(table);
+		if (indexes == null || (recheckAt != null && recheckAt <= System.currentTimeMillis())) {
+			try {
+				TableDescription t = getClient().describeTable(b -> b.tableName(table)).table();
+				indexes = t.globalSecondaryIndexes().stream().
+						filter(gsi -> gsi.indexStatus() == IndexStatus.ACTIVE).
+						map(GlobalSecondaryIndexDescription::indexName).collect(Collectors.toSet());
+				// indexes which are still being created are looked up again later, until they become active
+				if (indexes.size() < t.globalSecondaryIndexes().size()) {
+					PENDING_INDEX_CHECKS.put(table, System.currentTimeMillis() + PENDING_INDEX_RECHECK_MILLIS);
+				} else {
+					PENDING_INDEX_CHECKS.remove(table);
 				}
+				TABLE_INDEXES.put(table, indexes);
+			} catch (Exception e) {
+				logger.warn("Could not read the secondary indexes of table '{}': {}", table, e.getMessage());
+				return false;
 			}
-			lastKey = pages.lastEvaluatedKey();
-			// delete all phase
-			logger.info("Deleting {} items belonging to app '{}', from shared table...", deletePage.size(), appid);
-			if (!deletePage.isEmpty()) {
-				batchWrite(Collections.singletonMap(getTableNameForAppid(appid), deletePage), 1);
-			}
-		} while (lastKey != null && !lastKey.isEmpty());
+		}
+		return indexes.contains(getSecondaryIndexName(field));
+	}
+
+	/**
+	 * Deletes all objects in a shared table, which belong to a given appid, by scanning the GSI.
+	 * The objects are deleted in parallel and the call blocks until the purge is finished.
+	 * @param appid app id
+	 * @see AWSDynamoPurgeJob
+	 */
+	public static void deleteAllFromSharedTable(String appid) {
+		AWSDynamoPurgeJob.purge(appid);
 	}
 
 	/**
@@ -806,10 +993,65 @@ public final class AWSDynamoUtils {
 		return "GSI_" + Para.getConfig().sharedTableName();
 	}
 
-	private static String keyPrefix(String appIdentifier) {
+	private static String getSecondaryIndexName(String field) {
+		return "IDX_" + field;
+	}
+
+	private static String getIndexKey(String appid, String type, String value) {
+		return keyPrefix(appid) + type + "/" + value;
+	}
+
+	private static List<GlobalSecondaryIndex> getSecondaryIndexes(int max, boolean provisioned) {
+		List<GlobalSecondaryIndex> indexes = new LinkedList<>();
+		for (String field : ParaObjectUtils.getSecondaryIndexes()) {
+			if (indexes.size() >= max) {
+				logger.warn("DynamoDB tables can't have more than {} secondary indexes - field '{}' is not indexed.",
+						MAX_INDEXES_PER_TABLE, field);
+				continue;
+			}
+			// only the keys are projected, so the index doesn't duplicate every item and its write capacity
+			GlobalSecondaryIndex.Builder index = GlobalSecondaryIndex.builder().
+					indexName(getSecondaryIndexName(field)).
+					projection(Projection.builder().projectionType(ProjectionType.KEYS_ONLY).build()).
+					keySchema(KeySchemaElement.builder().attributeName(INDEX_ATTRIBUTE_PREFIX + field).keyType(KeyType.HASH).build(),
+							KeySchemaElement.builder().attributeName(Config._ID).keyType(KeyType.RANGE).build());
+			if (provisioned) {
+				index.provisionedThroughput(b -> b.readCapacityUnits(1L).writeCapacityUnits(1L));
+			}
+			indexes.add(index.build());
+		}
+		return indexes;
+	}
+
+	private static Set<AttributeDefinition> getSecondaryIndexAttributes(List<GlobalSecondaryIndex> indexes) {
+		Set<AttributeDefinition> attributes = new LinkedHashSet<>();
+		for (GlobalSecondaryIndex index : indexes) {
+			for (KeySchemaElement key : index.keySchema()) {
+				attributes.add(AttributeDefinition.builder().
+						attributeName(key.attributeName()).attributeType(ScalarAttributeType.S).build());
+			}
+		}
+		return attributes;
+	}
+
+	static String keyPrefix(String appIdentifier) {
 		return StringUtils.join(StringUtils.trim(appIdentifier), "_");
 	}
 
+	/**
+	 * Enables the automatic deletion of expired items in a table, based on their {@code expiresAt} field.
+	 * @param table the table name
+	 * @param region the region of the table
+	 */
+	private static void enableTimeToLive(String table, String region) {
+		try {
+			getClient(region).updateTimeToLive(b -> b.tableName(table).
+					timeToLiveSpecification(t -> t.enabled(true).attributeName(TTL_ATTRIBUTE)));
+		} catch (Exception e) {
+			logger.warn("Failed to enable TTL for DynamoDB table '{}': {}", table, e.getMessage());
+		}
+	}
+
 	private static void waitForActive(String table, String region) {
 		WaiterResponse<DescribeTableResponse> waiterResponse = getClient(region).waiter().
 				waitUntilTableExists(r -> r.tableName(table));
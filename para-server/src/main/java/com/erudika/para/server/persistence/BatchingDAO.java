@@ -0,0 +1,450 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.erudika.para.core.ParaObject;
+import com.erudika.para.core.persistence.DAO;
+import com.erudika.para.core.utils.Pager;
+import com.erudika.para.core.utils.Para;
+import com.erudika.para.core.utils.Utils;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link DAO} decorator which coalesces single {@code create()} and {@code update()} calls, arriving within
+ * a few milliseconds of each other, into {@code createAll()} and {@code updateAll()} batches, per app.
+ * Each caller still gets its own result or error and waits for its batch to be written. There are no async
+ * variants, because writes must go through the {@link DAO} methods to be validated, indexed and cached. Batches of the same app are written one
+ * after the other, so writes to the same object are never reordered. All other methods are passed through.
+ * Enable it with {@code para.dao.batch_writes_enabled = true}.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+@Singleton
+public class BatchingDAO implements DAO {
+
+	/**
+	 * The name of the binding for the wrapped DAO.
+	 */
+	public static final String DELEGATE = "para.dao.delegate";
+
+	private static final Logger logger = LoggerFactory.getLogger(BatchingDAO.class);
+
+	private final DAO dao;
+	private final int maxSize;
+	private final long maxDelayMs;
+	private final boolean ordered;
+	private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+	private final ExecutorService writer;
+
+	/**
+	 * Default constructor.
+	 * @param dao the DAO which does the actual writes
+	 */
+	@Inject
+	public BatchingDAO(@Named(DELEGATE) DAO dao) {
+		this(dao, Para.getConfig().daoBatchMaxSize(), Para.getConfig().daoBatchMaxDelayMs(),
+				Para.getConfig().daoBatchOrderedWrites());
+	}
+
+	/**
+	 * Constructor.
+	 * @param dao the DAO which does the actual writes
+	 * @param maxSize the maximum number of objects in a batch
+	 * @param maxDelayMs the maximum time a write waits for its batch to fill up
+	 * @param ordered if false, a write replaces an earlier write to the same object waiting in the same batch
+	 */
+	public BatchingDAO(DAO dao, int maxSize, long maxDelayMs, boolean ordered) {
+		this.dao = dao;
+		this.maxSize = Math.max(1, maxSize);
+		this.maxDelayMs = Math.max(0, maxDelayMs);
+		this.ordered = ordered;
+		// a separate pool, because callers may be blocked on Para's executor service while waiting for a batch
+		AtomicInteger threads = new AtomicInteger();
+		this.writer = Executors.newFixedThreadPool(Math.max(2, Para.getConfig().executorThreads()), r -> {
+			Thread t = new Thread(r, "para-dao-batch-" + threads.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		Para.addDestroyListener(this::shutdown);
+	}
+
+	/**
+	 * @return the DAO which does the actual writes
+	 */
+	public DAO getDelegate() {
+		return dao;
+	}
+
+	/**
+	 * Writes all pending batches and waits for them to complete.
+	 */
+	public void flush() {
+		flushAll();
+	}
+
+	private <P extends ParaObject> CompletableFuture<String> submitCreate(String appid, P so) {
+		if (so == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+		if (StringUtils.isBlank(so.getId())) {
+			so.setId(Utils.getNewId());
+		}
+		if (so.getTimestamp() == null) {
+			so.setTimestamp(Utils.timestamp());
+		}
+		if (StringUtils.isBlank(appid)) {
+			return CompletableFuture.completedFuture(dao.create(appid, so));
+		}
+		return enqueue(appid, so, true).thenApply(v -> so.getId());
+	}
+
+	private <P extends ParaObject> CompletableFuture<Void> submitUpdate(String appid, P so) {
+		if (so == null || so.getId() == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+		if (StringUtils.isBlank(appid)) {
+			dao.update(appid, so);
+			return CompletableFuture.completedFuture(null);
+		}
+		return enqueue(appid, so, false);
+	}
+
+	private void flushAll() {
+		for (Lane lane : lanes.values()) {
+			CompletableFuture<Void> tail;
+			synchronized (lane) {
+				lane.flush();
+				tail = lane.tail;
+			}
+			try {
+				tail.join();
+			} catch (Exception e) {
+				logger.debug("Batch write failed: {}", e.getMessage());
+			}
+		}
+	}
+
+	private CompletableFuture<Void> enqueue(String appid, ParaObject so, boolean create) {
+		Lane lane = lanes.computeIfAbsent(appid, Lane::new);
+		synchronized (lane) {
+			Write pending = lane.open == null ? null : lane.open.writes.get(so.getId());
+			if (pending != null) {
+				boolean versioned = so.getVersion() != null && so.getVersion() > 0;
+				if (ordered || versioned || pending.versioned()) {
+					// the same object can't be written twice in one batch - the earlier write goes first
+					lane.flush();
+				} else {
+					// last write wins, both callers are notified when it's written
+					pending.object = so;
+					pending.create = pending.create || create;
+					return pending.done;
+				}
+			}
+			if (lane.open == null) {
+				lane.open = new Batch();
+				if (maxDelayMs > 0) {
+					Batch batch = lane.open;
+					lane.open.timer = Para.getScheduledExecutorService().schedule(() -> {
+						synchronized (lane) {
+							if (lane.open == batch) {
+								lane.flush();
+							}
+						}
+					}, maxDelayMs, TimeUnit.MILLISECONDS);
+				}
+			}
+			Write write = new Write(so, create);
+			lane.open.writes.put(so.getId(), write);
+			if (lane.open.writes.size() >= maxSize || maxDelayMs == 0) {
+				lane.flush();
+			}
+			return write.done;
+		}
+	}
+
+	private void awaitPending(String appid, String id) {
+		Lane lane = StringUtils.isBlank(appid) ? null : lanes.get(appid);
+		if (lane != null) {
+			CompletableFuture<Void> tail;
+			synchronized (lane) {
+				if (lane.open != null && (id == null || lane.open.writes.containsKey(id))) {
+					lane.flush();
+				}
+				tail = lane.tail;
+			}
+			try {
+				tail.join();
+			} catch (Exception e) {
+				logger.debug("Batch write failed: {}", e.getMessage());
+			}
+		}
+	}
+
+	private void write(String appid, Batch batch) {
+		List<ParaObject> creates = new ArrayList<>(batch.writes.size());
+		List<ParaObject> updates = new ArrayList<>(batch.writes.size());
+		for (Write write : batch.writes.values()) {
+			(write.create ? creates : updates).add(write.object);
+		}
+		writeAll(appid, batch, creates, true);
+		writeAll(appid, batch, updates, false);
+		logger.debug("BatchingDAO wrote {} objects in a batch - appid={}, created={}, updated={}",
+				batch.writes.size(), appid, creates.size(), updates.size());
+	}
+
+	private void writeAll(String appid, Batch batch, List<ParaObject> objects, boolean create) {
+		if (objects.isEmpty()) {
+			return;
+		}
+		try {
+			if (create) {
+				dao.createAll(appid, objects);
+			} else {
+				dao.updateAll(appid, objects);
+			}
+			for (ParaObject object : objects) {
+				batch.writes.get(object.getId()).done.complete(null);
+			}
+		} catch (Exception e) {
+			logger.warn("Batch write failed, retrying {} objects one by one - appid={}: {}",
+					objects.size(), appid, e.getMessage());
+			// each caller gets its own result
+			for (ParaObject object : objects) {
+				Write write = batch.writes.get(object.getId());
+				try {
+					if (create) {
+						dao.create(appid, object);
+					} else {
+						dao.update(appid, object);
+					}
+					write.done.complete(null);
+				} catch (Exception ex) {
+					write.done.completeExceptionally(ex);
+				}
+			}
+		}
+	}
+
+	private <T> T await(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	private void shutdown() {
+		flushAll();
+		writer.shutdown();
+	}
+
+	/**
+	 * A single write waiting in a batch.
+	 */
+	private static final class Write {
+		private final CompletableFuture<Void> done = new CompletableFuture<>();
+		private ParaObject object;
+		private boolean create;
+
+		Write(ParaObject object, boolean create) {
+			this.object = object;
+			this.create = create;
+		}
+
+		boolean versioned() {
+			return object.getVersion() != null && object.getVersion() > 0;
+		}
+	}
+
+	/**
+	 * The writes collected for one app, keyed by object id.
+	 */
+	private static final class Batch {
+		private final Map<String, Write> writes = new LinkedHashMap<>();
+		private ScheduledFuture<?> timer;
+	}
+
+	/**
+	 * The batches of one app. Each batch is written after the previous one has completed.
+	 */
+	private final class Lane {
+		private final String appid;
+		private Batch open;
+		private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+
+		Lane(String appid) {
+			this.appid = appid;
+		}
+
+		void flush() {
+			if (open == null) {
+				return;
+			}
+			Batch batch = open;
+			open = null;
+			if (batch.timer != null) {
+				batch.timer.cancel(false);
+			}
+			tail = tail.handle((v, e) -> null).thenRunAsync(() -> write(appid, batch), writer).
+					exceptionally(e -> {
+						for (Write write : batch.writes.values()) {
+							write.done.completeExceptionally(e);
+						}
+						return null;
+					});
+		}
+	}
+
+	/////////////////////////////////////////////
+	//				DAO METHODS
+	/////////////////////////////////////////////
+
+	@Override
+	public <P extends ParaObject> String create(String appid, P so) {
+		return await(submitCreate(appid, so));
+	}
+
+	@Override
+	public <P extends ParaObject> String create(P so) {
+		return create(Para.getConfig().getRootAppIdentifier(), so);
+	}
+
+	@Override
+	public <P extends ParaObject> P read(String appid, String key) {
+		return dao.read(appid, key);
+	}
+
+	@Override
+	public <P extends ParaObject> P read(String key) {
+		return read(Para.getConfig().getRootAppIdentifier(), key);
+	}
+
+	@Override
+	public <P extends ParaObject> void update(String appid, P so) {
+		await(submitUpdate(appid, so));
+	}
+
+	@Override
+	public <P extends ParaObject> void update(P so) {
+		update(Para.getConfig().getRootAppIdentifier(), so);
+	}
+
+	@Override
+	public <P extends ParaObject> P patch(String appid, String id, Map<String, Object> changes, Long expectedVersion) {
+		awaitPending(appid, id);
+		return dao.patch(appid, id, changes, expectedVersion);
+	}
+
+	@Override
+	public <P extends ParaObject> P increment(String appid, String id, String field, long delta) {
+		awaitPending(appid, id);
+		return dao.increment(appid, id, field, delta);
+	}
+
+	@Override
+	public <P extends ParaObject> void delete(String appid, P so) {
+		if (so != null) {
+			awaitPending(appid, so.getId());
+		}
+		dao.delete(appid, so);
+	}
+
+	@Override
+	public <P extends ParaObject> void delete(P so) {
+		delete(Para.getConfig().getRootAppIdentifier(), so);
+	}
+
+	@Override
+	public <P extends ParaObject> void createAll(String appid, List<P> objects) {
+		awaitPending(appid, null);
+		dao.createAll(appid, objects);
+	}
+
+	@Override
+	public <P extends ParaObject> void createAll(List<P> objects) {
+		createAll(Para.getConfig().getRootAppIdentifier(), objects);
+	}
+
+	@Override
+	public <P extends ParaObject> Map<String, P> readAll(String appid, List<String> keys, boolean getAllColumns) {
+		return dao.readAll(appid, keys, getAllColumns);
+	}
+
+	@Override
+	public <P extends ParaObject> Map<String, P> readAll(List<String> keys, boolean getAllColumns) {
+		return readAll(Para.getConfig().getRootAppIdentifier(), keys, getAllColumns);
+	}
+
+	@Override
+	public <P extends ParaObject> List<P> readPage(String appid, Pager pager) {
+		return dao.readPage(appid, pager);
+	}
+
+	@Override
+	public <P extends ParaObject> List<P> readPage(Pager pager) {
+		return readPage(Para.getConfig().getRootAppIdentifier(), pager);
+	}
+
+	@Override
+	public <P extends ParaObject> List<P> readByIndex(String appid, String type, String field, Object value,
+			Pager pager) {
+		return dao.readByIndex(appid, type, field, value, pager);
+	}
+
+	@Override
+	public <P extends ParaObject> void updateAll(String appid, List<P> objects) {
+		awaitPending(appid, null);
+		dao.updateAll(appid, objects);
+	}
+
+	@Override
+	public <P extends ParaObject> void updateAll(List<P> objects) {
+		updateAll(Para.getConfig().getRootAppIdentifier(), objects);
+	}
+
+	@Override
+	public <P extends ParaObject> void deleteAll(String appid, List<P> objects) {
+		awaitPending(appid, null);
+		dao.deleteAll(appid, objects);
+	}
+
+	@Override
+	public <P extends ParaObject> void deleteAll(List<P> objects) {
+		deleteAll(Para.getConfig().getRootAppIdentifier(), objects);
+	}
+
+}
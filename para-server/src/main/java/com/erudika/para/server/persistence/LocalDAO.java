@@ -0,0 +1,440 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.erudika.para.core.App;
+import com.erudika.para.core.ParaObject;
+import com.erudika.para.core.annotations.Locked;
+import com.erudika.para.core.persistence.DAO;
+import com.erudika.para.core.utils.Config;
+import com.erudika.para.core.utils.Pager;
+import com.erudika.para.core.utils.Para;
+import com.erudika.para.core.utils.ParaObjectUtils;
+import com.erudika.para.core.utils.Utils;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Singleton;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An embedded, durable implementation of the {@link DAO} interface which stores objects on the local disk.
+ * Objects are kept in memory and every change is written to a write-ahead log before it's acknowledged.
+ * The log is compacted into periodic snapshots. Suitable for small, single-node deployments.
+ * Enable it with {@code para.dao = "LocalDAO"}.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+@Singleton
+public class LocalDAO implements DAO {
+
+	private static final Logger logger = LoggerFactory.getLogger(LocalDAO.class);
+	static final Map<String, LocalStore> STORES = new ConcurrentHashMap<>();
+	private static final Set<String> LISTENERS = ConcurrentHashMap.newKeySet();
+
+	private final String folder;
+
+	/**
+	 * No-args constructor.
+	 */
+	public LocalDAO() {
+		this(Para.getConfig().localDaoFolder());
+	}
+
+	/**
+	 * Constructs a new instance based on a given folder. The data is loaded on first use.
+	 * @param folder the folder for the write-ahead log and snapshots
+	 */
+	public LocalDAO(String folder) {
+		this.folder = folder;
+	}
+
+	LocalStore store() {
+		return openStore(storeKey());
+	}
+
+	private static LocalStore openStore(String dir) {
+		return STORES.computeIfAbsent(dir, k -> {
+			try {
+				LocalStore store = new LocalStore(Paths.get(dir), Para.getConfig().localDaoSyncWritesEnabled(),
+						Para.getConfig().localDaoMaxLogSizeMb() * 1024L * 1024L);
+				if (LISTENERS.add(dir)) {
+					addListeners(dir);
+				}
+				return store;
+			} catch (IOException e) {
+				throw new UncheckedIOException("Failed to open the local data store in " + dir, e);
+			}
+		});
+	}
+
+	/**
+	 * Registered once per directory - the listeners look up the store which is currently open,
+	 * so they keep working after the store is closed and reopened.
+	 */
+	private static void addListeners(String dir) {
+		int interval = Para.getConfig().localDaoSnapshotIntervalSec();
+		if (interval > 0) {
+			Para.asyncExecutePeriodically(() -> {
+				LocalStore store = STORES.get(dir);
+				if (store != null) {
+					store.snapshotQuietly();
+				}
+			}, interval, interval, TimeUnit.SECONDS);
+		}
+		Para.addDestroyListener(() -> closeStore(dir));
+		App.addAppDeletedListener((App app) -> {
+			if (app != null) {
+				deleteAllObjects(openStore(dir), app.getAppIdentifier());
+			}
+		});
+	}
+
+	/**
+	 * Closes the data store, after writing a snapshot. It is reopened on next use.
+	 */
+	void close() {
+		closeStore(storeKey());
+	}
+
+	private String storeKey() {
+		return Paths.get(folder).toAbsolutePath().normalize().toString();
+	}
+
+	/////////////////////////////////////////////
+	//			CORE FUNCTIONS
+	/////////////////////////////////////////////
+
+	@Override
+	public <P extends ParaObject> String create(String appid, P so) {
+		if (so == null || StringUtils.isBlank(appid)) {
+			return null;
+		}
+		if (StringUtils.isBlank(so.getId())) {
+			so.setId(Utils.getNewId());
+		}
+		if (so.getTimestamp() == null) {
+			so.setTimestamp(Utils.timestamp());
+		}
+		so.setAppid(appid);
+		String json = toJSON(so);
+		store().compute(appid, so.getId(), old -> json);
+		logger.debug("DAO.create() {}->{}", appid, so.getId());
+		return so.getId();
+	}
+
+	@Override
+	public <P extends ParaObject> P read(String appid, String key) {
+		if (StringUtils.isBlank(key) || StringUtils.isBlank(appid)) {
+			return null;
+		}
+		P so = readJSON(store().get(appid, key));
+		logger.debug("DAO.read() {}->{}", appid, key);
+		return so;
+	}
+
+	@Override
+	public <P extends ParaObject> void update(String appid, P so) {
+		if (so != null && so.getId() != null && !StringUtils.isBlank(appid)) {
+			store().compute(appid, so.getId(), old -> updateJSON(old, so));
+			logger.debug("DAO.update() {}->{}", appid, so.getId());
+		}
+	}
+
+	@Override
+	public <P extends ParaObject> P patch(String appid, String id, Map<String, Object> changes, Long expectedVersion) {
+		if (StringUtils.isBlank(appid) || StringUtils.isBlank(id) || changes == null || changes.isEmpty()) {
+			return null;
+		}
+		Map<String, Object> delta = new HashMap<>(changes);
+		delta.remove(Config._VERSION);
+		boolean[] patched = {false};
+		String json = store().compute(appid, id, old -> {
+			ParaObject so = ParaObjectUtils.fromJSON(old);
+			if (so == null) {
+				return null;
+			}
+			if (expectedVersion != null && expectedVersion > 0 && !expectedVersion.equals(so.getVersion())) {
+				logger.warn("Object not patched - versions don't match. appid={}, id={}.", appid, id);
+				return old;
+			}
+			ParaObjectUtils.setAnnotatedFields(so, delta, Locked.class);
+			so.setUpdated(Utils.timestamp());
+			// versioned objects get a new version, so that updates based on the old one fail
+			if (so.getVersion() != null && so.getVersion() > 0) {
+				so.setVersion(so.getVersion() + 1);
+			}
+			patched[0] = true;
+			return toJSON(so);
+		});
+		logger.debug("DAO.patch() {}->{}", appid, id);
+		return patched[0] ? ParaObjectUtils.fromJSON(json) : null;
+	}
+
+	@Override
+	public <P extends ParaObject> P increment(String appid, String id, String field, long delta) {
+		if (StringUtils.isBlank(appid) || StringUtils.isBlank(id)) {
+			return null;
+		}
+		boolean[] incremented = {false};
+		String json = store().compute(appid, id, old -> {
+			ParaObject so = ParaObjectUtils.fromJSON(old);
+			if (so == null || !ParaObjectUtils.isCounterField(so.getClass(), field)) {
+				return old;
+			}
+			Object value = ParaObjectUtils.getAnnotatedFields(so).get(field);
+			long current = (value instanceof Number) ? ((Number) value).longValue() : 0L;
+			ParaObjectUtils.setAnnotatedFields(so, Collections.singletonMap(field, current + delta), Locked.class);
+			if (so.getVersion() != null && so.getVersion() > 0) {
+				so.setVersion(so.getVersion() + 1);
+			}
+			so.setUpdated(Utils.timestamp());
+			incremented[0] = true;
+			return toJSON(so);
+		});
+		logger.debug("DAO.increment() {}->{} {} {}", appid, id, field, delta);
+		return incremented[0] ? ParaObjectUtils.fromJSON(json) : null;
+	}
+
+	@Override
+	public <P extends ParaObject> void delete(String appid, P so) {
+		if (so != null && so.getId() != null && !StringUtils.isBlank(appid)) {
+			store().compute(appid, so.getId(), old -> null);
+			logger.debug("DAO.delete() {}->{}", appid, so.getId());
+		}
+	}
+
+	/////////////////////////////////////////////
+	//				BATCH FUNCTIONS
+	/////////////////////////////////////////////
+
+	@Override
+	public <P extends ParaObject> void createAll(String appid, List<P> objects) {
+		if (objects == null || objects.isEmpty() || StringUtils.isBlank(appid)) {
+			return;
+		}
+		// all writes are queued first, so they're flushed to disk together
+		List<CompletableFuture<Long>> writes = new ArrayList<>(objects.size());
+		for (P so : objects) {
+			if (so != null) {
+				if (StringUtils.isBlank(so.getId())) {
+					so.setId(Utils.getNewId());
+				}
+				if (so.getTimestamp() == null) {
+					so.setTimestamp(Utils.timestamp());
+				}
+				so.setAppid(appid);
+				String json = toJSON(so);
+				writes.add(store().write(appid, so.getId(), old -> json));
+			}
+		}
+		store().awaitAll(writes);
+		logger.debug("DAO.createAll() {}->{}", appid, writes.size());
+	}
+
+	@Override
+	public <P extends ParaObject> Map<String, P> readAll(String appid, List<String> keys, boolean getAllColumns) {
+		if (keys == null || keys.isEmpty() || StringUtils.isBlank(appid)) {
+			return new LinkedHashMap<>();
+		}
+		Map<String, P> results = new LinkedHashMap<>(keys.size());
+		for (String key : keys) {
+			P so = readJSON(store().get(appid, key));
+			if (so != null) {
+				results.put(key, so);
+			}
+		}
+		logger.debug("DAO.readAll() {}->{}", appid, results.size());
+		return results;
+	}
+
+	@Override
+	public <P extends ParaObject> List<P> readPage(String appid, Pager pager) {
+		List<P> results = new LinkedList<>();
+		if (StringUtils.isBlank(appid)) {
+			return results;
+		}
+		if (pager == null) {
+			pager = new Pager();
+		}
+		ConcurrentNavigableMap<String, String> objects = store().getAll(appid);
+		String lastKey = pager.getLastKey();
+		Map<String, String> page = StringUtils.isBlank(lastKey) ? objects : objects.tailMap(lastKey, false);
+		for (Map.Entry<String, String> entry : page.entrySet()) {
+			P so = readJSON(entry.getValue());
+			if (so != null) {
+				results.add(so);
+			}
+			if (results.size() >= pager.getLimit()) {
+				break;
+			}
+		}
+		if (!results.isEmpty()) {
+			pager.setLastKey(results.get(results.size() - 1).getId());
+			pager.setCount(pager.getCount() + results.size());
+		}
+		return results;
+	}
+
+	@Override
+	public <P extends ParaObject> void updateAll(String appid, List<P> objects) {
+		if (objects == null || objects.isEmpty() || StringUtils.isBlank(appid)) {
+			return;
+		}
+		List<CompletableFuture<Long>> writes = new ArrayList<>(objects.size());
+		for (P so : objects) {
+			if (so != null && so.getId() != null) {
+				writes.add(store().write(appid, so.getId(), old -> updateJSON(old, so)));
+			}
+		}
+		store().awaitAll(writes);
+		logger.debug("DAO.updateAll() {}->{}", appid, writes.size());
+	}
+
+	@Override
+	public <P extends ParaObject> void deleteAll(String appid, List<P> objects) {
+		if (objects == null || objects.isEmpty() || StringUtils.isBlank(appid)) {
+			return;
+		}
+		List<CompletableFuture<Long>> writes = new ArrayList<>(objects.size());
+		for (P so : objects) {
+			if (so != null && so.getId() != null) {
+				writes.add(store().write(appid, so.getId(), old -> null));
+			}
+		}
+		store().awaitAll(writes);
+		logger.debug("DAO.deleteAll() {}->{}", appid, writes.size());
+	}
+
+	/**
+	 * Merges the unlocked fields of an object with the stored ones. If optimistic locking is used (version > 0),
+	 * the update is rejected unless the versions match, in which case the version of the object is set to -1.
+	 */
+	private <P extends ParaObject> String updateJSON(String oldJson, P so) {
+		ParaObject stored = ParaObjectUtils.fromJSON(oldJson);
+		boolean isLockingEnabled = so.getVersion() != null && so.getVersion() > 0;
+		if (stored != null && isLockingEnabled && !so.getVersion().equals(stored.getVersion())) {
+			logger.warn("Object not updated - versions don't match. appid={}, id={}.", so.getAppid(), so.getId());
+			so.setVersion(-1L);
+			return oldJson;
+		}
+		so.setUpdated(Utils.timestamp());
+		so.setVersion(isLockingEnabled ? so.getVersion() + 1 : 0L);
+		if (stored == null) {
+			return toJSON(so);
+		}
+		ParaObjectUtils.setAnnotatedFields(stored, ParaObjectUtils.getAnnotatedFields(so), Locked.class);
+		return toJSON(stored);
+	}
+
+	private static <P extends ParaObject> P readJSON(String json) {
+		P so = ParaObjectUtils.fromJSON(json);
+		// expired objects are treated as deleted
+		return ParaObjectUtils.isExpired(so) ? null : so;
+	}
+
+	private static String toJSON(ParaObject so) {
+		try {
+			Map<String, Object> fields = ParaObjectUtils.getAnnotatedFields(so, false);
+			return ParaObjectUtils.getJsonWriterNoIdent().writeValueAsString(fields);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void deleteAllObjects(LocalStore store, String appid) {
+		List<CompletableFuture<Long>> writes = new ArrayList<>();
+		for (String id : store.getAll(appid).keySet()) {
+			writes.add(store.write(appid, id, old -> null));
+		}
+		store.awaitAll(writes);
+		logger.info("Deleted {} objects of app '{}' from the local data store.", writes.size(), appid);
+	}
+
+	private static void closeStore(String dir) {
+		LocalStore store = STORES.remove(dir);
+		if (store != null) {
+			try {
+				store.close();
+			} catch (IOException e) {
+				logger.error("Failed to close the local data store in {}:", dir, e);
+			}
+		}
+	}
+
+	//////////////////////////////////////////////////////
+
+	@Override
+	public <P extends ParaObject> String create(P so) {
+		return create(Para.getConfig().getRootAppIdentifier(), so);
+	}
+
+	@Override
+	public <P extends ParaObject> P read(String key) {
+		return read(Para.getConfig().getRootAppIdentifier(), key);
+	}
+
+	@Override
+	public <P extends ParaObject> void update(P so) {
+		update(Para.getConfig().getRootAppIdentifier(), so);
+	}
+
+	@Override
+	public <P extends ParaObject> void delete(P so) {
+		delete(Para.getConfig().getRootAppIdentifier(), so);
+	}
+
+	@Override
+	public <P extends ParaObject> void createAll(List<P> objects) {
+		createAll(Para.getConfig().getRootAppIdentifier(), objects);
+	}
+
+	@Override
+	public <P extends ParaObject> Map<String, P> readAll(List<String> keys, boolean getAllColumns) {
+		return readAll(Para.getConfig().getRootAppIdentifier(), keys, getAllColumns);
+	}
+
+	@Override
+	public <P extends ParaObject> List<P> readPage(Pager pager) {
+		return readPage(Para.getConfig().getRootAppIdentifier(), pager);
+	}
+
+	@Override
+	public <P extends ParaObject> void updateAll(List<P> objects) {
+		updateAll(Para.getConfig().getRootAppIdentifier(), objects);
+	}
+
+	@Override
+	public <P extends ParaObject> void deleteAll(List<P> objects) {
+		deleteAll(Para.getConfig().getRootAppIdentifier(), objects);
+	}
+
+}
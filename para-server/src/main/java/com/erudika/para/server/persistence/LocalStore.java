@@ -0,0 +1,397 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A durable key-value store for {@link LocalDAO}. All objects are kept in memory, as JSON strings, and every change
+ * is appended to a {@link WriteAheadLog} before it's acknowledged. Snapshots of the whole store are written
+ * periodically and once a snapshot is complete, the log segments it covers are deleted (compaction). On startup, the
+ * latest snapshot is loaded through a memory-mapped buffer and the remaining log segments are replayed on top of it.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class LocalStore implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(LocalStore.class);
+
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SNAPSHOT_SUFFIX = ".dat";
+	private static final long SNAPSHOT_MAGIC = 0x50415241534e4150L; // PARASNAP
+	private static final int LOCK_STRIPES = 256;
+
+	private final Path dir;
+	private final long maxLogSizeBytes;
+	private final Map<String, ConcurrentNavigableMap<String, String>> data = new ConcurrentHashMap<>();
+	private final Object[] locks = new Object[LOCK_STRIPES];
+	private final Object snapshotLock = new Object();
+	private final ReadWriteLock rotationLock = new ReentrantReadWriteLock();
+	private final AtomicBoolean snapshotPending = new AtomicBoolean();
+	private final WriteAheadLog log;
+
+	/**
+	 * Opens the store in a directory and recovers its contents.
+	 * @param dir the data directory
+	 * @param syncWrites if true, writes are synced to disk before they're acknowledged
+	 * @param maxLogSizeBytes the log size which triggers a snapshot
+	 * @throws IOException if the directory can't be read or written to
+	 */
+	LocalStore(Path dir, boolean syncWrites, long maxLogSizeBytes) throws IOException {
+		this.dir = dir;
+		this.maxLogSizeBytes = maxLogSizeBytes;
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i] = new Object();
+		}
+		Files.createDirectories(dir);
+		long lastSegment = recover();
+		this.log = new WriteAheadLog(dir, lastSegment + 1, syncWrites);
+	}
+
+	/**
+	 * @param appid the app identifier
+	 * @param id the object id
+	 * @return the object as JSON or null if not found
+	 */
+	String get(String appid, String id) {
+		Map<String, String> objects = data.get(appid);
+		return (objects == null || id == null) ? null : objects.get(id);
+	}
+
+	/**
+	 * @param appid the app identifier
+	 * @return all objects of an app, ordered by id
+	 */
+	ConcurrentNavigableMap<String, String> getAll(String appid) {
+		ConcurrentNavigableMap<String, String> objects = data.get(appid);
+		return (objects == null) ? new ConcurrentSkipListMap<>() : objects;
+	}
+
+	/**
+	 * Changes an object atomically and waits until the change is written to the log.
+	 * @param appid the app identifier
+	 * @param id the object id
+	 * @param change a function which receives the current JSON of the object, or null, and returns the new one.
+	 * Returning null deletes the object and returning an equal string leaves it unchanged.
+	 * @return the new JSON of the object
+	 */
+	String compute(String appid, String id, UnaryOperator<String> change) {
+		String[] result = new String[1];
+		await(write(appid, id, json -> {
+			result[0] = change.apply(json);
+			return result[0];
+		}));
+		return result[0];
+	}
+
+	/**
+	 * Changes an object atomically, without waiting for the change to be written to the log.
+	 * The change is visible to readers right away and it's rolled back if it can't be written to the log,
+	 * before the returned future completes with the error.
+	 * @param appid the app identifier
+	 * @param id the object id
+	 * @param change a function which receives the current JSON of the object, or null, and returns the new one
+	 * @return a future which completes when the change is written to the log
+	 */
+	CompletableFuture<Long> write(String appid, String id, UnaryOperator<String> change) {
+		CompletableFuture<Long> appended = null;
+		String oldJson;
+		String newJson;
+		// the log and the in-memory state must see the changes to an object in the same order
+		rotationLock.readLock().lock();
+		try {
+			synchronized (lock(appid, id)) {
+				ConcurrentNavigableMap<String, String> objects = data.computeIfAbsent(appid,
+						k -> new ConcurrentSkipListMap<>());
+				oldJson = objects.get(id);
+				newJson = change.apply(oldJson);
+				if (newJson != null && !newJson.equals(oldJson)) {
+					appended = log.append(WriteAheadLog.PUT, appid, id, newJson);
+					objects.put(id, newJson);
+				} else if (newJson == null && oldJson != null) {
+					appended = log.append(WriteAheadLog.DELETE, appid, id, null);
+					objects.remove(id);
+				}
+			}
+		} finally {
+			rotationLock.readLock().unlock();
+		}
+		if (appended == null) {
+			return CompletableFuture.completedFuture(0L);
+		}
+		CompletableFuture<Long> written = appended.whenComplete((position, error) -> {
+			if (error != null) {
+				rollBack(appid, id, oldJson, newJson);
+			}
+		});
+		if (log.size() > maxLogSizeBytes && snapshotPending.compareAndSet(false, true)) {
+			CompletableFuture.runAsync(this::snapshotQuietly);
+		}
+		return written;
+	}
+
+	/**
+	 * Undoes a change which was never written to the log, unless the object was changed again in the meantime.
+	 */
+	private void rollBack(String appid, String id, String oldJson, String newJson) {
+		synchronized (lock(appid, id)) {
+			ConcurrentNavigableMap<String, String> objects = data.get(appid);
+			if (objects == null || !Objects.equals(objects.get(id), newJson)) {
+				return;
+			}
+			if (oldJson == null) {
+				objects.remove(id);
+			} else {
+				objects.put(id, oldJson);
+			}
+		}
+		logger.warn("Rolled back a change to object '{}' of app '{}' which failed to be written to the log.",
+				id, appid);
+	}
+
+	/**
+	 * Waits for the changes to be written to the log.
+	 * @param writes the futures returned by {@link #write(String, String, UnaryOperator)}
+	 */
+	void awaitAll(List<CompletableFuture<Long>> writes) {
+		await(CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])));
+	}
+
+	/**
+	 * Writes a snapshot of all objects and deletes the log segments and older snapshots which it replaces.
+	 * @throws IOException if the snapshot can't be written
+	 */
+	void snapshot() throws IOException {
+		synchronized (snapshotLock) {
+			if (log.size() == 0 && WriteAheadLog.listSegments(dir).size() <= 1 && !listSnapshots().isEmpty()) {
+				return; // nothing changed since the last snapshot
+			}
+			// changes made after the rotation are both in the new segment and (maybe) in the snapshot.
+			// that's fine because replaying them on top of the snapshot gives the same result. changes logged
+			// before the rotation must already be in memory though, or they would be lost with their segment.
+			CompletableFuture<Long> rotation;
+			rotationLock.writeLock().lock();
+			try {
+				rotation = log.rotate();
+			} finally {
+				rotationLock.writeLock().unlock();
+			}
+			long coveredSegment = await(rotation);
+			Path tmp = dir.resolve(SNAPSHOT_PREFIX + coveredSegment + ".tmp");
+			long count = 0;
+			try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				OutputStream out = new BufferedOutputStream(Channels.newOutputStream(ch), 1 << 16);
+				out.write(ByteBuffer.allocate(16).putLong(SNAPSHOT_MAGIC).putLong(coveredSegment).array());
+				for (Map.Entry<String, ConcurrentNavigableMap<String, String>> app : data.entrySet()) {
+					for (Map.Entry<String, String> object : app.getValue().entrySet()) {
+						out.write(WriteAheadLog.encode(WriteAheadLog.PUT, app.getKey(), object.getKey(),
+								object.getValue()));
+						count++;
+					}
+				}
+				out.write(WriteAheadLog.encode(WriteAheadLog.END, "", Long.toString(count), null));
+				out.flush();
+				ch.force(true);
+			}
+			Path snapshot = snapshotPath(coveredSegment);
+			Files.move(tmp, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			compact(coveredSegment);
+			logger.info("Wrote a snapshot of {} objects to {}.", count, snapshot);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			snapshot();
+		} finally {
+			log.close();
+		}
+	}
+
+	/**
+	 * Closes the log without writing a snapshot. The store can't be changed after that.
+	 * @throws IOException if the log can't be closed
+	 */
+	void closeLog() throws IOException {
+		log.close();
+	}
+
+	/**
+	 * Writes a snapshot and logs any errors.
+	 */
+	void snapshotQuietly() {
+		try {
+			snapshot();
+		} catch (Exception e) {
+			logger.error("Failed to write a snapshot to {}:", dir, e);
+		} finally {
+			snapshotPending.set(false);
+		}
+	}
+
+	private void compact(long coveredSegment) throws IOException {
+		for (Long segment : WriteAheadLog.listSegments(dir)) {
+			if (segment <= coveredSegment) {
+				Files.deleteIfExists(WriteAheadLog.segmentPath(dir, segment));
+			}
+		}
+		for (Long snapshot : listSnapshots()) {
+			if (snapshot < coveredSegment) {
+				Files.deleteIfExists(snapshotPath(snapshot));
+			}
+		}
+	}
+
+	/**
+	 * Loads the latest valid snapshot and replays the log segments written after it.
+	 * @return the number of the last log segment found
+	 */
+	private long recover() throws IOException {
+		long coveredSegment = -1;
+		List<Long> snapshots = listSnapshots();
+		Collections.reverse(snapshots);
+		for (Long snapshot : snapshots) {
+			if (loadSnapshot(snapshotPath(snapshot))) {
+				coveredSegment = snapshot;
+				break;
+			}
+			logger.warn("Snapshot {} is incomplete or corrupted, trying an older one.", snapshotPath(snapshot));
+			data.clear();
+		}
+		long lastSegment = coveredSegment;
+		long replayed = 0;
+		for (Long segment : WriteAheadLog.listSegments(dir)) {
+			lastSegment = Math.max(lastSegment, segment);
+			if (segment <= coveredSegment) {
+				continue;
+			}
+			Path file = WriteAheadLog.segmentPath(dir, segment);
+			long[] records = {0};
+			long validEnd = WriteAheadLog.readRecords(file, 0, (op, appid, id, json) -> {
+				apply(op, appid, id, json);
+				records[0]++;
+			});
+			replayed += records[0];
+			if (validEnd < Files.size(file)) {
+				// a torn write from a crash - the rest of the segment was never acknowledged
+				logger.warn("Discarding {} bytes of incomplete records at the end of {}.",
+						Files.size(file) - validEnd, file);
+				try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+					ch.truncate(validEnd);
+				}
+			}
+		}
+		logger.info("Recovered {} apps from {} - snapshot {}, {} log records replayed.",
+				data.size(), dir, coveredSegment, replayed);
+		return lastSegment;
+	}
+
+	private boolean loadSnapshot(Path file) throws IOException {
+		if (Files.size(file) < 16) {
+			return false;
+		}
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(16);
+			ch.read(header, 0);
+			header.flip();
+			if (header.getLong() != SNAPSHOT_MAGIC) {
+				return false;
+			}
+		}
+		long[] counts = {0, -1};
+		WriteAheadLog.readRecords(file, 16, (op, appid, id, json) -> {
+			if (op == WriteAheadLog.END) {
+				counts[1] = NumberUtils.toLong(id, -2);
+			} else {
+				apply(op, appid, id, json);
+				counts[0]++;
+			}
+		});
+		return counts[0] == counts[1];
+	}
+
+	private void apply(byte op, String appid, String id, String json) {
+		if (op == WriteAheadLog.PUT && json != null) {
+			data.computeIfAbsent(appid, k -> new ConcurrentSkipListMap<>()).put(id, json);
+		} else if (op == WriteAheadLog.DELETE) {
+			Map<String, String> objects = data.get(appid);
+			if (objects != null) {
+				objects.remove(id);
+			}
+		}
+	}
+
+	private List<Long> listSnapshots() throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			return files.map(f -> f.getFileName().toString()).
+					filter(f -> f.startsWith(SNAPSHOT_PREFIX) && f.endsWith(SNAPSHOT_SUFFIX)).
+					map(f -> NumberUtils.toLong(StringUtils.substringBetween(f, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX), -1)).
+					filter(n -> n >= 0).sorted().collect(Collectors.toList());
+		}
+	}
+
+	private Path snapshotPath(long coveredSegment) {
+		return dir.resolve(SNAPSHOT_PREFIX + coveredSegment + SNAPSHOT_SUFFIX);
+	}
+
+	private Object lock(String appid, String id) {
+		return locks[Math.floorMod(31 * appid.hashCode() + id.hashCode(), LOCK_STRIPES)];
+	}
+
+	private static <T> T await(CompletableFuture<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the write-ahead log.", e);
+		} catch (ExecutionException e) {
+			throw new UncheckedIOException(new IOException("Write to the write-ahead log failed.", e.getCause()));
+		}
+	}
+}
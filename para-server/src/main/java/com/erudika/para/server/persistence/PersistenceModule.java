@@ -21,7 +21,9 @@ import com.erudika.para.core.persistence.DAO;
 import com.erudika.para.core.persistence.MockDAO;
 import com.erudika.para.core.utils.Para;
 import com.google.inject.AbstractModule;
+import com.google.inject.name.Names;
 import java.util.ServiceLoader;
+import java.util.function.Supplier;
 import org.apache.commons.lang3.StringUtils;
 
 /**
@@ -36,17 +38,17 @@ public class PersistenceModule extends AbstractModule {
 			if ("embedded".equals(Para.getConfig().environment())) {
 				bindToDefault();
 			} else {
-				bind(DAO.class).to(AWSDynamoDAO.class).asEagerSingleton();
+				bindDAO(AWSDynamoDAO.class, AWSDynamoDAO::new);
 			}
 		} else {
 			if ("dynamodb".equalsIgnoreCase(selectedDAO) ||
 					AWSDynamoDAO.class.getSimpleName().equalsIgnoreCase(selectedDAO)) {
-				bind(DAO.class).to(AWSDynamoDAO.class).asEagerSingleton();
+				bindDAO(AWSDynamoDAO.class, AWSDynamoDAO::new);
 			} else {
 				DAO daoPlugin = loadExternalDAO(selectedDAO);
 				if (daoPlugin != null) {
 					// external plugins - MongoDB, Cassandra, H2DAO, xSQL, etc.
-					bind(DAO.class).to(daoPlugin.getClass()).asEagerSingleton();
+					bindDAO(daoPlugin.getClass(), () -> daoPlugin);
 				} else {
 					// in-memory DAO - default fallback
 					bindToDefault();
@@ -56,7 +58,22 @@ public class PersistenceModule extends AbstractModule {
 	}
 
 	void bindToDefault() {
-		bind(DAO.class).to(MockDAO.class).asEagerSingleton();
+		bindDAO(MockDAO.class, MockDAO::new);
+	}
+
+	/**
+	 * Binds the selected DAO, optionally wrapped in a {@link BatchingDAO} which coalesces single writes.
+	 * @param daoClass the DAO implementation
+	 * @param instance creates an instance of the DAO, used only when it's wrapped
+	 */
+	void bindDAO(Class<? extends DAO> daoClass, Supplier<DAO> instance) {
+		if (Para.getConfig().daoBatchWritesEnabled()) {
+			// the wrapped DAO is not created by Guice, so that only the decorator is intercepted by the AOP layer
+			bind(DAO.class).annotatedWith(Names.named(BatchingDAO.DELEGATE)).toInstance(instance.get());
+			bind(DAO.class).to(BatchingDAO.class).asEagerSingleton();
+		} else {
+			bind(DAO.class).to(daoClass).asEagerSingleton();
+		}
 	}
 
 	/**
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only log of changes, split into numbered segment files. Records are appended by a single writer thread
+ * which flushes all records waiting in the queue at once (group commit). Each record is framed by its length and
+ * a CRC32 checksum, so a torn write at the end of a segment is detected and discarded on recovery.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class WriteAheadLog implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+	static final byte PUT = 1;
+	static final byte DELETE = 2;
+	static final byte END = 3;
+
+	private static final String SEGMENT_PREFIX = "wal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final int HEADER_SIZE = 8;
+	private static final int MAX_BATCH_SIZE = 1024;
+	private static final long MAX_MAPPED_WINDOW = 1L << 30;
+
+	private final Path dir;
+	private final boolean syncWrites;
+	private final LinkedBlockingQueue<Append> queue = new LinkedBlockingQueue<>();
+	private final AtomicLong size = new AtomicLong();
+	private final Thread writer;
+	private volatile boolean closed;
+	private FileChannel channel;
+	private long segment;
+
+	/**
+	 * Handles the records read from a log segment or a snapshot.
+	 */
+	interface RecordHandler {
+		/**
+		 * Called for each record, in the order they were written.
+		 * @param op the operation
+		 * @param appid the app identifier
+		 * @param id the object id
+		 * @param json the object as JSON, null for deletions
+		 */
+		void apply(byte op, String appid, String id, String json);
+	}
+
+	/**
+	 * A record or a segment rotation, waiting to be written.
+	 */
+	private static final class Append {
+		private final byte[] record;
+		private final CompletableFuture<Long> done = new CompletableFuture<>();
+
+		Append(byte[] record) {
+			this.record = record;
+		}
+	}
+
+	/**
+	 * Opens a new log segment for writing.
+	 * @param dir the data directory
+	 * @param segment the number of the first segment to write to
+	 * @param syncWrites if true, each batch of records is forced to disk before it's acknowledged
+	 * @throws IOException if the segment can't be created
+	 */
+	WriteAheadLog(Path dir, long segment, boolean syncWrites) throws IOException {
+		this.dir = dir;
+		this.syncWrites = syncWrites;
+		this.segment = segment;
+		this.channel = openSegment(segment);
+		this.writer = new Thread(this::writeLoop, "para-wal-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Appends a record to the log.
+	 * @param op the operation
+	 * @param appid the app identifier
+	 * @param id the object id
+	 * @param json the object as JSON, null for deletions
+	 * @return a future which completes when the record is written (and synced, if enabled)
+	 */
+	CompletableFuture<Long> append(byte op, String appid, String id, String json) {
+		Append append = new Append(encode(op, appid, id, json));
+		if (closed) {
+			append.done.completeExceptionally(new IOException("The write-ahead log is closed."));
+		} else {
+			queue.add(append);
+		}
+		return append.done;
+	}
+
+	/**
+	 * Closes the current segment, after all records queued before this call are written, and starts a new one.
+	 * @return a future which completes with the number of the closed segment
+	 */
+	CompletableFuture<Long> rotate() {
+		Append rotation = new Append(null);
+		if (closed) {
+			rotation.done.completeExceptionally(new IOException("The write-ahead log is closed."));
+		} else {
+			queue.add(rotation);
+		}
+		return rotation.done;
+	}
+
+	/**
+	 * @return the total size of the records written since the last rotation, in bytes
+	 */
+	long size() {
+		return size.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			channel.force(true);
+			channel.close();
+		}
+	}
+
+	private void writeLoop() {
+		List<Append> batch = new ArrayList<>(MAX_BATCH_SIZE);
+		while (!closed || !queue.isEmpty()) {
+			try {
+				Append first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+				writeBatch(batch);
+			} catch (InterruptedException e) {
+				closed = true;
+				Thread.currentThread().interrupt();
+			} finally {
+				batch.clear();
+			}
+		}
+		// fail any writes which sneaked in after the log was closed
+		for (Append append = queue.poll(); append != null; append = queue.poll()) {
+			append.done.completeExceptionally(new IOException("The write-ahead log is closed."));
+		}
+	}
+
+	private synchronized void writeBatch(List<Append> batch) {
+		List<Append> written = new ArrayList<>(batch.size());
+		try {
+			for (Append append : batch) {
+				if (append.record == null) {
+					flush(written);
+					long closedSegment = segment;
+					channel.force(true);
+					channel.close();
+					segment++;
+					channel = openSegment(segment);
+					size.set(0);
+					append.done.complete(closedSegment);
+				} else {
+					written.add(append);
+				}
+			}
+			flush(written);
+		} catch (IOException e) {
+			logger.error("Failed to write to the write-ahead log in {}:", dir, e);
+			for (Append append : batch) {
+				append.done.completeExceptionally(e);
+			}
+		}
+	}
+
+	private void flush(List<Append> written) throws IOException {
+		if (written.isEmpty()) {
+			return;
+		}
+		ByteBuffer[] buffers = new ByteBuffer[written.size()];
+		long bytes = 0;
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = ByteBuffer.wrap(written.get(i).record);
+			bytes += written.get(i).record.length;
+		}
+		long remaining = bytes;
+		while (remaining > 0) {
+			remaining -= channel.write(buffers);
+		}
+		if (syncWrites) {
+			channel.force(false);
+		}
+		long position = size.addAndGet(bytes);
+		for (Append append : written) {
+			append.done.complete(position);
+		}
+		written.clear();
+	}
+
+	private FileChannel openSegment(long number) throws IOException {
+		return FileChannel.open(segmentPath(dir, number), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * @param dir the data directory
+	 * @param number a segment number
+	 * @return the path to the segment file
+	 */
+	static Path segmentPath(Path dir, long number) {
+		return dir.resolve(SEGMENT_PREFIX + StringUtils.leftPad(Long.toString(number), 19, '0') + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * @param dir the data directory
+	 * @return the numbers of all log segments in a directory, in ascending order
+	 * @throws IOException if the directory can't be listed
+	 */
+	static List<Long> listSegments(Path dir) throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			return files.map(f -> f.getFileName().toString()).
+					filter(f -> f.startsWith(SEGMENT_PREFIX) && f.endsWith(SEGMENT_SUFFIX)).
+					map(f -> NumberUtils.toLong(StringUtils.substringBetween(f, SEGMENT_PREFIX, SEGMENT_SUFFIX), -1)).
+					filter(n -> n >= 0).sorted().collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Encodes a record - [payload length][payload checksum][op, appid, id, json].
+	 * @param op the operation
+	 * @param appid the app identifier
+	 * @param id the object id
+	 * @param json the object as JSON, null for deletions
+	 * @return the record bytes
+	 */
+	static byte[] encode(byte op, String appid, String id, String json) {
+		try {
+			byte[] jsonBytes = (json == null) ? new byte[0] : json.getBytes(StandardCharsets.UTF_8);
+			ByteArrayOutputStream payload = new ByteArrayOutputStream(jsonBytes.length + 64);
+			DataOutputStream out = new DataOutputStream(payload);
+			out.writeByte(op);
+			out.writeUTF(StringUtils.trimToEmpty(appid));
+			out.writeUTF(StringUtils.trimToEmpty(id));
+			out.writeInt(json == null ? -1 : jsonBytes.length);
+			out.write(jsonBytes);
+			out.flush();
+			byte[] bytes = payload.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			return ByteBuffer.allocate(HEADER_SIZE + bytes.length).
+					putInt(bytes.length).putInt((int) crc.getValue()).put(bytes).array();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Reads all valid records from a file, through a memory-mapped buffer. Reading stops at the first
+	 * incomplete or corrupted record.
+	 * @param file a log segment or a snapshot
+	 * @param start the position of the first record
+	 * @param handler the record handler
+	 * @return the position right after the last valid record
+	 * @throws IOException if the file can't be read
+	 */
+	static long readRecords(Path file, long start, RecordHandler handler) throws IOException {
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			long fileSize = ch.size();
+			long position = start;
+			while (position < fileSize) {
+				long window = Math.min(fileSize - position, MAX_MAPPED_WINDOW);
+				MappedByteBuffer buffer = ch.map(FileChannel.MapMode.READ_ONLY, position, window);
+				int consumed = readRecords(buffer, handler);
+				if (consumed == 0) {
+					break;
+				}
+				position += consumed;
+			}
+			return position;
+		}
+	}
+
+	private static int readRecords(ByteBuffer buffer, RecordHandler handler) {
+		CRC32 crc = new CRC32();
+		while (buffer.remaining() >= HEADER_SIZE) {
+			int start = buffer.position();
+			int length = buffer.getInt();
+			int checksum = buffer.getInt();
+			if (length <= 0 || length > buffer.remaining()) {
+				buffer.position(start);
+				break;
+			}
+			byte[] payload = new byte[length];
+			buffer.get(payload);
+			crc.reset();
+			crc.update(payload);
+			if ((int) crc.getValue() != checksum) {
+				buffer.position(start);
+				break;
+			}
+			decode(payload, handler);
+		}
+		return buffer.position();
+	}
+
+	private static void decode(byte[] payload, RecordHandler handler) {
+		ByteBuffer in = ByteBuffer.wrap(payload);
+		byte op = in.get();
+		String appid = readUTF(in);
+		String id = readUTF(in);
+		int jsonLength = in.getInt();
+		String json = null;
+		if (jsonLength >= 0) {
+			json = new String(payload, in.position(), jsonLength, StandardCharsets.UTF_8);
+		}
+		handler.apply(op, appid, id, json);
+	}
+
+	private static String readUTF(ByteBuffer in) {
+		int length = Short.toUnsignedInt(in.getShort());
+		try {
+			// writeUTF() uses modified UTF-8, so the string is read back with its counterpart
+			return new DataInputStream(new ByteArrayInputStream(in.array(), in.position() - 2, length + 2)).readUTF();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			in.position(in.position() + length);
+		}
+	}
+}
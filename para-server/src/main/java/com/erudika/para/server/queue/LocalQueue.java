@@ -18,13 +18,21 @@
 package com.erudika.para.server.queue;
 
 import com.erudika.para.core.listeners.DestroyListener;
+import com.erudika.para.core.metrics.Metrics;
 import com.erudika.para.core.queue.MockQueue;
 import com.erudika.para.core.queue.Queue;
 import com.erudika.para.core.utils.Para;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.inject.Singleton;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -43,7 +51,13 @@ public class LocalQueue implements Queue {
 	private static final int MAX_MESSAGES = 10;  //max in bulk
 	private static final int POLLING_INTERVAL = Para.getConfig().queuePollingIntervalSec();
 
-	private ConcurrentLinkedQueue<String> q = new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<String> q;
+	private final MappedFileQueue file;
+	private final Semaphore permits;
+	private final int capacity;
+	private final long pushTimeoutMs;
+	private final Object signal = new Object();
+	private final AtomicInteger waiting = new AtomicInteger();
 	private String name;
 
 	/**
@@ -57,20 +71,163 @@ public class LocalQueue implements Queue {
 	 * @param name name
 	 */
 	public LocalQueue(String name) {
+		this(name, StringUtils.isBlank(Para.getConfig().localQueueDir()) ? null :
+				Paths.get(Para.getConfig().localQueueDir(), name), Para.getConfig().localQueueCapacity(),
+				Para.getConfig().localQueuePushTimeoutMs());
+	}
+
+	/**
+	 * @param name name
+	 * @param dir the directory where messages are stored, if null messages are kept in memory
+	 * @param capacity the maximum number of messages in the queue, 0 for no limit
+	 * @param pushTimeoutMs the time for which {@link #push(java.lang.String)} waits for space in a full queue
+	 * before the message is dropped
+	 */
+	public LocalQueue(String name, Path dir, int capacity, long pushTimeoutMs) {
 		this.name = name;
+		this.capacity = Math.max(0, capacity);
+		this.pushTimeoutMs = Math.max(0, pushTimeoutMs);
+		MappedFileQueue fileQueue = null;
+		if (dir != null) {
+			try {
+				fileQueue = new MappedFileQueue(dir, Para.getConfig().localQueueSegmentSizeMb() * 1024 * 1024);
+				logger.info("Local queue '{}' stored in {} ({} messages pending).", name, dir, fileQueue.size());
+			} catch (IOException e) {
+				logger.error("Failed to open local queue files in " + dir + " - messages will be kept in memory.", e);
+			}
+		}
+		this.file = fileQueue;
+		this.q = (fileQueue == null) ? new ConcurrentLinkedQueue<>() : null;
+		// messages left from before a restart may take up more than the capacity
+		this.permits = (this.capacity > 0) ? new Semaphore(this.capacity - size()) : null;
 	}
 
 	@Override
 	public String pull() {
-		String s = q.poll();
-		return StringUtils.isBlank(s) ? "" : s;
+		String s = poll();
+		if (!s.isEmpty()) {
+			commit(1);
+		}
+		return s;
 	}
 
 	@Override
 	public void push(String task) {
-		if (!StringUtils.isBlank(task)) {
+		if (StringUtils.isBlank(task)) {
+			return;
+		}
+		if (!acquire()) {
+			Metrics.counter(Para.getConfig().getRootAppIdentifier(), LocalQueue.class, "rejected").inc();
+			logger.warn("Local queue '{}' is full ({} messages) - message was dropped.", name, capacity);
+			return;
+		}
+		if (file != null) {
+			try {
+				file.add(task);
+			} catch (IOException e) {
+				if (permits != null) {
+					permits.release();
+				}
+				logger.error("Failed to write message to local queue '" + name + "':", e);
+			}
+		} else {
 			q.add(task);
 		}
+		if (waiting.get() > 0) {
+			synchronized (signal) {
+				signal.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Removes the first message from the queue, waiting for one if the queue is empty.
+	 * The message is read again after a restart, unless it is committed with {@link #commit(int)}.
+	 * @param timeoutMs the maximum time to wait
+	 * @return the message or an empty string if none arrived in time
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public String take(long timeoutMs) throws InterruptedException {
+		List<String> msgs = drainTo(1, timeoutMs);
+		return msgs.isEmpty() ? "" : msgs.get(0);
+	}
+
+	/**
+	 * Removes up to {@code max} messages from the queue, waiting for the first one if the queue is empty.
+	 * Returns as soon as a message is pushed. The messages are read again after a restart, unless they are
+	 * committed with {@link #commit(int)}.
+	 * @param max the maximum number of messages to return
+	 * @param timeoutMs the maximum time to wait
+	 * @return a list of messages, empty if none arrived in time
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public List<String> drainTo(int max, long timeoutMs) throws InterruptedException {
+		List<String> msgs = new ArrayList<>(Math.min(Math.max(1, max), MAX_MESSAGES * 10));
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		while (true) {
+			String msg;
+			while (msgs.size() < max && !(msg = poll()).isEmpty()) {
+				msgs.add(msg);
+			}
+			long remaining = deadline - System.nanoTime();
+			if (!msgs.isEmpty() || remaining <= 0) {
+				return msgs;
+			}
+			// pushes only signal while someone is waiting, so the check for messages must come after this
+			waiting.incrementAndGet();
+			try {
+				synchronized (signal) {
+					if (isEmpty()) {
+						TimeUnit.NANOSECONDS.timedWait(signal, remaining);
+					}
+				}
+			} finally {
+				waiting.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Commits the oldest messages which were removed with {@link #drainTo(int, long)}, once they've been processed.
+	 * Does nothing when messages are kept in memory.
+	 * @param count the number of messages to commit
+	 */
+	public void commit(int count) {
+		if (file != null && count > 0) {
+			file.commit(count);
+		}
+	}
+
+	/**
+	 * @return the number of messages in the queue
+	 */
+	public int size() {
+		return (file != null) ? file.size() : q.size();
+	}
+
+	private String poll() {
+		String s = (file != null) ? file.poll() : q.poll();
+		if (s != null && permits != null) {
+			permits.release();
+		}
+		return StringUtils.isBlank(s) ? "" : s;
+	}
+
+	private boolean isEmpty() {
+		return (file != null) ? file.size() == 0 : q.isEmpty();
+	}
+
+	private boolean acquire() {
+		if (permits == null) {
+			return true;
+		}
+		try {
+			// waiting gives the river time to catch up, but not forever, since the river may push messages too
+			return pushTimeoutMs > 0 ? permits.tryAcquire(pushTimeoutMs, TimeUnit.MILLISECONDS) : permits.tryAcquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
 	}
 
 	@Override
@@ -94,23 +251,29 @@ public class LocalQueue implements Queue {
 	}
 
 	/**
-	 * Starts polling for messages from SQS in a separate thread.
+	 * Starts polling for messages from the local queue in a separate thread.
 	 * @param queue a queue instance
 	 */
-	static void startPollingForMessages(Queue queue) {
+	static void startPollingForMessages(LocalQueue queue) {
 		if (pollingTask == null) {
 			logger.info("Starting local river (polling interval: {}s)", POLLING_INTERVAL);
 			pollingTask = Para.getExecutorService().submit(new River() {
 				List<String> pullMessages() {
-					String msg;
-					ArrayList<String> msgs = new ArrayList<String>(MAX_MESSAGES);
-					do {
-						msg = queue.pull();
-						if (!StringUtils.isBlank(msg)) {
-							msgs.add(msg);
-						}
-					} while (!StringUtils.isBlank(msg) && msgs.size() <= MAX_MESSAGES);
-					return msgs;
+					try {
+						// wakes up as soon as a message is pushed, so there's no need to sleep between polls
+						return queue.drainTo(MAX_MESSAGES, TimeUnit.SECONDS.toMillis(Math.max(1, POLLING_INTERVAL)));
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return Collections.emptyList();
+					}
+				}
+
+				boolean waitsForMessages() {
+					return true;
+				}
+
+				void commitMessages(int count) {
+					queue.commit(count);
 				}
 			});
 			Para.addDestroyListener(new DestroyListener() {
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.queue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A queue of messages stored in memory-mapped segment files. Messages are appended to the last segment and read
+ * from the first one. Reading a message doesn't remove it, it has to be committed with {@link #commit(int)} once it
+ * has been processed. The committed position is kept in a separate mapped file, reading resumes from it after a
+ * restart, so messages which were read but not committed are read again. Segments are deleted once all of their
+ * messages have been committed. Each message is stored as its length followed by its UTF-8 bytes. The
+ * length is written last, so a message cut short by a crash is ignored. Written messages survive a crash of the
+ * process, but not necessarily of the OS, since the files are not synced to disk on every write.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class MappedFileQueue {
+
+	private static final Logger logger = LoggerFactory.getLogger(MappedFileQueue.class);
+	private static final String SUFFIX = ".seg";
+	private static final String OFFSET_FILE = "offset";
+
+	private final Path dir;
+	private final int segmentSize;
+	private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+	private final MappedByteBuffer offset;
+	private long readSegment;
+	private int readPos;
+	private long commitSegment;
+	private int commitPos;
+	private long writeSegment;
+	private int writePos;
+	private int size;
+
+	/**
+	 * Opens the queue in a directory, creating it if it doesn't exist.
+	 * @param dir the directory of the segment files
+	 * @param segmentSize the size of a segment file in bytes
+	 * @throws IOException if the files can't be opened
+	 */
+	MappedFileQueue(Path dir, int segmentSize) throws IOException {
+		this.dir = Files.createDirectories(dir);
+		this.segmentSize = Math.max(4096, segmentSize);
+		this.offset = map(dir.resolve(OFFSET_FILE), 2 * Long.BYTES);
+		try (Stream<Path> files = Files.list(dir)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				String name = file.getFileName().toString();
+				if (name.endsWith(SUFFIX)) {
+					segments.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())),
+							map(file, (int) Files.size(file)));
+				}
+			}
+		}
+		commitSegment = offset.getLong(0);
+		commitPos = (int) offset.getLong(Long.BYTES);
+		if (segments.isEmpty()) {
+			commitSegment = 0;
+			commitPos = 0;
+			segments.put(0L, map(segmentFile(0), this.segmentSize));
+		} else if (!segments.containsKey(commitSegment)) {
+			commitSegment = segments.firstKey();
+			commitPos = 0;
+		}
+		// messages which were read, but not committed before a restart are read again
+		readSegment = commitSegment;
+		readPos = commitPos;
+		// drop segments which were fully committed before a restart, but not deleted
+		for (Long id : new ArrayList<>(segments.headMap(commitSegment).keySet())) {
+			deleteSegment(id);
+		}
+		writeSegment = segments.lastKey();
+		writePos = 0;
+		MappedByteBuffer last = segments.get(writeSegment);
+		while (recordLength(last, writePos) > 0) {
+			writePos += Integer.BYTES + recordLength(last, writePos);
+		}
+		size = countFrom(readSegment, readPos);
+		saveOffset();
+	}
+
+	/**
+	 * Appends a message.
+	 * @param message the message
+	 * @throws IOException if a new segment can't be created
+	 */
+	synchronized void add(String message) throws IOException {
+		byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+		MappedByteBuffer segment = segments.get(writeSegment);
+		if (writePos + Integer.BYTES + bytes.length > segment.capacity()) {
+			// map the new segment first, so a failure leaves the queue as it was
+			segment = map(segmentFile(writeSegment + 1), Math.max(segmentSize, Integer.BYTES + bytes.length));
+			writeSegment++;
+			writePos = 0;
+			segments.put(writeSegment, segment);
+		}
+		ByteBuffer buffer = segment.duplicate();
+		buffer.position(writePos + Integer.BYTES);
+		buffer.put(bytes);
+		segment.putInt(writePos, bytes.length);
+		writePos += Integer.BYTES + bytes.length;
+		size++;
+	}
+
+	/**
+	 * Reads the next message. The message stays in the files until it is committed.
+	 * @return the message or null if there are no unread messages
+	 */
+	synchronized String poll() {
+		while (true) {
+			MappedByteBuffer segment = segments.get(readSegment);
+			int length = recordLength(segment, readPos);
+			if (length > 0) {
+				byte[] bytes = new byte[length];
+				ByteBuffer buffer = segment.duplicate();
+				buffer.position(readPos + Integer.BYTES);
+				buffer.get(bytes);
+				readPos += Integer.BYTES + length;
+				size--;
+				return new String(bytes, StandardCharsets.UTF_8);
+			}
+			if (readSegment >= writeSegment) {
+				return null;
+			}
+			// the rest of this segment is empty and the writer has moved on
+			readSegment = segments.higherKey(readSegment);
+			readPos = 0;
+		}
+	}
+
+	/**
+	 * Commits the oldest messages which were read, but not committed yet. Committed messages are not read again
+	 * after a restart. The count is capped at the number of messages which were read.
+	 * @param count the number of messages to commit
+	 */
+	synchronized void commit(int count) {
+		while (true) {
+			MappedByteBuffer segment = segments.get(commitSegment);
+			int length = recordLength(segment, commitPos);
+			boolean read = commitSegment < readSegment || commitPos < readPos;
+			if (length > 0) {
+				if (count <= 0 || !read) {
+					break;
+				}
+				commitPos += Integer.BYTES + length;
+				count--;
+			} else if (commitSegment < readSegment) {
+				// the reader has moved past the rest of this segment
+				long consumed = commitSegment;
+				commitSegment = segments.higherKey(commitSegment);
+				commitPos = 0;
+				saveOffset();
+				deleteSegment(consumed);
+			} else {
+				break;
+			}
+		}
+		saveOffset();
+	}
+
+	/**
+	 * @return the number of messages in the queue
+	 */
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of segment files
+	 */
+	synchronized int segmentCount() {
+		return segments.size();
+	}
+
+	private int countFrom(long segmentId, int pos) {
+		int count = 0;
+		for (MappedByteBuffer segment : segments.tailMap(segmentId).values()) {
+			while (recordLength(segment, pos) > 0) {
+				pos += Integer.BYTES + recordLength(segment, pos);
+				count++;
+			}
+			pos = 0;
+		}
+		return count;
+	}
+
+	private static int recordLength(MappedByteBuffer segment, int pos) {
+		if (pos + Integer.BYTES > segment.capacity()) {
+			return 0;
+		}
+		int length = segment.getInt(pos);
+		// zero means that nothing was written here yet
+		return (length > 0 && length <= segment.capacity() - pos - Integer.BYTES) ? length : 0;
+	}
+
+	private void saveOffset() {
+		offset.putLong(0, commitSegment);
+		offset.putLong(Long.BYTES, commitPos);
+	}
+
+	private void deleteSegment(long id) {
+		segments.remove(id);
+		try {
+			Files.deleteIfExists(segmentFile(id));
+		} catch (IOException e) {
+			logger.warn("Failed to delete queue segment {}: {}", segmentFile(id), e.getMessage());
+		}
+	}
+
+	private Path segmentFile(long id) {
+		return dir.resolve(String.format("%019d", id) + SUFFIX);
+	}
+
+	private static MappedByteBuffer map(Path file, int size) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			// the mapping stays valid after the channel is closed
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+		}
+	}
+}
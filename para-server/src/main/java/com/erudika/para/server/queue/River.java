@@ -20,36 +20,29 @@ package com.erudika.para.server.queue;
 import com.erudika.para.core.App;
 import com.erudika.para.core.ParaObject;
 import com.erudika.para.core.Sysprop;
-import com.erudika.para.core.Webhook;
-import com.erudika.para.core.annotations.Locked;
+import com.erudika.para.core.metrics.Metrics;
 import com.erudika.para.core.utils.Config;
 import com.erudika.para.core.utils.Para;
 import com.erudika.para.core.utils.ParaObjectUtils;
-import com.erudika.para.core.utils.Utils;
 import com.erudika.para.server.utils.HealthUtils;
 import com.fasterxml.jackson.databind.ObjectReader;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
-import javax.ws.rs.core.HttpHeaders;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
-import org.apache.hc.client5.http.classic.methods.HttpPost;
-import org.apache.hc.client5.http.config.RequestConfig;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
-import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
-import org.apache.hc.core5.http.HttpRequest;
-import org.apache.hc.core5.http.HttpResponse;
-import org.apache.hc.core5.http.io.entity.StringEntity;
-import org.apache.hc.core5.http.protocol.HttpContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -61,17 +54,28 @@ import org.slf4j.LoggerFactory;
 public abstract class River implements Runnable {
 
 	private static final Logger logger = LoggerFactory.getLogger(River.class);
-	private static final CloseableHttpClient HTTP;
-	private static ConcurrentHashMap<String, Integer> pendingIds;
-
-	static {
-		int timeout = 10;
-		HTTP = HttpClientBuilder.create().
-				setConnectionReuseStrategy((HttpRequest hr, HttpResponse hr1, HttpContext hc) -> false).
-				setDefaultRequestConfig(RequestConfig.custom().
-						setConnectionRequestTimeout(timeout, TimeUnit.SECONDS).
-						build()).
-				build();
+	private static final ConcurrentHashMap<String, Integer> pendingIds = new ConcurrentHashMap<>();
+
+	private static final int PARTITION_CAPACITY = 1000;
+	private static final int MAX_BATCH = 100;
+
+	private final int workers;
+	private final LinkedList<Pull> uncommitted = new LinkedList<>();
+
+	/**
+	 * Default constructor. The number of workers is set by {@code para.river.workers}.
+	 */
+	public River() {
+		this(Para.getConfig().riverWorkers());
+	}
+
+	/**
+	 * Messages are divided between the workers by the hash of their appid, so messages for the same app are always
+	 * processed in order, by the same worker. Each worker collects the writes from its messages into its own batches.
+	 * @param workers the number of threads which process messages, if 1 messages are processed on the polling thread
+	 */
+	public River(int workers) {
+		this.workers = Math.max(1, workers);
 	}
 
 	/**
@@ -79,44 +83,87 @@ public abstract class River implements Runnable {
 	 */
 	abstract List<String> pullMessages();
 
+	/**
+	 * @return true if {@link #pullMessages()} waits for messages to arrive, so the river doesn't need to sleep
+	 * when the queue is empty
+	 */
+	boolean waitsForMessages() {
+		return false;
+	}
+
+	/**
+	 * Called once the messages which were pulled first have been processed, in the order they were pulled.
+	 * Queues which keep messages until they are acknowledged can remove them here.
+	 * @param count the number of processed messages, including those which couldn't be parsed
+	 */
+	void commitMessages(int count) {
+	}
+
+	/**
+	 * @return true if messages can be pulled and processed
+	 */
+	boolean isHealthy() {
+		return HealthUtils.getInstance().isHealthy();
+	}
+
 	/**
 	 * Starts the river.
 	 */
 	public void run() {
-		List<ParaObject> createList = new LinkedList<>();
-		List<ParaObject> updateList = new LinkedList<>();
-		List<ParaObject> deleteList = new LinkedList<>();
 		ObjectReader jreader = ParaObjectUtils.getJsonReader(Map.class);
+		Partition[] partitions = new Partition[workers];
+		for (int i = 0; i < workers; i++) {
+			partitions[i] = new Partition(i);
+		}
+		ExecutorService pool = (workers > 1) ? startWorkers(partitions) : null;
 		int idleCount = 0;
 
 		try {
 			while (!Thread.interrupted()) {
 				logger.debug("Waiting {}s for messages...", Para.getConfig().queuePollingIntervalSec());
-				int processedHooks = 0;
 				List<String> msgs = Collections.emptyList();
-				if (HealthUtils.getInstance().isHealthy()) {
+				List<Pending> pulled = new ArrayList<>();
+				boolean healthy = isHealthy();
+				boolean waited = false;
+				if (healthy) {
 					try {
 						msgs = pullMessages();
+						waited = waitsForMessages();
 						logger.debug("Pulled {} messages from queue.", msgs.size());
 
 						for (final String msg : msgs) {
 							logger.debug("Message from queue: {}", msg);
 							if (StringUtils.contains(msg, Config._APPID) && StringUtils.contains(msg, Config._TYPE)) {
-								processedHooks += parseAndCategorizeMessage(jreader.readValue(msg),
-										createList, updateList, deleteList);
+								pulled.add(new Pending(jreader.readValue(msg)));
 							}
 						}
 					} catch (Exception e) {
 						logger.error("Batch processing operation failed:", e);
 					}
 				}
+				if (!msgs.isEmpty()) {
+					// must happen before the messages are handed to the workers
+					track(new Pull(msgs.size(), pulled));
+				}
 
-				if (!createList.isEmpty() || !updateList.isEmpty() || !deleteList.isEmpty() || processedHooks > 0) {
-					logger.debug("River summary: {} created, {} updated, {} deleted, {} webhooks delivered.",
-							createList.size(), updateList.size(), deleteList.size(), processedHooks);
-					persistChanges(createList, updateList, deleteList);
+				if (pool == null) {
+					if (partitions[0].process(pulled) > 0) {
+						idleCount = 0;
+						continue;
+					}
+				} else if (!pulled.isEmpty()) {
+					for (Pending pending : pulled) {
+						partitions[Math.floorMod(pending.appid.hashCode(), workers)].put(pending);
+					}
 					idleCount = 0;
-				} else if (msgs.isEmpty()) {
+					continue;
+				}
+				if (!healthy) {
+					// nothing was pulled, so nothing was waited for either => back off until the checks pass
+					int sleep = Math.max(1, Para.getConfig().queuePollingWaitSec());
+					logger.debug("River is unhealthy. Sleeping for {}s...", sleep);
+					Thread.sleep(sleep * 1000L);
+				} else if (msgs.isEmpty() && !waited) {
 					idleCount++;
 					int sleep = Para.getConfig().queuePollingWaitSec();
 					// no tasks in queue => throttle down pull requests
@@ -129,11 +176,54 @@ public abstract class River implements Runnable {
 		} catch (InterruptedException ex) {
 			logger.info("River interrupted: {}", ex.getMessage());
 			Thread.currentThread().interrupt();
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+		}
+	}
+
+	private void track(Pull pull) {
+		synchronized (uncommitted) {
+			uncommitted.add(pull);
+		}
+		commitProcessed();
+	}
+
+	private void commitProcessed() {
+		int count = 0;
+		synchronized (uncommitted) {
+			// later pulls may be finished first by other workers, but they're only committed in order
+			while (!uncommitted.isEmpty() && uncommitted.getFirst().remaining.get() <= 0) {
+				count += uncommitted.removeFirst().size;
+			}
+			if (count > 0) {
+				try {
+					commitMessages(count);
+				} catch (Exception e) {
+					logger.error("Failed to commit {} messages:", count, e);
+				}
+			}
+		}
+	}
+
+	private ExecutorService startWorkers(Partition[] partitions) {
+		logger.info("Starting {} river workers.", partitions.length);
+		AtomicInteger threads = new AtomicInteger();
+		// a separate pool, because the workers run for as long as the river does
+		ExecutorService pool = Executors.newFixedThreadPool(partitions.length, r -> {
+			Thread t = new Thread(r, "para-river-worker-" + threads.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		for (Partition partition : partitions) {
+			pool.execute(partition);
 		}
+		return pool;
 	}
 
 	private int parseAndCategorizeMessage(Map<String, Object> parsed, List<ParaObject> createList,
-			List<ParaObject> updateList, List<ParaObject> deleteList) {
+			List<Map<String, Object>> updateList, List<ParaObject> deleteList) {
 		String id = parsed.containsKey(Config._ID) ? (String) parsed.get(Config._ID) : null;
 		String type = (String) parsed.get(Config._TYPE);
 		String appid = (String) parsed.get(Config._APPID);
@@ -159,8 +249,10 @@ public abstract class River implements Runnable {
 						createList.add(obj);
 					}
 				} else {
-					updateList.add(ParaObjectUtils.setAnnotatedFields(Para.getDAO().
-							read(appid, id), parsed, Locked.class));
+					// updates are applied as partial updates, without reading the whole object first
+					parsed.remove("_create");
+					parsed.remove("_delete");
+					updateList.add(parsed);
 				}
 			}
 		}
@@ -179,44 +271,8 @@ public abstract class River implements Runnable {
 			return 0;
 		}
 		try {
-			boolean urlEncoded = (boolean) parsed.get("urlEncoded");
-			String targetUrl = StringUtils.trimToEmpty((String) parsed.get("targetUrl"));
-			String payload = (String) parsed.get("payload");
-			Integer repeatDelivery = Math.abs(NumberUtils.toInt(parsed.get("repeatedDeliveryAttempts") + "", 1));
-			HttpPost postToTarget = new HttpPost(targetUrl);
-			postToTarget.addHeader("User-Agent", "Para Webhook Dispacher " + Para.getVersion());
-			postToTarget.setHeader(HttpHeaders.CONTENT_TYPE, urlEncoded ?
-					"application/x-www-form-urlencoded" : "application/json");
-			postToTarget.setHeader("X-Webhook-Signature", (String) parsed.get("signature"));
-			postToTarget.setHeader("X-Para-Event", (String) parsed.get("event"));
-			if (urlEncoded) {
-				postToTarget.setEntity(new StringEntity("payload=".concat(Utils.urlEncode(payload)),
-						Charset.forName(Para.getConfig().defaultEncoding())));
-			} else {
-				postToTarget.setEntity(new StringEntity(payload, Charset.forName(Para.getConfig().defaultEncoding())));
-			}
-			if (repeatDelivery > 100) {
-				repeatDelivery = 100;
-			}
-			IntStream.range(0, Math.max(1, repeatDelivery)).parallel().forEach(r -> {
-				String status = "";
-				try {
-					status = HTTP.execute(postToTarget, (resp1) -> {
-						if (resp1 != null && Math.abs(resp1.getCode() - 200) > 10) {
-							updateFailureCount(appid, id);
-							logger.info("Webhook {} delivery failed! {} responded with code {} {} instead of 2xx.", id,
-									targetUrl, resp1.getCode(), resp1.getReasonPhrase());
-							return resp1.getReasonPhrase();
-						} else {
-							logger.debug("Webhook {} delivered to {} successfully.", id, targetUrl);
-						}
-						return "OK";
-					});
-				} catch (Exception e) {
-					logger.info("Webhook {} not delivered! {} isn't responding. {}", id, targetUrl, status);
-				}
-			});
-			return 1;
+			// delivered asynchronously, so that slow endpoints don't hold up the processing of the queue
+			return WebhookDispatcher.getInstance().dispatch(appid, id, parsed) ? 1 : 0;
 		} catch (Exception e) {
 			logger.error("Webhook payload was not delivered:", e);
 		}
@@ -267,12 +323,20 @@ public abstract class River implements Runnable {
 		return 0;
 	}
 
-	private void persistChanges(List<ParaObject> createList, List<ParaObject> updateList, List<ParaObject> deleteList) {
+	private void persistChanges(List<ParaObject> createList, List<Map<String, Object>> updateList,
+			List<ParaObject> deleteList) {
 		if (!createList.isEmpty()) {
 			Para.getDAO().createAll(createList);
 		}
-		if (!updateList.isEmpty()) {
-			Para.getDAO().updateAll(updateList);
+		for (Map<String, Object> changes : coalesceUpdates(updateList)) {
+			String appid = (String) changes.get(Config._APPID);
+			String id = (String) changes.get(Config._ID);
+			Long version = changes.containsKey(Config._VERSION) ?
+					NumberUtils.toLong(String.valueOf(changes.get(Config._VERSION)), 0L) : null;
+			if (Para.getDAO().patch(appid, id, changes, version) == null) {
+				logger.warn("Partial update of object {}/{} from queue failed - object not found or version mismatch.",
+						appid, id);
+			}
 		}
 		if (!deleteList.isEmpty()) {
 			Para.getDAO().deleteAll(deleteList);
@@ -282,6 +346,37 @@ public abstract class River implements Runnable {
 		deleteList.clear();
 	}
 
+	/**
+	 * Merges updates to the same object from the same batch, so that each object is written once. An update with a
+	 * version is never merged into an earlier update, because it depends on that update being applied first, and
+	 * nothing is merged into an update with a version, because the whole update is dropped if the version check fails.
+	 * @param updates a list of partial updates, in the order they were pulled from the queue
+	 * @return a list of partial updates
+	 */
+	static List<Map<String, Object>> coalesceUpdates(List<Map<String, Object>> updates) {
+		if (updates.size() < 2) {
+			return updates;
+		}
+		List<Map<String, Object>> coalesced = new ArrayList<>(updates.size());
+		Map<String, Map<String, Object>> latest = new HashMap<>(updates.size());
+		for (Map<String, Object> changes : updates) {
+			String key = changes.get(Config._APPID) + Para.getConfig().separator() + changes.get(Config._ID);
+			Map<String, Object> previous = latest.get(key);
+			if (previous != null && !previous.containsKey(Config._VERSION) && !changes.containsKey(Config._VERSION)) {
+				previous.putAll(changes);
+			} else {
+				Map<String, Object> merged = new LinkedHashMap<>(changes);
+				coalesced.add(merged);
+				latest.put(key, merged);
+			}
+		}
+		if (coalesced.size() < updates.size()) {
+			Metrics.counter(Para.getConfig().getRootAppIdentifier(), River.class, "coalesced_updates").
+					inc(updates.size() - coalesced.size());
+		}
+		return coalesced;
+	}
+
 	@SuppressWarnings("unchecked")
 	private void indexAllWithRetry(String appid, Object payload) {
 		List<String> ids = (List<String>) Optional.ofNullable(payload).orElse(Collections.emptyList());
@@ -290,9 +385,6 @@ public abstract class River implements Runnable {
 		Para.getSearch().indexAll(appid, objs.values().stream().filter(v -> v != null).collect(Collectors.toList()));
 
 		if (objs.containsValue(null)) {
-			if (pendingIds == null) {
-				pendingIds = new ConcurrentHashMap<>();
-			}
 			objs.entrySet().stream().filter(entry -> (entry.getValue() == null)).forEachOrdered(entry -> {
 				pendingIds.putIfAbsent(entry.getKey(), 1);
 			});
@@ -343,25 +435,113 @@ public abstract class River implements Runnable {
 		}).collect(Collectors.toList());
 	}
 
-	private void updateFailureCount(String appid, String id) {
-		// count failed delivieries and disable that webhook object after X failed attempts
-		String countId = "failed_webhook_count" + Para.getConfig().separator() + id;
-		Integer count = Para.getCache().get(appid, countId);
-		if (count == null) {
-			count = 0;
+	/**
+	 * A parsed message waiting to be processed.
+	 */
+	private static final class Pending {
+		private final Map<String, Object> message;
+		private final String appid;
+		private Metrics.Context lag;
+		private Pull pull;
+
+		Pending(Map<String, Object> message) {
+			this.message = message;
+			this.appid = StringUtils.trimToEmpty((String) message.get(Config._APPID));
+		}
+	}
+
+	/**
+	 * The messages returned by one call to {@link #pullMessages()}, committed once all of them are processed.
+	 */
+	private static final class Pull {
+		private final int size;
+		private final AtomicInteger remaining;
+
+		Pull(int size, List<Pending> pulled) {
+			this.size = size;
+			this.remaining = new AtomicInteger(pulled.size());
+			for (Pending pending : pulled) {
+				pending.pull = this;
+			}
+		}
+	}
+
+	/**
+	 * The messages of a subset of apps, processed by one worker, in order.
+	 */
+	private final class Partition implements Runnable {
+		private final BlockingQueue<Pending> inbox = new LinkedBlockingQueue<>(PARTITION_CAPACITY);
+		private final List<ParaObject> createList = new LinkedList<>();
+		private final List<Map<String, Object>> updateList = new LinkedList<>();
+		private final List<ParaObject> deleteList = new LinkedList<>();
+		private final String name;
+
+		Partition(int index) {
+			this.name = "partition" + index;
+		}
+
+		void put(Pending pending) throws InterruptedException {
+			pending.lag = Metrics.time(null, River.class, name, "lag");
+			// blocks the polling thread when this worker falls too far behind
+			inbox.put(pending);
+			Metrics.counter(Para.getConfig().getRootAppIdentifier(), River.class, name, "backlog").inc();
+		}
+
+		public void run() {
+			List<Pending> batch = new ArrayList<>(MAX_BATCH);
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					batch.add(inbox.take());
+					inbox.drainTo(batch, MAX_BATCH - 1);
+					process(batch);
+					batch.clear();
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			// finish the messages which were already pulled from the queue
+			inbox.drainTo(batch);
+			process(batch);
 		}
-		if (count >= (Para.getConfig().maxFailedWebhookAttempts() - 1)) {
-			Webhook hook = Para.getDAO().read(appid, id);
-			if (hook != null) {
-				hook.setActive(false);
-				hook.setTooManyFailures(true);
-				Para.getDAO().update(appid, hook);
-				Para.getCache().remove(appid, countId);
-				logger.info("Webhook {} was disabled - a maximum of {} failed deliveries was reached.",
-						id, Para.getConfig().maxFailedWebhookAttempts());
+
+		int process(List<Pending> batch) {
+			int processedHooks = 0;
+			for (Pending pending : batch) {
+				try {
+					processedHooks += parseAndCategorizeMessage(pending.message, createList, updateList, deleteList);
+				} catch (Exception e) {
+					logger.error("Batch processing operation failed:", e);
+				}
+				if (pending.lag != null) {
+					// the time from being pulled from the queue to being processed
+					pending.lag.close();
+					Metrics.counter(Para.getConfig().getRootAppIdentifier(), River.class, name, "backlog").dec();
+				}
+			}
+			int processed = createList.size() + updateList.size() + deleteList.size() + processedHooks;
+			if (processed > 0) {
+				logger.debug("River summary: {} created, {} updated, {} deleted, {} webhooks delivered.",
+						createList.size(), updateList.size(), deleteList.size(), processedHooks);
+				try {
+					persistChanges(createList, updateList, deleteList);
+				} catch (Exception e) {
+					logger.error("Batch processing operation failed:", e);
+					createList.clear();
+					updateList.clear();
+					deleteList.clear();
+				}
+			}
+			// failed messages are dropped, as before, so they don't hold back the messages pulled after them
+			boolean done = false;
+			for (Pending pending : batch) {
+				if (pending.pull != null && pending.pull.remaining.decrementAndGet() <= 0) {
+					done = true;
+				}
+			}
+			if (done) {
+				commitProcessed();
 			}
-		} else {
-			Para.getCache().put(appid, countId, ++count);
+			return processed;
 		}
 	}
 }
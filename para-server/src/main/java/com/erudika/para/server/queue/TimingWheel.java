@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.queue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timing wheel for scheduling large numbers of delayed tasks, like retries, cheaply. Tasks are put in
+ * the slot of the tick at which they are due and a single periodic task advances the wheel, handing the due tasks
+ * over to an executor. Tasks with delays longer than one turn of the wheel wait for the extra turns in their slot.
+ * Tasks run up to one tick late.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class TimingWheel {
+
+	private static final Logger logger = LoggerFactory.getLogger(TimingWheel.class);
+
+	private final long tickMillis;
+	private final List<LinkedList<Timeout>> slots;
+	private final Executor executor;
+	private final ScheduledFuture<?> ticker;
+	private long tick;
+	private boolean stopped;
+
+	/**
+	 * @param tickMillis the duration of a tick
+	 * @param size the number of slots in the wheel
+	 * @param scheduler the scheduler which advances the wheel
+	 * @param executor the executor which runs the due tasks
+	 */
+	TimingWheel(long tickMillis, int size, ScheduledExecutorService scheduler, Executor executor) {
+		this.tickMillis = Math.max(1L, tickMillis);
+		this.executor = executor;
+		this.slots = new ArrayList<>(size);
+		for (int i = 0; i < Math.max(1, size); i++) {
+			slots.add(new LinkedList<>());
+		}
+		this.ticker = scheduler.scheduleAtFixedRate(this::advance, this.tickMillis, this.tickMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Schedules a task.
+	 * @param task the task
+	 * @param delayMillis the delay after which it runs
+	 * @return false if the wheel was stopped and the task won't run
+	 */
+	synchronized boolean schedule(Runnable task, long delayMillis) {
+		if (stopped) {
+			return false;
+		}
+		long ticks = Math.max(1L, (delayMillis + tickMillis - 1) / tickMillis);
+		int slot = (int) ((tick + ticks) % slots.size());
+		slots.get(slot).add(new Timeout(task, (ticks - 1) / slots.size()));
+		return true;
+	}
+
+	/**
+	 * @return the number of tasks waiting
+	 */
+	synchronized int size() {
+		return slots.stream().mapToInt(List::size).sum();
+	}
+
+	/**
+	 * Stops the wheel. Tasks which are not due yet never run.
+	 * @return the tasks which were waiting
+	 */
+	synchronized List<Runnable> stop() {
+		stopped = true;
+		ticker.cancel(false);
+		List<Runnable> pending = new ArrayList<>();
+		for (LinkedList<Timeout> slot : slots) {
+			slot.forEach(timeout -> pending.add(timeout.task));
+			slot.clear();
+		}
+		return pending;
+	}
+
+	private void advance() {
+		List<Runnable> due = new ArrayList<>();
+		synchronized (this) {
+			tick++;
+			Iterator<Timeout> timeouts = slots.get((int) (tick % slots.size())).iterator();
+			while (timeouts.hasNext()) {
+				Timeout timeout = timeouts.next();
+				if (timeout.rounds <= 0) {
+					due.add(timeout.task);
+					timeouts.remove();
+				} else {
+					timeout.rounds--;
+				}
+			}
+		}
+		for (Runnable task : due) {
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException e) {
+				logger.warn("Scheduled task was rejected: {}", e.getMessage());
+			}
+		}
+	}
+
+	private static final class Timeout {
+		private final Runnable task;
+		private long rounds;
+
+		Timeout(Runnable task, long rounds) {
+			this.task = task;
+			this.rounds = rounds;
+		}
+	}
+}
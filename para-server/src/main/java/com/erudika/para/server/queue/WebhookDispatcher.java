@@ -0,0 +1,415 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.queue;
+
+import com.erudika.para.core.Webhook;
+import com.erudika.para.core.metrics.Metrics;
+import com.erudika.para.core.utils.Para;
+import com.erudika.para.core.utils.ParaObjectUtils;
+import com.erudika.para.core.utils.Utils;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers webhook payloads asynchronously. Requests are sent with a non-blocking HTTP client which keeps a small
+ * pool of connections for each host, so that a slow or unresponsive endpoint can't hold up deliveries to other
+ * endpoints or the thread which pulls messages from the queue. Failed deliveries are retried with exponential
+ * backoff and deliveries which fail all retries are appended to a dead letter file. A webhook which keeps failing
+ * is paused for a while (circuit breaker), instead of receiving more requests which would most likely fail too.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class WebhookDispatcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(WebhookDispatcher.class);
+	private static final long MAX_RETRY_DELAY_MS = TimeUnit.MINUTES.toMillis(30);
+	private static final long MAX_DEFERRAL_MS = TimeUnit.HOURS.toMillis(24);
+	private static final int MAX_REPEATED_DELIVERIES = 100;
+	private static WebhookDispatcher instance;
+
+	private final CloseableHttpAsyncClient client;
+	private final TimingWheel retries;
+	private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+	private final int maxRetries;
+	private final long retryDelayMs;
+	private final int breakerThreshold;
+	private final long breakerCooldownMs;
+	private final Path deadLetterFile;
+	private volatile boolean closed;
+
+	/**
+	 * @param maxConnsPerHost the maximum number of concurrent requests to the same host
+	 * @param timeoutSec the request timeout in seconds
+	 * @param maxRetries the number of retries before a delivery is dead-lettered
+	 * @param retryDelayMs the delay before the first retry, doubled for each following retry
+	 * @param breakerThreshold the number of consecutive failures which pause deliveries to a webhook
+	 * @param breakerCooldownMs the pause in milliseconds
+	 * @param deadLetterFile the file where failed deliveries are saved
+	 */
+	public WebhookDispatcher(int maxConnsPerHost, int timeoutSec, int maxRetries, long retryDelayMs,
+			int breakerThreshold, long breakerCooldownMs, Path deadLetterFile) {
+		this.maxRetries = Math.max(0, maxRetries);
+		this.retryDelayMs = Math.max(1L, retryDelayMs);
+		this.breakerThreshold = Math.max(1, breakerThreshold);
+		this.breakerCooldownMs = Math.max(0L, breakerCooldownMs);
+		this.deadLetterFile = deadLetterFile;
+		Timeout timeout = Timeout.ofSeconds(Math.max(1, timeoutSec));
+		this.client = HttpAsyncClients.custom().
+				setConnectionManager(PoolingAsyncClientConnectionManagerBuilder.create().
+						setMaxConnPerRoute(Math.max(1, maxConnsPerHost)).
+						setMaxConnTotal(Math.max(200, maxConnsPerHost)).
+						setDefaultConnectionConfig(ConnectionConfig.custom().
+								setConnectTimeout(timeout).
+								setSocketTimeout(timeout).
+								build()).
+						build()).
+				setDefaultRequestConfig(RequestConfig.custom().
+						setConnectionRequestTimeout(timeout).
+						setResponseTimeout(timeout).
+						build()).
+				build();
+		this.client.start();
+		// a tick of a fraction of the first retry delay, between 10ms and 1s, and about an hour per turn at most
+		long tick = Math.min(1000L, Math.max(10L, this.retryDelayMs / 4));
+		this.retries = new TimingWheel(tick, 4096, Para.getScheduledExecutorService(), this::execute);
+	}
+
+	/**
+	 * Returns the dispatcher configured with the {@code para.webhooks_*} settings.
+	 * @return an instance of this class
+	 */
+	public static synchronized WebhookDispatcher getInstance() {
+		if (instance == null) {
+			instance = new WebhookDispatcher(Para.getConfig().webhooksMaxConnectionsPerHost(),
+					Para.getConfig().webhooksTimeoutSec(),
+					Para.getConfig().webhooksMaxRetries(),
+					Para.getConfig().webhooksRetryDelayMs(),
+					Para.getConfig().webhooksCircuitBreakerThreshold(),
+					TimeUnit.SECONDS.toMillis(Para.getConfig().webhooksCircuitBreakerCooldownSec()),
+					Paths.get(Para.getConfig().webhooksDeadLetterFile()));
+			Para.addDestroyListener(instance::close);
+		}
+		return instance;
+	}
+
+	/**
+	 * Sends a webhook payload to its target URL, without waiting for the response.
+	 * @param appid appid
+	 * @param webhookId the id of the webhook
+	 * @param parsed the payload with metadata, as sent to the queue by {@link Webhook}
+	 * @return true if the payload was accepted for delivery
+	 */
+	public boolean dispatch(String appid, String webhookId, Map<String, Object> parsed) {
+		if (closed || parsed == null || StringUtils.isBlank(webhookId) ||
+				StringUtils.isBlank((String) parsed.get("targetUrl"))) {
+			return false;
+		}
+		int repeat = Math.abs(NumberUtils.toInt(parsed.get("repeatedDeliveryAttempts") + "", 1));
+		for (int i = 0; i < Math.min(Math.max(1, repeat), MAX_REPEATED_DELIVERIES); i++) {
+			send(new Delivery(appid, webhookId, parsed));
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of deliveries waiting to be retried
+	 */
+	public int getPendingRetries() {
+		return retries.size();
+	}
+
+	/**
+	 * Stops the dispatcher. Deliveries waiting to be retried are saved to the dead letter file.
+	 */
+	public void close() {
+		closed = true;
+		for (Runnable pending : retries.stop()) {
+			if (pending instanceof Delivery) {
+				writeDeadLetter((Delivery) pending, "shutdown");
+			}
+		}
+		client.close(CloseMode.GRACEFUL);
+	}
+
+	private void send(Delivery delivery) {
+		CircuitBreaker breaker = breakers.computeIfAbsent(delivery.webhookId, k -> new CircuitBreaker());
+		long wait = breaker.acquire(System.currentTimeMillis());
+		if (wait > 0) {
+			defer(delivery, wait);
+			return;
+		}
+		Metrics.Context timer = Metrics.time(delivery.appid, WebhookDispatcher.class, "delivery");
+		try {
+			client.execute(delivery.toRequest(), new FutureCallback<SimpleHttpResponse>() {
+				public void completed(SimpleHttpResponse response) {
+					timer.close();
+					if (response.getCode() >= 200 && response.getCode() < 300) {
+						breaker.success();
+						Metrics.counter(delivery.appid, WebhookDispatcher.class, "delivered").inc();
+						logger.debug("Webhook {} delivered to {} successfully.", delivery.webhookId, delivery.targetUrl);
+					} else {
+						onFailure(delivery, breaker, delivery.targetUrl + " responded with code " + response.getCode() +
+								" " + StringUtils.trimToEmpty(response.getReasonPhrase()) + " instead of 2xx");
+					}
+				}
+
+				public void failed(Exception ex) {
+					timer.close();
+					onFailure(delivery, breaker, delivery.targetUrl + " isn't responding - " +
+							ex.getMessage());
+				}
+
+				public void cancelled() {
+					timer.close();
+					onFailure(delivery, breaker, "request was cancelled");
+				}
+			});
+		} catch (Exception e) {
+			timer.close();
+			onFailure(delivery, breaker, e.getMessage());
+		}
+	}
+
+	private void onFailure(Delivery delivery, CircuitBreaker breaker, String reason) {
+		breaker.failure(System.currentTimeMillis());
+		Metrics.counter(delivery.appid, WebhookDispatcher.class, "delivery_failures").inc();
+		logger.info("Webhook {} delivery failed (attempt {}): {}.", delivery.webhookId, delivery.attempts + 1, reason);
+		retryOrDeadLetter(delivery, reason);
+	}
+
+	private void retryOrDeadLetter(Delivery delivery, String reason) {
+		if (closed) {
+			writeDeadLetter(delivery, "shutdown");
+			return;
+		}
+		if (delivery.attempts >= maxRetries) {
+			writeDeadLetter(delivery, reason);
+			// count failed deliveries and disable that webhook object after X failed attempts
+			Para.asyncExecute(() -> updateFailureCount(delivery.appid, delivery.webhookId));
+			return;
+		}
+		long delay = backoff(delivery.attempts);
+		delivery.attempts++;
+		Metrics.counter(delivery.appid, WebhookDispatcher.class, "delivery_retries").inc();
+		if (!retries.schedule(delivery, delay)) {
+			writeDeadLetter(delivery, "shutdown");
+		}
+	}
+
+	/**
+	 * Postpones a delivery while the circuit breaker is open. Nothing was sent, so it doesn't count as an attempt.
+	 */
+	private void defer(Delivery delivery, long wait) {
+		if (closed) {
+			writeDeadLetter(delivery, "shutdown");
+			return;
+		}
+		if (System.currentTimeMillis() - delivery.created > MAX_DEFERRAL_MS) {
+			writeDeadLetter(delivery, "circuit breaker is open");
+			return;
+		}
+		// spread the deferred deliveries out, so that they don't all arrive when the circuit closes
+		long delay = wait + ThreadLocalRandom.current().nextLong(wait / 2 + 1);
+		Metrics.counter(delivery.appid, WebhookDispatcher.class, "delivery_deferrals").inc();
+		if (!retries.schedule(delivery, delay)) {
+			writeDeadLetter(delivery, "shutdown");
+		}
+	}
+
+	private long backoff(int attempt) {
+		long delay = Math.min(MAX_RETRY_DELAY_MS, retryDelayMs << Math.min(attempt, 30));
+		// spread retries out, so that many deliveries which failed together aren't retried together
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+	private void execute(Runnable task) {
+		if (closed && task instanceof Delivery) {
+			writeDeadLetter((Delivery) task, "shutdown");
+		} else {
+			task.run();
+		}
+	}
+
+	private synchronized void writeDeadLetter(Delivery delivery, String reason) {
+		Metrics.counter(delivery.appid, WebhookDispatcher.class, "dead_letters").inc();
+		logger.warn("Webhook {} was not delivered to {} after {} attempts and was moved to {}.", delivery.webhookId,
+				delivery.targetUrl, delivery.attempts + 1, deadLetterFile);
+		if (deadLetterFile == null) {
+			return;
+		}
+		Map<String, Object> line = new LinkedHashMap<>();
+		line.put("timestamp", System.currentTimeMillis());
+		line.put("appid", delivery.appid);
+		line.put("webhookId", delivery.webhookId);
+		line.put("targetUrl", delivery.targetUrl);
+		line.put("event", delivery.event);
+		line.put("attempts", delivery.attempts + 1);
+		line.put("reason", reason);
+		line.put("urlEncoded", delivery.urlEncoded);
+		line.put("signature", delivery.signature);
+		line.put("payload", delivery.payload);
+		try {
+			if (deadLetterFile.getParent() != null) {
+				Files.createDirectories(deadLetterFile.getParent());
+			}
+			try (BufferedWriter writer = Files.newBufferedWriter(deadLetterFile, StandardCharsets.UTF_8,
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+				writer.write(ParaObjectUtils.getJsonWriterNoIdent().writeValueAsString(line));
+				writer.newLine();
+			}
+		} catch (IOException e) {
+			logger.error("Failed to write webhook dead letter to {}: {}", deadLetterFile, e.getMessage());
+		}
+	}
+
+	private void updateFailureCount(String appid, String id) {
+		try {
+			String countId = "failed_webhook_count" + Para.getConfig().separator() + id;
+			Integer count = Para.getCache().get(appid, countId);
+			if (count == null) {
+				count = 0;
+			}
+			if (count >= (Para.getConfig().maxFailedWebhookAttempts() - 1)) {
+				Webhook hook = Para.getDAO().read(appid, id);
+				if (hook != null) {
+					hook.setActive(false);
+					hook.setTooManyFailures(true);
+					Para.getDAO().update(appid, hook);
+					Para.getCache().remove(appid, countId);
+					logger.info("Webhook {} was disabled - a maximum of {} failed deliveries was reached.",
+							id, Para.getConfig().maxFailedWebhookAttempts());
+				}
+			} else {
+				Para.getCache().put(appid, countId, ++count);
+			}
+		} catch (Exception e) {
+			logger.error("Failed to update the failure count of webhook " + id + ":", e);
+		}
+	}
+
+	/**
+	 * A single delivery of a payload, which is also the task that retries it.
+	 */
+	private final class Delivery implements Runnable {
+		private final String appid;
+		private final String webhookId;
+		private final String targetUrl;
+		private final String payload;
+		private final String signature;
+		private final String event;
+		private final boolean urlEncoded;
+		private final long created = System.currentTimeMillis();
+		private int attempts;
+
+		Delivery(String appid, String webhookId, Map<String, Object> parsed) {
+			this.appid = appid;
+			this.webhookId = webhookId;
+			this.targetUrl = StringUtils.trimToEmpty((String) parsed.get("targetUrl"));
+			this.payload = StringUtils.trimToEmpty((String) parsed.get("payload"));
+			this.signature = (String) parsed.get("signature");
+			this.event = (String) parsed.get("event");
+			this.urlEncoded = Boolean.TRUE.equals(parsed.get("urlEncoded"));
+		}
+
+		SimpleHttpRequest toRequest() {
+			Charset charset = Charset.forName(Para.getConfig().defaultEncoding());
+			SimpleRequestBuilder request = SimpleRequestBuilder.post(targetUrl).
+					setHeader("User-Agent", "Para Webhook Dispacher " + Para.getVersion()).
+					setHeader("X-Webhook-Signature", signature).
+					setHeader("X-Para-Event", event);
+			if (urlEncoded) {
+				request.setBody("payload=".concat(Utils.urlEncode(payload)),
+						ContentType.APPLICATION_FORM_URLENCODED.withCharset(charset));
+			} else {
+				request.setBody(payload, ContentType.APPLICATION_JSON.withCharset(charset));
+			}
+			return request.build();
+		}
+
+		public void run() {
+			send(this);
+		}
+	}
+
+	/**
+	 * Counts consecutive failed deliveries to a webhook. When they reach the threshold, deliveries are paused
+	 * for the cooldown period, after which one delivery is let through to check if the endpoint has recovered.
+	 */
+	private final class CircuitBreaker {
+		private int failures;
+		private long openUntil;
+		private boolean probing;
+
+		/**
+		 * @param now the current time
+		 * @return zero if a delivery can be sent now or the time to wait before trying again
+		 */
+		synchronized long acquire(long now) {
+			if (failures < breakerThreshold) {
+				return 0;
+			}
+			if (now < openUntil) {
+				return openUntil - now;
+			}
+			if (probing) {
+				return Math.max(1L, breakerCooldownMs);
+			}
+			probing = true;
+			return 0;
+		}
+
+		synchronized void success() {
+			failures = 0;
+			probing = false;
+		}
+
+		synchronized void failure(long now) {
+			failures++;
+			probing = false;
+			if (failures >= breakerThreshold) {
+				openUntil = now + breakerCooldownMs;
+			}
+		}
+	}
+}
@@ -1043,6 +1043,8 @@ public final class Api1 extends ResourceConfig {
 								int partNum = 0;
 								// find all objects even if there are more than 10000 users in the system
 								Pager pager = new Pager();
+								// oldest first, so objects created during the export are found at the end
+								pager.setDesc(false);
 								List<ParaObject> objects;
 								do {
 									objects = getDAO().readPage(app.getAppIdentifier(), pager);
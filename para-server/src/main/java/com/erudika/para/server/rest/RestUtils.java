@@ -259,9 +259,7 @@ public final class RestUtils {
 							vote(object, downvoterId, Votable.VoteValue.DOWN, expiresAfter, lockAfter);
 				}
 			}
-			if (voteSuccess) {
-				object.update();
-			}
+			// the vote count is incremented atomically by the DAO, so there's no need to update the whole object
 		}
 		return Response.ok(voteSuccess).build();
 	}
@@ -21,6 +21,7 @@ import com.erudika.para.core.utils.CoreUtils;
 import com.erudika.para.core.persistence.DAO;
 import com.erudika.para.core.persistence.MockDAO;
 import com.erudika.para.core.search.Search;
+import com.erudika.para.core.utils.Pager;
 import com.erudika.para.core.utils.Utils;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -108,6 +109,37 @@ public class ParaObjectTest {
 		assertNull(dao.read(l2.getId()));
 	}
 
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testGetChildrenByIndex() {
+		System.setProperty("para.dao.secondary_indexes", "*:parentid");
+		try {
+			Search search = mock(Search.class);
+			DAO dao = new MockDAO();
+			CoreUtils.getInstance().setDao(dao);
+			CoreUtils.getInstance().setSearch(search);
+
+			Sysprop parent = new Sysprop("parent");
+			parent.setAppid("childrenapp");
+			for (int i = 1; i <= 3; i++) {
+				Sysprop child = new Sysprop("child" + i);
+				child.setParentid(parent.getId());
+				dao.create("childrenapp", child);
+			}
+			// the default sort order (timestamp) and sorting by id are both read from the index
+			assertEquals(3, parent.getChildren("sysprop", new Pager(10)).size());
+			assertEquals(3, parent.getChildren("sysprop", new Pager(1, "id", false, 10)).size());
+			assertEquals(3, parent.getChildren("sysprop").size());
+			verifyNoInteractions(search);
+
+			// other sort orders need search
+			assertTrue(parent.getChildren("sysprop", new Pager(1, "name", false, 10)).isEmpty());
+			verify(search).findTerms(eq("childrenapp"), eq("sysprop"), any(Map.class), eq(true), any(Pager.class));
+		} finally {
+			System.clearProperty("para.dao.secondary_indexes");
+		}
+	}
+
 	@Test
 	public void testType() {
 		assertEquals("user", Utils.type(User.class));
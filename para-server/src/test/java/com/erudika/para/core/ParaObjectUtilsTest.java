@@ -21,6 +21,7 @@ import com.erudika.para.core.annotations.Stored;
 import static com.erudika.para.core.utils.ParaObjectUtils.getAnnotatedFields;
 import static com.erudika.para.core.utils.ParaObjectUtils.getAppidFromAuthHeader;
 import static com.erudika.para.core.utils.ParaObjectUtils.getCoreTypes;
+import static com.erudika.para.core.utils.ParaObjectUtils.getFingerprint;
 import static com.erudika.para.core.utils.ParaObjectUtils.setAnnotatedFields;
 import com.erudika.para.core.utils.Cat;
 import com.erudika.para.core.utils.CatDeserializer;
@@ -159,6 +160,29 @@ public class ParaObjectUtilsTest {
 		assertEquals("{\"key\":\"value\"}", dataFlat.get("nested"));
 	}
 
+	@Test
+	public void testGetFingerprint() {
+		assertNull(getFingerprint(null));
+		Sysprop s1 = new Sysprop("fp1");
+		s1.setName("name");
+		s1.addProperty("a", 1);
+		s1.addProperty("b", 2);
+		Sysprop s2 = new Sysprop("fp1");
+		s2.setName("name");
+		s2.addProperty("b", 2);
+		s2.addProperty("a", 1);
+		s2.setUpdated(12345L);
+		s2.setVersion(3L);
+		assertNotNull(getFingerprint(s1));
+		assertEquals(getFingerprint(s1), getFingerprint(s2));
+
+		s2.addProperty("c", 3);
+		assertFalse(getFingerprint(s1).equals(getFingerprint(s2)));
+		s2.removeProperty("c");
+		s2.setName("other");
+		assertFalse(getFingerprint(s1).equals(getFingerprint(s2)));
+	}
+
 	@Test
 	@SuppressWarnings("unchecked")
 	public void testSetAnnotatedFields() {
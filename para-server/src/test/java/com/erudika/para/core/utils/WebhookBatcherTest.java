@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.core.utils;
+
+import com.erudika.para.core.Sysprop;
+import com.erudika.para.core.Webhook;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class WebhookBatcherTest {
+
+	private static Webhook webhook(String id) {
+		Webhook webhook = new Webhook("https://example.com/" + id);
+		webhook.setId(id);
+		webhook.setAppid("batchapp");
+		webhook.setSecret("secret");
+		webhook.setBatchDelivery(true);
+		return webhook;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> parse(String json) throws Exception {
+		return ParaObjectUtils.getJsonReader(Map.class).readValue(json);
+	}
+
+	@Test
+	public void testFlushWhenFull() throws Exception {
+		List<String> sent = Collections.synchronizedList(new ArrayList<>());
+		WebhookBatcher batcher = new WebhookBatcher(3, 0, sent::add);
+		Webhook hook1 = webhook("hook1");
+		Webhook hook2 = webhook("hook2");
+		for (int i = 1; i <= 4; i++) {
+			batcher.add(hook1, "create", new Sysprop("obj" + i));
+		}
+		batcher.add(hook2, "update", new Sysprop("obj5"));
+		assertEquals(1, sent.size());
+		assertEquals(2, batcher.size());
+
+		Map<String, Object> msg = parse(sent.get(0));
+		assertEquals("hook1", msg.get(Config._ID));
+		assertEquals(Webhook.BATCH_EVENT, msg.get("event"));
+		String payload = (String) msg.get("payload");
+		assertEquals(Utils.hmacSHA256(payload, "secret"), msg.get("signature"));
+		List<Map<String, Object>> events = ParaObjectUtils.getJsonReader(List.class).readValue(payload);
+		assertEquals(3, events.size());
+		assertEquals("create", events.get(0).get("event"));
+		assertEquals("obj1", ((Map) ((List) events.get(0).get("items")).get(0)).get(Config._ID));
+
+		batcher.flushAll();
+		assertEquals(3, sent.size());
+		assertEquals(0, batcher.size());
+	}
+
+	@Test
+	public void testFlushAfterWindow() throws Exception {
+		List<String> sent = Collections.synchronizedList(new ArrayList<>());
+		WebhookBatcher batcher = new WebhookBatcher(100, 50, sent::add);
+		batcher.add(webhook("hook3"), "create", new Sysprop("obj1"));
+		batcher.add(webhook("hook3"), "delete", new Sysprop("obj2"));
+		assertTrue(sent.isEmpty());
+		long deadline = System.currentTimeMillis() + 5000;
+		while (sent.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, sent.size());
+		List<Map<String, Object>> events = ParaObjectUtils.getJsonReader(List.class).
+				readValue((String) parse(sent.get(0)).get("payload"));
+		assertEquals(2, events.size());
+		assertEquals(0, batcher.size());
+	}
+}
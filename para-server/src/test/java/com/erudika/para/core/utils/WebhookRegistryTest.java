@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.core.utils;
+
+import com.erudika.para.core.Sysprop;
+import com.erudika.para.core.Tag;
+import com.erudika.para.core.Webhook;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class WebhookRegistryTest {
+
+	private static Webhook webhook(String id, String typeFilter) {
+		Webhook webhook = new Webhook("https://example.com/" + id);
+		webhook.setId(id);
+		webhook.setTypeFilter(typeFilter);
+		webhook.setActive(true);
+		return webhook;
+	}
+
+	@Test
+	public void testSubscribersByEventAndType() {
+		Webhook all = webhook("all", "*");
+		all.setCreate(true);
+		all.setUpdate(true);
+		Webhook tags = webhook("tags", "Tag");
+		tags.setCreate(true);
+		tags.setCustomEvents(Arrays.asList("payment"));
+		Webhook inactive = webhook("inactive", null);
+		inactive.setCreate(true);
+		inactive.setActive(false);
+		AtomicInteger loads = new AtomicInteger();
+		WebhookRegistry registry = new WebhookRegistry(appid -> {
+			loads.incrementAndGet();
+			return "app1".equals(appid) ? Arrays.asList(all, tags, inactive) : Collections.emptyList();
+		}, 60000);
+
+		Tag tag = new Tag("tag1");
+		Sysprop sysprop = new Sysprop("s1");
+		assertEquals(Arrays.asList(all, tags), registry.getSubscribers("app1", "create", true, tag));
+		assertEquals(Arrays.asList(all, tags), registry.getSubscribers("app1", "create", true, Arrays.asList(tag)));
+		assertEquals(Arrays.asList(all), registry.getSubscribers("app1", "create", true, sysprop));
+		assertEquals(Arrays.asList(all), registry.getSubscribers("app1", "update", true, tag));
+		assertTrue(registry.getSubscribers("app1", "delete", true, tag).isEmpty());
+		assertEquals(Arrays.asList(tags), registry.getSubscribers("app1", "customEvents", "payment", tag));
+		assertTrue(registry.getSubscribers("app1", "customEvents", "payment", "not an object").isEmpty());
+		assertEquals(1, loads.get());
+
+		// apps without webhooks are loaded only once too
+		assertTrue(registry.getSubscribers("app2", "create", true, tag).isEmpty());
+		assertTrue(registry.getSubscribers("app2", "update", true, tag).isEmpty());
+		assertEquals(2, loads.get());
+
+		registry.invalidate("app1");
+		List<Webhook> subscribers = registry.getSubscribers("app1", "create", true, tag);
+		assertEquals(2, subscribers.size());
+		assertEquals(3, loads.get());
+	}
+
+	@Test
+	public void testExpiration() {
+		AtomicInteger loads = new AtomicInteger();
+		WebhookRegistry registry = new WebhookRegistry(appid -> {
+			loads.incrementAndGet();
+			return Collections.emptyList();
+		}, 0);
+		registry.getSubscribers("app1", "create", true, new Tag("tag1"));
+		registry.getSubscribers("app1", "create", true, new Tag("tag1"));
+		assertEquals(2, loads.get());
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.aop;
+
+import com.erudika.para.core.ParaObject;
+import com.erudika.para.core.Sysprop;
+import com.erudika.para.core.cache.MockCache;
+import com.erudika.para.core.persistence.DAO;
+import com.erudika.para.core.persistence.MockDAO;
+import com.erudika.para.core.search.MockSearch;
+import com.erudika.para.core.utils.Para;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.aopalliance.intercept.MethodInvocation;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class IndexAndCacheAspectTest {
+
+	private final AtomicInteger updates = new AtomicInteger();
+	private final MockDAO dao = new MockDAO() {
+		@Override
+		public <P extends ParaObject> void update(String appid, P so) {
+			updates.incrementAndGet();
+			super.update(appid, so);
+		}
+	};
+
+	private final List<String> indexed = new ArrayList<>();
+	private final MockSearch search = new MockSearch() {
+		@Override
+		public void index(String appid, ParaObject po) {
+			indexed.add(po.getId());
+		}
+	};
+
+	private IndexAndCacheAspect newAspect(boolean skipUnchanged, MockCache cache) {
+		System.setProperty("para.cache_enabled", "true");
+		System.setProperty("para.skip_unchanged_updates", Boolean.toString(skipUnchanged));
+		try {
+			IndexAndCacheAspect aspect = new IndexAndCacheAspect();
+			aspect.setCache(cache);
+			aspect.setSearch(search);
+			return aspect;
+		} finally {
+			System.clearProperty("para.skip_unchanged_updates");
+		}
+	}
+
+	private Object update(IndexAndCacheAspect aspect, String appid, ParaObject obj) throws Throwable {
+		System.setProperty("para.cache_enabled", "true");
+		try {
+			return aspect.invoke(invocation(DAO.class.getMethod("update", String.class, ParaObject.class), appid, obj));
+		} finally {
+			System.clearProperty("para.cache_enabled");
+		}
+	}
+
+	@Test
+	public void testUnchangedUpdatesAreSkipped() throws Throwable {
+		MockCache cache = new MockCache();
+		IndexAndCacheAspect aspect = newAspect(true, cache);
+		Sysprop s = new Sysprop("fp1");
+		s.setName("one");
+		dao.create("fpapp", s);
+
+		update(aspect, "fpapp", s);
+		assertEquals(1, updates.get());
+		update(aspect, "fpapp", s);
+		assertEquals(1, updates.get());
+		s.setName("two");
+		update(aspect, "fpapp", s);
+		assertEquals(2, updates.get());
+		// the same object in another app is a different object
+		update(aspect, "fpapp2", s);
+		assertEquals(3, updates.get());
+		// fingerprints are kept apart from the cached objects
+		assertFalse(cache.contains("fpapp", "fp1#fingerprint"));
+	}
+
+	@Test
+	public void testUpdatesChangedOnOtherNodesAreWritten() throws Throwable {
+		IndexAndCacheAspect aspect = newAspect(true, new MockCache());
+		Sysprop s = new Sysprop("fp3");
+		s.setName("one");
+		dao.create("fpapp", s);
+		update(aspect, "fpapp", s);
+		assertEquals(1, updates.get());
+
+		// another node changes the stored object, without going through this aspect
+		Sysprop other = new Sysprop("fp3");
+		other.setName("two");
+		dao.update("fpapp", other);
+		assertEquals(2, updates.get());
+
+		// the content matches the fingerprint seen by this node, but not the stored object
+		update(aspect, "fpapp", s);
+		assertEquals(3, updates.get());
+		assertEquals("one", dao.read("fpapp", "fp3").getName());
+	}
+
+	@Test
+	public void testUpdatesAreWrittenByDefault() throws Throwable {
+		IndexAndCacheAspect aspect = newAspect(false, new MockCache());
+		Sysprop s = new Sysprop("fp2");
+		s.setName("one");
+		dao.create("fpapp", s);
+		update(aspect, "fpapp", s);
+		update(aspect, "fpapp", s);
+		assertEquals(2, updates.get());
+	}
+
+	@Test
+	public void testNestedCallsAreHandledOnce() throws Throwable {
+		AtomicInteger puts = new AtomicInteger();
+		MockCache cache = new MockCache() {
+			@Override
+			public <T> void put(String appid, String id, T object) {
+				puts.incrementAndGet();
+				super.put(appid, id, object);
+			}
+		};
+		IndexAndCacheAspect aspect = newAspect(false, cache);
+		Sysprop s = new Sysprop("nested1");
+		s.setName("one");
+		dao.create("nestedapp", s);
+		// like the default DAO.patch(), which calls update() on the enhanced DAO
+		Method patch = DAO.class.getMethod("patch", String.class, String.class, Map.class, Long.class);
+		MethodInvocation outer = invocation(patch, () -> {
+			s.setName("two");
+			aspect.invoke(invocation(DAO.class.getMethod("update", String.class, ParaObject.class), "nestedapp", s));
+			return s;
+		}, "nestedapp", s.getId(), Collections.singletonMap("name", "two"), null);
+		System.setProperty("para.cache_enabled", "true");
+		try {
+			assertEquals(s, aspect.invoke(outer));
+		} finally {
+			System.clearProperty("para.cache_enabled");
+		}
+		assertEquals(1, updates.get());
+		assertEquals(1, puts.get());
+		assertEquals("two", ((Sysprop) cache.get("nestedapp", s.getId())).getName());
+
+		// calls which aren't nested are handled again
+		update(aspect, "nestedapp", s);
+		assertEquals(2, puts.get());
+	}
+
+	@Test
+	public void testOverloadsWithoutAppidAreHandled() throws Throwable {
+		IndexAndCacheAspect aspect = newAspect(false, new MockCache());
+		Sysprop s = new Sysprop("overload1");
+		s.setName("one");
+		String root = Para.getConfig().getRootAppIdentifier();
+		// like DAO.create(object), which calls create(appid, object) on the enhanced DAO
+		Method create = DAO.class.getMethod("create", ParaObject.class);
+		MethodInvocation outer = invocation(create, () -> aspect.invoke(invocation(DAO.class.
+				getMethod("create", String.class, ParaObject.class), root, s)), s);
+		System.setProperty("para.cache_enabled", "true");
+		try {
+			assertEquals(s.getId(), aspect.invoke(outer));
+		} finally {
+			System.clearProperty("para.cache_enabled");
+		}
+		assertEquals(Collections.singletonList(s.getId()), indexed);
+		assertTrue(aspect.getCache().contains(root, s.getId()));
+		assertEquals("one", ((Sysprop) dao.read(root, s.getId())).getName());
+	}
+
+	private MethodInvocation invocation(Method method, Object... args) {
+		return invocation(method, () -> method.invoke(dao, args), args);
+	}
+
+	private MethodInvocation invocation(Method method, Proceed proceed, Object... args) {
+		return new MethodInvocation() {
+			public Method getMethod() {
+				return method;
+			}
+
+			public Object[] getArguments() {
+				return args;
+			}
+
+			public Object proceed() throws Throwable {
+				return proceed.call();
+			}
+
+			public Object getThis() {
+				return dao;
+			}
+
+			public AccessibleObject getStaticPart() {
+				return method;
+			}
+		};
+	}
+
+	private interface Proceed {
+		Object call() throws Throwable;
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.cache;
+
+import com.erudika.para.core.ParaObject;
+import com.erudika.para.core.Sysprop;
+import com.erudika.para.core.persistence.MockDAO;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class CacheSnapshotTest {
+
+	private static CaffeineCache newCache() {
+		return new CaffeineCache(Caffeine.newBuilder().expireAfter(CaffeineCache.entryExpiry()).maximumSize(100),
+				0L, null, null, Collections.emptyMap());
+	}
+
+	@Test
+	public void testSaveAndRestore() throws Exception {
+		Path file = Files.createTempDirectory("para-cache-snapshot").resolve("snapshot.json");
+		long lifetime = TimeUnit.MINUTES.toMillis(10);
+		List<String> readIds = Collections.synchronizedList(new ArrayList<>());
+		MockDAO dao = new MockDAO() {
+			@Override
+			public <P extends ParaObject> Map<String, P> readAll(String appid, List<String> keys, boolean all) {
+				readIds.addAll(keys);
+				return super.readAll(appid, keys, all);
+			}
+		};
+		CaffeineCache cache1 = newCache();
+		for (int i = 1; i <= 3; i++) {
+			Sysprop s = new Sysprop("snap" + i);
+			s.setName("name" + i);
+			dao.create("snapapp", s);
+			cache1.put("snapapp", s.getId(), s);
+		}
+		cache1.put("snapapp", "str", "not an object");
+		assertEquals(0, (int) new CacheSnapshot(cache1, file, 10, false, lifetime).restore(dao).get());
+
+		// only ids and versions are saved, the objects are read again from the DB
+		assertEquals(3, new CacheSnapshot(cache1, file, 10, false, lifetime).save());
+		CaffeineCache cache2 = newCache();
+		assertEquals(3, (int) new CacheSnapshot(cache2, file, 10, false, lifetime).restore(dao).get());
+		assertEquals(3, readIds.size());
+		assertTrue(readIds.containsAll(List.of("snap1", "snap2", "snap3")));
+
+		// saved objects are put back in the cache as long as they haven't expired
+		readIds.clear();
+		assertEquals(3, new CacheSnapshot(cache1, file, 10, true, lifetime).save());
+		CaffeineCache cache3 = newCache();
+		assertEquals(3, (int) new CacheSnapshot(cache3, file, 10, true, lifetime).restore(dao).get());
+		assertTrue(readIds.isEmpty());
+		assertEquals("name2", ((Sysprop) cache3.get("snapapp", "snap2")).getName());
+		assertNull(cache3.get("snapapp", "str"));
+
+		CaffeineCache cache4 = newCache();
+		assertEquals(3, (int) new CacheSnapshot(cache4, file, 10, true, 0L).restore(dao).get());
+		assertEquals(3, readIds.size());
+		assertNull(cache4.get("snapapp", "snap2"));
+
+		Files.deleteIfExists(file);
+		Files.deleteIfExists(file.getParent());
+	}
+}
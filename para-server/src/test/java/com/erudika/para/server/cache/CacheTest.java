@@ -20,8 +20,10 @@ package com.erudika.para.server.cache;
 import com.erudika.para.core.cache.Cache;
 import com.erudika.para.core.User;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -178,4 +180,35 @@ public abstract class CacheTest {
 		c.removeAll();
 		assertFalse(c.contains("1234"));
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testGetWithLoader() throws Exception {
+		AtomicInteger loads = new AtomicInteger();
+		assertNull(c.get(testApp1, "", id -> "x"));
+		assertNull(c.get(testApp1, "missing", id -> null));
+		assertFalse(c.contains(testApp1, "missing"));
+		assertEquals("loaded_1", c.get(testApp1, "1", id -> {
+			loads.incrementAndGet();
+			return "loaded_" + id;
+		}));
+		assertEquals("loaded_1", c.get(testApp1, "1", id -> "reloaded_" + loads.incrementAndGet()));
+		assertEquals(1, loads.get());
+		assertTrue(c.contains(testApp1, "1"));
+
+		c.put(testApp1, "2", "cached_2");
+		Map<String, String> all = c.getAll(testApp1, Arrays.asList("1", "2", "3", "4"), ids -> {
+			assertEquals(Arrays.asList("3", "4"), ids);
+			Map<String, String> loaded = new HashMap<>();
+			loaded.put("3", "loaded_3");
+			loaded.put("4", null);
+			return loaded;
+		});
+		assertEquals(3, all.size());
+		assertEquals("loaded_1", all.get("1"));
+		assertEquals("cached_2", all.get("2"));
+		assertEquals("loaded_3", all.get("3"));
+		assertTrue(c.contains(testApp1, "3"));
+		assertFalse(c.contains(testApp1, "4"));
+		assertFalse(c.contains(testApp2, "3"));
+	}
+}
@@ -18,11 +18,28 @@
 package com.erudika.para.server.cache;
 
 import com.erudika.para.server.cache.CaffeineCache;
+import com.erudika.para.core.Sysprop;
+import com.erudika.para.core.Tag;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.Expiry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.apache.commons.lang3.StringUtils;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 
 /**
@@ -97,4 +114,205 @@ public class CaffeineCacheTest extends CacheTest {
 		assertNull(cache.get("app", "exp4"));
 	}
 
+	@Test
+	public void testRemoveAllFreesEntries() {
+		com.github.benmanes.caffeine.cache.Cache<String, Object> caffeine = Caffeine.newBuilder().
+				executor(Runnable::run).maximumSize(100).build();
+		CaffeineCache cache = new CaffeineCache(caffeine);
+		for (int i = 0; i < 10; i++) {
+			cache.put("app1", "obj" + i, "x" + i);
+			cache.put("app2", "obj" + i, "y" + i);
+		}
+		caffeine.cleanUp();
+		assertEquals(20, caffeine.estimatedSize());
+		assertEquals(3, cache.getAll("app1", Arrays.asList("obj0", "obj5", "obj9", "obj0")).size());
+
+		cache.removeAll("app1");
+		caffeine.cleanUp();
+		assertEquals(10, caffeine.estimatedSize());
+		assertNull(cache.get("app1", "obj0"));
+		assertEquals("y0", cache.get("app2", "obj0"));
+		assertEquals(10, cache.getAll("app2", Arrays.asList("obj0", "obj1", "obj2", "obj3", "obj4",
+				"obj5", "obj6", "obj7", "obj8", "obj9")).size());
+
+		cache.put("app1", "obj0", "z0");
+		assertEquals("z0", cache.get("app1", "obj0"));
+	}
+
+	@Test
+	public void testAppQuotas() {
+		com.github.benmanes.caffeine.cache.Cache<String, Object> caffeine = Caffeine.newBuilder().
+				executor(Runnable::run).maximumSize(1000).build();
+		CaffeineCache cache = new CaffeineCache(caffeine, 1000L);
+		String value = StringUtils.repeat("x", 50);
+		for (int i = 0; i < 20; i++) {
+			cache.put("app1", "obj" + i, value);
+		}
+		assertTrue(cache.getSize("app1") > 0);
+		assertTrue(cache.getSize("app1") <= 1000L);
+		assertEquals(cache.getSize("app1"), CaffeineCache.estimateSize(value) *
+				cache.getAll("app1", IntStream.range(0, 20).mapToObj(i -> "obj" + i).collect(Collectors.toList())).size());
+
+		cache.put("app2", "obj0", value);
+		assertEquals(CaffeineCache.estimateSize(value), cache.getSize("app2"));
+		assertTrue(cache.getSize("app1") > 0);
+
+		cache.remove("app2", "obj0");
+		assertEquals(0L, cache.getSize("app2"));
+		cache.removeAll("app1");
+		assertEquals(0L, cache.getSize("app1"));
+	}
+
+	@Test
+	public void testEstimateSize() {
+		Tag small = new Tag("small");
+		Sysprop big = new Sysprop("big");
+		big.addProperty("text", StringUtils.repeat("text ", 10000));
+		assertTrue(CaffeineCache.estimateSize(small) > 0);
+		assertTrue(CaffeineCache.estimateSize(big) > 50000);
+		assertTrue(CaffeineCache.estimateSize(big) > 100 * CaffeineCache.estimateSize("123"));
+	}
+
+	@Test
+	public void testEvictedObjectsMoveOffHeap() {
+		CaffeineCache cache = new CaffeineCache(Caffeine.newBuilder().executor(Runnable::run).maximumSize(5), 0L,
+				new OffHeapStore(1024 * 1024), null);
+		for (int i = 0; i < 50; i++) {
+			cache.put("app", "tag" + i, new Tag("tag" + i));
+		}
+		for (int i = 0; i < 50; i++) {
+			Tag tag = cache.get("app", "tag" + i);
+			assertNotNull(tag);
+			assertEquals("tag:tag" + i, tag.getId());
+		}
+		assertEquals(50, cache.getAll("app", IntStream.range(0, 50).mapToObj(i -> "tag" + i).
+				collect(Collectors.toList())).size());
+
+		cache.remove("app", "tag0");
+		assertNull(cache.get("app", "tag0"));
+		cache.removeAll("app");
+		assertNull(cache.get("app", "tag1"));
+		assertTrue(cache.getAll("app", Arrays.asList("tag2", "tag3")).isEmpty());
+	}
+
+	@Test
+	public void testRefreshAhead() throws InterruptedException {
+		assertTrue(CaffeineCache.getRefreshPolicies(" ").isEmpty());
+		Map<String, Integer> policies = CaffeineCache.getRefreshPolicies("sysprop:50, tag:0,*:x, user : 80");
+		assertEquals(2, policies.size());
+		assertEquals(50, (int) policies.get("sysprop"));
+		assertEquals(80, (int) policies.get("user"));
+
+		CaffeineCache cache = new CaffeineCache(Caffeine.newBuilder().expireAfter(CaffeineCache.entryExpiry())
+				.maximumSize(100), 0L, null, null, policies);
+		Sysprop s1 = new Sysprop("s1");
+		s1.setName("v1");
+		Tag t1 = new Tag("t1");
+		cache.put("app", s1.getId(), s1, 1L);
+		cache.put("app", t1.getId(), t1, 1L);
+		AtomicInteger loads = new AtomicInteger();
+
+		assertEquals("v1", ((Sysprop) cache.get("app", "s1", id -> null)).getName());
+		Thread.sleep(600);
+		Sysprop s2 = new Sysprop("s1");
+		s2.setName("v2");
+		// the stale object is returned while the new one is loaded in the background
+		assertEquals("v1", ((Sysprop) cache.get("app", "s1", id -> {
+			loads.incrementAndGet();
+			return s2;
+		})).getName());
+		assertNotNull(cache.get("app", t1.getId(), id -> {
+			loads.incrementAndGet();
+			return null;
+		}));
+		for (int i = 0; i < 100 && !"v2".equals(((Sysprop) cache.get("app", "s1")).getName()); i++) {
+			Thread.sleep(20);
+		}
+		assertEquals("v2", ((Sysprop) cache.get("app", "s1")).getName());
+		assertEquals(1, loads.get());
+		// the refreshed object has a new lifetime
+		Thread.sleep(600);
+		assertNotNull(cache.get("app", "s1"));
+	}
+
+	@Test
+	public void testInvalidationsReachOtherNodes() throws InterruptedException {
+		LocalInvalidationTransport transport1 = new LocalInvalidationTransport();
+		LocalInvalidationTransport transport2 = new LocalInvalidationTransport();
+		CaffeineCache node1 = new CaffeineCache(Caffeine.newBuilder().maximumSize(100), 0L, null, transport1);
+		CaffeineCache node2 = new CaffeineCache(Caffeine.newBuilder().maximumSize(100), 0L, null, transport2);
+		try {
+			node2.put("app", "obj1", "old1");
+			node2.put("app", "obj2", "old2");
+			node2.put("app", "obj3", "old3");
+			node2.put("app2", "obj1", "old1");
+			node1.put("app", "obj1", "new1");
+			node1.remove("app", "obj2");
+			assertTrue(awaitNull(node2, "app", "obj1"));
+			assertTrue(awaitNull(node2, "app", "obj2"));
+			assertEquals("new1", node1.get("app", "obj1"));
+			assertEquals("old3", node2.get("app", "obj3"));
+
+			node1.removeAll("app2");
+			assertTrue(awaitNull(node2, "app2", "obj1"));
+			assertEquals("old3", node2.get("app", "obj3"));
+		} finally {
+			transport1.close();
+			transport2.close();
+		}
+	}
+
+	private static boolean awaitNull(CaffeineCache cache, String appid, String id) throws InterruptedException {
+		for (int i = 0; i < 100 && cache.get(appid, id) != null; i++) {
+			Thread.sleep(20);
+		}
+		return cache.get(appid, id) == null;
+	}
+
+	@Test
+	public void testConcurrentMissesShareOneLoad() throws Exception {
+		int threads = 8;
+		AtomicInteger loads = new AtomicInteger();
+		AtomicInteger loadedIds = new AtomicInteger();
+		CaffeineCache cache = new CaffeineCache();
+		CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Object>> results = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				results.add(executor.submit(() -> {
+					start.await();
+					String one = cache.get("app", "hot", id -> {
+						loads.incrementAndGet();
+						sleep(100);
+						return "hot_value";
+					});
+					Map<String, String> all = cache.getAll("app", Arrays.asList("hot1", "hot2"), ids -> {
+						loadedIds.addAndGet(ids.size());
+						sleep(100);
+						Map<String, String> loaded = new HashMap<>();
+						ids.forEach(id -> loaded.put(id, id + "_value"));
+						return loaded;
+					});
+					return one + all.get("hot1") + all.get("hot2");
+				}));
+			}
+			start.countDown();
+			for (Future<Object> result : results) {
+				assertEquals("hot_valuehot1_valuehot2_value", result.get(10, TimeUnit.SECONDS));
+			}
+			assertEquals(1, loads.get());
+			assertEquals(2, loadedIds.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class InvalidationBusTest {
+
+	private LocalInvalidationTransport transport1;
+	private LocalInvalidationTransport transport2;
+	private final List<String> sent = new ArrayList<>();
+
+	@Before
+	public void setUp() {
+		transport1 = new LocalInvalidationTransport() {
+			@Override
+			public void publish(String message) {
+				sent.add(message);
+				super.publish(message);
+			}
+		};
+		transport2 = new LocalInvalidationTransport();
+	}
+
+	@After
+	public void tearDown() {
+		transport1.close();
+		transport2.close();
+	}
+
+	@Test
+	public void testBatchingAndDeduplication() {
+		List<String> received1 = new ArrayList<>();
+		List<String> received2 = new ArrayList<>();
+		InvalidationBus bus1 = new InvalidationBus(transport1, 100, 60000, (appid, ids) -> received1.add(appid + ids));
+		new InvalidationBus(transport2, 100, 60000, (appid, ids) -> received2.add(appid + ids));
+
+		bus1.publish("app1", Arrays.asList("1", "2", ""));
+		bus1.publish("app1", Arrays.asList("2", "3"));
+		bus1.publish("app2", Arrays.asList("1"));
+		bus1.publishAll("app3");
+		bus1.publish("app3", Arrays.asList("1"));
+		assertTrue(sent.isEmpty());
+
+		bus1.flush();
+		assertEquals(1, sent.size());
+		assertTrue(received1.isEmpty()); // own messages are ignored
+		assertEquals(Arrays.asList("app1[1, 2, 3]", "app2[1]", "app3null"), received2);
+
+		bus1.flush();
+		assertEquals(1, sent.size());
+	}
+
+	@Test
+	public void testFullBatchIsSentRightAway() {
+		List<Set<String>> received = new ArrayList<>();
+		InvalidationBus bus1 = new InvalidationBus(transport1, 2, 60000, (appid, ids) -> { });
+		new InvalidationBus(transport2, 2, 60000, (appid, ids) -> received.add(ids));
+
+		bus1.publish("app1", Arrays.asList("1"));
+		assertTrue(received.isEmpty());
+		bus1.publish("app1", Arrays.asList("2"));
+		assertEquals(1, received.size());
+		assertEquals(2, received.get(0).size());
+
+		bus1.publishAll("app1");
+		bus1.close();
+		assertEquals(2, received.size());
+		assertNull(received.get(1));
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.cache;
+
+import java.util.Arrays;
+import java.util.Collections;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class NegativeCacheTest {
+
+	@Test
+	public void testPutAndInvalidate() {
+		NegativeCache misses = new NegativeCache(100, 60);
+		assertFalse(misses.contains("app1", "123"));
+		assertFalse(misses.contains("app1", null));
+
+		misses.put("app1", "123", misses.stamp("app1", "123"));
+		misses.put("app1", "456", misses.stamp("app1", "456"));
+		misses.put("app1", "", misses.stamp("app1", ""));
+		assertTrue(misses.contains("app1", "123"));
+		assertTrue(misses.contains("app1", "456"));
+		assertFalse(misses.contains("app2", "123"));
+		assertFalse(misses.contains("app1", ""));
+
+		misses.invalidate("app1", Arrays.asList("123", null, ""));
+		assertFalse(misses.contains("app1", "123"));
+		assertTrue(misses.contains("app1", "456"));
+	}
+
+	@Test
+	public void testWriteDuringReadIsNotRemembered() {
+		NegativeCache misses = new NegativeCache(100, 60);
+		long stamp = misses.stamp("app1", "123");
+		// the object is created while it's being read
+		misses.invalidate("app1", Collections.singletonList("123"));
+		misses.put("app1", "123", stamp);
+		assertFalse(misses.contains("app1", "123"));
+
+		misses.put("app1", "123", misses.stamp("app1", "123"));
+		assertTrue(misses.contains("app1", "123"));
+	}
+}
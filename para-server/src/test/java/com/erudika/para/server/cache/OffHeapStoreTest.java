@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.cache;
+
+import com.erudika.para.core.ParaObject;
+import com.erudika.para.core.Sysprop;
+import com.erudika.para.core.Tag;
+import com.erudika.para.core.utils.Utils;
+import java.util.Map;
+import org.apache.commons.lang3.StringUtils;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class OffHeapStoreTest {
+
+	@Test
+	public void testPutAndTake() {
+		OffHeapStore store = new OffHeapStore(64 * 1024);
+		Sysprop s = new Sysprop("s1");
+		s.setName("name");
+		s.addProperty("text", "some text");
+		s.addProperty("count", 5);
+		long expiresAt = Utils.timestamp() + 60000;
+		assertTrue(store.put("key1", s, expiresAt));
+		assertTrue(store.put("key2", new Tag("tag1"), expiresAt));
+		assertTrue(store.put("key3", new Tag("tag2"), Utils.timestamp() - 1));
+		assertEquals(3, store.size());
+
+		Map.Entry<ParaObject, Long> entry = store.take("key1");
+		assertNotNull(entry);
+		assertEquals(expiresAt, (long) entry.getValue());
+		Sysprop s1 = (Sysprop) entry.getKey();
+		assertEquals("s1", s1.getId());
+		assertEquals("name", s1.getName());
+		assertEquals("some text", s1.getProperty("text"));
+		assertEquals(5, ((Number) s1.getProperty("count")).intValue());
+		assertNull(store.take("key1"));
+
+		assertNull(store.take("key3"));
+		store.remove("key2");
+		assertNull(store.take("key2"));
+		assertNull(store.take(null));
+		assertEquals(0, store.size());
+	}
+
+	@Test
+	public void testOldestSlabIsReused() {
+		OffHeapStore store = new OffHeapStore(4096);
+		long expiresAt = Utils.timestamp() + 60000;
+		for (int i = 0; i < 100; i++) {
+			Sysprop s = new Sysprop("s" + i);
+			s.addProperty("text", StringUtils.repeat("x", 100));
+			assertTrue(store.put("key" + i, s, expiresAt));
+		}
+		assertTrue(store.size() < 100);
+		assertNull(store.take("key0"));
+		assertNotNull(store.take("key99"));
+
+		Sysprop big = new Sysprop("big");
+		big.addProperty("text", StringUtils.repeat("x", 10000));
+		assertFalse(store.put("big", big, expiresAt));
+
+		store.removeIf(key -> key.startsWith("key"));
+		assertEquals(0, store.size());
+	}
+}
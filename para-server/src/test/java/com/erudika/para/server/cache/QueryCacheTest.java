@@ -0,0 +1,65 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.cache;
+
+import java.util.Arrays;
+import java.util.Collections;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class QueryCacheTest {
+
+	@Test
+	public void testTypeScopedInvalidation() {
+		QueryCache queries = new QueryCache(100, 60);
+		String users = queries.key("app1", "user", "findQuery[\"*\"]");
+		String tags = queries.key("app1", "tag", "findQuery[\"*\"]");
+		String all = queries.key("app1", "", "findQuery[\"*\"]");
+		String otherApp = queries.key("app2", "user", "findQuery[\"*\"]");
+		assertNotEquals(users, otherApp);
+		queries.put(users, new QueryCache.Result(Arrays.asList("u1", "u2"), 10, "u2"));
+		queries.put(tags, new QueryCache.Result(null, 5, null));
+		queries.put(all, new QueryCache.Result(Collections.emptyList(), 0, null));
+		queries.put(otherApp, new QueryCache.Result(Collections.emptyList(), 0, null));
+
+		assertEquals(users, queries.key("app1", "user", "findQuery[\"*\"]"));
+		assertEquals(Arrays.asList("u1", "u2"), queries.get(users).getIds());
+		assertEquals(10, queries.get(users).getCount());
+		assertEquals("u2", queries.get(users).getLastKey());
+
+		// a change to users clears user queries and queries for all types
+		queries.invalidate("app1", Collections.singleton("user"));
+		assertNotEquals(users, queries.key("app1", "user", "findQuery[\"*\"]"));
+		assertNotEquals(all, queries.key("app1", null, "findQuery[\"*\"]"));
+		assertNull(queries.get(queries.key("app1", "user", "findQuery[\"*\"]")));
+		assertNotNull(queries.get(queries.key("app1", "tag", "findQuery[\"*\"]")));
+		assertNotNull(queries.get(queries.key("app2", "user", "findQuery[\"*\"]")));
+
+		// unknown types clear all queries of the app
+		queries.invalidate("app1", null);
+		assertNull(queries.get(queries.key("app1", "tag", "findQuery[\"*\"]")));
+		assertNotNull(queries.get(queries.key("app2", "user", "findQuery[\"*\"]")));
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.erudika.para.core.Sysprop;
+import com.erudika.para.core.persistence.MockDAO;
+import com.erudika.para.core.utils.CoreUtils;
+import com.erudika.para.core.utils.Pager;
+import com.erudika.para.core.utils.Para;
+import com.erudika.para.core.utils.RegistryUtils;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import org.junit.AfterClass;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+/**
+ *
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class AWSDynamoPurgeJobTest {
+
+	private static final String APPID = " purgeapp";
+
+	@BeforeClass
+	public static void setUpClass() {
+		// no AWS calls are made, but the region must be known
+		System.setProperty("aws.region", "us-east-1");
+		System.setProperty("para.dynamodb.purge_rate_limit", "0");
+		CoreUtils.getInstance().setDao(new MockDAO());
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		System.clearProperty("aws.region");
+		System.clearProperty("para.dynamodb.purge_rate_limit");
+		System.clearProperty("para.worker_id");
+	}
+
+	@Test
+	public void testCheckpointAndResume() {
+		FakeTable table = new FakeTable(1000, "obj0550");
+		AWSDynamoPurgeJob job = new AWSDynamoPurgeJob(APPID, null, table);
+		job.run();
+		assertFalse(job.isFinished());
+		// later pages may be deleted, but the checkpoint stays after the last page deleted in full
+		assertEquals("obj0499", job.getCheckpoint());
+		assertEquals("obj0499", RegistryUtils.getValue(AWSDynamoPurgeJob.CHECKPOINT_REGISTRY, APPID));
+		for (int i = 0; i < 500; i++) {
+			assertFalse(table.keys.contains(key(i)));
+		}
+		assertTrue(table.keys.contains(key(550)));
+
+		table.poison = null;
+		table.lastKeys.clear();
+		AWSDynamoPurgeJob resumed = new AWSDynamoPurgeJob(APPID, job.getCheckpoint(), table);
+		resumed.run();
+		assertTrue(resumed.isFinished());
+		assertEquals("obj0499", table.lastKeys.get(0));
+		assertTrue(table.keys.isEmpty());
+		assertNull(RegistryUtils.getValue(AWSDynamoPurgeJob.CHECKPOINT_REGISTRY, APPID));
+	}
+
+	@Test
+	public void testThrottle() throws InterruptedException {
+		AWSDynamoPurgeJob.Throttle throttle = new AWSDynamoPurgeJob.Throttle(200);
+		long start = System.currentTimeMillis();
+		throttle.acquire(200);
+		assertTrue(System.currentTimeMillis() - start < 200);
+		throttle.acquire(100);
+		assertTrue(System.currentTimeMillis() - start >= 400);
+
+		AWSDynamoPurgeJob.Throttle unlimited = new AWSDynamoPurgeJob.Throttle(0);
+		start = System.currentTimeMillis();
+		unlimited.acquire(100000);
+		assertTrue(System.currentTimeMillis() - start < 200);
+	}
+
+	@Test
+	public void testOneNodeClaimsAJob() {
+		String appid = " claimapp";
+		String claimId = "PurgeJobClaim:claimapp";
+		String root = Para.getConfig().getRootAppIdentifier();
+		try {
+			System.setProperty("para.worker_id", "1");
+			assertTrue(new AWSDynamoPurgeJob(appid, null, new FakeTable(0, null)).claim());
+			// a restarted node takes its own claim back right away
+			assertTrue(new AWSDynamoPurgeJob(appid, null, new FakeTable(0, null)).claim());
+
+			System.setProperty("para.worker_id", "2");
+			assertFalse(new AWSDynamoPurgeJob(appid, null, new FakeTable(0, null)).claim());
+
+			// a claim which isn't renewed can be taken over
+			Sysprop stale = CoreUtils.getInstance().getDao().read(root, claimId);
+			Sysprop expired = new Sysprop(claimId);
+			expired.setName(stale.getName());
+			expired.setVersion(stale.getVersion());
+			expired.setUpdated(System.currentTimeMillis() - 3600000L);
+			CoreUtils.getInstance().getDao().create(root, expired);
+			assertTrue(new AWSDynamoPurgeJob(appid, null, new FakeTable(0, null)).claim());
+			System.setProperty("para.worker_id", "1");
+			assertFalse(new AWSDynamoPurgeJob(appid, null, new FakeTable(0, null)).claim());
+		} finally {
+			System.clearProperty("para.worker_id");
+			CoreUtils.getInstance().getDao().delete(root, new Sysprop(claimId));
+		}
+	}
+
+	private static String id(int i) {
+		return String.format("obj%04d", i);
+	}
+
+	private static String key(int i) {
+		return AWSDynamoUtils.keyPrefix(APPID) + id(i);
+	}
+
+	/**
+	 * A shared table in memory. Deleting a batch which contains the poisoned id fails.
+	 */
+	private static final class FakeTable implements AWSDynamoPurgeJob.SharedTable {
+		private final NavigableSet<String> keys = new ConcurrentSkipListSet<>();
+		private final NavigableSet<String> ids = new ConcurrentSkipListSet<>();
+		private final List<String> lastKeys = Collections.synchronizedList(new ArrayList<>());
+		private volatile String poison;
+
+		FakeTable(int size, String poison) {
+			for (int i = 0; i < size; i++) {
+				keys.add(key(i));
+				ids.add(id(i));
+			}
+			this.poison = poison;
+		}
+
+		public QueryResponse queryKeys(String appid, Pager pager) {
+			lastKeys.add(pager.getLastKey());
+			NavigableSet<String> after = (pager.getLastKey() == null) ? ids : ids.tailSet(pager.getLastKey(), false);
+			List<Map<String, AttributeValue>> items = new ArrayList<>();
+			for (String id : after) {
+				if (items.size() >= pager.getLimit()) {
+					break;
+				}
+				Map<String, AttributeValue> item = new HashMap<>();
+				item.put("id", AttributeValue.builder().s(id).build());
+				item.put("key", AttributeValue.builder().s(AWSDynamoUtils.keyPrefix(appid) + id).build());
+				items.add(item);
+			}
+			QueryResponse.Builder response = QueryResponse.builder().items(items);
+			if (!items.isEmpty() && !after.last().equals(items.get(items.size() - 1).get("id").s())) {
+				response.lastEvaluatedKey(items.get(items.size() - 1));
+			}
+			return response.build();
+		}
+
+		public BatchWriteItemResponse deleteItems(Map<String, List<WriteRequest>> items) {
+			List<String> batch = new ArrayList<>();
+			for (List<WriteRequest> requests : items.values()) {
+				for (WriteRequest request : requests) {
+					batch.add(request.deleteRequest().key().get("key").s());
+				}
+			}
+			if (poison != null && batch.contains(AWSDynamoUtils.keyPrefix(APPID) + poison)) {
+				throw new IllegalStateException("Deleting " + poison + " failed.");
+			}
+			for (String key : batch) {
+				keys.remove(key);
+				ids.remove(key.substring(AWSDynamoUtils.keyPrefix(APPID).length()));
+			}
+			return BatchWriteItemResponse.builder().build();
+		}
+	}
+}
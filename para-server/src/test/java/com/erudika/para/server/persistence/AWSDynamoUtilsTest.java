@@ -0,0 +1,60 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import java.util.Collections;
+import java.util.Map;
+import org.junit.AfterClass;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+/**
+ *
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class AWSDynamoUtilsTest {
+
+	@BeforeClass
+	public static void setUpClass() {
+		// no AWS calls are made, but the region must be known
+		System.setProperty("aws.region", "us-east-1");
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		System.clearProperty("aws.region");
+	}
+
+	@Test
+	public void testPartialRowExpiry() {
+		Map<String, AttributeValue> row = AWSDynamoUtils.toPartialRow(Collections.singletonMap("expiresAt", 5000000L));
+		assertEquals("5000000", row.get("expiresAt").s());
+		assertEquals("5000", row.get(AWSDynamoUtils.TTL_ATTRIBUTE).n());
+
+		// an object which no longer expires loses its TTL too
+		row = AWSDynamoUtils.toPartialRow(Collections.singletonMap("expiresAt", ""));
+		assertEquals(AWSDynamoUtils.REMOVED_ATTRIBUTE, row.get("expiresAt"));
+		assertEquals(AWSDynamoUtils.REMOVED_ATTRIBUTE, row.get(AWSDynamoUtils.TTL_ATTRIBUTE));
+
+		row = AWSDynamoUtils.toPartialRow(Collections.singletonMap("name", "test"));
+		assertFalse(row.containsKey(AWSDynamoUtils.TTL_ATTRIBUTE));
+	}
+}
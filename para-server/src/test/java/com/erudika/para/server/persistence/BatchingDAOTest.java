@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.erudika.para.core.ParaObject;
+import com.erudika.para.core.Sysprop;
+import com.erudika.para.core.persistence.MockDAO;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class BatchingDAOTest extends DAOTest {
+
+	public BatchingDAOTest() {
+		super(new BatchingDAO(new MockDAO(), 25, 5, true));
+	}
+
+	@Test
+	public void testCoalescing() throws Exception {
+		AtomicInteger batches = new AtomicInteger();
+		BatchingDAO dao = new BatchingDAO(new MockDAO() {
+			@Override
+			public <P extends ParaObject> void createAll(String appid, List<P> objects) {
+				batches.incrementAndGet();
+				super.createAll(appid, objects);
+			}
+		}, 10, 500, true);
+
+		// concurrent callers block until the batch with their write is written
+		ExecutorService callers = Executors.newFixedThreadPool(30);
+		try {
+			List<CompletableFuture<String>> futures = IntStream.range(0, 30).
+					mapToObj(i -> CompletableFuture.supplyAsync(() -> dao.create(appid1, new Sysprop("batched" + i)),
+							callers)).collect(Collectors.toList());
+			futures.forEach(CompletableFuture::join);
+			assertEquals(3, batches.get());
+			assertEquals("batched7", futures.get(7).join());
+			assertNotNull(dao.read(appid1, "batched29"));
+
+			// writes to the same object are not reordered
+			Sysprop s = new Sysprop("batched0");
+			s.setName("first");
+			CompletableFuture<Void> first = CompletableFuture.runAsync(() -> dao.update(appid1, s), callers);
+			Sysprop s2 = new Sysprop("batched0");
+			s2.setName("second");
+			Thread.sleep(50);
+			CompletableFuture<Void> second = CompletableFuture.runAsync(() -> dao.update(appid1, s2), callers);
+			first.join();
+			second.join();
+			assertEquals("second", ((Sysprop) dao.read(appid1, "batched0")).getName());
+		} finally {
+			callers.shutdown();
+		}
+
+		dao.deleteAll(appid1, IntStream.range(0, 30).mapToObj(i -> new Sysprop("batched" + i)).
+				collect(Collectors.toList()));
+		assertNull(dao.read(appid1, "batched29"));
+	}
+}
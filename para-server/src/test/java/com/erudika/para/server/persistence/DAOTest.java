@@ -28,7 +28,11 @@ import com.erudika.para.core.utils.Pager;
 import com.erudika.para.core.utils.Utils;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.stream.IntStream;
+import org.apache.commons.lang3.StringUtils;
 import static org.junit.Assert.*;
 import org.junit.Before;
 import org.junit.Ignore;
@@ -187,6 +191,76 @@ public abstract class DAOTest {
 		dao.delete(u);
 	}
 
+	@Test
+	public void testPatch() {
+		Sysprop sp = new Sysprop(Utils.getNewId());
+		sp.setName("Before patch");
+		sp.setParentid("parent1");
+		sp.setVersion(1L);
+		dao.create(appid1, sp);
+
+		assertNull(dao.patch(appid1, sp.getId(), Collections.emptyMap(), null));
+		assertNull(dao.patch(appid1, "notfound", Collections.singletonMap("name", "x"), null));
+
+		Map<String, Object> changes = new HashMap<>();
+		changes.put("name", "After patch");
+		changes.put("parentid", "parent2");
+		Sysprop patched = dao.patch(appid1, sp.getId(), changes, null);
+		assertNotNull(patched);
+		assertEquals("After patch", patched.getName());
+		assertEquals("parent1", patched.getParentid());
+		Sysprop read = dao.read(appid1, sp.getId());
+		assertEquals("After patch", read.getName());
+		assertEquals("parent1", read.getParentid());
+		assertNotNull(read.getUpdated());
+
+		// optimistic locking - patches always bump the version of versioned objects
+		assertEquals(2L, patched.getVersion().longValue());
+		assertEquals(2L, read.getVersion().longValue());
+		assertNull(dao.patch(appid1, sp.getId(), Collections.singletonMap("name", "Stale"), 1L));
+		assertEquals("After patch", ((Sysprop) dao.read(appid1, sp.getId())).getName());
+		Sysprop locked = dao.patch(appid1, sp.getId(), Collections.singletonMap("name", "Locked"), 2L);
+		assertEquals(3L, locked.getVersion().longValue());
+		assertEquals("Locked", ((Sysprop) dao.read(appid1, sp.getId())).getName());
+
+		// a blank value clears the field
+		assertNotNull(dao.patch(appid1, sp.getId(), Collections.singletonMap("name", ""), null));
+		assertTrue(StringUtils.isBlank(((Sysprop) dao.read(appid1, sp.getId())).getName()));
+
+		dao.delete(appid1, sp);
+	}
+
+	@Test
+	public void testIncrement() {
+		Tag t = t();
+		dao.create(appid1, t);
+
+		assertNull(dao.increment(appid1, "notfound", "count", 1));
+		assertNull(dao.increment(appid1, t.getId(), "tag", 1));
+		assertNull(dao.increment(appid1, t.getId(), "timestamp", 1));
+
+		Tag incremented = dao.increment(appid1, t.getId(), "count", 2);
+		assertNotNull(incremented);
+		assertEquals(5, incremented.getCount().intValue());
+		assertEquals(4, ((Tag) dao.increment(appid1, t.getId(), "count", -1)).getCount().intValue());
+
+		IntStream.range(0, 100).parallel().forEach(i -> dao.increment(appid1, t.getId(), "votes", 1));
+		assertEquals(100, ((Tag) dao.read(appid1, t.getId())).getVotes().intValue());
+		assertEquals(4, ((Tag) dao.read(appid1, t.getId())).getCount().intValue());
+
+		// increments bump the version of versioned objects
+		Sysprop sp = new Sysprop(Utils.getNewId());
+		sp.setVersion(1L);
+		dao.create(appid1, sp);
+		Sysprop voted = dao.increment(appid1, sp.getId(), "votes", 1);
+		assertEquals(1, voted.getVotes().intValue());
+		assertEquals(2L, voted.getVersion().longValue());
+		assertNull(dao.patch(appid1, sp.getId(), Collections.singletonMap("name", "Stale"), 1L));
+
+		dao.delete(appid1, t);
+		dao.delete(appid1, sp);
+	}
+
 	@Test
 	public void testDelete() {
 		User u = u();
@@ -202,6 +276,25 @@ public abstract class DAOTest {
 		assertNull(dao.read(t.getId()));
 	}
 
+	@Test
+	public void testExpiry() {
+		Sysprop s1 = new Sysprop("expiring1");
+		s1.setExpiresAt(Utils.timestamp() - 1000);
+		Sysprop s2 = new Sysprop("expiring2");
+		s2.setExpiresAt(Utils.timestamp() + 60000);
+		dao.create(appid1, s1);
+		dao.create(appid1, s2);
+
+		assertNull(dao.read(appid1, s1.getId()));
+		assertNotNull(dao.read(appid1, s2.getId()));
+		assertEquals(s2.getExpiresAt(), ((Sysprop) dao.read(appid1, s2.getId())).getExpiresAt());
+		Map<String, Sysprop> all = dao.readAll(appid1, Arrays.asList(s1.getId(), s2.getId()), true);
+		assertNull(all.get(s1.getId()));
+		assertNotNull(all.get(s2.getId()));
+
+		dao.deleteAll(appid1, Arrays.asList(s1, s2));
+	}
+
 	@Test
 	public void testCreateAllReadAllUpdateAllDeleteAll() {
 		Sysprop t1 = new Sysprop("sp1");
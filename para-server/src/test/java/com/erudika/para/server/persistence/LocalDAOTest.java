@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.erudika.para.core.Sysprop;
+import com.erudika.para.core.Tag;
+import com.erudika.para.core.utils.Utils;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.stream.Stream;
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class LocalDAOTest extends DAOTest {
+
+	private static final String DIR = Paths.get(System.getProperty("java.io.tmpdir"),
+			"para-localdao-" + Utils.getNewId()).toString();
+
+	public LocalDAOTest() {
+		super(new LocalDAO(DIR));
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws IOException {
+		new LocalDAO(DIR).close();
+		FileUtils.deleteQuietly(Paths.get(DIR).toFile());
+	}
+
+	@Test
+	public void testRecovery() throws IOException {
+		LocalDAO dao = (LocalDAO) dao();
+		Sysprop s1 = new Sysprop("recovery1");
+		s1.setName("first");
+		Tag t1 = new Tag("recovery-tag");
+		t1.setCount(1);
+		dao.create(appid1, s1);
+		dao.create(appid1, t1);
+		dao.close();
+
+		// snapshot + log
+		dao.patch(appid1, s1.getId(), Collections.singletonMap("name", "second"), null);
+		dao.increment(appid1, t1.getId(), "count", 2);
+		Sysprop s2 = new Sysprop("recovery2");
+		dao.create(appid2, s2);
+		dao.delete(appid2, s2);
+		dao.store().snapshotQuietly();
+		dao.create(appid2, new Sysprop("recovery3"));
+		simulateCrash();
+
+		assertEquals("second", ((Sysprop) dao.read(appid1, s1.getId())).getName());
+		assertEquals(3, ((Tag) dao.read(appid1, t1.getId())).getCount().intValue());
+		assertNull(dao.read(appid2, s2.getId()));
+		assertNotNull(dao.read(appid2, "recovery3"));
+
+		// torn write at the end of the log
+		Path lastSegment;
+		try (Stream<Path> files = Files.list(Paths.get(DIR))) {
+			lastSegment = files.filter(f -> f.getFileName().toString().startsWith("wal-")).sorted().
+					reduce((a, b) -> b).orElse(null);
+		}
+		assertNotNull(lastSegment);
+		dao.delete(appid2, new Sysprop("recovery3"));
+		simulateCrash();
+		Files.write(lastSegment, "garbage".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+		assertNull(dao.read(appid2, "recovery3"));
+		assertEquals("second", ((Sysprop) dao.read(appid1, s1.getId())).getName());
+
+		dao.delete(appid1, s1);
+		dao.delete(appid1, t1);
+	}
+
+	@Test
+	public void testFailedWriteIsRolledBack() throws IOException {
+		LocalDAO dao = (LocalDAO) dao();
+		Sysprop s1 = new Sysprop("rollback1");
+		s1.setName("before");
+		dao.create(appid1, s1);
+		LocalStore store = dao.store();
+		String json = store.get(appid1, s1.getId());
+		store.closeLog();
+		try {
+			store.compute(appid1, s1.getId(), old -> old.replace("before", "after"));
+			fail("The write should fail when the log is closed.");
+		} catch (UncheckedIOException e) {
+			assertEquals(json, store.get(appid1, s1.getId()));
+		}
+		try {
+			store.compute(appid1, "rollback2", old -> "{}");
+			fail("The write should fail when the log is closed.");
+		} catch (UncheckedIOException e) {
+			assertNull(store.get(appid1, "rollback2"));
+		}
+		LocalDAO.STORES.values().remove(store);
+		simulateCrash();
+		assertEquals("before", ((Sysprop) dao.read(appid1, s1.getId())).getName());
+		dao.delete(appid1, s1);
+	}
+
+	private static void simulateCrash() throws IOException {
+		// drop the in-memory state without writing a snapshot, like after a crash
+		for (LocalStore store : LocalDAO.STORES.values()) {
+			store.closeLog();
+		}
+		LocalDAO.STORES.clear();
+	}
+}
@@ -17,7 +17,17 @@
  */
 package com.erudika.para.server.persistence;
 
+import com.erudika.para.core.ParaObject;
+import com.erudika.para.core.Sysprop;
+import com.erudika.para.core.User;
 import com.erudika.para.core.persistence.MockDAO;
+import com.erudika.para.core.utils.Pager;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import static org.junit.Assert.*;
+import org.junit.Test;
 
 /**
  *
@@ -29,4 +39,102 @@ public class MockDAOTest extends DAOTest {
 		super(new MockDAO());
 	}
 
+	@Test
+	public void testReadPageSorted() {
+		String appid = "testapp-sorted";
+		List<Sysprop> list = new ArrayList<>();
+		for (int i = 1; i <= 5; i++) {
+			Sysprop s = new Sysprop("sorted_" + (6 - i));
+			s.setTimestamp((long) i);
+			list.add(s);
+		}
+		dao().createAll(appid, list);
+
+		Pager p = new Pager(1, "timestamp", false, 2);
+		assertEquals(Arrays.asList("sorted_5", "sorted_4"), ids(dao().readPage(appid, p)));
+		assertEquals(Arrays.asList("sorted_3", "sorted_2"), ids(dao().readPage(appid, p)));
+		assertEquals(Arrays.asList("sorted_1"), ids(dao().readPage(appid, p)));
+
+		p = new Pager(1, "timestamp", true, 3);
+		assertEquals(Arrays.asList("sorted_1", "sorted_2", "sorted_3"), ids(dao().readPage(appid, p)));
+		assertEquals(Arrays.asList("sorted_4", "sorted_5"), ids(dao().readPage(appid, p)));
+
+		p = new Pager(1, "id", false, 3);
+		assertEquals(Arrays.asList("sorted_1", "sorted_2", "sorted_3"), ids(dao().readPage(appid, p)));
+		assertEquals(Arrays.asList("sorted_4", "sorted_5"), ids(dao().readPage(appid, p)));
+
+		Sysprop s = dao().read(appid, "sorted_4");
+		dao().update(appid, s);
+		p = new Pager(1, "updated", true, 4);
+		assertEquals(Arrays.asList("sorted_4"), ids(dao().readPage(appid, p)).subList(0, 1));
+		assertEquals(1, dao().readPage(appid, p).size());
+		p = new Pager(1, "updated", false, 4);
+		assertEquals(4, dao().readPage(appid, p).size());
+		assertEquals(Arrays.asList("sorted_4"), ids(dao().readPage(appid, p)));
+
+		// a plain id of a deleted object ends the scan instead of restarting it
+		p = new Pager(1, "timestamp", false, 2);
+		p.setLastKey("sorted_3");
+		assertEquals(Arrays.asList("sorted_2", "sorted_1"), ids(dao().readPage(appid, p)));
+		dao().delete(appid, new Sysprop("sorted_3"));
+		p = new Pager(1, "timestamp", false, 2);
+		p.setLastKey("sorted_3");
+		assertTrue(dao().readPage(appid, p).isEmpty());
+		p = new Pager(1, "timestamp", true, 2);
+		p.setLastKey("sorted_3");
+		assertTrue(dao().readPage(appid, p).isEmpty());
+
+		dao().deleteAll(appid, list);
+		assertTrue(dao().readPage(appid, new Pager(1, "updated", true, 10)).isEmpty());
+	}
+
+	@Test
+	public void testReadByIndex() {
+		System.setProperty("para.dao.secondary_indexes", "user:email,*:parentid,webhook:active");
+		try {
+			String appid = "testapp-indexed";
+			List<Sysprop> list = new ArrayList<>();
+			for (int i = 1; i <= 5; i++) {
+				Sysprop s = new Sysprop("indexed_" + i);
+				s.setParentid(i <= 3 ? "parent1" : "parent2");
+				list.add(s);
+			}
+			dao().createAll(appid, list);
+			User u = new User("indexed_user");
+			u.setEmail("indexed@example.com");
+			dao().create(appid, u);
+
+			assertNull(dao().readByIndex(appid, "sysprop", "name", "x", null));
+			assertTrue(dao().readByIndex(appid, "sysprop", "parentid", "none", null).isEmpty());
+			assertTrue(dao().readByIndex(appid, "tag", "parentid", "parent1", null).isEmpty());
+
+			Pager p = new Pager(1, null, false, 2);
+			assertEquals(Arrays.asList("indexed_1", "indexed_2"), ids(dao().readByIndex(appid, "sysprop", "parentid", "parent1", p)));
+			assertEquals(Arrays.asList("indexed_3"), ids(dao().readByIndex(appid, "sysprop", "parentid", "parent1", p)));
+			assertTrue(dao().readByIndex(appid, "sysprop", "parentid", "parent1", p).isEmpty());
+			assertEquals(3, p.getCount());
+			assertEquals(Arrays.asList("indexed_5", "indexed_4"),
+					ids(dao().readByIndex(appid, "sysprop", "parentid", "parent2", new Pager(10))));
+			assertEquals(Arrays.asList("indexed_user"), ids(dao().readByIndex(appid, "user", "email", "indexed@example.com", null)));
+
+			// the index follows updates and deletes
+			u.setEmail("changed@example.com");
+			dao().update(appid, u);
+			assertTrue(dao().readByIndex(appid, "user", "email", "indexed@example.com", null).isEmpty());
+			assertEquals(1, dao().readByIndex(appid, "user", "email", "changed@example.com", null).size());
+			dao().delete(appid, list.get(0));
+			assertEquals(Arrays.asList("indexed_2", "indexed_3"),
+					ids(dao().readByIndex(appid, "sysprop", "parentid", "parent1", new Pager(1, null, false, 10))));
+
+			dao().deleteAll(appid, list);
+			dao().delete(appid, u);
+			assertTrue(dao().readByIndex(appid, "sysprop", "parentid", "parent2", null).isEmpty());
+		} finally {
+			System.clearProperty("para.dao.secondary_indexes");
+		}
+	}
+
+	private static List<String> ids(List<ParaObject> objects) {
+		return objects.stream().map(ParaObject::getId).collect(Collectors.toList());
+	}
 }
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.queue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class LocalQueueTest extends QueueTest {
+
+	public LocalQueueTest() throws Exception {
+		super();
+		q = new LocalQueue("test", Files.createTempDirectory("para-queue"), 0, 0);
+	}
+
+	@Test
+	public void testMessagesSurviveRestart() throws Exception {
+		Path dir = Files.createTempDirectory("para-queue");
+		LocalQueue queue1 = new LocalQueue("q1", dir, 0, 0);
+		queue1.push("{\"msg\": 1}");
+		queue1.push("{\"msg\": 2}");
+		queue1.push("{\"msg\": 3}");
+		assertEquals("{\"msg\": 1}", queue1.pull());
+
+		LocalQueue queue2 = new LocalQueue("q1", dir, 0, 0);
+		assertEquals(2, queue2.size());
+		assertEquals("{\"msg\": 2}", queue2.pull());
+		assertEquals("{\"msg\": 3}", queue2.pull());
+		assertEquals("", queue2.pull());
+		assertEquals(0, new LocalQueue("q1", dir, 0, 0).size());
+	}
+
+	@Test
+	public void testSegmentsAreDeletedWhenRead() throws Exception {
+		Path dir = Files.createTempDirectory("para-queue");
+		MappedFileQueue queue = new MappedFileQueue(dir, 4096);
+		String msg = "x".repeat(1000);
+		for (int i = 0; i < 20; i++) {
+			queue.add(msg + i);
+		}
+		assertTrue(queue.segmentCount() > 1);
+		assertEquals(20, queue.size());
+		int segments = queue.segmentCount();
+		for (int i = 0; i < 10; i++) {
+			assertEquals(msg + i, queue.poll());
+		}
+		// segments are kept until their messages are committed
+		assertEquals(segments, queue.segmentCount());
+		queue.commit(10);
+		assertTrue(queue.segmentCount() < segments);
+		// messages larger than a segment get a segment of their own
+		queue.add("y".repeat(10000));
+
+		MappedFileQueue reopened = new MappedFileQueue(dir, 4096);
+		assertEquals(11, reopened.size());
+		for (int i = 10; i < 20; i++) {
+			assertEquals(msg + i, reopened.poll());
+		}
+		assertEquals("y".repeat(10000), reopened.poll());
+		assertEquals(null, reopened.poll());
+		reopened.commit(11);
+		assertEquals(1, reopened.segmentCount());
+	}
+
+	@Test
+	public void testUncommittedMessagesAreReadAgain() throws Exception {
+		Path dir = Files.createTempDirectory("para-queue");
+		LocalQueue queue1 = new LocalQueue("q7", dir, 0, 0);
+		queue1.push("{\"msg\": 1}");
+		queue1.push("{\"msg\": 2}");
+		queue1.push("{\"msg\": 3}");
+		assertEquals(List.of("{\"msg\": 1}", "{\"msg\": 2}"), queue1.drainTo(2, 0));
+		assertEquals(1, queue1.size());
+
+		// a crash before the messages were processed
+		LocalQueue queue2 = new LocalQueue("q7", dir, 0, 0);
+		assertEquals(3, queue2.size());
+		assertEquals(List.of("{\"msg\": 1}", "{\"msg\": 2}"), queue2.drainTo(2, 0));
+		queue2.commit(1);
+
+		LocalQueue queue3 = new LocalQueue("q7", dir, 0, 0);
+		assertEquals(2, queue3.size());
+		assertEquals(List.of("{\"msg\": 2}", "{\"msg\": 3}"), queue3.drainTo(10, 0));
+		// commits can't go past what was read
+		queue3.commit(10);
+		assertEquals(0, new LocalQueue("q7", dir, 0, 0).size());
+	}
+
+	@Test
+	public void testFailedWriteIsDropped() throws Exception {
+		System.setProperty("para.queue.local_segment_size_mb", "1");
+		Path dir1 = Files.createTempDirectory("para-queue");
+		Path dir2 = Files.createTempDirectory("para-queue");
+		LocalQueue unbounded = new LocalQueue("q5", dir1, 0, 0);
+		LocalQueue bounded = new LocalQueue("q6", dir2, 1, 0);
+		System.clearProperty("para.queue.local_segment_size_mb");
+		unbounded.push("{\"msg\": 1}");
+		// no new segment can be created once the directory is gone
+		FileUtils.deleteDirectory(dir1.toFile());
+		FileUtils.deleteDirectory(dir2.toFile());
+		String large = "{\"msg\": \"" + "x".repeat(2 * 1024 * 1024) + "\"}";
+		unbounded.push(large);
+		assertEquals(1, unbounded.size());
+		unbounded.push("{\"msg\": 2}");
+		assertEquals(2, unbounded.size());
+		assertEquals("{\"msg\": 1}", unbounded.pull());
+
+		bounded.push(large);
+		assertEquals(0, bounded.size());
+		// the permit was given back
+		bounded.push("{\"msg\": 3}");
+		assertEquals(1, bounded.size());
+		assertEquals("{\"msg\": 3}", bounded.pull());
+	}
+
+	@Test
+	public void testCapacity() throws Exception {
+		LocalQueue queue = new LocalQueue("q2", null, 2, 0);
+		queue.push("{\"msg\": 1}");
+		queue.push("{\"msg\": 2}");
+		queue.push("{\"msg\": 3}");
+		assertEquals(2, queue.size());
+		assertEquals("{\"msg\": 1}", queue.pull());
+
+		queue.push("{\"msg\": 4}");
+		assertEquals(2, queue.size());
+
+		// a full queue blocks until a message is pulled
+		LocalQueue blocking = new LocalQueue("q3", Files.createTempDirectory("para-queue"), 1, 5000);
+		blocking.push("{\"msg\": 5}");
+		Thread puller = new Thread(() -> {
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			blocking.pull();
+		});
+		puller.start();
+		long start = System.currentTimeMillis();
+		blocking.push("{\"msg\": 6}");
+		assertTrue(System.currentTimeMillis() - start >= 100);
+		puller.join();
+		assertEquals(1, blocking.size());
+		assertEquals("{\"msg\": 6}", blocking.pull());
+	}
+
+	@Test
+	public void testDrainWakesUpOnPush() throws Exception {
+		LocalQueue queue = new LocalQueue("q4", null, 0, 0);
+		long start = System.currentTimeMillis();
+		assertTrue(queue.drainTo(10, 100).isEmpty());
+		assertTrue(System.currentTimeMillis() - start >= 100);
+
+		Thread pusher = new Thread(() -> {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			queue.push("{\"msg\": 1}");
+		});
+		pusher.start();
+		start = System.currentTimeMillis();
+		List<String> msgs = queue.drainTo(10, 10000);
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(List.of("{\"msg\": 1}"), msgs);
+		pusher.join();
+
+		queue.push("{\"msg\": 2}");
+		queue.push("{\"msg\": 3}");
+		queue.push("{\"msg\": 4}");
+		assertEquals(List.of("{\"msg\": 2}", "{\"msg\": 3}"), queue.drainTo(2, 0));
+		assertEquals("{\"msg\": 4}", queue.take(0));
+		assertEquals("", queue.take(0));
+	}
+}
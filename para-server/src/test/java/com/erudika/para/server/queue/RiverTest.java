@@ -0,0 +1,217 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.queue;
+
+import com.erudika.para.core.ParaObject;
+import com.erudika.para.core.Sysprop;
+import com.erudika.para.core.utils.Config;
+import com.erudika.para.core.utils.Para;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class RiverTest {
+
+	@Test
+	public void testPartitionedWorkersKeepOrderPerApp() throws Exception {
+		int apps = 6;
+		int updates = 30;
+		ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>();
+		for (int a = 0; a < apps; a++) {
+			Sysprop s = new Sysprop("riverobj");
+			s.setName("n0");
+			Para.getDAO().create("riverapp" + a, s);
+		}
+		for (int i = 1; i <= updates; i++) {
+			for (int a = 0; a < apps; a++) {
+				queue.add("{\"id\":\"riverobj\",\"appid\":\"riverapp" + a + "\",\"type\":\"sysprop\",\"name\":\"n" + i + "\"}");
+			}
+		}
+		River river = new River(3) {
+			List<String> pullMessages() {
+				List<String> msgs = new ArrayList<>();
+				String msg;
+				while (msgs.size() < 10 && (msg = queue.poll()) != null) {
+					msgs.add(msg);
+				}
+				return msgs;
+			}
+
+			boolean isHealthy() {
+				return true;
+			}
+		};
+		Thread thread = new Thread(river);
+		thread.start();
+		try {
+			long deadline = System.currentTimeMillis() + 10000;
+			while (!allUpdated(apps, "n" + updates) && System.currentTimeMillis() < deadline) {
+				Thread.sleep(20);
+			}
+			for (int a = 0; a < apps; a++) {
+				ParaObject obj = Para.getDAO().read("riverapp" + a, "riverobj");
+				assertEquals("n" + updates, obj.getName());
+			}
+		} finally {
+			thread.interrupt();
+			thread.join(5000);
+		}
+	}
+
+	@Test
+	public void testCommitsProcessedMessages() throws Exception {
+		int apps = 4;
+		ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>();
+		for (int a = 0; a < apps; a++) {
+			queue.add("{\"id\":\"commitobj\",\"appid\":\"commitapp" + a + "\",\"type\":\"sysprop\",\"name\":\"c1\"}");
+		}
+		// messages which can't be parsed are committed too
+		queue.add("not a message");
+		int total = queue.size();
+		AtomicInteger committed = new AtomicInteger();
+		List<String> namesWhenCommitted = new ArrayList<>();
+		River river = new River(2) {
+			List<String> pullMessages() {
+				List<String> msgs = new ArrayList<>();
+				String msg;
+				while (msgs.size() < 2 && (msg = queue.poll()) != null) {
+					msgs.add(msg);
+				}
+				return msgs;
+			}
+
+			void commitMessages(int count) {
+				// the unparsable message is pulled last, so the others are committed once the count reaches apps
+				if (committed.addAndGet(count) >= apps && namesWhenCommitted.isEmpty()) {
+					for (int a = 0; a < apps; a++) {
+						ParaObject obj = Para.getDAO().read("commitapp" + a, "commitobj");
+						namesWhenCommitted.add(obj == null ? null : obj.getName());
+					}
+				}
+			}
+
+			boolean isHealthy() {
+				return true;
+			}
+		};
+		Thread thread = new Thread(river);
+		thread.start();
+		try {
+			long deadline = System.currentTimeMillis() + 10000;
+			while (committed.get() < total && System.currentTimeMillis() < deadline) {
+				Thread.sleep(20);
+			}
+			assertEquals(total, committed.get());
+			// messages are only committed after their changes are written
+			assertEquals(List.of("c1", "c1", "c1", "c1"), namesWhenCommitted);
+		} finally {
+			thread.interrupt();
+			thread.join(5000);
+		}
+	}
+
+	@Test
+	public void testBacksOffWhenUnhealthy() throws Exception {
+		AtomicInteger checks = new AtomicInteger();
+		River river = new River(1) {
+			List<String> pullMessages() {
+				throw new AssertionError("Messages must not be pulled while the river is unhealthy.");
+			}
+
+			boolean waitsForMessages() {
+				return true;
+			}
+
+			boolean isHealthy() {
+				checks.incrementAndGet();
+				return false;
+			}
+		};
+		Thread thread = new Thread(river);
+		thread.start();
+		try {
+			Thread.sleep(500);
+			assertTrue(checks.get() > 0);
+			assertTrue(checks.get() <= 2);
+		} finally {
+			thread.interrupt();
+			thread.join(5000);
+		}
+	}
+
+	@Test
+	public void testCoalesceUpdates() {
+		List<Map<String, Object>> updates = new ArrayList<>();
+		updates.add(update("app1", "obj1", "name", "a"));
+		updates.add(update("app1", "obj2", "name", "b"));
+		updates.add(update("app2", "obj1", "name", "c"));
+		updates.add(update("app1", "obj1", "votes", 1));
+		updates.add(update("app1", "obj1", "name", "d"));
+		List<Map<String, Object>> coalesced = River.coalesceUpdates(updates);
+		assertEquals(3, coalesced.size());
+		assertEquals("d", coalesced.get(0).get("name"));
+		assertEquals(1, coalesced.get(0).get("votes"));
+		assertEquals("b", coalesced.get(1).get("name"));
+		assertEquals("c", coalesced.get(2).get("name"));
+
+		// versioned updates depend on the earlier ones and may fail, so they are kept apart
+		Map<String, Object> versioned = update("app1", "obj1", "name", "e");
+		versioned.put(Config._VERSION, 2);
+		updates.add(versioned);
+		updates.add(update("app1", "obj1", "name", "f"));
+		updates.add(update("app1", "obj1", "votes", 2));
+		coalesced = River.coalesceUpdates(updates);
+		assertEquals(5, coalesced.size());
+		assertEquals("d", coalesced.get(0).get("name"));
+		assertEquals("e", coalesced.get(3).get("name"));
+		assertEquals(2, coalesced.get(3).get(Config._VERSION));
+		assertEquals(null, coalesced.get(3).get("votes"));
+		assertEquals("f", coalesced.get(4).get("name"));
+		assertEquals(2, coalesced.get(4).get("votes"));
+		assertEquals(null, coalesced.get(4).get(Config._VERSION));
+	}
+
+	private static Map<String, Object> update(String appid, String id, String field, Object value) {
+		Map<String, Object> update = new HashMap<>();
+		update.put(Config._APPID, appid);
+		update.put(Config._ID, id);
+		update.put(Config._TYPE, "sysprop");
+		update.put(field, value);
+		return update;
+	}
+
+	private static boolean allUpdated(int apps, String name) {
+		for (int a = 0; a < apps; a++) {
+			ParaObject obj = Para.getDAO().read("riverapp" + a, "riverobj");
+			if (obj == null || !name.equals(obj.getName())) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2013-2022 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.queue;
+
+import com.erudika.para.core.utils.Para;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class WebhookDispatcherTest {
+
+	private HttpServer server;
+	private Path deadLetters;
+	private final Map<String, AtomicInteger> hits = new ConcurrentHashMap<>();
+	private final Map<String, String> bodies = new ConcurrentHashMap<>();
+
+	@Before
+	public void setUp() throws Exception {
+		deadLetters = Files.createTempDirectory("para-webhooks").resolve("dead-letters.json");
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		// responds with 500 to the first two requests and with 200 after that
+		server.createContext("/flaky", exchange -> {
+			int count = hit(exchange.getRequestURI().getPath(), exchange.getRequestBody());
+			exchange.sendResponseHeaders(count <= 2 ? 500 : 200, -1);
+			exchange.close();
+		});
+		server.createContext("/down", exchange -> {
+			hit(exchange.getRequestURI().getPath(), exchange.getRequestBody());
+			exchange.sendResponseHeaders(503, -1);
+			exchange.close();
+		});
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	private int hit(String path, InputStream body) throws IOException {
+		bodies.put(path, new String(body.readAllBytes(), StandardCharsets.UTF_8));
+		return hits.computeIfAbsent(path, k -> new AtomicInteger()).incrementAndGet();
+	}
+
+	private int hits(String path) {
+		return hits.getOrDefault(path, new AtomicInteger()).get();
+	}
+
+	private Map<String, Object> payload(String path) {
+		Map<String, Object> parsed = new HashMap<>();
+		parsed.put("targetUrl", "http://127.0.0.1:" + server.getAddress().getPort() + path);
+		parsed.put("payload", "{\"event\":\"test\"}");
+		parsed.put("urlEncoded", false);
+		parsed.put("signature", "sig");
+		parsed.put("event", "test");
+		return parsed;
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+		while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertTrue(condition.getAsBoolean());
+	}
+
+	@Test
+	public void testRetriesUntilDelivered() throws Exception {
+		WebhookDispatcher dispatcher = new WebhookDispatcher(2, 5, 5, 20, 10, 60000, deadLetters);
+		try {
+			assertTrue(dispatcher.dispatch("app", "hook1", payload("/flaky")));
+			await(() -> hits("/flaky") == 3);
+			assertEquals("{\"event\":\"test\"}", bodies.get("/flaky"));
+			await(() -> dispatcher.getPendingRetries() == 0);
+			Thread.sleep(200);
+			assertEquals(3, hits("/flaky"));
+			assertFalse(Files.exists(deadLetters));
+		} finally {
+			dispatcher.close();
+		}
+	}
+
+	@Test
+	public void testDeadLetter() throws Exception {
+		WebhookDispatcher dispatcher = new WebhookDispatcher(2, 5, 2, 20, 10, 60000, deadLetters);
+		try {
+			assertFalse(dispatcher.dispatch("app", "", payload("/down")));
+			assertTrue(dispatcher.dispatch("app", "hook2", payload("/down")));
+			await(() -> deadLetters.toFile().length() > 0);
+			assertEquals(3, hits("/down"));
+			List<String> lines = Files.readAllLines(deadLetters);
+			assertEquals(1, lines.size());
+			assertTrue(lines.get(0).contains("\"webhookId\":\"hook2\""));
+			assertTrue(lines.get(0).contains("\"attempts\":3"));
+			assertTrue(lines.get(0).contains("\"signature\":\"sig\""));
+		} finally {
+			dispatcher.close();
+		}
+	}
+
+	@Test
+	public void testCircuitBreaker() throws Exception {
+		// after two failures the circuit opens and the remaining attempts don't reach the endpoint
+		WebhookDispatcher dispatcher = new WebhookDispatcher(2, 5, 3, 20, 2, 60000, deadLetters);
+		try {
+			assertTrue(dispatcher.dispatch("app", "hook3", payload("/down")));
+			await(() -> hits("/down") == 2);
+			await(() -> dispatcher.getPendingRetries() == 1);
+			dispatcher.close();
+			assertEquals(2, hits("/down"));
+			List<String> lines = Files.readAllLines(deadLetters);
+			assertEquals(1, lines.size());
+			assertTrue(lines.get(0).contains("\"reason\":\"shutdown\""));
+		} finally {
+			dispatcher.close();
+		}
+	}
+
+	@Test
+	public void testOpenCircuitDefersWithoutSpendingRetries() throws Exception {
+		// no retries, so any attempt charged to a deferred delivery would dead-letter it right away
+		WebhookDispatcher dispatcher = new WebhookDispatcher(2, 5, 0, 20, 1, 60000, deadLetters);
+		String countId = "failed_webhook_count" + Para.getConfig().separator() + "hook4";
+		try {
+			assertTrue(dispatcher.dispatch("app", "hook4", payload("/down")));
+			await(() -> deadLetters.toFile().length() > 0);
+			await(() -> Integer.valueOf(1).equals(Para.getCache().get("app", countId)));
+			for (int i = 0; i < 5; i++) {
+				assertTrue(dispatcher.dispatch("app", "hook4", payload("/down")));
+			}
+			await(() -> dispatcher.getPendingRetries() == 5);
+			Thread.sleep(200);
+			assertEquals(1, hits("/down"));
+			assertEquals(1, Files.readAllLines(deadLetters).size());
+			assertEquals(1, (int) Para.getCache().get("app", countId));
+
+			dispatcher.close();
+			List<String> lines = Files.readAllLines(deadLetters);
+			assertEquals(6, lines.size());
+			for (String line : lines.subList(1, lines.size())) {
+				assertTrue(line.contains("\"reason\":\"shutdown\""));
+				assertTrue(line.contains("\"attempts\":1"));
+			}
+		} finally {
+			dispatcher.close();
+			Para.getCache().remove("app", countId);
+		}
+	}
+}